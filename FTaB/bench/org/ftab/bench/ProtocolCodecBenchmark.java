@@ -0,0 +1,414 @@
+/**
+ * ProtocolCodecBenchmark.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ftab.communication.ProtocolMessage;
+import org.ftab.communication.exceptions.InvalidHeaderException;
+import org.ftab.communication.requests.ConnectionRequest;
+import org.ftab.communication.requests.GetQueuesRequest;
+import org.ftab.communication.requests.QueueModificationRequest;
+import org.ftab.communication.requests.RetrieveMessageRequest;
+import org.ftab.communication.requests.SendMessageBatchRequest;
+import org.ftab.communication.requests.SendMessageRequest;
+import org.ftab.communication.requests.SubscriptionRequest;
+import org.ftab.communication.responses.GetQueuesResponse;
+import org.ftab.communication.responses.RequestResponse;
+import org.ftab.communication.responses.RequestResponse.Status;
+import org.ftab.communication.responses.RetrieveMessageResponse;
+import org.ftab.communication.responses.RetrieveMessagesResponse;
+import org.ftab.pubenums.Filter;
+import org.ftab.pubenums.Order;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the serialization of the protocol messages. Every request
+ * and response type is encoded with ProtocolMessage.toBytes and decoded with
+ * ProtocolMessage.fromBytes, the responses in both the text and the binary
+ * protocol versions. The text encoding of the responses escapes the
+ * separator, so the content of the messages contains separators.
+ * <p>
+ * Run it with tools/run_benchmarks.sh, which adds the gc profiler to report
+ * the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolCodecBenchmark {
+    /**
+     * Number of characters in the content of the messages.
+     */
+    @Param({ "10", "100", "2000" })
+    public int messageSize;
+
+    /**
+     * Number of queues in the queue lists.
+     */
+    @Param({ "1", "10", "100" })
+    public int queueCount;
+
+    /**
+     * Whether the content of the messages is plain ASCII or has multi-byte
+     * characters.
+     */
+    @Param({ "true", "false" })
+    public boolean ascii;
+
+    /**
+     * Number of messages in the batches.
+     */
+    private final static int BATCH_SIZE = 10;
+
+    /**
+     * Characters the content is built from, with a separator so the text
+     * encoding has something to escape.
+     */
+    private final static String ASCII_CHARACTERS = "abcdefghij;klmnopqrstuvwxyz0123456789 ";
+
+    /**
+     * Multi-byte characters mixed into the non-ASCII content.
+     */
+    private final static String NON_ASCII_CHARACTERS = "éüß€中文;";
+
+    private SendMessageRequest sendMessage;
+    private SendMessageBatchRequest sendBatch;
+    private ConnectionRequest connection;
+    private GetQueuesRequest getQueues;
+    private QueueModificationRequest queueModification;
+    private RetrieveMessageRequest retrieveMessage;
+    private SubscriptionRequest subscription;
+    private RequestResponse requestResponse;
+    private RetrieveMessageResponse retrieveResponse;
+    private RetrieveMessagesResponse retrieveBatch;
+    private GetQueuesResponse getQueuesResponse;
+
+    private ByteBuffer sendMessageBytes;
+    private ByteBuffer sendBatchBytes;
+    private ByteBuffer connectionBytes;
+    private ByteBuffer getQueuesBytes;
+    private ByteBuffer queueModificationBytes;
+    private ByteBuffer retrieveMessageBytes;
+    private ByteBuffer subscriptionBytes;
+    private ByteBuffer requestResponseTextBytes;
+    private ByteBuffer requestResponseBinaryBytes;
+    private ByteBuffer retrieveResponseTextBytes;
+    private ByteBuffer retrieveResponseBinaryBytes;
+    private ByteBuffer retrieveBatchTextBytes;
+    private ByteBuffer retrieveBatchBinaryBytes;
+    private ByteBuffer getQueuesResponseTextBytes;
+    private ByteBuffer getQueuesResponseBinaryBytes;
+
+    /**
+     * Build the messages for the parameters and encode them once for the
+     * decoding benchmarks.
+     */
+    @Setup
+    public void setUp() {
+        String content = content(messageSize, ascii);
+        List<String> queues = new ArrayList<String>(queueCount);
+        for (int i = 0; i < queueCount; ++i)
+            queues.add("queue_" + i);
+
+        sendMessage = new SendMessageRequest(content, (byte) 5, 42, queues,
+                "receiver");
+        List<SendMessageRequest> batch = new ArrayList<SendMessageRequest>(
+                BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; ++i)
+            batch.add(new SendMessageRequest(content, (byte) 5, i, queues));
+        sendBatch = new SendMessageBatchRequest(batch);
+        connection = new ConnectionRequest("client_1", true);
+        getQueues = new GetQueuesRequest();
+        queueModification = new QueueModificationRequest("queue_0", false);
+        retrieveMessage = new RetrieveMessageRequest("queue_0", Filter.QUEUE,
+                Order.PRIORITY, true, BATCH_SIZE, 100);
+        subscription = new SubscriptionRequest(queues, Order.TIMESTAMP,
+                BATCH_SIZE);
+        requestResponse = new RequestResponse(Status.SUCCESS, content);
+        retrieveResponse = new RetrieveMessageResponse(1234567L, content,
+                "sender;1", "receiver", "queue;0", 5, 42);
+        List<RetrieveMessageResponse> responses = new ArrayList<RetrieveMessageResponse>(
+                BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; ++i)
+            responses.add(new RetrieveMessageResponse(i, content, "sender;1",
+                    null, "queue;0", 5, i));
+        retrieveBatch = new RetrieveMessagesResponse(responses);
+        getQueuesResponse = new GetQueuesResponse(queues);
+
+        sendMessageBytes = encode(sendMessage, ProtocolMessage.PROTOCOL_VERSION);
+        sendBatchBytes = encode(sendBatch, ProtocolMessage.PROTOCOL_VERSION);
+        connectionBytes = encode(connection, ProtocolMessage.PROTOCOL_VERSION);
+        getQueuesBytes = encode(getQueues, ProtocolMessage.PROTOCOL_VERSION);
+        queueModificationBytes = encode(queueModification,
+                ProtocolMessage.PROTOCOL_VERSION);
+        retrieveMessageBytes = encode(retrieveMessage,
+                ProtocolMessage.PROTOCOL_VERSION);
+        subscriptionBytes = encode(subscription,
+                ProtocolMessage.PROTOCOL_VERSION);
+        requestResponseTextBytes = encode(requestResponse,
+                ProtocolMessage.TEXT_PROTOCOL_VERSION);
+        requestResponseBinaryBytes = encode(requestResponse,
+                ProtocolMessage.BINARY_PROTOCOL_VERSION);
+        retrieveResponseTextBytes = encode(retrieveResponse,
+                ProtocolMessage.TEXT_PROTOCOL_VERSION);
+        retrieveResponseBinaryBytes = encode(retrieveResponse,
+                ProtocolMessage.BINARY_PROTOCOL_VERSION);
+        retrieveBatchTextBytes = encode(retrieveBatch,
+                ProtocolMessage.TEXT_PROTOCOL_VERSION);
+        retrieveBatchBinaryBytes = encode(retrieveBatch,
+                ProtocolMessage.BINARY_PROTOCOL_VERSION);
+        getQueuesResponseTextBytes = encode(getQueuesResponse,
+                ProtocolMessage.TEXT_PROTOCOL_VERSION);
+        getQueuesResponseBinaryBytes = encode(getQueuesResponse,
+                ProtocolMessage.BINARY_PROTOCOL_VERSION);
+    }
+
+    /**
+     * Build the content of a message.
+     *
+     * @param size
+     *            number of characters.
+     * @param ascii
+     *            whether only ASCII characters are used.
+     * @return the content.
+     */
+    private static String content(int size, boolean ascii) {
+        StringBuilder builder = new StringBuilder(size);
+        for (int i = 0; i < size; ++i) {
+            if (!ascii && i % 4 == 0)
+                builder.append(NON_ASCII_CHARACTERS.charAt(i
+                        % NON_ASCII_CHARACTERS.length()));
+            else
+                builder.append(ASCII_CHARACTERS.charAt(i
+                        % ASCII_CHARACTERS.length()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Encode a message as it is sent on the wire.
+     *
+     * @param message
+     *            the message.
+     * @param version
+     *            protocol version of the peer.
+     * @return the encoded message, including the header.
+     */
+    private static ByteBuffer encode(ProtocolMessage message, byte version) {
+        return ProtocolMessage.toBytes(message, version);
+    }
+
+    /**
+     * Decode a message encoded by {@link #encode}, skipping the header as the
+     * server does once it has read the body size.
+     *
+     * @param encoded
+     *            the encoded message, it is not modified.
+     * @return the decoded message.
+     */
+    private static ProtocolMessage decode(ByteBuffer encoded) {
+        ByteBuffer body = encoded.duplicate();
+        body.position(ProtocolMessage.HEADER_SIZE);
+        return ProtocolMessage.fromBytes(body);
+    }
+
+    @Benchmark
+    public int getBodySize() throws InvalidHeaderException {
+        ByteBuffer header = sendMessageBytes.duplicate();
+        header.limit(ProtocolMessage.HEADER_SIZE);
+        return ProtocolMessage.getBodySize(header);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeSendMessage() {
+        return encode(sendMessage, ProtocolMessage.PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeSendMessage() {
+        return decode(sendMessageBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeSendMessageBatch() {
+        return encode(sendBatch, ProtocolMessage.PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeSendMessageBatch() {
+        return decode(sendBatchBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeConnection() {
+        return encode(connection, ProtocolMessage.PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeConnection() {
+        return decode(connectionBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeGetQueues() {
+        return encode(getQueues, ProtocolMessage.PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeGetQueues() {
+        return decode(getQueuesBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeQueueModification() {
+        return encode(queueModification, ProtocolMessage.PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeQueueModification() {
+        return decode(queueModificationBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRetrieveMessage() {
+        return encode(retrieveMessage, ProtocolMessage.PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeRetrieveMessage() {
+        return decode(retrieveMessageBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeSubscription() {
+        return encode(subscription, ProtocolMessage.PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeSubscription() {
+        return decode(subscriptionBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRequestResponseText() {
+        return encode(requestResponse, ProtocolMessage.TEXT_PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRequestResponseBinary() {
+        return encode(requestResponse, ProtocolMessage.BINARY_PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeRequestResponseText() {
+        return decode(requestResponseTextBytes);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeRequestResponseBinary() {
+        return decode(requestResponseBinaryBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRetrieveResponseText() {
+        return encode(retrieveResponse, ProtocolMessage.TEXT_PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRetrieveResponseBinary() {
+        return encode(retrieveResponse,
+                ProtocolMessage.BINARY_PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeRetrieveResponseText() {
+        return decode(retrieveResponseTextBytes);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeRetrieveResponseBinary() {
+        return decode(retrieveResponseBinaryBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRetrieveBatchText() {
+        return encode(retrieveBatch, ProtocolMessage.TEXT_PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRetrieveBatchBinary() {
+        return encode(retrieveBatch, ProtocolMessage.BINARY_PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeRetrieveBatchText() {
+        return decode(retrieveBatchTextBytes);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeRetrieveBatchBinary() {
+        return decode(retrieveBatchBinaryBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeGetQueuesResponseText() {
+        return encode(getQueuesResponse, ProtocolMessage.TEXT_PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeGetQueuesResponseBinary() {
+        return encode(getQueuesResponse,
+                ProtocolMessage.BINARY_PROTOCOL_VERSION);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeGetQueuesResponseText() {
+        return decode(getQueuesResponseTextBytes);
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeGetQueuesResponseBinary() {
+        return decode(getQueuesResponseBinaryBytes);
+    }
+
+    /**
+     * The escaping of the text encoding of a retrieved message on its own,
+     * without the framing.
+     *
+     * @return the body of the message.
+     */
+    @Benchmark
+    public ByteBuffer escapeRetrieveResponse() {
+        return retrieveResponse.toBytes();
+    }
+
+    /**
+     * The joining of the queue names of a send request on its own, without
+     * the framing.
+     *
+     * @return the body of the message.
+     */
+    @Benchmark
+    public ByteBuffer escapeSendMessage() {
+        return sendMessage.toBytes();
+    }
+}
@@ -11,6 +11,20 @@ import threading
 import time
 
 from org.ftab.client import Client
+from org.ftab.client import SubscriptionListener
+from org.ftab.pubenums import Order
+
+
+class PushCounter(SubscriptionListener):
+    '''
+    Counts the messages pushed for the subscriptions of a reader.
+    '''
+
+    def __init__(self):
+        self.received = 0
+
+    def messagesPushed(self, queueName, messages):
+        self.received += messages.size()
 
 
 class Reader(threading.Thread):
@@ -20,9 +34,13 @@ class Reader(threading.Thread):
     distributed as some random variable.
     '''
 
-    def __init__(self, clientName, possibleQueues, distribution):
+    def __init__(self, clientName, possibleQueues, distribution, waitMillis=0, credits=0):
         '''
-        Initialization for the class.
+        Initialization for the class. With a positive waitMillis the
+        reader lets the server hold each read until a message arrives,
+        for at most that many milliseconds, instead of polling. With
+        positive credits the reader subscribes to all its queues and
+        the server pushes the messages instead.
         '''
         threading.Thread.__init__(self)
         self.clientName = clientName  # Name of the client in the system
@@ -30,6 +48,9 @@ class Reader(threading.Thread):
         self.clientInstance = Client(self.clientName)  # Creates a java client object
         self.queues = possibleQueues  # Records the queues from which the client can read
         self.distribution = distribution()  # Wait periods generator
+        self.waitMillis = waitMillis  # Longest time the server holds a read
+        self.credits = credits  # Messages pushed ahead of the reader per queue
+        self.listener = PushCounter()  # Receives the pushed messages
 
     def connect(self, serverAddress, port):
         '''
@@ -42,7 +63,11 @@ class Reader(threading.Thread):
         '''
         Reads a message from a random queue
         '''
-        self.clientInstance.ViewMessageFromQueue(random.choice(self.queues), True)
+        if self.waitMillis > 0:
+            self.clientInstance.WaitForMessagesFromQueue(random.choice(self.queues), True,
+                                                         Order.TIMESTAMP, 1, self.waitMillis)
+        else:
+            self.clientInstance.ViewMessageFromQueue(random.choice(self.queues), True)
         
     def disconnect(self):
         '''
@@ -57,6 +82,12 @@ class Reader(threading.Thread):
         external thread.
         '''
         self.running = True
+        if self.credits > 0:
+            self.clientInstance.Subscribe(self.listener, Order.TIMESTAMP, self.credits, *self.queues)
+            while(self.running):
+                time.sleep(0.1)
+            self.clientInstance.Unsubscribe(*self.queues)
+            return
         while(self.running):
             self.readMessage()
             self.distribution.wait()
@@ -1,6 +1,10 @@
 package org.ftab.client;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.ftab.client.exceptions.AlreadyOnlineException;
@@ -11,6 +15,7 @@ import org.ftab.client.exceptions.QueueInexistentException;
 import org.ftab.client.exceptions.QueueNotEmptyException;
 import org.ftab.client.exceptions.UnexpectedResponseException;
 import org.ftab.client.exceptions.UnspecifiedErrorException;
+import org.ftab.client.serverrpc.ResponseFuture;
 import org.ftab.client.serverrpc.ServerRPC;
 import org.ftab.communication.exceptions.InvalidHeaderException;
 import org.ftab.logging.client.ClientConnectionRecord;
@@ -18,7 +23,9 @@ import org.ftab.logging.client.ClientDisconRecord;
 import org.ftab.logging.client.GetMessageLogRecord;
 import org.ftab.logging.client.QueueCreateLogRecord;
 import org.ftab.logging.client.QueueDeleteLogRecord;
+import org.ftab.logging.client.SendBatchLogRecord;
 import org.ftab.logging.client.SendMsgLogRecord;
+import org.ftab.logging.client.SubscriptionLogRecord;
 import org.ftab.logging.client.WaitingQueuesLogRecord;
 import org.ftab.pubenums.Filter;
 import org.ftab.pubenums.Order;
@@ -253,6 +260,118 @@ public class Client {
 		}
 	}
 	
+	/**
+	 * Sends a message from this client to one or more queues with a designated 
+	 * receiver for the message without waiting for the server to acknowledge it.
+	 * Many requests can be outstanding on the connection, the server answers 
+	 * them in order. Errors are never suppressed, they fail the returned future.
+	 * @param message The text of the message to be sent.
+	 * @param priority The priority of the message, from 1 to 10, with 1 being the
+	 * lowest and 10 the highest.
+	 * @param context The context of the message
+	 * @param receiver The username of the designated receiver of the message, or 
+	 * null for any receiver.
+	 * @param queues The names of the queue or queues to which to send the message
+	 * @return A future that completes when the message is sent, or fails with the
+	 * exception that the synchronous call would throw.
+	 */
+	public ResponseFuture<Void> SendMessageAsync(String message, byte priority, int context, 
+			String receiver, String... queues) {
+		final Message msg = new Message(context, priority, message, this.getUsername(), receiver, queues);
+		
+		/* Log the start of the attempt */
+		final SendMsgLogRecord record = new SendMsgLogRecord(this, msg);
+		LOGGER.log(record);
+		
+		final ResponseFuture<Void> result = server.PushMessageAsync(msg);
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (result.getFailure() == null) {
+					LOGGER.log(new SendMsgLogRecord(Client.this, msg, record));
+				} else {
+					LOGGER.log(new SendMsgLogRecord(Client.this, msg, result.getFailure(), record));
+				}
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Sends several messages from this client in a single request. The server
+	 * creates all of them in one transaction, so if any of them can't be sent
+	 * none of them is. The sender of the messages is always this client.
+	 * @param messages The messages to be sent, each one with its own queues,
+	 * receiver, priority and context.
+	 * @return <b>true</b> if the messages were sent successfully, <b>false</b> otherwise
+	 * @throws QueueInexistentException If one or more of the queues specified does not
+	 * exist in the system
+	 * @throws ClientInexistentException If one of the specified receivers does not exist 
+	 * in the system
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws IOException If an error occurred with the channel
+	 * @throws InvalidHeaderException If the input data was somehow corrupted
+	 */
+	public boolean SendMessages(Collection<Message> messages) 
+			throws QueueInexistentException, UnspecifiedErrorException, ClientInexistentException, IOException, InvalidHeaderException {
+		
+		/* Log the start of the attempt */
+		final SendBatchLogRecord record = new SendBatchLogRecord(this, messages.size());
+		LOGGER.log(record);
+		
+		try {
+			server.PushMessages(messages);
+			
+			LOGGER.log(new SendBatchLogRecord(this, record));
+			return true;
+		
+			/* Log the failed attempt */
+		} catch (QueueInexistentException e) {
+			LOGGER.log(new SendBatchLogRecord(this, e, record));
+			if (!suppressingErrors) throw e;
+		} catch (ClientInexistentException e) {
+            LOGGER.log(new SendBatchLogRecord(this, e, record));
+            if (!suppressingErrors) throw e;
+        } catch (UnspecifiedErrorException e) {
+            LOGGER.log(new SendBatchLogRecord(this, e, record));
+            if (!suppressingErrors) throw e;
+        } catch (IOException e) {
+            LOGGER.log(new SendBatchLogRecord(this, e, record));
+            if (!suppressingErrors) throw e;
+        } catch (InvalidHeaderException e) {
+            LOGGER.log(new SendBatchLogRecord(this, e, record));
+            if (!suppressingErrors) throw e;
+        } 
+		return false;
+	}
+	
+	/**
+	 * Sends several messages from this client in a single request without 
+	 * waiting for the server to acknowledge them. Errors are never suppressed, 
+	 * they fail the returned future.
+	 * @param messages The messages to be sent.
+	 * @return A future that completes when the messages are sent, or fails with
+	 * the exception that the synchronous call would throw.
+	 */
+	public ResponseFuture<Void> SendMessagesAsync(Collection<Message> messages) {
+		/* Log the start of the attempt */
+		final SendBatchLogRecord record = new SendBatchLogRecord(this, messages.size());
+		LOGGER.log(record);
+		
+		final ResponseFuture<Void> result = server.PushMessagesAsync(messages);
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (result.getFailure() == null) {
+					LOGGER.log(new SendBatchLogRecord(Client.this, record));
+				} else {
+					LOGGER.log(new SendBatchLogRecord(Client.this, result.getFailure(), record));
+				}
+			}
+		});
+		return result;
+	}
+	
 	/**
 	 * Requests that the named queue be deleted from the queues in the system.
 	 * @param queueName The name of the queue to be deleted.
@@ -293,6 +412,30 @@ public class Client {
 		return false;
 	}
 	
+	/**
+	 * Requests that the named queue be deleted without waiting for the response.
+	 * @param queueName The name of the queue to be deleted.
+	 * @return A future that completes when the queue is deleted, or fails with
+	 * the exception that the synchronous call would throw.
+	 */
+	public ResponseFuture<Void> DeleteQueueAsync(final String queueName) {
+		final QueueDeleteLogRecord record = new QueueDeleteLogRecord(this, queueName);
+		LOGGER.log(record);
+		
+		final ResponseFuture<Void> result = server.DeleteQueueAsync(queueName);
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (result.getFailure() == null) {
+					LOGGER.log(new QueueDeleteLogRecord(Client.this, queueName, record));
+				} else {
+					LOGGER.log(new QueueDeleteLogRecord(Client.this, queueName, result.getFailure(), record));
+				}
+			}
+		});
+		return result;
+	}
+	
 	/**
 	 * Requests that a new queue be created in the the system with the specified name.
 	 * @param queueName The name to assign the newly created queue.
@@ -329,6 +472,30 @@ public class Client {
 		return false;
 	}
 
+	/**
+	 * Requests that a new queue be created without waiting for the response.
+	 * @param queueName The name to assign the newly created queue.
+	 * @return A future that completes when the queue is created, or fails with
+	 * the exception that the synchronous call would throw.
+	 */
+	public ResponseFuture<Void> CreateQueueAsync(final String queueName) {
+		final QueueCreateLogRecord record = new QueueCreateLogRecord(this, queueName);
+		LOGGER.log(record);
+		
+		final ResponseFuture<Void> result = server.CreateQueueAsync(queueName);
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (result.getFailure() == null) {
+					LOGGER.log(new QueueCreateLogRecord(Client.this, queueName, record));
+				} else {
+					LOGGER.log(new QueueCreateLogRecord(Client.this, queueName, result.getFailure(), record));
+				}
+			}
+		});
+		return result;
+	}
+
 	/**
 	 * Gets the names of the queues that have messages waiting for this client.
 	 * @return An Iterable containing the names of the queues with messages waiting
@@ -361,6 +528,34 @@ public class Client {
 		return null;
 	}
 	
+	/**
+	 * Gets the names of the queues that have messages waiting for this client
+	 * without waiting for the response.
+	 * @return A future with the names of the queues with messages waiting for this
+	 * client, which fails with the exception that the synchronous call would throw.
+	 */
+	public ResponseFuture<Iterable<String>> GetWaitingQueuesAsync() {
+		final WaitingQueuesLogRecord record = new WaitingQueuesLogRecord(this);
+		LOGGER.log(record);
+		
+		final ResponseFuture<Iterable<String>> result = server.GetWaitingQueuesAsync(this);
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (result.getFailure() == null) {
+					try {
+						LOGGER.log(new WaitingQueuesLogRecord(Client.this, result.get(), record));
+					} catch (Exception e) {
+						// The future is completed successfully
+					}
+				} else {
+					LOGGER.log(new WaitingQueuesLogRecord(Client.this, result.getFailure(), record));
+				}
+			}
+		});
+		return result;
+	}
+	
 	/**
 	 * Retrieves the message with the highest priority from a queue and optionally 
 	 * removes the message from the queue.
@@ -500,6 +695,312 @@ public class Client {
 		return null;
 	}
 	
+	/**
+	 * Retrieves up to a given number of messages from a queue in a single request
+	 * and optionally removes them from that queue.
+	 * @param queueName The name of the queue from which to retrieve the messages
+	 * @param andRemove <b>true</b> to delete the messages after retrieving them, 
+	 * <b>false</b> to leave the messages on the queue.
+	 * @param orderedBy An enumerated value indicating whether to retrieve the
+	 * messages by earliest time-stamp or by highest priority first. 
+	 * @param maxMessages The maximum number of messages to retrieve.
+	 * @return The messages from the specified queue in order, empty if the queue had
+	 * no message for this client.
+	 * @throws IOException If an error occurred on the channel
+	 * @throws QueueInexistentException If the specified was queue does not exist in
+	 * the system.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws InvalidHeaderException If the response was somehow corrupted
+	 */
+	public List<Message> ViewMessagesFromQueue(String queueName, boolean andRemove, Order orderedBy, 
+			int maxMessages) 
+			throws InvalidHeaderException, IOException, QueueInexistentException, UnspecifiedErrorException {
+		try {
+			return ViewMessages(Filter.QUEUE, queueName, andRemove, orderedBy, maxMessages, 0);
+		} catch (ClientInexistentException e) {
+			throw new UnexpectedResponseException();
+		}
+	}
+	
+	/**
+	 * Retrieves up to a given number of messages from a particular sender in a 
+	 * single request and optionally removes them from the queues they were found on.
+	 * @param senderName The name of the sender from whom the messages are to be
+	 * @param andRemove <b>true</b> to delete the messages after retrieving them, 
+	 * <b>false</b> to leave the messages on the queue.
+	 * @param orderedBy An enumerated value indicating whether to retrieve the
+	 * messages by earliest time-stamp or by highest priority first. 
+	 * @param maxMessages The maximum number of messages to retrieve.
+	 * @return The messages from the sender in order, empty if there was no message 
+	 * available from the sender.
+	 * @throws IOException If an error occurred on the channel
+	 * @throws ClientInexistentException If the specified sender does not exist in the
+	 * system.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws InvalidHeaderException If the response was somehow corrupted
+	 */
+	public List<Message> ViewMessagesFromSender(String senderName, boolean andRemove, Order orderedBy, 
+			int maxMessages) 
+			throws ClientInexistentException, UnspecifiedErrorException, IOException, InvalidHeaderException {
+		try {
+			return ViewMessages(Filter.SENDER, senderName, andRemove, orderedBy, maxMessages, 0);
+		} catch (QueueInexistentException e) {
+			throw new UnexpectedResponseException();
+		}
+	}
+	
+	/**
+	 * Waits for up to a given number of messages from a queue and optionally removes
+	 * them from that queue. The server holds the request until a message arrives,
+	 * so no polling is needed.
+	 * @param queueName The name of the queue from which to retrieve the messages
+	 * @param andRemove <b>true</b> to delete the messages after retrieving them, 
+	 * <b>false</b> to leave the messages on the queue.
+	 * @param orderedBy An enumerated value indicating whether to retrieve the
+	 * messages by earliest time-stamp or by highest priority first. 
+	 * @param maxMessages The maximum number of messages to retrieve.
+	 * @param timeoutMillis The longest time to wait for a message, in milliseconds.
+	 * @return The messages from the specified queue in order, empty if no message
+	 * arrived for this client before the timeout.
+	 * @throws IOException If an error occurred on the channel
+	 * @throws QueueInexistentException If the specified was queue does not exist in
+	 * the system.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws InvalidHeaderException If the response was somehow corrupted
+	 */
+	public List<Message> WaitForMessagesFromQueue(String queueName, boolean andRemove, Order orderedBy, 
+			int maxMessages, int timeoutMillis) 
+			throws InvalidHeaderException, IOException, QueueInexistentException, UnspecifiedErrorException {
+		try {
+			return ViewMessages(Filter.QUEUE, queueName, andRemove, orderedBy, maxMessages, timeoutMillis);
+		} catch (ClientInexistentException e) {
+			throw new UnexpectedResponseException();
+		}
+	}
+	
+	/**
+	 * Waits for up to a given number of messages from a particular sender and
+	 * optionally removes them from the queues they were found on. The server holds 
+	 * the request until a message arrives, so no polling is needed.
+	 * @param senderName The name of the sender from whom the messages are to be
+	 * @param andRemove <b>true</b> to delete the messages after retrieving them, 
+	 * <b>false</b> to leave the messages on the queue.
+	 * @param orderedBy An enumerated value indicating whether to retrieve the
+	 * messages by earliest time-stamp or by highest priority first. 
+	 * @param maxMessages The maximum number of messages to retrieve.
+	 * @param timeoutMillis The longest time to wait for a message, in milliseconds.
+	 * @return The messages from the sender in order, empty if no message arrived 
+	 * from the sender before the timeout.
+	 * @throws IOException If an error occurred on the channel
+	 * @throws ClientInexistentException If the specified sender does not exist in the
+	 * system.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws InvalidHeaderException If the response was somehow corrupted
+	 */
+	public List<Message> WaitForMessagesFromSender(String senderName, boolean andRemove, Order orderedBy, 
+			int maxMessages, int timeoutMillis) 
+			throws ClientInexistentException, UnspecifiedErrorException, IOException, InvalidHeaderException {
+		try {
+			return ViewMessages(Filter.SENDER, senderName, andRemove, orderedBy, maxMessages, timeoutMillis);
+		} catch (QueueInexistentException e) {
+			throw new UnexpectedResponseException();
+		}
+	}
+	
+	/**
+	 * Subscribes to one or more queues so the server pushes their messages for
+	 * this client as they arrive, removing them from the queues, instead of the 
+	 * client polling for them. At most the given number of messages of each queue
+	 * are pushed ahead of the listener, which runs in the thread reading the
+	 * responses of the server and should not block.
+	 * @param listener The listener that receives the pushed messages.
+	 * @param orderedBy An enumerated value indicating whether to push the
+	 * messages by earliest time-stamp or by highest priority first.
+	 * @param credits The number of messages of each queue that may be pushed ahead
+	 * of the listener, at least one.
+	 * @param queues The names of the queues to subscribe to.
+	 * @return <b>true</b> if the subscription was successful, <b>false</b> otherwise.
+	 * @throws IOException If an error occurred on the channel
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws InvalidHeaderException If the response was somehow corrupted
+	 */
+	public boolean Subscribe(SubscriptionListener listener, Order orderedBy, int credits, String... queues)
+			throws UnspecifiedErrorException, IOException, InvalidHeaderException {
+		final SubscriptionLogRecord record = new SubscriptionLogRecord(this, true, queues.length);
+		LOGGER.log(record);
+		
+		try {
+			server.Subscribe(Arrays.asList(queues), orderedBy, credits, listener);
+			
+			LOGGER.log(new SubscriptionLogRecord(this, record));
+			return true;
+		} catch (UnspecifiedErrorException e) {
+			LOGGER.log(new SubscriptionLogRecord(this, e, record));
+			if (!suppressingErrors) throw e;
+		} catch (IOException e) {
+			LOGGER.log(new SubscriptionLogRecord(this, e, record));
+			if (!suppressingErrors) throw e;
+		} catch (InvalidHeaderException e) {
+			LOGGER.log(new SubscriptionLogRecord(this, e, record));
+			if (!suppressingErrors) throw e;
+		}
+		return false;
+	}
+	
+	/**
+	 * Unsubscribes from one or more queues. Messages pushed before the server 
+	 * handled the request are still given to the listener.
+	 * @param queues The names of the queues to unsubscribe from.
+	 * @return <b>true</b> if the unsubscription was successful, <b>false</b> otherwise.
+	 * @throws IOException If an error occurred on the channel
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws InvalidHeaderException If the response was somehow corrupted
+	 */
+	public boolean Unsubscribe(String... queues)
+			throws UnspecifiedErrorException, IOException, InvalidHeaderException {
+		final SubscriptionLogRecord record = new SubscriptionLogRecord(this, false, queues.length);
+		LOGGER.log(record);
+		
+		try {
+			server.Unsubscribe(Arrays.asList(queues));
+			
+			LOGGER.log(new SubscriptionLogRecord(this, record));
+			return true;
+		} catch (UnspecifiedErrorException e) {
+			LOGGER.log(new SubscriptionLogRecord(this, e, record));
+			if (!suppressingErrors) throw e;
+		} catch (IOException e) {
+			LOGGER.log(new SubscriptionLogRecord(this, e, record));
+			if (!suppressingErrors) throw e;
+		} catch (InvalidHeaderException e) {
+			LOGGER.log(new SubscriptionLogRecord(this, e, record));
+			if (!suppressingErrors) throw e;
+		}
+		return false;
+	}
+	
+	/**
+	 * Retrieves up to a given number of messages from a queue or sender, 
+	 * optionally removing them.
+	 * @param filter Whether the messages are retrieved from a queue or from a sender.
+	 * @param value The name of the queue or sender.
+	 * @param andRemove <b>true</b> to delete the messages after retrieving them, 
+	 * <b>false</b> to leave the messages on the queue.
+	 * @param orderedBy An enumerated value indicating whether to retrieve the
+	 * messages by earliest time-stamp or by highest priority first. 
+	 * @param maxMessages The maximum number of messages to retrieve.
+	 * @param waitMillis The longest time the server may hold the request waiting for
+	 * a message, in milliseconds, 0 to answer immediately.
+	 * @return The retrieved messages in order, empty if there was no message available
+	 * or the error was suppressed.
+	 * @throws IOException If an error occurred on the channel
+	 * @throws QueueInexistentException If the specified queue does not exist in the system.
+	 * @throws ClientInexistentException If the specified sender does not exist in the system.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws InvalidHeaderException If the response was somehow corrupted
+	 */
+	private List<Message> ViewMessages(Filter filter, String value, boolean andRemove, Order orderedBy, 
+			int maxMessages, int waitMillis) throws QueueInexistentException, ClientInexistentException, 
+			UnspecifiedErrorException, IOException, InvalidHeaderException {
+		final GetMessageLogRecord record = new GetMessageLogRecord(this, filter, value, orderedBy, andRemove);
+		LOGGER.log(record);
+		
+		try {
+			List<Message> result = waitMillis > 0
+					? server.RetrieveMessages(value, filter, orderedBy, andRemove, maxMessages, waitMillis)
+					: server.RetrieveMessages(value, filter, orderedBy, andRemove, maxMessages);
+			
+			LOGGER.log(new GetMessageLogRecord(this, result, filter, value, orderedBy, andRemove, record));
+			return result;
+		} catch (QueueInexistentException e) {
+			LOGGER.log(new GetMessageLogRecord(this, filter, value, orderedBy, andRemove, e, record));
+			if (!suppressingErrors) throw e;
+		} catch (ClientInexistentException e) {
+			LOGGER.log(new GetMessageLogRecord(this, filter, value, orderedBy, andRemove, e, record));
+			if (!suppressingErrors) throw e;
+		} catch (UnspecifiedErrorException e) {
+			LOGGER.log(new GetMessageLogRecord(this, filter, value, orderedBy, andRemove, e, record));
+			if (!suppressingErrors) throw e;
+		} catch (IOException e) {
+			LOGGER.log(new GetMessageLogRecord(this, filter, value, orderedBy, andRemove, e, record));
+			if (!suppressingErrors) throw e;
+		} catch (InvalidHeaderException e) {
+			LOGGER.log(new GetMessageLogRecord(this, filter, value, orderedBy, andRemove, e, record));
+			if (!suppressingErrors) throw e;
+		}
+		return Collections.emptyList();
+	}
+	
+	/**
+	 * Retrieves a message from a queue or sender, optionally removing it, without
+	 * waiting for the response.
+	 * @param filter Whether the message is retrieved from a queue or from a sender.
+	 * @param value The name of the queue or sender.
+	 * @param andRemove <b>true</b> to delete the message after retrieving it, 
+	 * <b>false</b> to leave the message on the queue.
+	 * @param orderedBy An enumerated value indicating whether to retrieve the
+	 * message with the earliest time-stamp or with the highest priority. 
+	 * @return A future with the retrieved message, or null if there was no message
+	 * available, which fails with the exception that the synchronous call would throw.
+	 */
+	private ResponseFuture<Message> ViewMessageAsync(final Filter filter, final String value, 
+			final boolean andRemove, final Order orderedBy) {
+		final GetMessageLogRecord record = new GetMessageLogRecord(this, filter, value, orderedBy, andRemove);
+		LOGGER.log(record);
+		
+		final ResponseFuture<Message> result = server.RetrieveMessageAsync(value, filter, orderedBy, andRemove);
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (result.getFailure() == null) {
+					try {
+						LOGGER.log(new GetMessageLogRecord(Client.this, result.get(), filter, value, 
+								orderedBy, andRemove, record));
+					} catch (Exception e) {
+						// The future is completed successfully
+					}
+				} else {
+					LOGGER.log(new GetMessageLogRecord(Client.this, filter, value, orderedBy, 
+							andRemove, result.getFailure(), record));
+				}
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Retrieves a message from a queue and optionally removes the message from 
+	 * that queue, without waiting for the response.
+	 * @param queueName The name of the queue from which to retrieve the message
+	 * @param andRemove <b>true</b> to delete the message after retrieving it, 
+	 * <b>false</b> to leave the message on the queue.
+	 * @param orderedBy An enumerated value indicating whether to retrieve the
+	 * message with the earliest time-stamp or with the highest priority. 
+	 * @return A future with the retrieved message, or null if the queue had no message
+	 * for this client, which fails with the exception that the synchronous call would throw.
+	 */
+	public ResponseFuture<Message> ViewMessageFromQueueAsync(String queueName, boolean andRemove, 
+			Order orderedBy) {
+		return ViewMessageAsync(Filter.QUEUE, queueName, andRemove, orderedBy);
+	}
+	
+	/**
+	 * Retrieves a message from a particular sender and optionally removes the 
+	 * message from the queue it was found on, without waiting for the response.
+	 * @param senderName The name of the sender from whom the message is to be
+	 * @param andRemove <b>true</b> to delete the message after retrieving it, 
+	 * <b>false</b> to leave the message on the queue.
+	 * @param orderedBy An enumerated value indicating whether to retrieve the
+	 * message with the earliest time-stamp or with the highest priority. 
+	 * @return A future with the retrieved message, or null if there was no message
+	 * available from the sender, which fails with the exception that the synchronous
+	 * call would throw.
+	 */
+	public ResponseFuture<Message> ViewMessageFromSenderAsync(String senderName, boolean andRemove, 
+			Order orderedBy) {
+		return ViewMessageAsync(Filter.SENDER, senderName, andRemove, orderedBy);
+	}
+	
 	/**
 	 * Gets the server that the client is interacting with
 	 * @return The server that the client is interacting with
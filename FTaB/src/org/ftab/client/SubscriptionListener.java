@@ -0,0 +1,21 @@
+package org.ftab.client;
+
+import java.util.List;
+
+/**
+ * Receives the messages that the server pushes for the subscriptions of a
+ * client. The listener is called in the thread reading the responses of the
+ * connection, so it should hand the messages off rather than block: no other
+ * response is read while it runs. Once it returns, the credits used by the
+ * messages are granted back to the subscription.
+ * @author Jean-Pierre Smith
+ */
+public interface SubscriptionListener {
+	/**
+	 * Called with the messages pushed for a subscribed queue, which have
+	 * already been removed from the queue.
+	 * @param queueName The name of the subscribed queue.
+	 * @param messages The pushed messages, in the order of the subscription.
+	 */
+	void messagesPushed(String queueName, List<Message> messages);
+}
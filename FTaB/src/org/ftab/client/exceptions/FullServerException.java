@@ -17,6 +17,10 @@ public class FullServerException extends FTaBServerException {
 	 * The hostname or address of the server
 	 */
 	private final String serverName;
+	/**
+	 * The time the server asked to wait before connecting again
+	 */
+	private final long retryAfter;
 	
 	/**
 	 * Creates a new FullServerException
@@ -24,11 +28,23 @@ public class FullServerException extends FTaBServerException {
 	 * @param port The port number of the server 
 	 */
 	public FullServerException(String serverName, int port) { 
+		this(serverName, port, 0);
+	}
+	
+	/**
+	 * Creates a new FullServerException with the time the server asked to wait
+	 * before connecting again
+	 * @param serverName The host name of the server 
+	 * @param port The port number of the server 
+	 * @param retryAfter The time to wait in milliseconds, 0 if the server didn't say
+	 */
+	public FullServerException(String serverName, int port, long retryAfter) { 
 		super(String.format("The server at %s:%d is full and will not accept any more connections.", 
 				serverName, port));
 		
 		this.serverPort = port;
 		this.serverName = serverName;
+		this.retryAfter = retryAfter;
 	}
 	
 	/**
@@ -49,4 +65,13 @@ public class FullServerException extends FTaBServerException {
 	public int getServerPort() {
 		return serverPort;
 	}
+	
+	/**
+	 * Gets the time the server asked to wait before connecting again.
+	 * @return The time in milliseconds, 0 if the server didn't say.
+	 * @aslexclude
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
 }
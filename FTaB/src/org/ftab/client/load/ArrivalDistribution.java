@@ -0,0 +1,104 @@
+package org.ftab.client.load;
+
+import java.util.Random;
+
+/**
+ * The distributions of the time between the requests of a client, with the
+ * same names and shapes as the generators of the Jython trace. Each one can
+ * be scaled to a mean gap so that a set of clients drives a target rate.
+ * @author Diego Ballesteros (diegob)
+ */
+public enum ArrivalDistribution {
+	/**
+	 * Gaps uniformly distributed between 0.5 and 2 seconds, or between 0.4
+	 * and 1.6 times the mean when scaled.
+	 */
+	UNIFORM("UniformDistribution", 1.25) {
+		@Override
+		protected double sample(Random random, double mean) {
+			return mean * (0.4 + 1.2 * random.nextDouble());
+		}
+	},
+
+	/**
+	 * Exponentially distributed gaps with a rate of 0.8 per second, the
+	 * arrivals of a Poisson process.
+	 */
+	EXPONENTIAL("ExponentialDistribution", 1.25) {
+		@Override
+		protected double sample(Random random, double mean) {
+			return -mean * Math.log(1.0 - random.nextDouble());
+		}
+	},
+
+	/**
+	 * A fixed gap of 1 second.
+	 */
+	NONE("NoDistribution", 1.0) {
+		@Override
+		protected double sample(Random random, double mean) {
+			return mean;
+		}
+	};
+
+	/**
+	 * The name of the generator in the trace files.
+	 */
+	private final String traceName;
+
+	/**
+	 * The mean gap in seconds of the generator of the Jython trace.
+	 */
+	private final double defaultMean;
+
+	/**
+	 * Creates a distribution.
+	 * @param traceName The name of the generator in the trace files.
+	 * @param defaultMean The mean gap in seconds of the Jython generator.
+	 */
+	ArrivalDistribution(String traceName, double defaultMean) {
+		this.traceName = traceName;
+		this.defaultMean = defaultMean;
+	}
+
+	/**
+	 * Gets the mean gap in seconds of the generator of the Jython trace.
+	 * @return The mean gap in seconds.
+	 */
+	public double getDefaultMean() {
+		return defaultMean;
+	}
+
+	/**
+	 * Draws the time until the next request.
+	 * @param random The source of randomness of the client.
+	 * @param mean The mean gap in seconds.
+	 * @return The gap in nanoseconds.
+	 */
+	public long nextGapNanos(Random random, double mean) {
+		return (long) (sample(random, mean) * 1e9);
+	}
+
+	/**
+	 * Draws a gap.
+	 * @param random The source of randomness of the client.
+	 * @param mean The mean gap in seconds.
+	 * @return The gap in seconds.
+	 */
+	protected abstract double sample(Random random, double mean);
+
+	/**
+	 * Gets the distribution named in a trace file.
+	 * @param name The name of the Jython generator or of the constant.
+	 * @return The distribution.
+	 * @throws IllegalArgumentException If there is no such distribution.
+	 */
+	public static ArrivalDistribution fromTraceName(String name) {
+		for (ArrivalDistribution distribution : ArrivalDistribution.values()) {
+			if (distribution.traceName.equalsIgnoreCase(name) || distribution.name().equalsIgnoreCase(name)) {
+				return distribution;
+			}
+		}
+		throw new IllegalArgumentException("Unknown distribution: " + name);
+	}
+}
@@ -0,0 +1,417 @@
+package org.ftab.client.load;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ftab.client.Client;
+import org.ftab.client.serverrpc.ResponseFuture;
+import org.ftab.pubenums.Order;
+import org.ftab.server.LatencyHistogram;
+
+/**
+ * Open-loop load generator that replays the clients of a trace file. Every
+ * client issues its requests at times drawn from the arrival distribution of
+ * the trace, whether or not the previous requests were answered, so a slow
+ * server can't slow down the arrivals. The requests are pipelined on the
+ * connection of the client and a few scheduler threads drive all the
+ * clients.
+ * <p>
+ * Latencies are measured from the time at which each request was scheduled
+ * to be sent rather than from the time at which it was written. When the
+ * scheduler or the connection falls behind, the waiting time is charged to
+ * the requests that suffered it, which corrects the coordinated omission of
+ * closed-loop clients. The uncorrected latencies are reported as well for
+ * comparison.
+ * <p>
+ * Besides the parameters read by the Jython trace generator, the trace section
+ * accepts targetrate (requests per second over all the clients, by default the
+ * rate of the Jython distributions), warmuptime (seconds excluded from the
+ * results), draintime (seconds to wait for the last responses), messagesize
+ * and schedulerthreads.
+ * @author Diego Ballesteros (diegob)
+ */
+public class LoadGenerator {
+	/**
+	 * The kinds of requests issued.
+	 */
+	public enum Operation {
+		/**
+		 * A sender sends a message to a random queue.
+		 */
+		SEND,
+
+		/**
+		 * A reader retrieves and removes a message from a random queue.
+		 */
+		RETRIEVE
+	}
+
+	/**
+	 * The priority of the messages, the same as the Jython senders.
+	 */
+	private static final byte PRIORITY = 10;
+
+	/**
+	 * The number of sub-buckets of the histograms.
+	 */
+	private static final int PRECISION = 3;
+
+	/**
+	 * The parameters of the trace.
+	 */
+	private final TraceConfig config;
+
+	/**
+	 * The clients of the trace.
+	 */
+	private final List<LoadClient> clients = new ArrayList<LoadClient>();
+
+	/**
+	 * The latencies from the scheduled send time, by operation.
+	 */
+	private final LatencyHistogram[] corrected = new LatencyHistogram[Operation.values().length];
+
+	/**
+	 * The latencies from the actual send time, by operation.
+	 */
+	private final LatencyHistogram[] uncorrected = new LatencyHistogram[Operation.values().length];
+
+	/**
+	 * The number of failed requests within the measurement.
+	 */
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * The number of requests sent and not answered yet.
+	 */
+	private final AtomicLong outstanding = new AtomicLong();
+
+	/**
+	 * The threads that send the requests at their scheduled times.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Released once every client has scheduled its last request.
+	 */
+	private CountDownLatch finished;
+
+	/**
+	 * The time at which the measurement starts, in System.nanoTime.
+	 */
+	private volatile long measureFrom;
+
+	/**
+	 * The time at which the clients stop sending, in System.nanoTime.
+	 */
+	private volatile long stopAt;
+
+	/**
+	 * A client of the trace, which schedules its next request every time it
+	 * sends one.
+	 */
+	private class LoadClient implements Runnable {
+		/**
+		 * The connection of the client.
+		 */
+		private final Client client;
+
+		/**
+		 * The kind of requests the client issues.
+		 */
+		private final Operation operation;
+
+		/**
+		 * The queues the client uses.
+		 */
+		private final List<String> queues;
+
+		/**
+		 * The distribution of the time between the requests.
+		 */
+		private final ArrivalDistribution distribution;
+
+		/**
+		 * The mean time between the requests in seconds.
+		 */
+		private final double meanGap;
+
+		/**
+		 * The content of the messages sent.
+		 */
+		private final String content;
+
+		/**
+		 * The source of randomness of the client.
+		 */
+		private final Random random;
+
+		/**
+		 * The time at which the next request is scheduled, only used by the
+		 * scheduler thread running the client.
+		 */
+		private long intended;
+
+		/**
+		 * Creates a client.
+		 * @param client The connection of the client.
+		 * @param operation The kind of requests the client issues.
+		 * @param queues The queues the client uses.
+		 * @param distribution The distribution of the time between the requests.
+		 * @param meanGap The mean time between the requests in seconds.
+		 * @param content The content of the messages sent.
+		 * @param random The source of randomness of the client.
+		 */
+		LoadClient(Client client, Operation operation, List<String> queues,
+				ArrivalDistribution distribution, double meanGap, String content, Random random) {
+			this.client = client;
+			this.operation = operation;
+			this.queues = queues;
+			this.distribution = distribution;
+			this.meanGap = meanGap;
+			this.content = content;
+			this.random = random;
+		}
+
+		/**
+		 * Schedules the first request at a random offset, so that the clients
+		 * don't send in bursts.
+		 * @param start The start time of the trace.
+		 */
+		void start(long start) {
+			intended = start + (long) (random.nextDouble() * meanGap * 1e9);
+			schedule();
+		}
+
+		@Override
+		public void run() {
+			final long scheduled = intended;
+			final boolean measured = scheduled >= measureFrom;
+			final String queue = queues.get(random.nextInt(queues.size()));
+
+			outstanding.incrementAndGet();
+			final long sent = System.nanoTime();
+			try {
+				final ResponseFuture<?> result;
+				if (operation == Operation.SEND) {
+					result = client.SendMessageAsync(content, PRIORITY, 0, null, queue);
+				} else {
+					result = client.ViewMessageFromQueueAsync(queue, true, Order.PRIORITY);
+				}
+				result.addListener(new Runnable() {
+					@Override
+					public void run() {
+						long done = System.nanoTime();
+						outstanding.decrementAndGet();
+						if (!measured) {
+							return;
+						}
+						if (result.getFailure() != null) {
+							failures.incrementAndGet();
+						}
+						corrected[operation.ordinal()].record(done - scheduled);
+						uncorrected[operation.ordinal()].record(done - sent);
+					}
+				});
+			} catch (RuntimeException e) {
+				outstanding.decrementAndGet();
+				if (measured) {
+					failures.incrementAndGet();
+				}
+			} finally {
+				// The next request is due a gap after this one was due, not after it was sent
+				intended += distribution.nextGapNanos(random, meanGap);
+				schedule();
+			}
+		}
+
+		/**
+		 * Schedules the next request, or reports that the client is done
+		 * once the next request would be due after the end of the trace.
+		 */
+		private void schedule() {
+			if (intended >= stopAt) {
+				finished.countDown();
+			} else {
+				scheduler.schedule(this, intended - System.nanoTime(), TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Creates a load generator for a trace.
+	 * @param config The parameters of the trace.
+	 */
+	public LoadGenerator(TraceConfig config) {
+		this.config = config;
+		for (Operation operation : Operation.values()) {
+			corrected[operation.ordinal()] = new LatencyHistogram(PRECISION);
+			uncorrected[operation.ordinal()] = new LatencyHistogram(PRECISION);
+		}
+	}
+
+	/**
+	 * Gets the latencies of an operation measured from the time at which the
+	 * requests were scheduled.
+	 * @param operation The operation.
+	 * @return The histogram of the latencies.
+	 */
+	public LatencyHistogram getCorrectedLatencies(Operation operation) {
+		return corrected[operation.ordinal()];
+	}
+
+	/**
+	 * Gets the latencies of an operation measured from the time at which the
+	 * requests were written.
+	 * @param operation The operation.
+	 * @return The histogram of the latencies.
+	 */
+	public LatencyHistogram getUncorrectedLatencies(Operation operation) {
+		return uncorrected[operation.ordinal()];
+	}
+
+	/**
+	 * Gets the number of requests that failed within the measurement.
+	 * @return The number of failures.
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Connects the clients of the trace, the readers are called Bob# and the
+	 * senders Alice# as in the Jython trace and are spread over the servers
+	 * in turns.
+	 * @throws Exception If a client can't connect.
+	 */
+	public void connect() throws Exception {
+		int readers = config.getInt("trace", "readernumber");
+		int senders = config.getInt("trace", "sendernumber");
+		ArrivalDistribution distribution = ArrivalDistribution.fromTraceName(
+				config.get("trace", "distribution", "UniformDistribution"));
+		double targetRate = config.getDouble("trace", "targetrate", 0);
+		double meanGap = (targetRate > 0) ? (readers + senders) / targetRate : distribution.getDefaultMean();
+		char[] filler = new char[(int) config.getDouble("trace", "messagesize", 1500)];
+		Arrays.fill(filler, 'x');
+		String content = new String(filler);
+
+		String queueBaseName = config.get("system", "queuebasename");
+		int validQueues = config.getInt("system", "validqueues");
+		List<String> queues = new ArrayList<String>(validQueues);
+		for (int i = 0; i < validQueues; ++i) {
+			queues.add(queueBaseName + i);
+		}
+
+		int servers = Integer.parseInt(config.get("system", "numberofservers", "1"));
+		String[] hosts = new String[servers];
+		int[] ports = new int[servers];
+		for (int i = 0; i < servers; ++i) {
+			char letter = (char) ('a' + i);
+			hosts[i] = config.get("system", "server" + letter);
+			ports[i] = config.getInt("system", "port" + letter);
+		}
+
+		// Per request logging would dominate the cost of the client
+		Logger.getLogger(Client.class.getName()).setLevel(Level.OFF);
+
+		Random seeds = new Random();
+		for (int i = 0; i < readers + senders; ++i) {
+			boolean reader = i < readers;
+			int index = reader ? i : i - readers;
+			Client client = new Client(reader ? "Bob" + index : "Alice" + index);
+			client.setSuppressingErrors(false);
+			client.Connect(hosts[index % servers], ports[index % servers]);
+			clients.add(new LoadClient(client, reader ? Operation.RETRIEVE : Operation.SEND, queues,
+					distribution, meanGap, content, new Random(seeds.nextLong())));
+		}
+	}
+
+	/**
+	 * Runs the trace and waits for the last responses.
+	 * @return The number of requests that were never answered.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public long run() throws InterruptedException {
+		long runtime = config.getInt("trace", "runningtime");
+		double warmup = config.getDouble("trace", "warmuptime", 0);
+		double drain = config.getDouble("trace", "draintime", 30);
+		int threads = (int) config.getDouble("trace", "schedulerthreads",
+				Runtime.getRuntime().availableProcessors());
+
+		scheduler = Executors.newScheduledThreadPool(threads);
+		finished = new CountDownLatch(clients.size());
+		long start = System.nanoTime();
+		measureFrom = start + (long) (warmup * 1e9);
+		stopAt = start + runtime * 1000000000L;
+		for (LoadClient client : clients) {
+			client.start(start);
+		}
+
+		finished.await();
+		scheduler.shutdown();
+
+		long drainUntil = System.nanoTime() + (long) (drain * 1e9);
+		while (outstanding.get() > 0 && System.nanoTime() < drainUntil) {
+			Thread.sleep(10);
+		}
+		return outstanding.get();
+	}
+
+	/**
+	 * Disconnects the clients.
+	 */
+	public void disconnect() {
+		for (LoadClient client : clients) {
+			try {
+				client.client.Disconnect();
+			} catch (Exception e) {
+				System.err.println("Couldn't disconnect " + client.client.getUsername() + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Builds the report of the latencies.
+	 * @return One line per operation and kind of latency.
+	 */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		for (Operation operation : Operation.values()) {
+			report.append(operation).append(" corrected: ")
+					.append(corrected[operation.ordinal()]).append('\n');
+			report.append(operation).append(" uncorrected: ")
+					.append(uncorrected[operation.ordinal()]).append('\n');
+		}
+		report.append("failures: ").append(failures.get()).append('\n');
+		return report.toString();
+	}
+
+	/**
+	 * Runs the trace given in the arguments and prints the latencies.
+	 * @param args The path of the trace file.
+	 * @throws Exception If the trace can't be read or the clients can't connect.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("Usage: java " + LoadGenerator.class.getName() + " trace.ini");
+			System.exit(1);
+		}
+
+		LoadGenerator generator = new LoadGenerator(TraceConfig.load(args[0]));
+		generator.connect();
+		long unanswered = generator.run();
+		generator.disconnect();
+
+		System.out.print(generator.report());
+		System.out.println("unanswered: " + unanswered);
+	}
+}
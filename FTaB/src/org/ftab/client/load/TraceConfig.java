@@ -0,0 +1,123 @@
+package org.ftab.client.load;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The parameters of a trace, read from the same .ini files used by the
+ * Jython trace generator. The files have sections in brackets followed by
+ * key = value lines, the keys are looked up as section.key.
+ * @author Diego Ballesteros (diegob)
+ */
+public class TraceConfig {
+	/**
+	 * The values of the file by section.key.
+	 */
+	private final Map<String, String> values = new HashMap<String, String>();
+
+	/**
+	 * Reads a trace file.
+	 * @param fileName The path of the .ini file.
+	 * @return The parameters in the file.
+	 * @throws IOException If the file can't be read.
+	 */
+	public static TraceConfig load(String fileName) throws IOException {
+		FileReader reader = new FileReader(fileName);
+		try {
+			return parse(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Parses the contents of a trace file.
+	 * @param input The contents of the file.
+	 * @return The parameters in the file.
+	 * @throws IOException If the contents can't be read or a line is not
+	 * a section, a key = value pair, a comment or blank.
+	 */
+	public static TraceConfig parse(Reader input) throws IOException {
+		TraceConfig config = new TraceConfig();
+		BufferedReader reader = new BufferedReader(input);
+		String section = "";
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			++lineNumber;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#") || line.startsWith(";")) {
+				continue;
+			}
+			if (line.startsWith("[") && line.endsWith("]")) {
+				section = line.substring(1, line.length() - 1).trim().toLowerCase();
+				continue;
+			}
+			int separator = line.indexOf('=');
+			if (separator < 0) {
+				separator = line.indexOf(':');
+			}
+			if (separator <= 0) {
+				throw new IOException("Line " + lineNumber + " of the trace is not a key = value pair: " + line);
+			}
+			String key = line.substring(0, separator).trim().toLowerCase();
+			config.values.put(section + "." + key, line.substring(separator + 1).trim());
+		}
+		return config;
+	}
+
+	/**
+	 * Gets a parameter that must be in the file.
+	 * @param section The section of the parameter.
+	 * @param key The name of the parameter.
+	 * @return The value of the parameter.
+	 * @throws IllegalArgumentException If the parameter is missing.
+	 */
+	public String get(String section, String key) {
+		String value = values.get(section + "." + key);
+		if (value == null) {
+			throw new IllegalArgumentException("The trace has no " + key + " in the " + section + " section.");
+		}
+		return value;
+	}
+
+	/**
+	 * Gets a parameter that may be left out of the file.
+	 * @param section The section of the parameter.
+	 * @param key The name of the parameter.
+	 * @param defaultValue The value used when the parameter is missing.
+	 * @return The value of the parameter.
+	 */
+	public String get(String section, String key, String defaultValue) {
+		String value = values.get(section + "." + key);
+		return (value == null) ? defaultValue : value;
+	}
+
+	/**
+	 * Gets an integer parameter that must be in the file.
+	 * @param section The section of the parameter.
+	 * @param key The name of the parameter.
+	 * @return The value of the parameter.
+	 * @throws IllegalArgumentException If the parameter is missing or not a number.
+	 */
+	public int getInt(String section, String key) {
+		return Integer.parseInt(get(section, key));
+	}
+
+	/**
+	 * Gets a decimal parameter that may be left out of the file.
+	 * @param section The section of the parameter.
+	 * @param key The name of the parameter.
+	 * @param defaultValue The value used when the parameter is missing.
+	 * @return The value of the parameter.
+	 * @throws IllegalArgumentException If the parameter is not a number.
+	 */
+	public double getDouble(String section, String key, double defaultValue) {
+		String value = values.get(section + "." + key);
+		return (value == null) ? defaultValue : Double.parseDouble(value);
+	}
+}
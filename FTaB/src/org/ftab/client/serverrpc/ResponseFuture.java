@@ -0,0 +1,171 @@
+package org.ftab.client.serverrpc;
+
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Represents the pending result of a request that was sent to the server
+ * without waiting for its response. The future is completed by the thread
+ * reading the responses of the connection, in the same order in which the
+ * requests were sent. Pipelined requests can't be withdrawn, so the future
+ * can't be cancelled.
+ * @author Jean-Pierre Smith
+ * @param <T> The type of the result of the request.
+ */
+public class ResponseFuture<T> implements Future<T> {
+	/**
+	 * Released once the future is completed.
+	 */
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/**
+	 * Actions to run once the future is completed.
+	 */
+	private final LinkedList<Runnable> listeners = new LinkedList<Runnable>();
+
+	/**
+	 * Whether the future has been completed, guarded by this.
+	 */
+	private boolean completed = false;
+
+	/**
+	 * The result of the request.
+	 */
+	private T value;
+
+	/**
+	 * The reason of the failure of the request, or null if it succeeded.
+	 */
+	private Throwable failure;
+
+	/**
+	 * Creates a future that has already failed.
+	 * @param cause The reason of the failure.
+	 * @return The failed future.
+	 */
+	public static <T> ResponseFuture<T> failed(Throwable cause) {
+		ResponseFuture<T> future = new ResponseFuture<T>();
+		future.fail(cause);
+		return future;
+	}
+
+	/**
+	 * Completes the future successfully and runs its listeners.
+	 * @param result The result of the request.
+	 * @return <b>true</b> if this call completed the future, <b>false</b> if it
+	 * was already completed.
+	 */
+	boolean complete(T result) {
+		synchronized (this) {
+			if (completed) return false;
+			value = result;
+			completed = true;
+		}
+		done.countDown();
+		runListeners();
+		return true;
+	}
+
+	/**
+	 * Completes the future with a failure and runs its listeners.
+	 * @param cause The reason of the failure.
+	 * @return <b>true</b> if this call completed the future, <b>false</b> if it
+	 * was already completed.
+	 */
+	boolean fail(Throwable cause) {
+		synchronized (this) {
+			if (completed) return false;
+			failure = cause;
+			completed = true;
+		}
+		done.countDown();
+		runListeners();
+		return true;
+	}
+
+	/**
+	 * Runs and discards the registered listeners.
+	 */
+	private void runListeners() {
+		while (true) {
+			Runnable listener;
+			synchronized (this) {
+				listener = listeners.poll();
+			}
+			if (listener == null) return;
+			listener.run();
+		}
+	}
+
+	/**
+	 * Registers an action to run once the future is completed. The action runs
+	 * in the thread that completes the future, or immediately in the calling
+	 * thread if the future is already completed, so it should not block.
+	 * @param listener The action to run.
+	 */
+	public void addListener(Runnable listener) {
+		synchronized (this) {
+			if (!completed) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Gets the reason of the failure of a completed future.
+	 * @return The exception that made the request fail, or null if the request
+	 * succeeded or is not completed yet.
+	 */
+	public synchronized Throwable getFailure() {
+		return failure;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return report();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return report();
+	}
+
+	/**
+	 * Returns the result of a completed future.
+	 * @return The result of the request.
+	 * @throws ExecutionException If the request failed, the cause is the
+	 * exception that the synchronous call would have thrown.
+	 */
+	private synchronized T report() throws ExecutionException {
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+}
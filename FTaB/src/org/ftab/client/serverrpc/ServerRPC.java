@@ -1,13 +1,23 @@
 package org.ftab.client.serverrpc;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import org.ftab.client.Client;
 import org.ftab.client.Message;
+import org.ftab.client.SubscriptionListener;
 import org.ftab.client.exceptions.AlreadyOnlineException;
 import org.ftab.client.exceptions.ClientInexistentException;
 import org.ftab.client.exceptions.FullServerException;
@@ -15,6 +25,7 @@ import org.ftab.client.exceptions.QueueInexistentException;
 import org.ftab.client.exceptions.QueueNotEmptyException;
 import org.ftab.client.exceptions.UnexpectedResponseException;
 import org.ftab.client.exceptions.UnspecifiedErrorException;
+import org.ftab.communication.Heartbeat;
 import org.ftab.communication.ProtocolMessage;
 import org.ftab.communication.ProtocolMessage.MessageType;
 import org.ftab.communication.exceptions.InvalidHeaderException;
@@ -22,30 +33,153 @@ import org.ftab.communication.requests.ConnectionRequest;
 import org.ftab.communication.requests.GetQueuesRequest;
 import org.ftab.communication.requests.QueueModificationRequest;
 import org.ftab.communication.requests.RetrieveMessageRequest;
+import org.ftab.communication.requests.SendMessageBatchRequest;
 import org.ftab.communication.requests.SendMessageRequest;
+import org.ftab.communication.requests.SubscriptionRequest;
 import org.ftab.communication.responses.GetQueuesResponse;
 import org.ftab.communication.responses.RequestResponse;
 import org.ftab.communication.responses.RetrieveMessageResponse;
+import org.ftab.communication.responses.RetrieveMessagesResponse;
 import org.ftab.client.exceptions.QueueAEException;
 import org.ftab.pubenums.Filter;
 import org.ftab.pubenums.Order;
 
 /**
- * Represents a specific middlewae server and provides an interface of the 
- * calls that the client can make of the system
+ * Represents a specific middlewae server and provides an interface of the
+ * calls that the client can make of the system. Requests are pipelined:
+ * the asynchronous calls write the request and return immediately, and a
+ * reader thread matches the responses to the outstanding requests in the
+ * order in which they were sent, since the server answers in that order.
+ * The synchronous calls are built on the same pipeline, so both kinds can
+ * be mixed on the same connection. Messages pushed for subscriptions are
+ * told apart by their type and handed to the listener of the subscription.
  * @author Jean-Pierre Smith
  */
 public class ServerRPC {
+	/**
+	 * Converts the response to a request into the result of the call.
+	 * @param <T> The type of the result.
+	 */
+	private static interface ResponseDecoder<T> {
+		/**
+		 * Decodes a response.
+		 * @param response The response received from the server.
+		 * @return The result of the call.
+		 * @throws Exception The exception that the synchronous call would throw.
+		 */
+		T decode(ProtocolMessage response) throws Exception;
+	}
+
+	/**
+	 * A request that was sent and is waiting for its response.
+	 * @param <T> The type of the result.
+	 */
+	private static class PendingRequest<T> {
+		/**
+		 * The decoder of the response.
+		 */
+		private final ResponseDecoder<T> decoder;
+
+		/**
+		 * The future to complete with the result.
+		 */
+		private final ResponseFuture<T> future;
+
+		/**
+		 * Creates a pending request.
+		 * @param decoder The decoder of the response.
+		 * @param future The future to complete with the result.
+		 */
+		PendingRequest(ResponseDecoder<T> decoder, ResponseFuture<T> future) {
+			this.decoder = decoder;
+			this.future = future;
+		}
+
+		/**
+		 * Completes the request with the response received from the server.
+		 * @param response The response to the request.
+		 */
+		void complete(ProtocolMessage response) {
+			try {
+				future.complete(decoder.decode(response));
+			} catch (Exception e) {
+				future.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * A subscription of the current channel.
+	 */
+	private static class ActiveSubscription {
+		/**
+		 * The listener of the pushed messages.
+		 */
+		private final SubscriptionListener listener;
+
+		/**
+		 * The order in which the messages are pushed.
+		 */
+		private final Order order;
+
+		/**
+		 * Whether an unsubscription was sent, guarded by the write lock. No
+		 * credits are granted afterwards.
+		 */
+		private boolean closing = false;
+
+		/**
+		 * Creates a subscription.
+		 * @param listener The listener of the pushed messages.
+		 * @param order The order in which the messages are pushed.
+		 */
+		ActiveSubscription(SubscriptionListener listener, Order order) {
+			this.listener = listener;
+			this.order = order;
+		}
+	}
+
+	/**
+	 * Decoder used by the synchronous calls, which decode the response
+	 * in the calling thread.
+	 */
+	private static final ResponseDecoder<ProtocolMessage> RAW_RESPONSE =
+			new ResponseDecoder<ProtocolMessage>() {
+		@Override
+		public ProtocolMessage decode(ProtocolMessage response) {
+			return response;
+		}
+	};
+
 	/**
 	 * The channel to the server
 	 */
 	private SocketChannel channelToServer;
-	
+
+	/**
+	 * The requests sent through the current channel waiting for a response,
+	 * in the order in which they were sent.
+	 */
+	private LinkedList<PendingRequest<?>> outstanding;
+
+	/**
+	 * Lock that keeps the order of the outstanding requests equal to the
+	 * order of the requests in the channel.
+	 */
+	private final Object writeLock = new Object();
+
+	/**
+	 * The subscriptions of the current channel by queue name, guarded by
+	 * itself. It is only locked after the write lock when both are needed.
+	 */
+	private final HashMap<String, ActiveSubscription> subscriptions =
+			new HashMap<String, ActiveSubscription>();
+
 	/**
 	 * The address of the server
 	 */
 	private InetSocketAddress address;
-	
+
 	/**
 	 * Creates a new server on the provided address.
 	 * @param serverIPv4 The IPv4 address of the server or the
@@ -57,7 +191,7 @@ public class ServerRPC {
 	}
 
 	/**
-	 * Connects the provided client to the middleware server represented 
+	 * Connects the provided client to the middleware server represented
 	 * by this instance.
 	 * @param client The client to connect to this server.
 	 * @throws FullServerException If the server is already at full capacity
@@ -67,41 +201,65 @@ public class ServerRPC {
 	 * @throws IOException If an error occurred with the channel
 	 * @throws InvalidHeaderException If the input data was somehow corrupted
 	 */
-	public void Connect(Client client) 
+	public void Connect(Client client)
 			throws FullServerException, AlreadyOnlineException, UnspecifiedErrorException, IOException, InvalidHeaderException {
-		// Attempt to close any existing channels
-		if (channelToServer != null) {
-			try {
-				channelToServer.close();
-			} catch (IOException e) { 
-				e.printStackTrace();
-			} finally {
-				channelToServer = null;
+		synchronized (writeLock) {
+			// Attempt to close any existing channels, failing its outstanding requests
+			if (channelToServer != null) {
+				try {
+					channelToServer.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					channelToServer = null;
+				}
 			}
+
+			// Create the new socket channel and start reading its responses
+			channelToServer = SocketChannel.open(address);
+			outstanding = new LinkedList<PendingRequest<?>>();
+			synchronized (subscriptions) {
+				subscriptions.clear();
+			}
+			Thread reader = new Thread(new ResponseReader(this, channelToServer, outstanding),
+					"ServerRPC reader for " + client.getUsername());
+			reader.setDaemon(true);
+			reader.start();
 		}
 
-		// Create the new socket channel
-		channelToServer = SocketChannel.open(address);
-					
 		// Attempt to write the request to the channel
-		this.sendMessage(new ConnectionRequest(client.getUsername(), true));
-					
-		RequestResponse msg = (RequestResponse) this.getResponse();
-					
+		RequestResponse msg = (RequestResponse) this.awaitResponse(
+				this.submit(new ConnectionRequest(client.getUsername(), true), RAW_RESPONSE));
+
 		switch (msg.getStatus()) {
 		case SUCCESS:
-			break;			
+			break;
 		case FULL_SERVER:
-			throw new FullServerException(address.getHostName(), address.getPort());
+			throw new FullServerException(address.getHostName(), address.getPort(),
+					parseRetryAfter(msg.getDescription()));
 		case USER_ONLINE:
 			throw new AlreadyOnlineException(client.getUsername());
 		case EXCEPTION:
 			throw new UnspecifiedErrorException();
 		default:
 			throw new UnexpectedResponseException();
-		}						
+		}
 	}
-	
+
+	/**
+	 * Reads the time to wait before connecting again from the description of
+	 * a full server response.
+	 * @param description The description of the response
+	 * @return The time in milliseconds, 0 if the server didn't send one
+	 */
+	private static long parseRetryAfter(String description) {
+		try {
+			return Math.max(0, Long.parseLong(description.trim()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
 	/**
 	 * Disconnects the specified client from this server and
 	 * the system.
@@ -110,12 +268,12 @@ public class ServerRPC {
 	 * @throws IOException If an error occurred with the channel
 	 * @throws InvalidHeaderException If the input data was somehow corrupted
 	 */
-	public void Disconnect(Client client) 
+	public void Disconnect(Client client)
 			throws UnspecifiedErrorException, IOException, InvalidHeaderException {
 		// Attempt to log out from the server
-		this.sendMessage(new ConnectionRequest(client.getUsername(), false));
-		RequestResponse response = (RequestResponse) this.getResponse();
-		
+		RequestResponse response = (RequestResponse) this.awaitResponse(
+				this.submit(new ConnectionRequest(client.getUsername(), false), RAW_RESPONSE));
+
 		switch (response.getStatus()) {
 		case SUCCESS:
 			break;
@@ -125,7 +283,7 @@ public class ServerRPC {
 			throw new UnexpectedResponseException();
 		}
 	}
-	
+
 	/**
 	 * Ascertains whether there is a connection open with this server.
 	 * @return True if there is a connection, false otherwise.
@@ -134,42 +292,126 @@ public class ServerRPC {
 	public boolean isConnectionOpen() {
 		return channelToServer.isConnected();
 	}
-	
+
 	/**
 	 * Pushes a message onto the system.
 	 * @param message The message to be pushed onto the system.
-	 * @throws QueueInexistentException If at least one of the queues specified in the 
+	 * @throws QueueInexistentException If at least one of the queues specified in the
 	 * message does not exist in the system.
-	 * @throws ClientInexistentException If the receiver specified in the message does not 
+	 * @throws ClientInexistentException If the receiver specified in the message does not
+	 * exist in the system.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws IOException If an error occurred with the channel
+	 * @throws InvalidHeaderException If the input data was somehow corrupted
+	 */
+	public void PushMessage(Message message)
+			throws QueueInexistentException, ClientInexistentException, UnspecifiedErrorException, IOException, InvalidHeaderException {
+		checkPushResponse(this.awaitResponse(this.submit(toRequest(message), RAW_RESPONSE)), message);
+	}
+
+	/**
+	 * Pushes a message onto the system without waiting for the response.
+	 * @param message The message to be pushed onto the system.
+	 * @return A future that completes when the server acknowledges the message,
+	 * or fails with the exception that {@link #PushMessage(Message)} would throw.
+	 */
+	public ResponseFuture<Void> PushMessageAsync(final Message message) {
+		return this.submit(toRequest(message), new ResponseDecoder<Void>() {
+			@Override
+			public Void decode(ProtocolMessage response) throws Exception {
+				checkPushResponse(response, message);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Pushes several messages onto the system in a single request. The server
+	 * creates them in a single transaction, so either all of them are pushed
+	 * or none is.
+	 * @param messages The messages to be pushed onto the system.
+	 * @throws QueueInexistentException If at least one of the queues specified in the
+	 * messages does not exist in the system.
+	 * @throws ClientInexistentException If a receiver specified in the messages does not
 	 * exist in the system.
 	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
 	 * @throws IOException If an error occurred with the channel
 	 * @throws InvalidHeaderException If the input data was somehow corrupted
 	 */
-	public void PushMessage(Message message) 
+	public void PushMessages(Iterable<Message> messages)
 			throws QueueInexistentException, ClientInexistentException, UnspecifiedErrorException, IOException, InvalidHeaderException {
-		
-		this.sendMessage(new SendMessageRequest(message.getContent(), message.getPriority(),
-				message.getContext(), message.getQueues(), message.getReceiver()));
-				
-		RequestResponse msg = (RequestResponse) this.getResponse();
-		
+		checkPushResponse(this.awaitResponse(this.submit(toBatchRequest(messages), RAW_RESPONSE)), null);
+	}
+
+	/**
+	 * Pushes several messages onto the system in a single request without waiting
+	 * for the response.
+	 * @param messages The messages to be pushed onto the system.
+	 * @return A future that completes when the server acknowledges the messages,
+	 * or fails with the exception that {@link #PushMessages(Iterable)} would throw.
+	 */
+	public ResponseFuture<Void> PushMessagesAsync(Iterable<Message> messages) {
+		return this.submit(toBatchRequest(messages), new ResponseDecoder<Void>() {
+			@Override
+			public Void decode(ProtocolMessage response) throws Exception {
+				checkPushResponse(response, null);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Builds the request to push several messages.
+	 * @param messages The messages to be pushed onto the system.
+	 * @return The request to send.
+	 */
+	private static SendMessageBatchRequest toBatchRequest(Iterable<Message> messages) {
+		ArrayList<SendMessageRequest> requests = new ArrayList<SendMessageRequest>();
+		for (Message message : messages) requests.add(toRequest(message));
+		return new SendMessageBatchRequest(requests);
+	}
+
+	/**
+	 * Builds the request to push a message.
+	 * @param message The message to be pushed onto the system.
+	 * @return The request to send.
+	 */
+	private static SendMessageRequest toRequest(Message message) {
+		return new SendMessageRequest(message.getContent(), message.getPriority(),
+				message.getContext(), message.getQueues(), message.getReceiver());
+	}
+
+	/**
+	 * Checks the response to a message push.
+	 * @param response The response from the server.
+	 * @param message The message that was pushed, or null for a batch.
+	 * @throws QueueInexistentException If at least one of the queues specified in the
+	 * message does not exist in the system.
+	 * @throws ClientInexistentException If the receiver specified in the message does not
+	 * exist in the system.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 */
+	private static void checkPushResponse(ProtocolMessage response, Message message)
+			throws QueueInexistentException, ClientInexistentException, UnspecifiedErrorException {
+		RequestResponse msg = (RequestResponse) response;
+
 		switch(msg.getStatus()) {
 		case SUCCESS:
 			break;
 		case NO_CLIENT:
+			if (message == null) throw new ClientInexistentException();
 			throw new ClientInexistentException(message.getReceiver());
 		case QUEUE_NOT_EXISTS:
-			throw new QueueInexistentException();			
+			throw new QueueInexistentException();
 		case EXCEPTION:
 			throw new UnspecifiedErrorException();
 		default:
 			throw new UnexpectedResponseException();
 		}
 	}
-	
+
 	/**
-	 * Removes an empty queue from the system.	
+	 * Removes an empty queue from the system.
 	 * @param queueName The name of the queue to be deleted
 	 * @throws IOException If an error occurred with the channel
 	 * @throws InvalidHeaderException If the input data was somehow corrupted
@@ -177,41 +419,97 @@ public class ServerRPC {
 	 * @throws QueueNotEmptyException If the queue to be deleted is not empty
 	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
 	 */
-	public void DeleteQueue(String queueName) 
+	public void DeleteQueue(String queueName)
 			throws IOException, InvalidHeaderException, QueueInexistentException, QueueNotEmptyException, UnspecifiedErrorException {
-		this.sendMessage(new QueueModificationRequest(queueName, true));
-		
-		RequestResponse msg = (RequestResponse) this.getResponse();
-		
+		checkDeleteResponse(this.awaitResponse(
+				this.submit(new QueueModificationRequest(queueName, true), RAW_RESPONSE)), queueName);
+	}
+
+	/**
+	 * Removes an empty queue from the system without waiting for the response.
+	 * @param queueName The name of the queue to be deleted
+	 * @return A future that completes when the queue is deleted, or fails with the
+	 * exception that {@link #DeleteQueue(String)} would throw.
+	 */
+	public ResponseFuture<Void> DeleteQueueAsync(final String queueName) {
+		return this.submit(new QueueModificationRequest(queueName, true), new ResponseDecoder<Void>() {
+			@Override
+			public Void decode(ProtocolMessage response) throws Exception {
+				checkDeleteResponse(response, queueName);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Checks the response to a queue deletion.
+	 * @param response The response from the server.
+	 * @param queueName The name of the queue to be deleted
+	 * @throws QueueInexistentException If the queue to be deleted does not exist in the system
+	 * @throws QueueNotEmptyException If the queue to be deleted is not empty
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 */
+	private static void checkDeleteResponse(ProtocolMessage response, String queueName)
+			throws QueueInexistentException, QueueNotEmptyException, UnspecifiedErrorException {
+		RequestResponse msg = (RequestResponse) response;
+
 		switch(msg.getStatus()) {
 		case SUCCESS:
 			break;
 		case QUEUE_NOT_EXISTS:
 			throw new QueueInexistentException(queueName);
-		case QUEUE_NOT_EMPTY:			
+		case QUEUE_NOT_EMPTY:
 			throw new QueueNotEmptyException(queueName);
 		case EXCEPTION:
 			throw new UnspecifiedErrorException();
 		default:
 			throw new UnexpectedResponseException();
-		}	
+		}
 	}
-	
+
 	/**
 	 * Creates a new queue in the system with the specified name.
 	 * @param queueName The name to be assigned to the newly created queue
-	 * @throws QueueAEException If a queue with the specified name already exists 
+	 * @throws QueueAEException If a queue with the specified name already exists
 	 * in the system
 	 * @throws IOException If an error occurred on the channel
 	 * @throws InvalidHeaderException If the response was somehow corrupted
 	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
 	 */
-	public void CreateQueue(String queueName) 
+	public void CreateQueue(String queueName)
 			throws QueueAEException, IOException, InvalidHeaderException, UnspecifiedErrorException {
-		this.sendMessage(new QueueModificationRequest(queueName, false));
-		
-		RequestResponse msg = (RequestResponse) this.getResponse();
-		
+		checkCreateResponse(this.awaitResponse(
+				this.submit(new QueueModificationRequest(queueName, false), RAW_RESPONSE)), queueName);
+	}
+
+	/**
+	 * Creates a new queue in the system without waiting for the response.
+	 * @param queueName The name to be assigned to the newly created queue
+	 * @return A future that completes when the queue is created, or fails with the
+	 * exception that {@link #CreateQueue(String)} would throw.
+	 */
+	public ResponseFuture<Void> CreateQueueAsync(final String queueName) {
+		return this.submit(new QueueModificationRequest(queueName, false), new ResponseDecoder<Void>() {
+			@Override
+			public Void decode(ProtocolMessage response) throws Exception {
+				checkCreateResponse(response, queueName);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Checks the response to a queue creation.
+	 * @param response The response from the server.
+	 * @param queueName The name to be assigned to the newly created queue
+	 * @throws QueueAEException If a queue with the specified name already exists
+	 * in the system
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 */
+	private static void checkCreateResponse(ProtocolMessage response, String queueName)
+			throws QueueAEException, UnspecifiedErrorException {
+		RequestResponse msg = (RequestResponse) response;
+
 		switch(msg.getStatus()) {
 		case SUCCESS:
 			break;
@@ -221,11 +519,11 @@ public class ServerRPC {
 			throw new UnspecifiedErrorException();
 		default:
 			throw new UnexpectedResponseException();
-		}		
+		}
 	}
-	
+
 	/**
-	 * Retrieves the names of the queues that have messages waiting the 
+	 * Retrieves the names of the queues that have messages waiting the
 	 * specified client
 	 * @param client The client for whom queues with waiting messages should be fetched
 	 * @return An Iterable containing the names of the queues that have messages
@@ -234,17 +532,41 @@ public class ServerRPC {
 	 * @throws IOException If an error occurred on the channel
 	 * @throws InvalidHeaderException If the response was somehow corrupted
 	 */
-	public Iterable<String> GetWaitingQueues(Client client) 
+	public Iterable<String> GetWaitingQueues(Client client)
 			throws UnspecifiedErrorException, IOException, InvalidHeaderException {
-		this.sendMessage(new GetQueuesRequest());
-		
-		ProtocolMessage message = this.getResponse();
-		
+		return decodeWaitingQueues(this.awaitResponse(this.submit(new GetQueuesRequest(), RAW_RESPONSE)));
+	}
+
+	/**
+	 * Retrieves the names of the queues that have messages waiting the
+	 * specified client without waiting for the response.
+	 * @param client The client for whom queues with waiting messages should be fetched
+	 * @return A future with the names of the queues that have messages waiting, which
+	 * fails with the exception that {@link #GetWaitingQueues(Client)} would throw.
+	 */
+	public ResponseFuture<Iterable<String>> GetWaitingQueuesAsync(Client client) {
+		return this.submit(new GetQueuesRequest(), new ResponseDecoder<Iterable<String>>() {
+			@Override
+			public Iterable<String> decode(ProtocolMessage response) throws Exception {
+				return decodeWaitingQueues(response);
+			}
+		});
+	}
+
+	/**
+	 * Decodes the response to a request for the queues with waiting messages.
+	 * @param message The response from the server.
+	 * @return An Iterable containing the names of the queues that have messages
+	 * waiting
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 */
+	private static Iterable<String> decodeWaitingQueues(ProtocolMessage message)
+			throws UnspecifiedErrorException {
 		if (message.getMessageType() == MessageType.RETURNED_QUEUE) {
 			return ((GetQueuesResponse)message).getQueues();
 		} else {
 			RequestResponse failureResponse = (RequestResponse) message;
-			
+
 			switch (failureResponse.getStatus()) {
 			case NO_QUEUE:
 				return new ArrayList<String>();
@@ -253,17 +575,17 @@ public class ServerRPC {
 			default:
 				throw new UnexpectedResponseException();
 			}
-		}		
+		}
 	}
-	
+
 	/**
 	 * Retrieves a message from the system according to the specified filter and
 	 * ordering.
 	 * @param value The name of the queue or sender to retrieve the message by.
 	 * @param filter Whether to retrieve a message on a particular queue or sent by
 	 * a particular sender
-	 * @param order Whether to retrieve the message with the highest priority or 
-	 * with the earliest time 
+	 * @param order Whether to retrieve the message with the highest priority or
+	 * with the earliest time
 	 * @param delete <b>true</b> to delete the message on retrieval, <b>false</b> otherwise
 	 * @return The retrieved message object or null if no messages were found that met the criteria.
 	 * @throws IOException If an error occurred on the channel
@@ -274,15 +596,55 @@ public class ServerRPC {
 	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
 	 * @throws InvalidHeaderException If the response was somehow corrupted
 	 */
-	public Message RetrieveMessage(String value, Filter filter, Order order, boolean delete) 
+	public Message RetrieveMessage(String value, Filter filter, Order order, boolean delete)
 			throws IOException, QueueInexistentException, ClientInexistentException, UnspecifiedErrorException, InvalidHeaderException {
-		this.sendMessage(new RetrieveMessageRequest(value, filter, order, delete));
+		return decodeMessage(this.awaitResponse(
+				this.submit(new RetrieveMessageRequest(value, filter, order, delete), RAW_RESPONSE)),
+				value, filter);
+	}
 
-		ProtocolMessage message = this.getResponse();
+	/**
+	 * Retrieves a message from the system according to the specified filter and
+	 * ordering without waiting for the response.
+	 * @param value The name of the queue or sender to retrieve the message by.
+	 * @param filter Whether to retrieve a message on a particular queue or sent by
+	 * a particular sender
+	 * @param order Whether to retrieve the message with the highest priority or
+	 * with the earliest time
+	 * @param delete <b>true</b> to delete the message on retrieval, <b>false</b> otherwise
+	 * @return A future with the retrieved message, or null if no messages were found that
+	 * met the criteria, which fails with the exception that
+	 * {@link #RetrieveMessage(String, Filter, Order, boolean)} would throw.
+	 */
+	public ResponseFuture<Message> RetrieveMessageAsync(final String value, final Filter filter,
+			Order order, boolean delete) {
+		return this.submit(new RetrieveMessageRequest(value, filter, order, delete),
+				new ResponseDecoder<Message>() {
+			@Override
+			public Message decode(ProtocolMessage response) throws Exception {
+				return decodeMessage(response, value, filter);
+			}
+		});
+	}
 
+	/**
+	 * Decodes the response to a message retrieval.
+	 * @param message The response from the server.
+	 * @param value The name of the queue or sender to retrieve the message by.
+	 * @param filter Whether to retrieve a message on a particular queue or sent by
+	 * a particular sender
+	 * @return The retrieved message object or null if no messages were found that met the criteria.
+	 * @throws QueueInexistentException If the filter specified was a queue but the specified name
+	 * does not exist in the system as a queue
+	 * @throws ClientInexistentException If the filter specified was a sender but the specified name
+	 * does not exist in the system as a client.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 */
+	private static Message decodeMessage(ProtocolMessage message, String value, Filter filter)
+			throws QueueInexistentException, ClientInexistentException, UnspecifiedErrorException {
 		if (message.getMessageType() == MessageType.REQUEST_RESPONSE) {
 			RequestResponse rqMessage = (RequestResponse) message;
-			
+
 			switch (rqMessage.getStatus()) {
 			case NO_MESSAGE:
 				return null;
@@ -291,21 +653,388 @@ public class ServerRPC {
 				else throw new UnexpectedResponseException();
 			case NO_CLIENT:
 				if (filter == Filter.SENDER) throw new ClientInexistentException(value);
-				else throw new UnexpectedResponseException(); 
+				else throw new UnexpectedResponseException();
 			case EXCEPTION:
 				throw new UnspecifiedErrorException();
 			default:
 				throw new UnexpectedResponseException();
 			}
-			
+
 		} else {
-			RetrieveMessageResponse response = (RetrieveMessageResponse) message;
+			return toMessage((RetrieveMessageResponse) message);
+		}
+	}
+
+	/**
+	 * Retrieves up to a given number of messages from the system according to
+	 * the specified filter and ordering in a single request.
+	 * @param value The name of the queue or sender to retrieve the messages by.
+	 * @param filter Whether to retrieve messages on a particular queue or sent by
+	 * a particular sender
+	 * @param order Whether to retrieve the messages by highest priority or by
+	 * earliest time first
+	 * @param delete <b>true</b> to delete the messages on retrieval, <b>false</b> otherwise
+	 * @param max The maximum number of messages to retrieve.
+	 * @return The retrieved messages in order, empty if no messages were found that met 
+	 * the criteria.
+	 * @throws IOException If an error occurred on the channel
+	 * @throws QueueInexistentException If the filter specified was a queue but the specified name
+	 * does not exist in the system as a queue
+	 * @throws ClientInexistentException If the filter specified was a sender but the specified name
+	 * does not exist in the system as a client.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws InvalidHeaderException If the response was somehow corrupted
+	 */
+	public List<Message> RetrieveMessages(String value, Filter filter, Order order, boolean delete, int max)
+			throws IOException, QueueInexistentException, ClientInexistentException, UnspecifiedErrorException, InvalidHeaderException {
+		return decodeMessages(this.awaitResponse(
+				this.submit(new RetrieveMessageRequest(value, filter, order, delete, max), RAW_RESPONSE)),
+				value, filter);
+	}
+
+	/**
+	 * Retrieves up to a given number of messages from the system according to
+	 * the specified filter and ordering without waiting for the response.
+	 * @param value The name of the queue or sender to retrieve the messages by.
+	 * @param filter Whether to retrieve messages on a particular queue or sent by
+	 * a particular sender
+	 * @param order Whether to retrieve the messages by highest priority or by
+	 * earliest time first
+	 * @param delete <b>true</b> to delete the messages on retrieval, <b>false</b> otherwise
+	 * @param max The maximum number of messages to retrieve.
+	 * @return A future with the retrieved messages, which fails with the exception that
+	 * {@link #RetrieveMessages(String, Filter, Order, boolean, int)} would throw.
+	 */
+	public ResponseFuture<List<Message>> RetrieveMessagesAsync(final String value, final Filter filter,
+			Order order, boolean delete, int max) {
+		return this.submit(new RetrieveMessageRequest(value, filter, order, delete, max),
+				new ResponseDecoder<List<Message>>() {
+			@Override
+			public List<Message> decode(ProtocolMessage response) throws Exception {
+				return decodeMessages(response, value, filter);
+			}
+		});
+	}
+
+	/**
+	 * Retrieves up to a given number of messages from the system according to
+	 * the specified filter and ordering, letting the server hold the request
+	 * until a matching message arrives or the wait time passes.
+	 * @param value The name of the queue or sender to retrieve the messages by.
+	 * @param filter Whether to retrieve messages on a particular queue or sent by
+	 * a particular sender
+	 * @param order Whether to retrieve the messages by highest priority or by
+	 * earliest time first
+	 * @param delete <b>true</b> to delete the messages on retrieval, <b>false</b> otherwise
+	 * @param max The maximum number of messages to retrieve.
+	 * @param waitMillis The longest time the server may hold the request, in milliseconds.
+	 * The requests sent afterwards on this connection are answered after it.
+	 * @return The retrieved messages in order, empty if no messages met the criteria
+	 * before the wait time passed.
+	 * @throws IOException If an error occurred on the channel
+	 * @throws QueueInexistentException If the filter specified was a queue but the specified name
+	 * does not exist in the system as a queue
+	 * @throws ClientInexistentException If the filter specified was a sender but the specified name
+	 * does not exist in the system as a client.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws InvalidHeaderException If the response was somehow corrupted
+	 */
+	public List<Message> RetrieveMessages(String value, Filter filter, Order order, boolean delete, int max,
+			int waitMillis)
+			throws IOException, QueueInexistentException, ClientInexistentException, UnspecifiedErrorException, InvalidHeaderException {
+		return decodeMessages(this.awaitResponse(
+				this.submit(new RetrieveMessageRequest(value, filter, order, delete, max, waitMillis),
+						RAW_RESPONSE)), value, filter);
+	}
+
+	/**
+	 * Retrieves up to a given number of messages from the system according to
+	 * the specified filter and ordering, letting the server hold the request
+	 * until a matching message arrives or the wait time passes, without waiting
+	 * for the response.
+	 * @param value The name of the queue or sender to retrieve the messages by.
+	 * @param filter Whether to retrieve messages on a particular queue or sent by
+	 * a particular sender
+	 * @param order Whether to retrieve the messages by highest priority or by
+	 * earliest time first
+	 * @param delete <b>true</b> to delete the messages on retrieval, <b>false</b> otherwise
+	 * @param max The maximum number of messages to retrieve.
+	 * @param waitMillis The longest time the server may hold the request, in milliseconds.
+	 * @return A future with the retrieved messages, which fails with the exception that
+	 * {@link #RetrieveMessages(String, Filter, Order, boolean, int, int)} would throw.
+	 */
+	public ResponseFuture<List<Message>> RetrieveMessagesAsync(final String value, final Filter filter,
+			Order order, boolean delete, int max, int waitMillis) {
+		return this.submit(new RetrieveMessageRequest(value, filter, order, delete, max, waitMillis),
+				new ResponseDecoder<List<Message>>() {
+			@Override
+			public List<Message> decode(ProtocolMessage response) throws Exception {
+				return decodeMessages(response, value, filter);
+			}
+		});
+	}
+
+	/**
+	 * Subscribes to the given queues, so that the server pushes their messages as
+	 * they arrive, removing them from the queues. At most the given number of
+	 * messages of each queue are pushed and not yet handled by the listener at any
+	 * time: the credit of a message is granted back once the listener returns.
+	 * Subscribing again to a queue replaces its listener and adds to its credits.
+	 * @param queues The names of the queues to subscribe to.
+	 * @param order Whether to push the messages by highest priority or by earliest
+	 * time first
+	 * @param credits The number of messages of each queue that may be pushed ahead
+	 * of the listener, at least one.
+	 * @param listener The listener of the pushed messages.
+	 * @throws IOException If an error occurred on the channel
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details,
+	 * for instance because it does not support subscriptions.
+	 * @throws InvalidHeaderException If the response was somehow corrupted
+	 */
+	public void Subscribe(Iterable<String> queues, Order order, int credits, SubscriptionListener listener)
+			throws IOException, UnspecifiedErrorException, InvalidHeaderException {
+		final SubscriptionRequest request = new SubscriptionRequest(queues, order, credits);
+
+		// The listeners must be in place before the first message is pushed
+		final ActiveSubscription subscription = new ActiveSubscription(listener, order);
+		synchronized (subscriptions) {
+			for (String queue : request.getQueueNames()) subscriptions.put(queue, subscription);
+		}
+
+		boolean subscribed = false;
+		try {
+			checkSubscriptionResponse(this.awaitResponse(this.submit(request, RAW_RESPONSE)));
+			subscribed = true;
+		} finally {
+			if (!subscribed) forgetSubscription(request.getQueueNames(), subscription);
+		}
+	}
+
+	/**
+	 * Unsubscribes from the given queues. Messages pushed before the server handled
+	 * the request are still given to the listener.
+	 * @param queues The names of the queues to unsubscribe from.
+	 * @throws IOException If an error occurred on the channel
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 * @throws InvalidHeaderException If the response was somehow corrupted
+	 */
+	public void Unsubscribe(Iterable<String> queues)
+			throws IOException, UnspecifiedErrorException, InvalidHeaderException {
+		final SubscriptionRequest request = new SubscriptionRequest(queues);
+		final ArrayList<ActiveSubscription> closing = new ArrayList<ActiveSubscription>();
+		final ResponseFuture<ProtocolMessage> future;
+
+		// No credits may be granted after the request, or they would subscribe again
+		synchronized (writeLock) {
+			synchronized (subscriptions) {
+				for (String queue : request.getQueueNames()) {
+					ActiveSubscription subscription = subscriptions.get(queue);
+					if (subscription != null) subscription.closing = true;
+					closing.add(subscription);
+				}
+			}
+			future = this.submit(request, RAW_RESPONSE);
+		}
+
+		try {
+			checkSubscriptionResponse(this.awaitResponse(future));
+		} finally {
+			for (int i = 0; i < closing.size(); i++) {
+				if (closing.get(i) != null) {
+					forgetSubscription(Collections.singletonList(request.getQueueNames().get(i)),
+							closing.get(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the given subscription of the queues, unless it was replaced.
+	 * @param queues The names of the queues.
+	 * @param subscription The subscription to remove.
+	 */
+	private void forgetSubscription(List<String> queues, ActiveSubscription subscription) {
+		synchronized (subscriptions) {
+			for (String queue : queues) {
+				if (subscriptions.get(queue) == subscription) subscriptions.remove(queue);
+			}
+		}
+	}
+
+	/**
+	 * Checks the response of a subscription or unsubscription.
+	 * @param response The response from the server.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 */
+	private static void checkSubscriptionResponse(ProtocolMessage response)
+			throws UnspecifiedErrorException {
+		RequestResponse msg = (RequestResponse) response;
+
+		switch(msg.getStatus()) {
+		case SUCCESS:
+			break;
+		case EXCEPTION:
+			throw new UnspecifiedErrorException();
+		default:
+			throw new UnexpectedResponseException();
+		}
+	}
+
+	/**
+	 * Hands the messages pushed by the server to the listeners of their
+	 * subscriptions and grants the used credits back. This is called from
+	 * the thread reading the responses.
+	 * @param push The pushed messages.
+	 */
+	private void deliverPushed(RetrieveMessagesResponse push) {
+		final Map<String, List<Message>> byQueue = new LinkedHashMap<String, List<Message>>();
+		for (RetrieveMessageResponse response : push.getMessages()) {
+			List<Message> messages = byQueue.get(response.getQueue());
+			if (messages == null) {
+				messages = new ArrayList<Message>();
+				byQueue.put(response.getQueue(), messages);
+			}
+			messages.add(toMessage(response));
+		}
+
+		for (Map.Entry<String, List<Message>> entry : byQueue.entrySet()) {
+			final ActiveSubscription subscription;
+			synchronized (subscriptions) {
+				subscription = subscriptions.get(entry.getKey());
+			}
+			if (subscription == null) continue;
+
+			try {
+				subscription.listener.messagesPushed(entry.getKey(), entry.getValue());
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+
+			synchronized (writeLock) {
+				if (!subscription.closing) {
+					this.submit(new SubscriptionRequest(Collections.singletonList(entry.getKey()),
+							subscription.order, entry.getValue().size()), RAW_RESPONSE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answers a liveness check of the server. This is called from the thread
+	 * reading the responses, a failure to write is reported by the reader.
+	 */
+	private void sendPong() {
+		synchronized (writeLock) {
+			if (channelToServer == null) return;
+			try {
+				sendMessage(new Heartbeat(false));
+			} catch (IOException e) {
+				try {
+					channelToServer.close();
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decodes the response to a retrieval of several messages. Servers that only
+	 * return single messages answer with a single message response.
+	 * @param message The response from the server.
+	 * @param value The name of the queue or sender to retrieve the messages by.
+	 * @param filter Whether to retrieve messages on a particular queue or sent by
+	 * a particular sender
+	 * @return The retrieved messages, empty if no messages were found that met the criteria.
+	 * @throws QueueInexistentException If the filter specified was a queue but the specified name
+	 * does not exist in the system as a queue
+	 * @throws ClientInexistentException If the filter specified was a sender but the specified name
+	 * does not exist in the system as a client.
+	 * @throws UnspecifiedErrorException If the server encounter an error but refuses to pass details
+	 */
+	private static List<Message> decodeMessages(ProtocolMessage message, String value, Filter filter)
+			throws QueueInexistentException, ClientInexistentException, UnspecifiedErrorException {
+		final ArrayList<Message> messages = new ArrayList<Message>();
+		if (message.getMessageType() == MessageType.RETURNED_MESSAGE_BATCH) {
+			for (RetrieveMessageResponse response : ((RetrieveMessagesResponse) message).getMessages()) {
+				messages.add(toMessage(response));
+			}
+		} else {
+			Message single = decodeMessage(message, value, filter);
+			if (single != null) messages.add(single);
+		}
+		return messages;
+	}
+
+	/**
+	 * Converts a retrieved message into the client representation.
+	 * @param response The message as returned by the server.
+	 * @return The client representation of the message.
+	 */
+	private static Message toMessage(RetrieveMessageResponse response) {
+		return new Message(response.getMessageId(), response.getContext(), (byte)response.getPriority(),
+				response.getMessageContent(), response.getSender(), response.getReceiver(), response.getQueue());
+	}
+
+	/**
+	 * Sends a request over the socket-channel to the remote server and
+	 * registers it as waiting for a response. If the request can't be
+	 * written the channel is closed, since its stream may be corrupted,
+	 * which fails all the outstanding requests.
+	 * @param message The ProtocolMessage to be sent.
+	 * @param decoder The decoder of the response.
+	 * @return The future of the result of the request.
+	 */
+	private <T> ResponseFuture<T> submit(ProtocolMessage message, ResponseDecoder<T> decoder) {
+		final ResponseFuture<T> future = new ResponseFuture<T>();
 
-			return new Message(response.getMessageId(), response.getContext(), (byte)response.getPriority(),
-					response.getMessageContent(), response.getSender(), response.getReceiver(), response.getQueue());
+		synchronized (writeLock) {
+			if (channelToServer == null) {
+				future.fail(new IOException("The client is not connected to the server."));
+				return future;
+			}
+
+			synchronized (outstanding) {
+				outstanding.addLast(new PendingRequest<T>(decoder, future));
+			}
+			try {
+				sendMessage(message);
+			} catch (IOException e) {
+				future.fail(e);
+				try {
+					channelToServer.close();
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			}
 		}
+		return future;
 	}
-			
+
+	/**
+	 * Waits for the response to a request issued by a synchronous call.
+	 * @param future The future of the raw response.
+	 * @return The response from the server.
+	 * @throws IOException If an error occurred with the channel, or the wait was
+	 * interrupted.
+	 * @throws InvalidHeaderException If the input data was somehow corrupted
+	 */
+	private ProtocolMessage awaitResponse(ResponseFuture<ProtocolMessage> future)
+			throws IOException, InvalidHeaderException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the server.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof InvalidHeaderException) throw (InvalidHeaderException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new UnexpectedResponseException();
+		}
+	}
+
 	/**
 	 * Sends a byte message over the socket-channel to the remote
 	 * server.
@@ -318,31 +1047,127 @@ public class ServerRPC {
 	    while(buffer.hasRemaining())
 	        channelToServer.write(buffer);
 	}
-	
+
 	/**
 	 * Reads a response from the server over the socket and converts it to a ProtocolMessage.
+	 * @param channel The channel to read from.
 	 * @return A protocol message representing the response from the server.
 	 * @throws IOException If an IOException occurs while reading from the channel.
 	 * @throws InvalidHeaderException If the header read had an invalid format
 	 */
-	private ProtocolMessage getResponse() throws IOException, InvalidHeaderException {
+	private static ProtocolMessage getResponse(SocketChannel channel)
+			throws IOException, InvalidHeaderException {
 		// Attempt read the header information from the channel
 		ByteBuffer buffer = ByteBuffer.allocate(ProtocolMessage.HEADER_SIZE);
-		while(buffer.hasRemaining()) {
-		    channelToServer.read(buffer);
-		}
+		readFully(channel, buffer);
 		buffer.flip();
 
 		// Read the body and convert it into a message
 		int bodySize = ProtocolMessage.getBodySize(buffer);
 		buffer = ByteBuffer.allocate(bodySize);
-		while(buffer.hasRemaining()) {
-		    channelToServer.read(buffer);
-		}
+		readFully(channel, buffer);
 		buffer.flip();
 		return ProtocolMessage.fromBytes(buffer);
 	}
-	
+
+	/**
+	 * Fills a buffer from the channel.
+	 * @param channel The channel to read from.
+	 * @param buffer The buffer to fill.
+	 * @throws IOException If an IOException occurs while reading from the channel
+	 * or the server closed the connection.
+	 */
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+		    if (channel.read(buffer) < 0) {
+		    	throw new EOFException("The server closed the connection.");
+		    }
+		}
+	}
+
+	/**
+	 * Reads the responses of a channel and completes the outstanding requests
+	 * in order. Once the channel fails or is closed all the remaining requests
+	 * fail with the same exception.
+	 */
+	private static class ResponseReader implements Runnable {
+		/**
+		 * The server whose subscriptions receive the pushed messages.
+		 */
+		private final ServerRPC server;
+
+		/**
+		 * The channel to read from.
+		 */
+		private final SocketChannel channel;
+
+		/**
+		 * The requests sent through the channel waiting for a response.
+		 */
+		private final LinkedList<PendingRequest<?>> outstanding;
+
+		/**
+		 * Creates a reader for a channel.
+		 * @param server The server whose subscriptions receive the pushed messages.
+		 * @param channel The channel to read from.
+		 * @param outstanding The requests sent through the channel.
+		 */
+		ResponseReader(ServerRPC server, SocketChannel channel, LinkedList<PendingRequest<?>> outstanding) {
+			this.server = server;
+			this.channel = channel;
+			this.outstanding = outstanding;
+		}
+
+		@Override
+		public void run() {
+			Exception failure;
+			try {
+				while (true) {
+					ProtocolMessage response = getResponse(channel);
+					if (response.getMessageType() == MessageType.PUSHED_MESSAGES) {
+						server.deliverPushed((RetrieveMessagesResponse) response);
+						continue;
+					}
+					if (response.getMessageType() == MessageType.PING) {
+						server.sendPong();
+						continue;
+					}
+					if (response.getMessageType() == MessageType.PONG) {
+						continue;
+					}
+					PendingRequest<?> request;
+					synchronized (outstanding) {
+						request = outstanding.poll();
+					}
+					if (request == null) {
+						throw new IOException("Received a response without a pending request.");
+					}
+					request.complete(response);
+				}
+			} catch (IOException e) {
+				failure = e;
+			} catch (InvalidHeaderException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			while (true) {
+				PendingRequest<?> request;
+				synchronized (outstanding) {
+					request = outstanding.poll();
+				}
+				if (request == null) return;
+				request.future.fail(failure);
+			}
+		}
+	}
+
 	@Override
 	public String toString() {
 		return String.format("Server at %s:%d", address.getHostName(), address.getPort());
@@ -0,0 +1,49 @@
+/**
+ * Heartbeat.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encapsulates a liveness check between a client and the server. Either side
+ * may send a PING at any time and the other answers with a PONG, neither
+ * message has a body nor answers a request. The server pings the clients that
+ * have been idle for a while and closes the connections that don't answer.
+ *
+ * @aslexcludemethods
+ */
+public class Heartbeat extends ProtocolMessage {
+	/**
+	 * Creates a heartbeat message.
+	 * @param ping True for a PING, false for the PONG answering it.
+	 */
+	public Heartbeat(boolean ping) {
+		this.messageType = ping ? MessageType.PING : MessageType.PONG;
+	}
+
+	/**
+	 * Returns whether this message is a PING that must be answered.
+	 * @return True for a PING, false for a PONG.
+	 */
+	public boolean isPing() {
+		return messageType == MessageType.PING;
+	}
+
+	@Override
+	public ByteBuffer toBytes() {
+		return allocateBody(0);
+	}
+
+	/**
+	 * Returns a heartbeat from its empty body.
+	 * @param body The ByteBuffer containing the data for this class.
+	 * @param ping True if the message type was PING.
+	 * @return The heartbeat message.
+	 */
+	public static Heartbeat fromBytes(ByteBuffer body, boolean ping) {
+		return new Heartbeat(ping);
+	}
+}
@@ -6,29 +6,37 @@
 package org.ftab.communication;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.ftab.communication.exceptions.InvalidHeaderException;
 import org.ftab.communication.requests.ConnectionRequest;
 import org.ftab.communication.requests.GetQueuesRequest;
 import org.ftab.communication.requests.QueueModificationRequest;
 import org.ftab.communication.requests.RetrieveMessageRequest;
+import org.ftab.communication.requests.SendMessageBatchRequest;
 import org.ftab.communication.requests.SendMessageRequest;
+import org.ftab.communication.requests.SubscriptionRequest;
 import org.ftab.communication.responses.GetQueuesResponse;
 import org.ftab.communication.responses.RequestResponse;
 import org.ftab.communication.responses.RetrieveMessageResponse;
+import org.ftab.communication.responses.RetrieveMessagesResponse;
 
 /**
  * Base class for all messages sent from the ServerRPC to the remote server. 
  * This class also handles the the conversion from bytes to an instance of one
  * of its subclasses. Supported subclasses are:<br>
+ * &emsp;&bull; org.ftab.Heartbeat<br>
  * &emsp;&bull; org.ftab.requests.ConnectionRequest<br>
  * &emsp;&bull; org.ftab.requests.GetQueuesRequest<br>
  * &emsp;&bull; org.ftab.requests.QueueModificationRequest<br>
  * &emsp;&bull; org.ftab.requests.RetrieveMessageRequest<br>
  * &emsp;&bull; org.ftab.requests.SendMessageRequest<br>
+ * &emsp;&bull; org.ftab.requests.SendMessageBatchRequest<br>
+ * &emsp;&bull; org.ftab.requests.SubscriptionRequest<br>
  * &emsp;&bull; org.ftab.responses.GetQueuesResponse<br>
  * &emsp;&bull; org.ftab.responses.RequestResponse<br>
- * &emsp;&bull; org.ftab.responses.RetrieveMessageResponse
+ * &emsp;&bull; org.ftab.responses.RetrieveMessageResponse<br>
+ * &emsp;&bull; org.ftab.responses.RetrieveMessagesResponse
  */
 public abstract class ProtocolMessage {
 	/**
@@ -56,6 +64,12 @@ public abstract class ProtocolMessage {
          */
         SEND_MESSAGE(SEND_MSG), 
         
+        /**
+         * Marks that the message body contains a message requesting to
+         * send several messages in a single transaction.
+         */
+        SEND_MESSAGE_BATCH(SEND_BATCH),
+        
         /**
          * Marks that the message body contains a message requesting to
          * retrieve a message.
@@ -68,6 +82,18 @@ public abstract class ProtocolMessage {
          */
         RETRIEVE_QUEUES(RETR_QUE), 
         
+        /**
+         * Marks that the message body contains a message requesting to
+         * subscribe to queues or to grant credits to subscribed queues.
+         */
+        SUBSCRIBE(SUBS),
+        
+        /**
+         * Marks that the message body contains a message requesting to
+         * unsubscribe from queues.
+         */
+        UNSUBSCRIBE(UNSUBS),
+        
         /**
          * Marks that the message body contains a generic request response.
          */
@@ -79,11 +105,33 @@ public abstract class ProtocolMessage {
          */
         RETURNED_MESSAGES(RETU_MSG),
         
+        /**
+         * Marks that the message body contains several requested
+         * messages.
+         */
+        RETURNED_MESSAGE_BATCH(RETU_BATCH),
+        
+        /**
+         * Marks that the message body contains messages pushed for a
+         * subscription, which don't answer any request.
+         */
+        PUSHED_MESSAGES(PUSH_MSG),
+        
         /**
          * Marks that the message body contains the requested list of
          * queues.
          */
-        RETURNED_QUEUE(RETU_QUE);  
+        RETURNED_QUEUE(RETU_QUE),
+        
+        /**
+         * Marks a liveness check that must be answered with a PONG.
+         */
+        PING(PING_B),
+        
+        /**
+         * Marks the answer to a liveness check.
+         */
+        PONG(PONG_B);  
         
         /**
          * The associated byte value for an enum constant
@@ -125,13 +173,49 @@ public abstract class ProtocolMessage {
      * Byte values to be sent across the link corresponding to various message types.
      */
     private static final byte CON_REQ = 0, QUE_MOD = 1, SEND_MSG = 2, RETR_MSG = 3, 
-    		RETR_QUE = 5, REQ_RESP = 6, RETU_MSG = 7, RETU_QUE = 8; // MSG_REC = 4, 
+    		RETR_QUE = 5, REQ_RESP = 6, RETU_MSG = 7, RETU_QUE = 8, SEND_BATCH = 9, RETU_BATCH = 10, 
+    		SUBS = 11, UNSUBS = 12, PUSH_MSG = 13, PING_B = 14, PONG_B = 15; // MSG_REC = 4, 
     
     /**
      * The character set name to be used for all string encodings
      */
     public final static String CHARSET = "UTF-8";
     
+    /**
+     * The character set used for all string encodings.
+     */
+    private final static Charset UTF8 = Charset.forName(CHARSET);
+    
+    /**
+     * Protocol version of the clients that only understand text-encoded
+     * responses. A connection request without version information implies it.
+     */
+    public final static byte TEXT_PROTOCOL_VERSION = 1;
+    
+    /**
+     * Protocol version that introduces the binary encoding of the responses.
+     */
+    public final static byte BINARY_PROTOCOL_VERSION = 2;
+    
+    /**
+     * Protocol version that introduces the PING and PONG messages, the server
+     * only pings the clients that advertise it, whatever the encoding of their
+     * responses.
+     */
+    public final static byte HEARTBEAT_PROTOCOL_VERSION = 3;
+    
+    /**
+     * The latest protocol version, advertised by the clients in their
+     * connection request.
+     */
+    public final static byte PROTOCOL_VERSION = HEARTBEAT_PROTOCOL_VERSION;
+    
+    /**
+     * Bit set in the message type byte when the body is binary encoded, so the
+     * receiver can decode a message without knowing the negotiated version.
+     */
+    private final static byte BINARY_BODY = 0x40;
+    
 	/**
 	 * The number of bytes present in the header.<br>
 	 */
@@ -141,6 +225,12 @@ public abstract class ProtocolMessage {
      * The byte sequence that marks the beginning of a message.
      */
     public final static byte[] START_MESSAGE = { -86, 86, -86, 86 };
+    
+    /**
+     * The number of bytes in front of the body of a serialized message, the
+     * header and the message type.
+     */
+    private final static int FRAME_PREFIX = HEADER_SIZE + 1;
 
     /**
      * The {@link #MessageType MessageType} enumeration corresponding to the type of this message.
@@ -184,18 +274,37 @@ public abstract class ProtocolMessage {
     }
 
     /**
-     * Performs serialization on the supplied protocol message.
+     * Performs serialization on the supplied protocol message with the text
+     * encoding for the responses, which is understood by every client.
      * @param message The ProtocolMessage or subclass to be serialized.
      * @return A ByteBuffer containing the protocol message with its limit set to the end 
      * of the message and its position set to zero.
      */
     public static ByteBuffer toBytes(ProtocolMessage message) {
+    	return toBytes(message, TEXT_PROTOCOL_VERSION);
+    }
+    
+    /**
+     * Performs serialization on the supplied protocol message for a peer that
+     * speaks the given protocol version. Responses are binary encoded from
+     * BINARY_PROTOCOL_VERSION on, requests are always binary encoded.
+     * @param message The ProtocolMessage or subclass to be serialized.
+     * @param version The protocol version negotiated with the peer.
+     * @return A ByteBuffer containing the protocol message with its limit set to the end 
+     * of the message and its position set to zero.
+     */
+    public static ByteBuffer toBytes(ProtocolMessage message, byte version) {
     	ByteBuffer bodyBuffer;
+    	final boolean binary = version >= BINARY_PROTOCOL_VERSION;
+    	byte typeByte = message.getMessageType().getByteValue();
     	
     	switch(message.getMessageType()){
     	case SEND_MESSAGE:
 			bodyBuffer = ((SendMessageRequest)message).toBytes();
 			break;
+    	case SEND_MESSAGE_BATCH:
+    		bodyBuffer = ((SendMessageBatchRequest)message).toBytes();
+    		break;
     	case CONNECTION_REQUEST:
     		bodyBuffer = ((ConnectionRequest)message).toBytes();
     		break;
@@ -209,38 +318,99 @@ public abstract class ProtocolMessage {
 			bodyBuffer = ((QueueModificationRequest)message).toBytes();
 			break;
 		case REQUEST_RESPONSE:
-			bodyBuffer = ((RequestResponse)message).toBytes();
+			bodyBuffer = binary ? ((RequestResponse)message).toBinaryBytes()
+					: ((RequestResponse)message).toBytes();
 			break;
 		case RETRIEVE_MESSAGE:
 			bodyBuffer = ((RetrieveMessageRequest)message).toBytes();
 			break;
+		case SUBSCRIBE:
+		case UNSUBSCRIBE:
+			bodyBuffer = ((SubscriptionRequest)message).toBytes();
+			break;
 		case RETURNED_MESSAGES:
-			bodyBuffer = ((RetrieveMessageResponse)message).toBytes();
+			bodyBuffer = binary ? ((RetrieveMessageResponse)message).toBinaryBytes()
+					: ((RetrieveMessageResponse)message).toBytes();
+			break;
+		case RETURNED_MESSAGE_BATCH:
+		case PUSHED_MESSAGES:
+			bodyBuffer = ((RetrieveMessagesResponse)message).toBytes(binary);
 			break;
 		case RETURNED_QUEUE:
-			bodyBuffer = ((GetQueuesResponse)message).toBytes();
+			bodyBuffer = binary ? ((GetQueuesResponse)message).toBinaryBytes()
+					: ((GetQueuesResponse)message).toBytes();
+			break;
+		case PING:
+		case PONG:
+			bodyBuffer = ((Heartbeat)message).toBytes();
 			break;
 		default:
 			throw new UnsupportedOperationException("That message type is not supported.");    	
     	}
     	
-    	ByteBuffer messageBuffer = ByteBuffer.allocate(bodyBuffer.remaining() + HEADER_SIZE + 1);
+    	switch(message.getMessageType()){
+    	case REQUEST_RESPONSE:
+    	case RETURNED_MESSAGES:
+    	case RETURNED_MESSAGE_BATCH:
+    	case PUSHED_MESSAGES:
+    	case RETURNED_QUEUE:
+    		if (binary) {
+    			typeByte |= BINARY_BODY;
+    		}
+    		break;
+    	default:
+    		break;
+    	}
+    	
+    	final int bodySize = bodyBuffer.remaining();
+    	ByteBuffer messageBuffer;
+    	if (hasFrameRoom(bodyBuffer)) {
+    		// The body was encoded in place, only the prefix is missing
+    		messageBuffer = ByteBuffer.wrap(bodyBuffer.array());
+    	} else {
+    		messageBuffer = ByteBuffer.allocate(bodySize + FRAME_PREFIX);
+    		messageBuffer.position(FRAME_PREFIX);
+    		messageBuffer.put(bodyBuffer);
+    		messageBuffer.flip();
+    	}
     	
     	// Put the header
-    	messageBuffer.put(START_MESSAGE).putInt(bodyBuffer.remaining() + 1);
+    	messageBuffer.put(START_MESSAGE).putInt(bodySize + 1);
     	
     	// Put the message type
-    	messageBuffer.put(message.getMessageType().getByteValue());    	
-    	
-    	// Write out the contents from the previous buffer
-    	messageBuffer.put(bodyBuffer);
+    	messageBuffer.put(typeByte);    	
     	
     	// Set up the buffer for being read
-    	messageBuffer.flip();
+    	messageBuffer.position(0);
     	
     	return messageBuffer;
     }
     
+    /**
+     * Allocates the buffer for a serialized body with room in front of it for
+     * the header and the message type, so toBytes frames the body in place
+     * instead of copying it.
+     * @param size The number of bytes of the body.
+     * @return A buffer for the body with its position set to zero and its limit
+     * set to the given size.
+     */
+    protected static ByteBuffer allocateBody(int size) {
+    	final ByteBuffer frame = ByteBuffer.allocate(size + FRAME_PREFIX);
+    	frame.position(FRAME_PREFIX);
+    	return frame.slice();
+    }
+    
+    /**
+     * Checks if a body was allocated with allocateBody and fills it exactly.
+     * @param body The serialized body.
+     * @return True if the whole backing array is the frame of the body.
+     */
+    private static boolean hasFrameRoom(ByteBuffer body) {
+    	return body.hasArray() && !body.isReadOnly()
+    			&& body.arrayOffset() + body.position() == FRAME_PREFIX
+    			&& body.arrayOffset() + body.limit() == body.array().length;
+    }
+    
     /**
      * Serializes this ProtocolMessage excluding its header information.
      * @return A ByteBuffer containing this message with its limit set to the end
@@ -256,10 +426,13 @@ public abstract class ProtocolMessage {
      */
     public static ProtocolMessage fromBytes(ByteBuffer input){
         byte mtype = input.get();
+        final boolean binary = (mtype & BINARY_BODY) != 0;
                 
-        switch (MessageType.fromByte(mtype)) {
+        switch (MessageType.fromByte((byte) (mtype & ~BINARY_BODY))) {
         case SEND_MESSAGE:
 			return SendMessageRequest.fromBytes(input);
+        case SEND_MESSAGE_BATCH:
+        	return SendMessageBatchRequest.fromBytes(input);
         case CONNECTION_REQUEST:
         	return ConnectionRequest.fromBytes(input);
         case RETRIEVE_QUEUES:
@@ -269,15 +442,131 @@ public abstract class ProtocolMessage {
         case QUEUE_MODIFICATION:
         	return QueueModificationRequest.fromBytes(input);
 		case REQUEST_RESPONSE:
-			return RequestResponse.fromBytes(input);
+			return binary ? RequestResponse.fromBinaryBytes(input)
+					: RequestResponse.fromBytes(input);
 		case RETRIEVE_MESSAGE:
 			return RetrieveMessageRequest.fromBytes(input);
+		case SUBSCRIBE:
+			return SubscriptionRequest.fromBytes(input, true);
+		case UNSUBSCRIBE:
+			return SubscriptionRequest.fromBytes(input, false);
 		case RETURNED_MESSAGES:
-			return RetrieveMessageResponse.fromBytes(input);
+			return binary ? RetrieveMessageResponse.fromBinaryBytes(input)
+					: RetrieveMessageResponse.fromBytes(input);
+		case RETURNED_MESSAGE_BATCH:
+			return RetrieveMessagesResponse.fromBytes(input, binary);
+		case PUSHED_MESSAGES:
+			return RetrieveMessagesResponse.fromBytes(input, binary, true);
 		case RETURNED_QUEUE:
-			return GetQueuesResponse.fromBytes(input);
+			return binary ? GetQueuesResponse.fromBinaryBytes(input)
+					: GetQueuesResponse.fromBytes(input);
+		case PING:
+			return Heartbeat.fromBytes(input, true);
+		case PONG:
+			return Heartbeat.fromBytes(input, false);
 		default:
 			throw new UnsupportedOperationException("That message type is not supported.");
         }
     }
+    
+    /**
+     * Encodes a string for a binary body.
+     * @param value The string to encode, may be null.
+     * @return The UTF-8 bytes of the string or null if the string is null.
+     */
+    protected static byte[] encodeString(String value) {
+    	return (value == null) ? null : value.getBytes(UTF8);
+    }
+    
+    /**
+     * Computes the number of bytes that an encoded string occupies in a binary
+     * body, including its length prefix.
+     * @param encoded The bytes returned by encodeString.
+     * @return The number of bytes needed by putString.
+     */
+    protected static int stringSize(byte[] encoded) {
+    	return (encoded == null) ? 1 
+    			: varIntSize(encoded.length + 1) + encoded.length;
+    }
+    
+    /**
+     * Writes an encoded string prefixed with its length plus one as a varint,
+     * a zero length prefix denotes a null string.
+     * @param buffer The buffer to write to.
+     * @param encoded The bytes returned by encodeString.
+     */
+    protected static void putString(ByteBuffer buffer, byte[] encoded) {
+    	if (encoded == null) {
+    		putVarInt(buffer, 0);
+    	} else {
+    		putVarInt(buffer, encoded.length + 1);
+    		buffer.put(encoded);
+    	}
+    }
+    
+    /**
+     * Reads a string written with putString.
+     * @param buffer The buffer to read from.
+     * @return The decoded string, which may be null.
+     */
+    protected static String getString(ByteBuffer buffer) {
+    	final int length = getVarInt(buffer) - 1;
+    	if (length < 0) {
+    		return null;
+    	}
+    	if (buffer.hasArray()) {
+    		final String value = new String(buffer.array(), 
+    				buffer.arrayOffset() + buffer.position(), length, UTF8);
+    		buffer.position(buffer.position() + length);
+    		return value;
+    	}
+    	final byte[] bytes = new byte[length];
+    	buffer.get(bytes);
+    	return new String(bytes, UTF8);
+    }
+    
+    /**
+     * Computes the number of bytes of a non-negative integer encoded as a varint.
+     * @param value The value to encode.
+     * @return The number of bytes, from 1 to 5.
+     */
+    protected static int varIntSize(int value) {
+    	int size = 1;
+    	while ((value & ~0x7F) != 0) {
+    		value >>>= 7;
+    		size++;
+    	}
+    	return size;
+    }
+    
+    /**
+     * Writes an integer as a varint: 7 bits per byte, least significant group
+     * first, with the high bit set on every byte but the last.
+     * @param buffer The buffer to write to.
+     * @param value The value to write.
+     */
+    protected static void putVarInt(ByteBuffer buffer, int value) {
+    	while ((value & ~0x7F) != 0) {
+    		buffer.put((byte) ((value & 0x7F) | 0x80));
+    		value >>>= 7;
+    	}
+    	buffer.put((byte) value);
+    }
+    
+    /**
+     * Reads an integer written with putVarInt.
+     * @param buffer The buffer to read from.
+     * @return The decoded value.
+     */
+    protected static int getVarInt(ByteBuffer buffer) {
+    	int value = 0;
+    	for (int shift = 0; shift < 32; shift += 7) {
+    		final byte b = buffer.get();
+    		value |= (b & 0x7F) << shift;
+    		if (b >= 0) {
+    			return value;
+    		}
+    	}
+    	throw new IllegalArgumentException("Malformed varint in the message body.");
+    }
 }
@@ -23,20 +23,39 @@ public class ConnectionRequest extends ProtocolMessage {
 	 * Whether the request is a connection or disconnection
 	 */
 	private boolean isConnection = false;
+	
+	/**
+	 * The highest protocol version understood by the client
+	 */
+	private byte protocolVersion = TEXT_PROTOCOL_VERSION;
     
 	/**
 	 * Creates a new connection or disconnection request for the client with the supplied 
-	 * username.
+	 * username, advertising the latest protocol version.
 	 * @param username The username for this client requesting the connection. This
 	 * parameter is not required if it is a disconnection.
 	 * @param connect True for a connection request, false for a disconnection request.
 	 */
     public ConnectionRequest(String username, boolean connect) {
+    	this(username, connect, PROTOCOL_VERSION);
+    }
+    
+	/**
+	 * Creates a new connection or disconnection request for the client with the supplied 
+	 * username.
+	 * @param username The username for this client requesting the connection. This
+	 * parameter is not required if it is a disconnection.
+	 * @param connect True for a connection request, false for a disconnection request.
+	 * @param version The highest protocol version understood by the client, only
+	 * sent with connection requests.
+	 */
+    public ConnectionRequest(String username, boolean connect, byte version) {
     	this.messageType = MessageType.CONNECTION_REQUEST;
     	
     	if (connect) {
     		this.username = username;
     		isConnection = true;
+    		protocolVersion = version;
     	}
     }
     
@@ -58,13 +77,22 @@ public class ConnectionRequest extends ProtocolMessage {
     public boolean isConnection() {
     	return isConnection;
     }
+    
+    /**
+     * Gets the highest protocol version understood by the client.
+     * @return The advertised protocol version, TEXT_PROTOCOL_VERSION for
+     * clients that predate the version negotiation.
+     */
+    public byte getProtocolVersion() {
+    	return protocolVersion;
+    }
             
 	@Override
 	public ByteBuffer toBytes() {
 		ByteBuffer buffer;
 		
 		if (!isConnection) {
-			buffer = ByteBuffer.allocate(1);
+			buffer = allocateBody(1);
 			
 			buffer.put((byte) 0);			
 		} else {
@@ -76,7 +104,7 @@ public class ConnectionRequest extends ProtocolMessage {
 				e.printStackTrace();
 			}
 			
-			buffer = ByteBuffer.allocate(usernameBytes.length + 3);
+			buffer = allocateBody(usernameBytes.length + 4);
 			
 			// Push the connection boolean onto the buffer
 			buffer.put((byte) 1);
@@ -84,6 +112,8 @@ public class ConnectionRequest extends ProtocolMessage {
 			buffer.putShort((short) usernameBytes.length);
 			// Push the username onto the buffer
 			buffer.put(usernameBytes);
+			// Push the protocol version, older clients don't send it
+			buffer.put(protocolVersion);
 		}
 		
 		buffer.flip();
@@ -101,6 +131,7 @@ public class ConnectionRequest extends ProtocolMessage {
 	public static ConnectionRequest fromBytes(ByteBuffer body) {
 		final boolean connect = (body.get() == 0) ? false : true;
 		String uname = null;
+		byte version = TEXT_PROTOCOL_VERSION;
 		
 		if (connect) {
 			// Get the number of bytes to read for the username
@@ -114,8 +145,13 @@ public class ConnectionRequest extends ProtocolMessage {
 			} catch (UnsupportedEncodingException e) {
 				e.printStackTrace();
 			}
+			
+			// Clients that predate the version negotiation end here
+			if (body.hasRemaining()) {
+				version = body.get();
+			}
 		}
 		
-		return new ConnectionRequest(uname, connect);
+		return new ConnectionRequest(uname, connect, version);
 	}
 }
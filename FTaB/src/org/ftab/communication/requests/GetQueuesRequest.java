@@ -26,7 +26,7 @@ public class GetQueuesRequest extends ProtocolMessage {
 	
 	@Override
 	public ByteBuffer toBytes() {
-		ByteBuffer buffer = ByteBuffer.allocate(0);
+		ByteBuffer buffer = allocateBody(0);
 		
 		return buffer;
 	}
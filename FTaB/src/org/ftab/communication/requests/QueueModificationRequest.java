@@ -69,7 +69,7 @@ public class QueueModificationRequest extends ProtocolMessage {
 			e.printStackTrace();
 		}
     	
-    	final ByteBuffer buffer = ByteBuffer.allocate(3 + nameInBytes.length);
+    	final ByteBuffer buffer = allocateBody(3 + nameInBytes.length);
     	
     	// Push 1 or 0 for the boolean value of whether to delete or create the queue
     	buffer.put((byte) (deleteRequest ? 1 : 0));
@@ -37,6 +37,22 @@ public class RetrieveMessageRequest extends ProtocolMessage {
      */
     private final boolean popMessage;
     
+    /**
+     * The maximum number of messages that can be returned for this request.
+     */
+    private final int maxMessages;
+    
+    /**
+     * Time in milliseconds the server may wait for a matching message if there
+     * is none when the request is processed, 0 to answer immediately.
+     */
+    private final int waitTimeout;
+    
+    /**
+     * The largest value accepted as the maximum number of messages of a request.
+     */
+    public static final int MAX_MESSAGES = Short.MAX_VALUE;
+    
     /**
      * Creates a new request for a message.
      * @param name The name of the queue or sender from which to retreive the message.
@@ -47,12 +63,54 @@ public class RetrieveMessageRequest extends ProtocolMessage {
      * @param andDelete A value signifying whether to delete the message after retrieval
      */
     public RetrieveMessageRequest(String name, Filter type, Order order, boolean andDelete) {
+    	this(name, type, order, andDelete, 1);
+    }
+    
+    /**
+     * Creates a new request for up to a given number of messages.
+     * @param name The name of the queue or sender from which to retreive the messages.
+     * @param type An enum of type Filter which indicates whether to retreive the messages
+     * from a particular queue or a particular sender
+     * @param order An enum of type Order which indicates the order in which the
+     * messages are selected and returned.
+     * @param andDelete A value signifying whether to delete the messages after retrieval
+     * @param max The maximum number of messages to return, from 1 to MAX_MESSAGES.
+     */
+    public RetrieveMessageRequest(String name, Filter type, Order order, boolean andDelete, int max) {
+    	this(name, type, order, andDelete, max, 0);
+    }
+    
+    /**
+     * Creates a new request for up to a given number of messages that waits for
+     * a matching message to arrive if there is none.
+     * @param name The name of the queue or sender from which to retreive the messages.
+     * @param type An enum of type Filter which indicates whether to retreive the messages
+     * from a particular queue or a particular sender
+     * @param order An enum of type Order which indicates the order in which the
+     * messages are selected and returned.
+     * @param andDelete A value signifying whether to delete the messages after retrieval
+     * @param max The maximum number of messages to return, from 1 to MAX_MESSAGES.
+     * @param waitMillis The time in milliseconds to wait for a message to arrive,
+     * 0 to answer immediately.
+     */
+    public RetrieveMessageRequest(String name, Filter type, Order order, boolean andDelete, int max,
+    		int waitMillis) {
+    	if (waitMillis < 0) {
+    		throw new IllegalArgumentException("The wait timeout can't be negative.");
+    	}
+    	if (max < 1 || max > MAX_MESSAGES) {
+    		throw new IllegalArgumentException("The maximum number of messages must be between 1 and "
+    				+ MAX_MESSAGES + ".");
+    	}
+    	
     	this.messageType = MessageType.RETRIEVE_MESSAGE;
     	
     	this.value = name;
     	this.filterType = type;
     	this.orderedBy = order;
     	this.popMessage = andDelete;
+    	this.maxMessages = max;
+    	this.waitTimeout = waitMillis;
     }
      
     /**
@@ -90,6 +148,23 @@ public class RetrieveMessageRequest extends ProtocolMessage {
 		return popMessage;
 	}
     
+    /**
+     * Gets the maximum number of messages that can be returned for this request.
+     * @return The maximum number of messages, 1 for a request of a single message.
+     */
+    public int getMaxMessages() {
+    	return maxMessages;
+    }
+    
+    /**
+     * Gets the time the server may wait for a matching message to arrive.
+     * @return The wait timeout in milliseconds, 0 if the request must be answered
+     * immediately.
+     */
+    public int getWaitTimeout() {
+    	return waitTimeout;
+    }
+    
     @Override
 	public ByteBuffer toBytes() {
     	byte[] nameInBytes = null;
@@ -99,7 +174,9 @@ public class RetrieveMessageRequest extends ProtocolMessage {
 			e.printStackTrace();
 		}
     	
-    	final ByteBuffer buffer = ByteBuffer.allocate(5 + nameInBytes.length);
+    	final boolean putMax = maxMessages > 1 || waitTimeout > 0;
+    	final ByteBuffer buffer = allocateBody(5 + nameInBytes.length 
+    			+ (putMax ? 2 : 0) + (waitTimeout > 0 ? 4 : 0));
     	
     	// Put the filter data into the buffer
     	buffer.put(filterType.getByteValue());
@@ -111,6 +188,15 @@ public class RetrieveMessageRequest extends ProtocolMessage {
     	buffer.putShort((short) nameInBytes.length);
     	// Put the name in bytes
     	buffer.put(nameInBytes);
+    	// Put the maximum number of messages and the wait timeout, left out
+    	// when they have their default values so that the request is understood
+    	// by servers that don't support them
+    	if (putMax) {
+    		buffer.putShort((short) maxMessages);
+    	}
+    	if (waitTimeout > 0) {
+    		buffer.putInt(waitTimeout);
+    	}
     	
     	buffer.flip();
     	return buffer;
@@ -137,6 +223,9 @@ public class RetrieveMessageRequest extends ProtocolMessage {
 			e.printStackTrace();
 		}
     	
-    	return new RetrieveMessageRequest(name, filter, order, pop);
+    	final int max = body.remaining() >= 2 ? body.getShort() : 1;
+    	final int wait = body.remaining() >= 4 ? body.getInt() : 0;
+    	
+    	return new RetrieveMessageRequest(name, filter, order, pop, max, wait);
     }
 }
@@ -0,0 +1,99 @@
+package org.ftab.communication.requests;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.ftab.communication.ProtocolMessage;
+
+/**
+ * Represents a request to send several messages at once. The messages are
+ * created in a single transaction, so either all of them are sent or none is.
+ * @author Jean-Pierre Smith
+ */
+public class SendMessageBatchRequest extends ProtocolMessage {
+	/**
+	 * The maximum number of messages in a single batch.
+	 */
+	public static final int MAX_BATCH_SIZE = Short.MAX_VALUE;
+
+	/**
+	 * The messages to be sent, each one with its own queues and receiver.
+	 */
+	final private ArrayList<SendMessageRequest> messages = new ArrayList<SendMessageRequest>();
+
+	/**
+	 * Constructs a new request to send a batch of messages.
+	 * @param batch The messages to be sent, at most MAX_BATCH_SIZE.
+	 */
+	public SendMessageBatchRequest(Iterable<SendMessageRequest> batch) {
+		this.messageType = MessageType.SEND_MESSAGE_BATCH;
+
+		for (SendMessageRequest request : batch) messages.add(request);
+		if (messages.size() > MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("A batch can contain at most "
+					+ MAX_BATCH_SIZE + " messages.");
+		}
+	}
+
+	/**
+	 * Gets the messages to be sent.
+	 * @return An iterable with the requests for each of the messages, in the
+	 * order in which they were added to the batch.
+	 */
+	public Iterable<SendMessageRequest> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * Gets the number of messages in the batch.
+	 * @return The number of messages.
+	 */
+	public int size() {
+		return messages.size();
+	}
+
+	@Override
+	public ByteBuffer toBytes() {
+		// Serialize each message as a single send message request body
+		final ByteBuffer[] bodies = new ByteBuffer[messages.size()];
+		int size = 2;
+		for (int i = 0; i < bodies.length; i++) {
+			bodies[i] = messages.get(i).toBytes();
+			size += bodies[i].remaining() + 4;
+		}
+
+		final ByteBuffer buffer = allocateBody(size);
+
+		// Put the number of messages followed by each length-prefixed body
+		buffer.putShort((short) bodies.length);
+		for (ByteBuffer body : bodies) {
+			buffer.putInt(body.remaining());
+			buffer.put(body);
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Converts a byte buffer into a SendMessageBatchRequest object
+	 * @param body A byte buffer containing the body of the message without
+	 * any header or type information
+	 * @return The SendMessageBatchRequest object corresponding to the byte buffer
+	 * @aslexclude
+	 */
+	public static SendMessageBatchRequest fromBytes(ByteBuffer body) {
+		final int count = body.getShort();
+		final ArrayList<SendMessageRequest> batch = new ArrayList<SendMessageRequest>(count);
+
+		for (int i = 0; i < count; i++) {
+			final int length = body.getInt();
+			final ByteBuffer messageBody = body.slice();
+			messageBody.limit(length);
+			batch.add(SendMessageRequest.fromBytes(messageBody));
+			body.position(body.position() + length);
+		}
+
+		return new SendMessageBatchRequest(batch);
+	}
+}
@@ -146,7 +146,7 @@ public class SendMessageRequest extends ProtocolMessage {
 		// Convert the message content to bytes
 		final byte[] messageInBytes = messageContent.getBytes();
 		
-		final ByteBuffer buffer = ByteBuffer.allocate(queuesInBytes.length + receiverInBytes.length +
+		final ByteBuffer buffer = allocateBody(queuesInBytes.length + receiverInBytes.length +
 				messageInBytes.length + 11);
 		
 		// Put the priority into the buffer
@@ -0,0 +1,180 @@
+/**
+ * SubscriptionRequest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.communication.requests;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ftab.communication.ProtocolMessage;
+import org.ftab.pubenums.Order;
+
+/**
+ * Encapsulates a request to subscribe to or unsubscribe from one or more 
+ * queues. While subscribed, the server pushes the messages of the queues for
+ * the client as they arrive, removing them from the queues, as long as the
+ * subscription has credits. Each pushed message consumes one credit, and a
+ * subscribe request for a queue that is already subscribed grants it more
+ * credits, so a client bounds the messages in flight to what it can process.
+ * @author Jean-Pierre Smith
+ */
+public class SubscriptionRequest extends ProtocolMessage {
+	/**
+	 * The maximum number of queues in a single request.
+	 */
+	public static final int MAX_QUEUES = Short.MAX_VALUE;
+
+	/**
+	 * The names of the queues to subscribe to or unsubscribe from.
+	 */
+	final private List<String> queueNames = new ArrayList<String>();
+	
+	/**
+	 * The order in which the messages of the queues are pushed.
+	 */
+	final private Order orderBy;
+	
+	/**
+	 * The number of messages the server may push for each queue before it
+	 * receives more credits.
+	 */
+	final private int credits;
+	
+	/**
+	 * Creates a new request to subscribe to the given queues or to grant them
+	 * more credits if they are already subscribed.
+	 * @param queues The names of the queues, at most MAX_QUEUES.
+	 * @param order The order in which the messages are pushed.
+	 * @param nCredits The number of messages that may be pushed for each queue,
+	 * at least one.
+	 */
+	public SubscriptionRequest(Iterable<String> queues, Order order, int nCredits) {
+		this(MessageType.SUBSCRIBE, queues, order, nCredits);
+		if (nCredits < 1) {
+			throw new IllegalArgumentException("A subscription needs at least one credit.");
+		}
+	}
+	
+	/**
+	 * Creates a new request to unsubscribe from the given queues.
+	 * @param queues The names of the queues, at most MAX_QUEUES.
+	 */
+	public SubscriptionRequest(Iterable<String> queues) {
+		this(MessageType.UNSUBSCRIBE, queues, Order.TIMESTAMP, 0);
+	}
+	
+	/**
+	 * Creates a new request of the given type.
+	 * @param type Either SUBSCRIBE or UNSUBSCRIBE.
+	 * @param queues The names of the queues.
+	 * @param order The order in which the messages are pushed.
+	 * @param nCredits The number of messages that may be pushed for each queue.
+	 */
+	private SubscriptionRequest(MessageType type, Iterable<String> queues, Order order,
+			int nCredits) {
+		this.messageType = type;
+		
+		for (String queue : queues) queueNames.add(queue);
+		if (queueNames.size() > MAX_QUEUES) {
+			throw new IllegalArgumentException("A request can contain at most "
+					+ MAX_QUEUES + " queues.");
+		}
+		orderBy = order;
+		credits = nCredits;
+	}
+	
+	/**
+	 * Gets a boolean value indicating whether this request is to subscribe or
+	 * unsubscribe.
+	 * @return <b>true</b> to subscribe to the queues, <b>false</b> to unsubscribe.
+	 */
+	public boolean isSubscribe() {
+		return messageType == MessageType.SUBSCRIBE;
+	}
+	
+	/**
+	 * Gets the names of the queues of the request.
+	 * @return The queue names in the order in which they were supplied.
+	 */
+	public List<String> getQueueNames() {
+		return queueNames;
+	}
+	
+	/**
+	 * Gets the order in which the messages are pushed.
+	 * @return An enumerated value indicating whether the messages are pushed
+	 * by highest priority or by earliest time first.
+	 */
+	public Order getOrderBy() {
+		return orderBy;
+	}
+	
+	/**
+	 * Gets the number of messages the server may push for each queue.
+	 * @return The credits granted to each queue, zero when unsubscribing.
+	 */
+	public int getCredits() {
+		return credits;
+	}
+
+	@Override
+	public ByteBuffer toBytes() {
+		final byte[][] names = new byte[queueNames.size()][];
+		int size = 7;
+		try {
+			for (int i = 0; i < names.length; i++) {
+				names[i] = queueNames.get(i).getBytes(CHARSET);
+				size += 2 + names[i].length;
+			}
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+		
+		final ByteBuffer buffer = allocateBody(size);
+		
+		// Push the order and the credits followed by each length-prefixed name
+		buffer.put(orderBy.getByteValue());
+		buffer.putInt(credits);
+		buffer.putShort((short) names.length);
+		for (byte[] name : names) {
+			buffer.putShort((short) name.length);
+			buffer.put(name);
+		}
+		
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Converts a byte buffer into a SubscriptionRequest object
+	 * @param body A byte buffer containing the body of the message without
+	 * any header or type information
+	 * @param subscribe <b>true</b> if the message type is SUBSCRIBE, <b>false</b>
+	 * if it is UNSUBSCRIBE.
+	 * @return The SubscriptionRequest object corresponding to the byte buffer
+	 * @aslexclude
+	 */
+	public static SubscriptionRequest fromBytes(ByteBuffer body, boolean subscribe) {
+		final Order order = Order.fromByte(body.get());
+		final int nCredits = body.getInt();
+		final int count = body.getShort();
+		final ArrayList<String> queues = new ArrayList<String>(count);
+		
+		try {
+			for (int i = 0; i < count; i++) {
+				byte[] arr = new byte[body.getShort()];
+				body.get(arr);
+				queues.add(new String(arr, CHARSET));
+			}
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+		
+		return subscribe ? new SubscriptionRequest(queues, order, nCredits)
+				: new SubscriptionRequest(queues);
+	}
+}
@@ -97,4 +97,46 @@ public class GetQueuesResponse extends ProtocolMessage {
         return bb;
     }
 
+    /**
+     * Retrieve a response given a binary encoded ByteBuffer, this is defined in
+     * a way such that X == fromBinaryBytes(X.toBinaryBytes()) holds.
+     * 
+     * @param input
+     *            ByteBuffer generated from a {@link GetQueuesResponse} instance
+     *            with the toBinaryBytes method.
+     * @return response object.
+     * @aslexclude
+     */
+    public static GetQueuesResponse fromBinaryBytes(ByteBuffer input) {
+        int count = getVarInt(input);
+        ArrayList<String> queueNames = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            queueNames.add(getString(input));
+        }
+        return new GetQueuesResponse(queueNames);
+    }
+
+    /**
+     * Serializes this response in the binary encoding: the number of queues
+     * followed by each length-prefixed queue name.
+     * 
+     * @return A ByteBuffer containing the body of the response with its limit
+     *         set to the end of the body and its position set to zero.
+     */
+    public ByteBuffer toBinaryBytes() {
+        byte[][] encoded = new byte[queues.size()][];
+        int size = varIntSize(queues.size());
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = encodeString(queues.get(i));
+            size += stringSize(encoded[i]);
+        }
+        ByteBuffer bb = allocateBody(size);
+        putVarInt(bb, encoded.length);
+        for (byte[] queueName : encoded) {
+            putString(bb, queueName);
+        }
+        bb.flip();
+        return bb;
+    }
+
 }
@@ -165,4 +165,35 @@ public class RequestResponse extends ProtocolMessage {
         return bb;
     }
 
+    /**
+     * Retrieve a response given a binary encoded ByteBuffer, this is defined in
+     * a way such that X == fromBinaryBytes(X.toBinaryBytes()) holds.
+     * 
+     * @param input
+     *            ByteBuffer generated from a {@link RequestResponse} instance
+     *            with the toBinaryBytes method.
+     * @return response object.
+     * @aslexclude
+     */
+    public static RequestResponse fromBinaryBytes(ByteBuffer input) {
+        Status status = Status.values()[input.get()];
+        return new RequestResponse(status, getString(input));
+    }
+
+    /**
+     * Serializes this response in the binary encoding: the status ordinal in
+     * one byte followed by the length-prefixed description.
+     * 
+     * @return A ByteBuffer containing the body of the response with its limit
+     *         set to the end of the body and its position set to zero.
+     */
+    public ByteBuffer toBinaryBytes() {
+        byte[] description = encodeString(getDescription());
+        ByteBuffer bb = allocateBody(1 + stringSize(description));
+        bb.put((byte) getStatus().ordinal());
+        putString(bb, description);
+        bb.flip();
+        return bb;
+    }
+
 }
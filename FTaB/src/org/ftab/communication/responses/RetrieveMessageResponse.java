@@ -223,4 +223,53 @@ public class RetrieveMessageResponse extends ProtocolMessage {
         return bb;
     }
 
+    /**
+     * Retrieve a response given a binary encoded ByteBuffer, this is defined in
+     * a way such that X == fromBinaryBytes(X.toBinaryBytes()) holds.
+     * 
+     * @param input
+     *            ByteBuffer generated from a {@link RetrieveMessageResponse}
+     *            instance with the toBinaryBytes method.
+     * @return response object.
+     * @aslexclude
+     */
+    public static RetrieveMessageResponse fromBinaryBytes(ByteBuffer input) {
+        long id = input.getLong();
+        int prio = input.get();
+        int cont = input.getInt();
+        String content = getString(input);
+        String senderName = getString(input);
+        String receiverName = getString(input);
+        String queue = getString(input);
+        return new RetrieveMessageResponse(id, content, senderName,
+                receiverName, queue, prio, cont);
+    }
+
+    /**
+     * Serializes this response in the binary encoding: the id, priority and
+     * context in fixed width followed by the length-prefixed content, sender,
+     * receiver and queue name.
+     * 
+     * @return A ByteBuffer containing the body of the response with its limit
+     *         set to the end of the body and its position set to zero.
+     */
+    public ByteBuffer toBinaryBytes() {
+        byte[] contentBytes = encodeString(message);
+        byte[] senderBytes = encodeString(sender);
+        byte[] receiverBytes = encodeString(receiver);
+        byte[] queueBytes = encodeString(queueName);
+        ByteBuffer bb = allocateBody(13 + stringSize(contentBytes)
+                + stringSize(senderBytes) + stringSize(receiverBytes)
+                + stringSize(queueBytes));
+        bb.putLong(messageId);
+        bb.put((byte) priority);
+        bb.putInt(context);
+        putString(bb, contentBytes);
+        putString(bb, senderBytes);
+        putString(bb, receiverBytes);
+        putString(bb, queueBytes);
+        bb.flip();
+        return bb;
+    }
+
 }
@@ -0,0 +1,190 @@
+/**
+ * RetrieveMessagesResponse.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.communication.responses;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ftab.communication.ProtocolMessage;
+import org.ftab.database.Message;
+
+/**
+ * Encapsulates the system's response to a
+ * org.ftab.communication.requests.RetrieveMessageRequest for more than one
+ * message. It contains the retrieved messages in the order in which they were
+ * selected, each one encoded as a {@link RetrieveMessageResponse}. The same
+ * body carries the messages pushed for a subscription, which are sent with the
+ * PUSHED_MESSAGES type so the client doesn't take them for a response.
+ */
+public class RetrieveMessagesResponse extends ProtocolMessage {
+
+    /**
+     * Retrieved messages.
+     */
+    private final List<RetrieveMessageResponse> messages;
+
+    /**
+     * Create a response with the given messages.
+     * 
+     * @param nMessages
+     *            the retrieved messages, at least one.
+     */
+    public RetrieveMessagesResponse(List<RetrieveMessageResponse> nMessages) {
+        this(nMessages, false);
+    }
+
+    /**
+     * Create a response or a push with the given messages.
+     * 
+     * @param nMessages
+     *            the retrieved messages, at least one.
+     * @param pushed
+     *            true if the messages are pushed for a subscription.
+     */
+    public RetrieveMessagesResponse(List<RetrieveMessageResponse> nMessages,
+            boolean pushed) {
+        messages = nMessages;
+        messageType = pushed ? MessageType.PUSHED_MESSAGES
+                : MessageType.RETURNED_MESSAGE_BATCH;
+    }
+
+    /**
+     * Create a response from database Message objects.
+     * 
+     * @param msgs
+     *            database representation of the messages.
+     * @return response object.
+     */
+    public static RetrieveMessagesResponse fromMessages(List<Message> msgs) {
+        return fromMessages(msgs, false);
+    }
+
+    /**
+     * Create a response or a push from database Message objects.
+     * 
+     * @param msgs
+     *            database representation of the messages.
+     * @param pushed
+     *            true if the messages are pushed for a subscription.
+     * @return response object.
+     */
+    public static RetrieveMessagesResponse fromMessages(List<Message> msgs,
+            boolean pushed) {
+        List<RetrieveMessageResponse> responses = new ArrayList<RetrieveMessageResponse>(
+                msgs.size());
+        for (Message msg : msgs) {
+            responses.add(new RetrieveMessageResponse(msg));
+        }
+        return new RetrieveMessagesResponse(responses, pushed);
+    }
+
+    /**
+     * Gets the retrieved messages.
+     * 
+     * @return list with each of the messages, in the order in which they were
+     *         selected.
+     */
+    public List<RetrieveMessageResponse> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Indicates if the messages were pushed for a subscription instead of
+     * answering a request.
+     * 
+     * @return true if the messages were pushed.
+     */
+    public boolean isPushed() {
+        return messageType == MessageType.PUSHED_MESSAGES;
+    }
+
+    /**
+     * Retrieve a response given a ByteBuffer, this is defined in a way such
+     * that X == fromBytes(X.toBytes(binary), binary) holds.
+     * 
+     * @param input
+     *            ByteBuffer generated from a {@link RetrieveMessagesResponse}
+     *            instance with the toBytes method.
+     * @param binary
+     *            whether the messages are in the binary encoding.
+     * @return response object.
+     * @aslexclude
+     */
+    public static RetrieveMessagesResponse fromBytes(ByteBuffer input,
+            boolean binary) {
+        return fromBytes(input, binary, false);
+    }
+
+    /**
+     * Retrieve a response or a push given a ByteBuffer.
+     * 
+     * @param input
+     *            ByteBuffer generated from a {@link RetrieveMessagesResponse}
+     *            instance with the toBytes method.
+     * @param binary
+     *            whether the messages are in the binary encoding.
+     * @param pushed
+     *            true if the messages were pushed for a subscription.
+     * @return response object.
+     * @aslexclude
+     */
+    public static RetrieveMessagesResponse fromBytes(ByteBuffer input,
+            boolean binary, boolean pushed) {
+        int count = input.getShort();
+        List<RetrieveMessageResponse> msgs = new ArrayList<RetrieveMessageResponse>(
+                count);
+        for (int i = 0; i < count; i++) {
+            int length = input.getInt();
+            ByteBuffer body = input.slice();
+            body.limit(length);
+            msgs.add(binary ? RetrieveMessageResponse.fromBinaryBytes(body)
+                    : RetrieveMessageResponse.fromBytes(body));
+            input.position(input.position() + length);
+        }
+        return new RetrieveMessagesResponse(msgs, pushed);
+    }
+
+    /**
+     * Serializes this response as the number of messages followed by each
+     * message, prefixed by its length and encoded in the text encoding.
+     * 
+     * @return A ByteBuffer containing the body of the response with its limit
+     *         set to the end of the body and its position set to zero.
+     */
+    @Override
+    public ByteBuffer toBytes() {
+        return toBytes(false);
+    }
+
+    /**
+     * Serializes this response as the number of messages followed by each
+     * message, prefixed by its length.
+     * 
+     * @param binary
+     *            whether to use the binary encoding for the messages.
+     * @return A ByteBuffer containing the body of the response with its limit
+     *         set to the end of the body and its position set to zero.
+     */
+    public ByteBuffer toBytes(boolean binary) {
+        ByteBuffer[] bodies = new ByteBuffer[messages.size()];
+        int size = 2;
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = binary ? messages.get(i).toBinaryBytes() : messages
+                    .get(i).toBytes();
+            size += 4 + bodies[i].remaining();
+        }
+        ByteBuffer bb = allocateBody(size);
+        bb.putShort((short) bodies.length);
+        for (ByteBuffer body : bodies) {
+            bb.putInt(body.remaining());
+            bb.put(body);
+        }
+        bb.flip();
+        return bb;
+    }
+
+}
@@ -0,0 +1,1377 @@
+/**
+ * LogMessageStore.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.database;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.ftab.database.exceptions.InexistentQueueException;
+import org.ftab.database.exceptions.QueueAlreadyExistsException;
+import org.ftab.database.exceptions.QueueNotEmptyException;
+
+/**
+ * Message store that keeps the indexes of {@link MemoryMessageStore} and
+ * persists every committed transaction in an append-only log of fixed-size
+ * segment files, so its contents survive a restart.
+ * <p>
+ * Each transaction is appended as a single frame with a checksum, so a
+ * transaction torn by a crash is dropped as a whole when the log is replayed.
+ * A frame holds records for the new clients, status changes, new and deleted
+ * queues, the new messages and a tombstone for every popped message. The
+ * segments are mapped in memory and the bodies of the messages are read from
+ * them rather than kept in the heap. Every segment starts with a snapshot of
+ * the clients and queues, so the older records about them are never needed
+ * once a newer segment exists.
+ * <p>
+ * A background thread compacts the full segments whose live messages take
+ * less than half of them, appending the live messages and the tombstones still
+ * needed at the end of the log and deleting the segment.
+ * <p>
+ * When every commit is flushed to the disk, the frames are appended under the
+ * lock of the log but flushed outside of it, and the commits waiting for the
+ * disk at the same time share a single flush.
+ */
+public class LogMessageStore extends MemoryMessageStore {
+
+    /**
+     * Default size of the segment files, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Smallest size of the segment files, in bytes.
+     */
+    public static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * Default time between compactions in milliseconds.
+     */
+    public static final long DEFAULT_COMPACTION_INTERVAL = 10000;
+
+    /**
+     * Fraction of a segment below which its live messages are compacted.
+     */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    /**
+     * Extension of the segment files, named after their sequence number.
+     */
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * Size of the header of a frame, the length and the checksum of its
+     * records.
+     */
+    private static final int FRAME_HEADER = 8;
+
+    /**
+     * Record with the last ids and all the clients and queues.
+     */
+    private static final byte SNAPSHOT = 1;
+
+    /**
+     * Record of a new client.
+     */
+    private static final byte CLIENT = 2;
+
+    /**
+     * Record of a change of the online status of a client.
+     */
+    private static final byte CLIENT_STATUS = 3;
+
+    /**
+     * Record of a new queue.
+     */
+    private static final byte QUEUE = 4;
+
+    /**
+     * Record of a deleted queue.
+     */
+    private static final byte QUEUE_DELETE = 5;
+
+    /**
+     * Record of a new message with its queues.
+     */
+    private static final byte MESSAGE = 6;
+
+    /**
+     * Record of a message popped from one of its queues.
+     */
+    private static final byte TOMBSTONE = 7;
+
+    /**
+     * Encoding of the strings in the log.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A segment file mapped in memory.
+     */
+    private static class Segment {
+        /**
+         * Position of the segment in the log.
+         */
+        private final long sequence;
+        /**
+         * The segment file.
+         */
+        private final File file;
+        /**
+         * Mapping of the whole file, its position is never changed so it can
+         * be duplicated by any thread.
+         */
+        private final MappedByteBuffer map;
+        /**
+         * Number of bytes written. Guarded by the log.
+         */
+        private int used;
+        /**
+         * Number of bytes of the records of the messages that are still in a
+         * queue. Guarded by the log.
+         */
+        private long liveBytes;
+
+        /**
+         * Wrap a mapped segment.
+         *
+         * @param nSequence
+         *            position of the segment in the log.
+         * @param nFile
+         *            the segment file.
+         * @param nMap
+         *            mapping of the whole file.
+         */
+        Segment(long nSequence, File nFile, MappedByteBuffer nMap) {
+            sequence = nSequence;
+            file = nFile;
+            map = nMap;
+            used = 0;
+            liveBytes = 0;
+        }
+
+        /**
+         * Decode a string written in the segment.
+         *
+         * @param offset
+         *            position of the bytes of the string.
+         * @param length
+         *            number of bytes.
+         * @return the string.
+         */
+        String read(int offset, int length) {
+            ByteBuffer in = map.duplicate();
+            in.position(offset);
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, UTF8);
+        }
+    }
+
+    /**
+     * Where the record of a message was written.
+     */
+    private static class Location {
+        /**
+         * Segment of the record.
+         */
+        private final Segment segment;
+        /**
+         * Position of the bytes of the body in the segment.
+         */
+        private final int contentOffset;
+        /**
+         * Number of bytes of the body.
+         */
+        private final int contentLength;
+        /**
+         * Size of the whole record.
+         */
+        private final int recordSize;
+
+        /**
+         * Describe the location of a record.
+         *
+         * @param nSegment
+         *            segment of the record.
+         * @param nContentOffset
+         *            position of the bytes of the body in the segment.
+         * @param nContentLength
+         *            number of bytes of the body.
+         * @param nRecordSize
+         *            size of the whole record.
+         */
+        Location(Segment nSegment, int nContentOffset, int nContentLength,
+                int nRecordSize) {
+            segment = nSegment;
+            contentOffset = nContentOffset;
+            contentLength = nContentLength;
+            recordSize = nRecordSize;
+        }
+    }
+
+    /**
+     * A message whose body is read from the log once it is written.
+     */
+    private static class LogMessage extends StoredMessage {
+        /**
+         * Body of the message until it is written, then null.
+         */
+        private volatile String pending;
+        /**
+         * Location of the record of the message, null until it is written.
+         */
+        private volatile Location location;
+        /**
+         * Number of entries of the message still in a queue. Guarded by the
+         * log.
+         */
+        private int remaining;
+
+        /**
+         * Create a message that is not written yet.
+         *
+         * @param id
+         *            id of the message.
+         * @param senderId
+         *            id of the client that sent the message.
+         * @param senderName
+         *            username of the client that sent the message.
+         * @param receiverId
+         *            id of the client that should receive the message.
+         * @param receiverName
+         *            username of the client that should receive the message,
+         *            may be null.
+         * @param context
+         *            context of the message.
+         * @param priority
+         *            priority of the message.
+         * @param createTime
+         *            time when the message was created.
+         * @param content
+         *            body of the message, null if it is already written.
+         */
+        LogMessage(long id, int senderId, String senderName, int receiverId,
+                String receiverName, int context, short priority,
+                int createTime, String content) {
+            super(id, senderId, senderName, receiverId, receiverName,
+                    context, priority, createTime, null);
+            pending = content;
+        }
+
+        @Override
+        String getContent() {
+            // The location is set before the pending body is dropped
+            String content = pending;
+            if (content != null)
+                return content;
+            Location where = location;
+            return where.segment.read(where.contentOffset,
+                    where.contentLength);
+        }
+    }
+
+    /**
+     * Growable buffer where the records of a frame are encoded.
+     */
+    private static class RecordBuffer {
+        /**
+         * The encoded records.
+         */
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        /**
+         * Make room for more bytes.
+         *
+         * @param bytes
+         *            number of bytes to write.
+         */
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(
+                        buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+
+        /**
+         * Get the number of bytes written.
+         *
+         * @return the size of the records.
+         */
+        int size() {
+            return buffer.position();
+        }
+
+        RecordBuffer putByte(byte value) {
+            ensure(1);
+            buffer.put(value);
+            return this;
+        }
+
+        RecordBuffer putShort(short value) {
+            ensure(2);
+            buffer.putShort(value);
+            return this;
+        }
+
+        RecordBuffer putInt(int value) {
+            ensure(4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        RecordBuffer putLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+            return this;
+        }
+
+        /**
+         * Write a string as its length followed by its bytes.
+         *
+         * @param value
+         *            the string.
+         * @return the position of the bytes of the string.
+         */
+        int putString(String value) {
+            byte[] bytes = value.getBytes(UTF8);
+            ensure(4 + bytes.length);
+            buffer.putInt(bytes.length);
+            int offset = buffer.position();
+            buffer.put(bytes);
+            return offset;
+        }
+
+        /**
+         * Forget the records written.
+         */
+        void clear() {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Transaction whose work is appended to the log when it commits.
+     */
+    private class LogTransaction extends MemoryTransaction {
+        /**
+         * Encoded records of the changes to the clients and queues.
+         */
+        private final RecordBuffer metadata = new RecordBuffer();
+        /**
+         * Number of the frame appended by the commit, 0 if none.
+         */
+        private long frameNumber;
+
+        @Override
+        void prepare() throws SQLException {
+            frameNumber = writeTransaction(this);
+        }
+
+        @Override
+        public void commit() throws SQLException {
+            // The pops become visible before a compaction can copy the
+            // messages again
+            synchronized (log) {
+                super.commit();
+            }
+            metadata.clear();
+            // Flushed outside of the log so that the commits arriving
+            // meanwhile can append their frames and share the next flush
+            if (syncOnCommit && frameNumber > 0)
+                syncFrame(frameNumber);
+            frameNumber = 0;
+        }
+
+        @Override
+        public void rollback() throws SQLException {
+            metadata.clear();
+            super.rollback();
+        }
+    }
+
+    /**
+     * Directory with the segment files.
+     */
+    private final File directory;
+
+    /**
+     * Size of the segment files.
+     */
+    private final int segmentSize;
+
+    /**
+     * True to flush the segment to the disk when every transaction commits,
+     * otherwise it is flushed by the compaction thread.
+     */
+    private final boolean syncOnCommit;
+
+    /**
+     * Lock of the log, held while a frame is appended or a segment compacted.
+     */
+    private final Object log = new Object();
+
+    /**
+     * Lock of the flushes of the committed frames, never held together with
+     * the log.
+     */
+    private final Object sync = new Object();
+
+    /**
+     * Number of frames appended to the log. Guarded by the log.
+     */
+    private long appendedFrames;
+
+    /**
+     * Number of the first frames that are known to be on the disk. Guarded
+     * by sync.
+     */
+    private long syncedFrames;
+
+    /**
+     * Indicates if a committer is flushing the head segment. Guarded by sync.
+     */
+    private boolean syncing;
+
+    /**
+     * Segments by sequence number. Guarded by the log.
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    /**
+     * Segment where the frames are appended. Guarded by the log.
+     */
+    private Segment head;
+
+    /**
+     * Messages whose record is in one of the segments, including the popped
+     * ones while their tombstones are needed. Guarded by the log.
+     */
+    private final Map<Long, LogMessage> messages = new HashMap<Long, LogMessage>();
+
+    /**
+     * Usernames of the committed clients by id. Guarded by the log.
+     */
+    private final Map<Integer, String> clientNames = new HashMap<Integer, String>();
+
+    /**
+     * Online status of the committed clients by id. Guarded by the log.
+     */
+    private final Map<Integer, Boolean> clientStatus = new HashMap<Integer, Boolean>();
+
+    /**
+     * Names of the committed queues by id. Guarded by the log.
+     */
+    private final Map<Long, String> queueNames = new HashMap<Long, String>();
+
+    /**
+     * Thread that compacts the segments, null if compaction is manual.
+     */
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * Open the log in a directory, replaying the segments found in it, and
+     * start compacting it in the background.
+     *
+     * @param nDirectory
+     *            directory of the segment files, created if needed.
+     * @param nSegmentSize
+     *            size of the new segment files in bytes.
+     * @param nSyncOnCommit
+     *            true to flush every transaction to the disk when it commits,
+     *            otherwise they are flushed with every compaction.
+     * @param compactionInterval
+     *            time between compactions in milliseconds, 0 to only compact
+     *            when {@link #compact()} is called.
+     * @throws IOException
+     *             if the segments can't be read or created.
+     */
+    public LogMessageStore(File nDirectory, int nSegmentSize,
+            boolean nSyncOnCommit, long compactionInterval) throws IOException {
+        if (nSegmentSize < MIN_SEGMENT_SIZE)
+            throw new IllegalArgumentException("Segments must have at least "
+                    + MIN_SEGMENT_SIZE + " bytes.");
+        directory = nDirectory;
+        segmentSize = nSegmentSize;
+        syncOnCommit = nSyncOnCommit;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Couldn't create the directory "
+                    + directory + ".");
+        synchronized (log) {
+            replay();
+            roll();
+        }
+        if (compactionInterval > 0) {
+            compactor = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "compactor@"
+                                    + directory.getName());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        // Retried in the next round, the log is still valid
+                    }
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+        } else
+            compactor = null;
+    }
+
+    /**
+     * Get the transaction of this store.
+     *
+     * @param tx
+     *            transaction obtained from {@link #begin()}.
+     * @return the log transaction.
+     */
+    private static LogTransaction transaction(StoreTransaction tx) {
+        return (LogTransaction) tx;
+    }
+
+    @Override
+    public StoreTransaction begin() {
+        return new LogTransaction();
+    }
+
+    @Override
+    public int createClient(String username, boolean online,
+            StoreTransaction tx) throws SQLException {
+        int id = super.createClient(username, online, tx);
+        putClient(transaction(tx).metadata.putByte(CLIENT), id, username,
+                online);
+        return id;
+    }
+
+    @Override
+    public void changeClientStatus(String username, boolean online,
+            StoreTransaction tx) {
+        super.changeClientStatus(username, online, tx);
+        Client client = fetchClient(username, tx);
+        if (client != null)
+            transaction(tx).metadata.putByte(CLIENT_STATUS)
+                    .putInt(client.getClientId())
+                    .putByte(online ? (byte) 1 : 0);
+    }
+
+    @Override
+    public void createQueue(String queueName, StoreTransaction tx)
+            throws QueueAlreadyExistsException {
+        super.createQueue(queueName, tx);
+        transaction(tx).metadata.putByte(QUEUE)
+                .putLong(getQueueId(queueName)).putString(queueName);
+    }
+
+    @Override
+    public void deleteQueue(String queueName, StoreTransaction tx)
+            throws InexistentQueueException, QueueNotEmptyException {
+        long id = getQueueId(queueName);
+        super.deleteQueue(queueName, tx);
+        transaction(tx).metadata.putByte(QUEUE_DELETE).putLong(id);
+    }
+
+    @Override
+    StoredMessage newMessage(long id, int senderId, String senderName,
+            int receiverId, String receiverName, int context, short priority,
+            int createTime, String content) {
+        return new LogMessage(id, senderId, senderName, receiverId,
+                receiverName, context, priority, createTime, content);
+    }
+
+    /**
+     * Flush the log and stop compacting it. The messages already read stay
+     * valid.
+     *
+     * @throws SQLException
+     *             if the log can't be flushed.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (compactor != null)
+            compactor.shutdownNow();
+        synchronized (log) {
+            force(head.map);
+        }
+    }
+
+    /**
+     * Append the work of a transaction to the log as a single frame.
+     *
+     * @param tx
+     *            transaction being committed.
+     * @return the number of the frame, as counted in appendedFrames, or 0 if
+     *         the transaction had nothing to write.
+     * @throws SQLException
+     *             if the frame can't be written, nothing is written then.
+     */
+    private long writeTransaction(LogTransaction tx) throws SQLException {
+        if (tx.metadata.size() == 0 && tx.getCreated().isEmpty()
+                && tx.getClaimed().isEmpty())
+            return 0;
+        RecordBuffer frame = new RecordBuffer();
+        frame.ensure(tx.metadata.size());
+        ByteBuffer metadata = tx.metadata.buffer.duplicate();
+        metadata.flip();
+        frame.buffer.put(metadata);
+
+        List<LogMessage> created = new ArrayList<LogMessage>();
+        List<int[]> positions = new ArrayList<int[]>();
+        for (Entry entry : tx.getCreated()) {
+            LogMessage message = (LogMessage) entry.getMessage();
+            // The entries of a message are created together
+            if (!created.isEmpty()
+                    && created.get(created.size() - 1) == message)
+                continue;
+            created.add(message);
+            positions.add(putMessage(frame, message, message.pending));
+        }
+        for (Entry entry : tx.getClaimed())
+            frame.putByte(TOMBSTONE).putLong(entry.getMessage().getId())
+                    .putLong(entry.getQueueId());
+
+        long frameNumber;
+        synchronized (log) {
+            int start;
+            try {
+                start = append(frame);
+            } catch (IOException e) {
+                throw new SQLException("Couldn't append the transaction to "
+                        + "the log.", e);
+            }
+            frameNumber = ++appendedFrames;
+            for (int i = 0; i < created.size(); i++)
+                written(created.get(i), head, start, positions.get(i));
+            ByteBuffer records = metadata.duplicate();
+            records.rewind();
+            while (records.hasRemaining())
+                applyMetadata(records, false);
+            for (Entry entry : tx.getClaimed())
+                popped((LogMessage) entry.getMessage());
+        }
+        return frameNumber;
+    }
+
+    /**
+     * Wait until a frame is on the disk. The first committer that finds no
+     * flush running flushes every frame appended so far, without holding the
+     * log, and the committers arriving meanwhile wait for it and share the
+     * next flush, so each flush serves a group of commits.
+     *
+     * @param frameNumber
+     *            number of the frame, as counted in appendedFrames.
+     */
+    private void syncFrame(long frameNumber) {
+        synchronized (sync) {
+            // The frame is already applied, so an interrupt can't abandon it
+            boolean interrupted = false;
+            while (syncing && syncedFrames < frameNumber) {
+                try {
+                    sync.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (syncedFrames >= frameNumber)
+                return;
+            syncing = true;
+        }
+        long target;
+        Segment segment;
+        // The segments before the head were flushed when they were sealed
+        synchronized (log) {
+            target = appendedFrames;
+            segment = head;
+        }
+        boolean flushed = false;
+        try {
+            force(segment.map);
+            flushed = true;
+        } finally {
+            synchronized (sync) {
+                syncing = false;
+                if (flushed && target > syncedFrames)
+                    syncedFrames = target;
+                sync.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Flush the pages of a segment to the disk.
+     *
+     * @param map
+     *            mapping of the segment.
+     */
+    protected void force(MappedByteBuffer map) {
+        map.force();
+    }
+
+    /**
+     * Encode the record of a message with its queues that are not removed.
+     *
+     * @param frame
+     *            buffer of the frame.
+     * @param message
+     *            the message.
+     * @param content
+     *            body of the message.
+     * @return the position of the record, of the body and the end of the
+     *         record in the frame.
+     */
+    private static int[] putMessage(RecordBuffer frame, LogMessage message,
+            String content) {
+        int start = frame.size();
+        List<Entry> entries = message.getEntries();
+        int queues = 0;
+        for (Entry entry : entries) {
+            if (!entry.isRemoved())
+                queues++;
+        }
+        frame.putByte(MESSAGE).putLong(message.getId())
+                .putInt(message.getSenderId())
+                .putInt(message.getReceiverId())
+                .putInt(message.getContext())
+                .putShort(message.getPriority())
+                .putInt(message.getCreateTime()).putInt(queues);
+        for (Entry entry : entries) {
+            if (!entry.isRemoved())
+                frame.putLong(entry.getQueueId());
+        }
+        int contentOffset = frame.putString(content);
+        return new int[] { start, contentOffset, frame.size() };
+    }
+
+    /**
+     * Record where a message was written and count it as live. Must be
+     * called with the log held.
+     *
+     * @param message
+     *            the message.
+     * @param segment
+     *            segment of the frame.
+     * @param start
+     *            position of the records of the frame in the segment.
+     * @param position
+     *            positions returned by putMessage.
+     */
+    private void written(LogMessage message, Segment segment, int start,
+            int[] position) {
+        int recordSize = position[2] - position[0];
+        message.location = new Location(segment, start + position[1],
+                position[2] - position[1], recordSize);
+        message.pending = null;
+        int remaining = 0;
+        for (Entry entry : message.getEntries()) {
+            if (!entry.isRemoved())
+                remaining++;
+        }
+        message.remaining = remaining;
+        if (remaining > 0)
+            segment.liveBytes += recordSize;
+        messages.put(message.getId(), message);
+    }
+
+    /**
+     * Count the pop of one of the entries of a message. Must be called with
+     * the log held.
+     *
+     * @param message
+     *            the message.
+     */
+    private void popped(LogMessage message) {
+        if (--message.remaining == 0)
+            message.location.segment.liveBytes -= message.location.recordSize;
+    }
+
+    /**
+     * Append a frame to the head segment, starting a new one if it doesn't
+     * fit. Must be called with the log held.
+     *
+     * @param frame
+     *            the records of the frame.
+     * @return the position of the records in the head segment.
+     * @throws IOException
+     *             if the frame can't be written.
+     */
+    private int append(RecordBuffer frame) throws IOException {
+        if (head.used + FRAME_HEADER + frame.size() > segmentSize)
+            roll();
+        return writeFrame(frame);
+    }
+
+    /**
+     * Write a frame at the end of the head segment. Must be called with the
+     * log held.
+     *
+     * @param frame
+     *            the records of the frame.
+     * @return the position of the records in the head segment.
+     * @throws IOException
+     *             if the frame doesn't fit in the segment.
+     */
+    private int writeFrame(RecordBuffer frame) throws IOException {
+        int size = frame.size();
+        if (head.used + FRAME_HEADER + size > segmentSize)
+            throw new IOException("A frame of " + size
+                    + " bytes doesn't fit in a segment of " + segmentSize
+                    + " bytes.");
+        CRC32 crc = new CRC32();
+        crc.update(frame.buffer.array(), 0, size);
+        ByteBuffer out = head.map.duplicate();
+        out.position(head.used);
+        out.putInt(size);
+        out.putInt((int) crc.getValue());
+        ByteBuffer records = frame.buffer.duplicate();
+        records.flip();
+        out.put(records);
+        int start = head.used + FRAME_HEADER;
+        head.used += FRAME_HEADER + size;
+        return start;
+    }
+
+    /**
+     * Seal the head segment and start a new one with a snapshot of the
+     * clients and queues. Must be called with the log held.
+     *
+     * @throws IOException
+     *             if the segment can't be created.
+     */
+    private void roll() throws IOException {
+        long sequence = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        if (head != null)
+            force(head.map);
+        File file = new File(directory, String.format("%020d%s", sequence,
+                SEGMENT_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentSize);
+            head = new Segment(sequence, file, raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        } finally {
+            raf.close();
+        }
+        segments.put(sequence, head);
+
+        RecordBuffer snapshot = new RecordBuffer();
+        long[] ids = lastIds();
+        snapshot.putByte(SNAPSHOT).putInt((int) ids[0]).putLong(ids[1])
+                .putLong(ids[2]).putInt(clientNames.size());
+        for (Map.Entry<Integer, String> client : clientNames.entrySet())
+            putClient(snapshot, client.getKey(), client.getValue(),
+                    clientStatus.get(client.getKey()));
+        snapshot.putInt(queueNames.size());
+        for (Map.Entry<Long, String> queue : queueNames.entrySet()) {
+            snapshot.putLong(queue.getKey());
+            snapshot.putString(queue.getValue());
+        }
+        writeFrame(snapshot);
+    }
+
+    /**
+     * Encode the fields of a client.
+     *
+     * @param buffer
+     *            where to encode them.
+     * @param id
+     *            id of the client.
+     * @param username
+     *            username of the client.
+     * @param online
+     *            online status.
+     */
+    private static void putClient(RecordBuffer buffer, int id,
+            String username, boolean online) {
+        buffer.putInt(id).putByte(online ? (byte) 1 : 0);
+        buffer.putString(username);
+    }
+
+    /**
+     * Decode a string.
+     *
+     * @param in
+     *            the records, positioned at the string.
+     * @return the string.
+     */
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Apply a record about the clients or queues to the committed state, and
+     * to the indexes if the log is being replayed. Must be called with the
+     * log held.
+     *
+     * @param in
+     *            the records, positioned at the type of the record.
+     * @param replaying
+     *            true if the log is being replayed.
+     */
+    private void applyMetadata(ByteBuffer in, boolean replaying) {
+        byte type = in.get();
+        switch (type) {
+        case SNAPSHOT:
+            int lastClient = in.getInt();
+            long lastQueue = in.getLong();
+            long lastMessage = in.getLong();
+            restoreIds(lastClient, lastQueue, lastMessage);
+            for (int clients = in.getInt(); clients > 0; clients--)
+                applyClient(in.getInt(), in.get() != 0, getString(in),
+                        replaying);
+            Set<Long> snapshotQueues = new HashSet<Long>();
+            for (int queues = in.getInt(); queues > 0; queues--) {
+                long id = in.getLong();
+                applyQueue(id, getString(in), replaying);
+                snapshotQueues.add(id);
+            }
+            for (Long id : new ArrayList<Long>(queueNames.keySet())) {
+                if (!snapshotQueues.contains(id))
+                    applyQueueDeletion(id, replaying);
+            }
+            break;
+        case CLIENT:
+            applyClient(in.getInt(), in.get() != 0, getString(in), replaying);
+            break;
+        case CLIENT_STATUS:
+            int id = in.getInt();
+            applyClient(id, in.get() != 0, clientNames.get(id), replaying);
+            break;
+        case QUEUE:
+            long queueId = in.getLong();
+            applyQueue(queueId, getString(in), replaying);
+            break;
+        case QUEUE_DELETE:
+            applyQueueDeletion(in.getLong(), replaying);
+            break;
+        default:
+            throw new IllegalStateException("Unknown record type " + type
+                    + " in the log.");
+        }
+    }
+
+    /**
+     * Apply the record of a client.
+     *
+     * @param id
+     *            id of the client.
+     * @param online
+     *            online status.
+     * @param username
+     *            username of the client.
+     * @param replaying
+     *            true to restore the client in the indexes.
+     */
+    private void applyClient(int id, boolean online, String username,
+            boolean replaying) {
+        if (username == null)
+            return;
+        clientNames.put(id, username);
+        clientStatus.put(id, online);
+        if (replaying)
+            restoreClient(id, username, online);
+    }
+
+    /**
+     * Apply the record of a new queue.
+     *
+     * @param id
+     *            id of the queue.
+     * @param name
+     *            name of the queue.
+     * @param replaying
+     *            true to restore the queue in the indexes.
+     */
+    private void applyQueue(long id, String name, boolean replaying) {
+        queueNames.put(id, name);
+        if (replaying)
+            restoreQueue(id, name);
+    }
+
+    /**
+     * Apply the record of a deleted queue.
+     *
+     * @param id
+     *            id of the queue.
+     * @param replaying
+     *            true to remove the queue from the indexes.
+     */
+    private void applyQueueDeletion(long id, boolean replaying) {
+        String name = queueNames.remove(id);
+        if (replaying && name != null)
+            restoreQueueDeletion(name);
+    }
+
+    /**
+     * Replay the segments in the directory in order. Must be called with the
+     * log held.
+     *
+     * @throws IOException
+     *             if a segment can't be read.
+     */
+    private void replay() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        TreeMap<Long, File> ordered = new TreeMap<Long, File>();
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                ordered.put(Long.parseLong(name.substring(0, name.length()
+                        - SEGMENT_SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+                // Not a segment of this log
+            }
+        }
+        for (Map.Entry<Long, File> entry : ordered.entrySet()) {
+            RandomAccessFile raf = new RandomAccessFile(entry.getValue(), "r");
+            Segment segment;
+            try {
+                segment = new Segment(entry.getKey(), entry.getValue(), raf
+                        .getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                raf.length()));
+            } finally {
+                raf.close();
+            }
+            segments.put(segment.sequence, segment);
+            segment.used = scan(segment, segment.map.capacity(), null);
+        }
+    }
+
+    /**
+     * Go through the valid frames of a segment, replaying their records or
+     * passing them to a compaction. Must be called with the log held.
+     *
+     * @param segment
+     *            the segment.
+     * @param limit
+     *            number of bytes of the segment to read.
+     * @param compaction
+     *            compaction of the segment, null to replay it.
+     * @return the end of the last valid frame.
+     * @throws IOException
+     *             if the compaction can't append the records.
+     */
+    private int scan(Segment segment, int limit, Compaction compaction)
+            throws IOException {
+        ByteBuffer in = segment.map.duplicate();
+        int position = 0;
+        while (position + FRAME_HEADER <= limit) {
+            in.limit(limit);
+            in.position(position);
+            int length = in.getInt();
+            int checksum = in.getInt();
+            // A zero length is the unwritten end of the segment, a bad
+            // checksum a frame torn by a crash
+            if (length <= 0 || length > limit - position - FRAME_HEADER)
+                break;
+            in.limit(position + FRAME_HEADER + length);
+            if (compaction == null) {
+                byte[] bytes = new byte[length];
+                in.duplicate().get(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != checksum)
+                    break;
+            }
+            while (in.hasRemaining()) {
+                if (compaction == null)
+                    replayRecord(segment, in);
+                else
+                    compaction.copyRecord(in);
+            }
+            position += FRAME_HEADER + length;
+        }
+        return position;
+    }
+
+    /**
+     * Replay a record of a segment.
+     *
+     * @param segment
+     *            the segment.
+     * @param in
+     *            the frame, positioned at the type of the record.
+     */
+    private void replayRecord(Segment segment, ByteBuffer in) {
+        int start = in.position();
+        byte type = in.get(start);
+        if (type == MESSAGE) {
+            in.get();
+            long id = in.getLong();
+            int sender = in.getInt();
+            int receiver = in.getInt();
+            int context = in.getInt();
+            short priority = in.getShort();
+            int createTime = in.getInt();
+            List<String> names = new ArrayList<String>();
+            for (int queues = in.getInt(); queues > 0; queues--) {
+                String name = queueNames.get(in.getLong());
+                if (name != null)
+                    names.add(name);
+            }
+            int contentLength = in.getInt();
+            int contentOffset = in.position();
+            in.position(contentOffset + contentLength);
+
+            // A compaction that crashed before deleting its segment leaves
+            // an older copy of the record
+            LogMessage previous = messages.remove(id);
+            if (previous != null) {
+                for (Entry entry : previous.getEntries()) {
+                    if (!entry.isRemoved())
+                        entry.unlink();
+                }
+                if (previous.remaining > 0)
+                    previous.location.segment.liveBytes -= previous.location.recordSize;
+            }
+            LogMessage message = new LogMessage(id, sender,
+                    clientNames.get(sender), receiver,
+                    clientNames.get(receiver), context, priority, createTime,
+                    null);
+            restoreMessage(message, names);
+            written(message, segment, 0, new int[] { start, contentOffset,
+                    in.position() });
+        } else if (type == TOMBSTONE) {
+            in.get();
+            LogMessage message = messages.get(in.getLong());
+            long queueId = in.getLong();
+            if (message != null) {
+                for (Entry entry : message.getEntries()) {
+                    if (!entry.isRemoved() && entry.getQueueId() == queueId) {
+                        entry.unlink();
+                        popped(message);
+                    }
+                }
+            }
+        } else
+            applyMetadata(in, true);
+    }
+
+    /**
+     * Compact the full segments whose live messages take less than half of
+     * them, and flush the log.
+     *
+     * @throws IOException
+     *             if a segment can't be compacted.
+     */
+    public void compact() throws IOException {
+        synchronized (log) {
+            for (Segment segment : new ArrayList<Segment>(segments.values())) {
+                if (segment != head
+                        && segment.liveBytes < segment.used
+                                * COMPACTION_THRESHOLD)
+                    new Compaction(segment).run();
+            }
+            force(head.map);
+        }
+    }
+
+    /**
+     * Get the number of segment files of the log.
+     *
+     * @return the number of segments.
+     */
+    public int getSegmentCount() {
+        synchronized (log) {
+            return segments.size();
+        }
+    }
+
+    /**
+     * Copy of the records of a segment that are still needed to the end of
+     * the log. Used with the log held.
+     */
+    private class Compaction {
+        /**
+         * Segment being compacted.
+         */
+        private final Segment segment;
+        /**
+         * Records copied and not appended yet.
+         */
+        private final RecordBuffer frame = new RecordBuffer();
+        /**
+         * Messages copied in the frame.
+         */
+        private final List<LogMessage> moved = new ArrayList<LogMessage>();
+        /**
+         * Positions of the messages copied in the frame.
+         */
+        private final List<int[]> positions = new ArrayList<int[]>();
+
+        /**
+         * Prepare the compaction of a segment.
+         *
+         * @param nSegment
+         *            segment to compact.
+         */
+        Compaction(Segment nSegment) {
+            segment = nSegment;
+        }
+
+        /**
+         * Copy the records still needed and delete the segment.
+         *
+         * @throws IOException
+         *             if the records can't be appended.
+         */
+        void run() throws IOException {
+            scan(segment, segment.used, this);
+            flush();
+            force(head.map);
+            segments.remove(segment.sequence);
+            if (!segment.file.delete())
+                throw new IOException("Couldn't delete the segment "
+                        + segment.file + ".");
+        }
+
+        /**
+         * Copy a record if it is still needed. Messages are needed while one
+         * of their entries is in a queue, and tombstones while the record of
+         * their message is in an older segment. The other records are
+         * superseded by the snapshot of the newer segments.
+         *
+         * @param in
+         *            the frame, positioned at the type of the record.
+         * @throws IOException
+         *             if the copied records can't be appended.
+         */
+        void copyRecord(ByteBuffer in) throws IOException {
+            byte type = in.get();
+            if (type == MESSAGE) {
+                long id = in.getLong();
+                skip(in, 18);
+                skip(in, 8 * in.getInt());
+                skip(in, in.getInt());
+                LogMessage message = messages.get(id);
+                if (message == null || message.location.segment != segment)
+                    return;
+                if (message.remaining == 0) {
+                    messages.remove(id);
+                    return;
+                }
+                moved.add(message);
+                positions.add(putMessage(frame, message, message.getContent()));
+            } else if (type == TOMBSTONE) {
+                long id = in.getLong();
+                long queueId = in.getLong();
+                LogMessage message = messages.get(id);
+                if (message != null
+                        && message.location.segment.sequence < segment.sequence)
+                    frame.putByte(TOMBSTONE).putLong(id).putLong(queueId);
+            } else {
+                in.position(in.position() - 1);
+                skipMetadata(in);
+            }
+            if (frame.size() > segmentSize / 4)
+                flush();
+        }
+
+        /**
+         * Append the copied records.
+         *
+         * @throws IOException
+         *             if they can't be appended.
+         */
+        private void flush() throws IOException {
+            if (frame.size() == 0)
+                return;
+            int start = append(frame);
+            for (int i = 0; i < moved.size(); i++)
+                written(moved.get(i), head, start, positions.get(i));
+            frame.clear();
+            moved.clear();
+            positions.clear();
+        }
+    }
+
+    /**
+     * Skip a number of bytes.
+     *
+     * @param in
+     *            the records.
+     * @param bytes
+     *            number of bytes to skip.
+     */
+    private static void skip(ByteBuffer in, int bytes) {
+        in.position(in.position() + bytes);
+    }
+
+    /**
+     * Skip a record about the clients or queues.
+     *
+     * @param in
+     *            the frame, positioned at the type of the record.
+     */
+    private static void skipMetadata(ByteBuffer in) {
+        byte type = in.get();
+        switch (type) {
+        case SNAPSHOT:
+            skip(in, 20);
+            for (int clients = in.getInt(); clients > 0; clients--) {
+                skip(in, 5);
+                skip(in, in.getInt());
+            }
+            for (int queues = in.getInt(); queues > 0; queues--) {
+                skip(in, 8);
+                skip(in, in.getInt());
+            }
+            break;
+        case CLIENT:
+            skip(in, 5);
+            skip(in, in.getInt());
+            break;
+        case CLIENT_STATUS:
+            skip(in, 5);
+            break;
+        case QUEUE:
+            skip(in, 8);
+            skip(in, in.getInt());
+            break;
+        case QUEUE_DELETE:
+            skip(in, 8);
+            break;
+        default:
+            throw new IllegalStateException("Unknown record type " + type
+                    + " in the log.");
+        }
+    }
+}
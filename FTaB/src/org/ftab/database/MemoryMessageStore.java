@@ -0,0 +1,1220 @@
+/**
+ * MemoryMessageStore.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.database;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ftab.database.exceptions.CreateMessageException;
+import org.ftab.database.exceptions.InexistentClientException;
+import org.ftab.database.exceptions.InexistentQueueException;
+import org.ftab.database.exceptions.QueueAlreadyExistsException;
+import org.ftab.database.exceptions.QueueNotEmptyException;
+import org.ftab.database.message.CreateMessage;
+
+/**
+ * Message store kept in the memory of the server, its contents are lost when
+ * the server stops and it can't be shared between servers.
+ * <p>
+ * Every queue and every sender has an index of its messages by receiver, with
+ * one bucket for the messages any client can receive and one for each client
+ * that has messages addressed to it. A bucket keeps its messages sorted by
+ * priority first and by creation time first in two concurrent skip lists, so
+ * the first messages for a receiver are found by merging two buckets and a
+ * popped message is removed without scanning. Like the association records
+ * of the database, a message sent to several queues has one entry per queue.
+ * <p>
+ * An entry is only visible once the transaction that created it commits. A
+ * pop claims the entries it returns, so the concurrent pops skip them, and
+ * removes them when it commits or releases them when it rolls back. Changes
+ * to the clients and queues are visible immediately and undone on rollback.
+ */
+public class MemoryMessageStore implements MessageStore {
+
+    /**
+     * Receiver id of the messages that any client can receive.
+     */
+    private static final int ANY_RECEIVER = -1;
+
+    /**
+     * State of an entry created by a transaction that didn't commit yet.
+     */
+    private static final int PENDING = 0;
+
+    /**
+     * State of an entry that can be read and popped.
+     */
+    private static final int VISIBLE = 1;
+
+    /**
+     * State of an entry popped by a transaction that didn't commit yet.
+     */
+    private static final int CLAIMED = 2;
+
+    /**
+     * State of an entry no longer in its queue.
+     */
+    private static final int REMOVED = 3;
+
+    /**
+     * Order of the entries by priority first, newest first among the same
+     * priority.
+     */
+    private static final Comparator<Entry> BY_PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.message.priority != b.message.priority)
+                return b.message.priority - a.message.priority;
+            if (a.message.createTime != b.message.createTime)
+                return b.message.createTime < a.message.createTime ? -1 : 1;
+            return newestFirst(a, b);
+        }
+    };
+
+    /**
+     * Order of the entries by creation time first, newest first, and by
+     * priority among the messages created in the same second.
+     */
+    private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.message.createTime != b.message.createTime)
+                return b.message.createTime < a.message.createTime ? -1 : 1;
+            if (a.message.priority != b.message.priority)
+                return b.message.priority - a.message.priority;
+            return newestFirst(a, b);
+        }
+    };
+
+    /**
+     * Client of the system.
+     */
+    private static class ClientRecord {
+        /**
+         * Unique id of the client.
+         */
+        private final int id;
+        /**
+         * Username of the client.
+         */
+        private final String username;
+        /**
+         * Online status of the client.
+         */
+        private volatile boolean online;
+
+        /**
+         * Create a client.
+         *
+         * @param nId
+         *            unique id of the client.
+         * @param nUsername
+         *            username of the client.
+         * @param nOnline
+         *            initial online status.
+         */
+        ClientRecord(int nId, String nUsername, boolean nOnline) {
+            id = nId;
+            username = nUsername;
+            online = nOnline;
+        }
+    }
+
+    /**
+     * Queue of the system.
+     */
+    private static class QueueRecord {
+        /**
+         * Unique id of the queue.
+         */
+        private final long id;
+        /**
+         * Name of the queue.
+         */
+        private final String name;
+        /**
+         * Entries in the queue by receiver.
+         */
+        private final ReceiverIndex entries;
+        /**
+         * Set when the queue is deleted, so no entry is added afterwards.
+         * Guarded by the queue.
+         */
+        private boolean deleted;
+
+        /**
+         * Create an empty queue.
+         *
+         * @param nId
+         *            unique id of the queue.
+         * @param nName
+         *            name of the queue.
+         */
+        QueueRecord(long nId, String nName) {
+            id = nId;
+            name = nName;
+            entries = new ReceiverIndex();
+            deleted = false;
+        }
+    }
+
+    /**
+     * Entries for the same receiver sorted in both orders.
+     */
+    private static class Bucket {
+        /**
+         * Entries by priority first.
+         */
+        private final ConcurrentSkipListSet<Entry> byPriority = new ConcurrentSkipListSet<Entry>(
+                BY_PRIORITY);
+        /**
+         * Entries by creation time first.
+         */
+        private final ConcurrentSkipListSet<Entry> byTime = new ConcurrentSkipListSet<Entry>(
+                BY_TIME);
+
+        /**
+         * Add an entry to the bucket.
+         *
+         * @param entry
+         *            entry to add.
+         */
+        void add(Entry entry) {
+            byPriority.add(entry);
+            byTime.add(entry);
+        }
+
+        /**
+         * Remove an entry from the bucket.
+         *
+         * @param entry
+         *            entry to remove.
+         */
+        void remove(Entry entry) {
+            byPriority.remove(entry);
+            byTime.remove(entry);
+        }
+    }
+
+    /**
+     * Entries of a queue or a sender by receiver.
+     */
+    private static class ReceiverIndex {
+        /**
+         * Buckets by receiver id, the messages any client can receive are in
+         * the bucket of ANY_RECEIVER.
+         */
+        private final ConcurrentHashMap<Integer, Bucket> buckets = new ConcurrentHashMap<Integer, Bucket>();
+
+        /**
+         * Get the bucket of a receiver, creating it if needed.
+         *
+         * @param receiver
+         *            id of the receiver.
+         * @return the bucket.
+         */
+        Bucket bucket(int receiver) {
+            Bucket bucket = buckets.get(receiver);
+            if (bucket == null) {
+                Bucket created = new Bucket();
+                bucket = buckets.putIfAbsent(receiver, created);
+                if (bucket == null)
+                    bucket = created;
+            }
+            return bucket;
+        }
+
+        /**
+         * Check if there is no entry in any state besides the given ones.
+         *
+         * @param ignored
+         *            entries not taken into account.
+         * @return true if the index is empty.
+         */
+        boolean isEmpty(List<Entry> ignored) {
+            for (Bucket bucket : buckets.values()) {
+                for (Entry entry : bucket.byTime) {
+                    if (!ignored.contains(entry))
+                        return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A message in one of its queues.
+     */
+    static class Entry {
+        /**
+         * Message of the entry, shared by its entries in all the queues.
+         */
+        private final StoredMessage message;
+        /**
+         * Queue of the entry.
+         */
+        private final QueueRecord queue;
+        /**
+         * State of the entry, PENDING, VISIBLE, CLAIMED or REMOVED.
+         */
+        private final AtomicInteger state;
+        /**
+         * Bucket of the entry in the index of its queue.
+         */
+        private Bucket queueBucket;
+        /**
+         * Bucket of the entry in the index of its sender.
+         */
+        private Bucket senderBucket;
+
+        /**
+         * Create an entry.
+         *
+         * @param nMessage
+         *            message of the entry.
+         * @param nQueue
+         *            queue of the entry.
+         * @param nState
+         *            initial state of the entry.
+         */
+        Entry(StoredMessage nMessage, QueueRecord nQueue, int nState) {
+            message = nMessage;
+            queue = nQueue;
+            state = new AtomicInteger(nState);
+        }
+
+        /**
+         * Get the message of the entry.
+         *
+         * @return the message.
+         */
+        StoredMessage getMessage() {
+            return message;
+        }
+
+        /**
+         * Get the id of the queue of the entry.
+         *
+         * @return the queue id.
+         */
+        long getQueueId() {
+            return queue.id;
+        }
+
+        /**
+         * Check if the entry is no longer in its queue.
+         *
+         * @return true if the entry was removed.
+         */
+        boolean isRemoved() {
+            return state.get() == REMOVED;
+        }
+
+        /**
+         * Remove the entry from its queue and sender.
+         */
+        void unlink() {
+            state.set(REMOVED);
+            queueBucket.remove(this);
+            senderBucket.remove(this);
+        }
+
+        /**
+         * Describe the entry as a message retrieved from its queue.
+         *
+         * @return the message.
+         */
+        Message toMessage() {
+            return new Message(message.id, message.context, message.priority,
+                    message.getContent(), message.senderName,
+                    message.createTime, queue.name, queue.id,
+                    message.receiverName);
+        }
+    }
+
+    /**
+     * A message with its entries in all of its queues.
+     */
+    static class StoredMessage {
+        /**
+         * Id of the message.
+         */
+        private final long id;
+        /**
+         * Id of the client that sent the message.
+         */
+        private final int senderId;
+        /**
+         * Username of the client that sent the message.
+         */
+        private final String senderName;
+        /**
+         * Id of the client that should receive the message, ANY_RECEIVER if
+         * any client can.
+         */
+        private final int receiverId;
+        /**
+         * Username of the client that should receive the message, null if
+         * any client can.
+         */
+        private final String receiverName;
+        /**
+         * Context of the message.
+         */
+        private final int context;
+        /**
+         * Priority of the message.
+         */
+        private final short priority;
+        /**
+         * Time when the message was created in seconds since epoch.
+         */
+        private final int createTime;
+        /**
+         * Body of the message, null if it is kept elsewhere.
+         */
+        private final String content;
+        /**
+         * Entries of the message, one per queue, set once when the message is
+         * created.
+         */
+        private final List<Entry> entries = new ArrayList<Entry>(1);
+
+        /**
+         * Create a message.
+         *
+         * @param nId
+         *            id of the message.
+         * @param nSenderId
+         *            id of the client that sent the message.
+         * @param nSenderName
+         *            username of the client that sent the message.
+         * @param nReceiverId
+         *            id of the client that should receive the message,
+         *            negative if any client can.
+         * @param nReceiverName
+         *            username of the client that should receive the message,
+         *            may be null.
+         * @param nContext
+         *            context of the message.
+         * @param nPriority
+         *            priority of the message.
+         * @param nCreateTime
+         *            time when the message was created.
+         * @param nContent
+         *            body of the message, null if getContent is overridden.
+         */
+        StoredMessage(long nId, int nSenderId, String nSenderName,
+                int nReceiverId, String nReceiverName, int nContext,
+                short nPriority, int nCreateTime, String nContent) {
+            id = nId;
+            senderId = nSenderId;
+            senderName = nSenderName;
+            receiverId = nReceiverName == null ? ANY_RECEIVER : nReceiverId;
+            receiverName = nReceiverName;
+            context = nContext;
+            priority = nPriority;
+            createTime = nCreateTime;
+            content = nContent;
+        }
+
+        /**
+         * Get the id of the message.
+         *
+         * @return the id.
+         */
+        long getId() {
+            return id;
+        }
+
+        /**
+         * Get the id of the client that sent the message.
+         *
+         * @return the sender id.
+         */
+        int getSenderId() {
+            return senderId;
+        }
+
+        /**
+         * Get the id of the client that should receive the message.
+         *
+         * @return the receiver id, negative if any client can receive it.
+         */
+        int getReceiverId() {
+            return receiverId;
+        }
+
+        /**
+         * Get the context of the message.
+         *
+         * @return the context.
+         */
+        int getContext() {
+            return context;
+        }
+
+        /**
+         * Get the priority of the message.
+         *
+         * @return the priority.
+         */
+        short getPriority() {
+            return priority;
+        }
+
+        /**
+         * Get the time when the message was created.
+         *
+         * @return seconds since epoch.
+         */
+        int getCreateTime() {
+            return createTime;
+        }
+
+        /**
+         * Get the body of the message.
+         *
+         * @return the content.
+         */
+        String getContent() {
+            return content;
+        }
+
+        /**
+         * Get the entries of the message, including the removed ones.
+         *
+         * @return the entries.
+         */
+        List<Entry> getEntries() {
+            return entries;
+        }
+    }
+
+    /**
+     * Transaction on the memory store, it is used by a single thread.
+     */
+    static class MemoryTransaction implements StoreTransaction {
+        /**
+         * Entries created by the transaction.
+         */
+        private final List<Entry> created = new ArrayList<Entry>();
+        /**
+         * Entries popped by the transaction.
+         */
+        private final List<Entry> claimed = new ArrayList<Entry>();
+        /**
+         * Actions that undo the changes to the clients and queues, in the
+         * order the changes were done.
+         */
+        private final List<Runnable> undo = new ArrayList<Runnable>();
+
+        /**
+         * Get the entries created by the transaction since the last commit.
+         *
+         * @return the pending entries.
+         */
+        List<Entry> getCreated() {
+            return created;
+        }
+
+        /**
+         * Get the entries popped by the transaction since the last commit.
+         *
+         * @return the claimed entries.
+         */
+        List<Entry> getClaimed() {
+            return claimed;
+        }
+
+        /**
+         * Called by the commit before the work becomes visible, so stores
+         * that persist the work can write it. If it fails the work is left
+         * as it was and the transaction must be rolled back.
+         *
+         * @throws SQLException
+         *             if the work can't be persisted.
+         */
+        void prepare() throws SQLException {
+        }
+
+        @Override
+        public void commit() throws SQLException {
+            prepare();
+            for (Entry entry : created)
+                entry.state.set(VISIBLE);
+            for (Entry entry : claimed)
+                entry.unlink();
+            clear();
+        }
+
+        @Override
+        public void rollback() throws SQLException {
+            for (Entry entry : created)
+                entry.unlink();
+            for (Entry entry : claimed)
+                entry.state.set(VISIBLE);
+            for (int i = undo.size() - 1; i >= 0; i--)
+                undo.get(i).run();
+            clear();
+        }
+
+        @Override
+        public void close() throws SQLException {
+            rollback();
+        }
+
+        /**
+         * Forget the work done since the last commit or rollback.
+         */
+        private void clear() {
+            created.clear();
+            claimed.clear();
+            undo.clear();
+        }
+    }
+
+    /**
+     * Clients by username.
+     */
+    private final ConcurrentHashMap<String, ClientRecord> clients = new ConcurrentHashMap<String, ClientRecord>();
+
+    /**
+     * Clients by id.
+     */
+    private final ConcurrentHashMap<Integer, ClientRecord> clientsById = new ConcurrentHashMap<Integer, ClientRecord>();
+
+    /**
+     * Queues by name.
+     */
+    private final ConcurrentHashMap<String, QueueRecord> queues = new ConcurrentHashMap<String, QueueRecord>();
+
+    /**
+     * Entries by sender id.
+     */
+    private final ConcurrentHashMap<Integer, ReceiverIndex> senders = new ConcurrentHashMap<Integer, ReceiverIndex>();
+
+    /**
+     * Last client id assigned.
+     */
+    private final AtomicInteger lastClientId = new AtomicInteger();
+
+    /**
+     * Last queue id assigned.
+     */
+    private final AtomicLong lastQueueId = new AtomicLong();
+
+    /**
+     * Last message id assigned.
+     */
+    private final AtomicLong lastMessageId = new AtomicLong();
+
+    /**
+     * Break the ties between entries that compare equal in the message
+     * attributes, the newest message first.
+     *
+     * @param a
+     *            first entry.
+     * @param b
+     *            second entry.
+     * @return the comparison of the entries.
+     */
+    private static int newestFirst(Entry a, Entry b) {
+        if (a.message.id != b.message.id)
+            return b.message.id < a.message.id ? -1 : 1;
+        if (a.queue.id != b.queue.id)
+            return a.queue.id < b.queue.id ? -1 : 1;
+        return 0;
+    }
+
+    /**
+     * Get the memory transaction of a transaction of this store.
+     *
+     * @param tx
+     *            transaction obtained from {@link #begin()}.
+     * @return the memory transaction.
+     */
+    private static MemoryTransaction transaction(StoreTransaction tx) {
+        return (MemoryTransaction) tx;
+    }
+
+    @Override
+    public StoreTransaction begin() throws SQLException {
+        return new MemoryTransaction();
+    }
+
+    @Override
+    public Client fetchClient(String username, StoreTransaction tx) {
+        ClientRecord record = clients.get(username);
+        if (record == null)
+            return null;
+        return new Client(record.id, record.username, record.online);
+    }
+
+    @Override
+    public int createClient(final String username, boolean online,
+            StoreTransaction tx) throws SQLException {
+        final ClientRecord record = new ClientRecord(
+                lastClientId.incrementAndGet(), username, online);
+        if (clients.putIfAbsent(username, record) != null)
+            throw new SQLException("Client " + username + " already exists.");
+        clientsById.put(record.id, record);
+        transaction(tx).undo.add(new Runnable() {
+            @Override
+            public void run() {
+                clientsById.remove(record.id);
+                clients.remove(username, record);
+            }
+        });
+        return record.id;
+    }
+
+    @Override
+    public void changeClientStatus(String username, boolean online,
+            StoreTransaction tx) {
+        final ClientRecord record = clients.get(username);
+        if (record == null)
+            return;
+        final boolean previous = record.online;
+        record.online = online;
+        transaction(tx).undo.add(new Runnable() {
+            @Override
+            public void run() {
+                record.online = previous;
+            }
+        });
+    }
+
+    @Override
+    public void changeClientsStatus(Collection<Integer> clientIds,
+            boolean online, StoreTransaction tx) {
+        for (int id : clientIds) {
+            ClientRecord record = clientsById.get(id);
+            if (record != null)
+                changeClientStatus(record.username, online, tx);
+        }
+    }
+
+    @Override
+    public void createQueue(final String queueName, StoreTransaction tx)
+            throws QueueAlreadyExistsException {
+        final QueueRecord record = new QueueRecord(
+                lastQueueId.incrementAndGet(), queueName);
+        if (queues.putIfAbsent(queueName, record) != null)
+            throw new QueueAlreadyExistsException("Queue " + queueName
+                    + " already exists in the system.");
+        transaction(tx).undo.add(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (record) {
+                    record.deleted = true;
+                }
+                queues.remove(queueName, record);
+            }
+        });
+    }
+
+    @Override
+    public void deleteQueue(final String queueName, StoreTransaction tx)
+            throws InexistentQueueException, QueueNotEmptyException {
+        final QueueRecord record = queues.get(queueName);
+        if (record == null)
+            throw new InexistentQueueException("Queue " + queueName
+                    + " doesn't exist in the system.");
+        MemoryTransaction mtx = transaction(tx);
+        synchronized (record) {
+            if (record.deleted)
+                throw new InexistentQueueException("Queue " + queueName
+                        + " doesn't exist in the system.");
+            // Pending entries and the ones claimed by other transactions
+            // keep the queue as well
+            if (!record.entries.isEmpty(mtx.claimed))
+                throw new QueueNotEmptyException("Queue " + queueName
+                        + " can't be deleted because it is not empty.");
+            record.deleted = true;
+        }
+        queues.remove(queueName, record);
+        mtx.undo.add(new Runnable() {
+            @Override
+            public void run() {
+                if (queues.putIfAbsent(queueName, record) == null) {
+                    synchronized (record) {
+                        record.deleted = false;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void createMessage(int sender, String receiver,
+            Iterable<String> queues, int context, short priority,
+            String message, StoreTransaction tx) throws SQLException,
+            InexistentQueueException, InexistentClientException,
+            CreateMessageException {
+        ClientRecord senderRecord = resolveSender(sender);
+        ClientRecord receiverRecord = resolveReceiver(receiver);
+        List<QueueRecord> queueRecords = resolveQueues(queues);
+        int createTime = (int) (System.currentTimeMillis() / 1000);
+        insert(transaction(tx), lastMessageId.incrementAndGet(),
+                queueRecords, senderRecord, receiverRecord, context,
+                priority, createTime, message);
+    }
+
+    @Override
+    public void createMessages(int sender,
+            List<CreateMessage.BatchEntry> batch, StoreTransaction tx)
+            throws SQLException, InexistentQueueException,
+            InexistentClientException, CreateMessageException {
+        // Resolve every name first, so an unknown one creates nothing
+        ClientRecord senderRecord = resolveSender(sender);
+        List<ClientRecord> receiverRecords = new ArrayList<ClientRecord>(
+                batch.size());
+        List<List<QueueRecord>> queueRecords = new ArrayList<List<QueueRecord>>(
+                batch.size());
+        for (CreateMessage.BatchEntry entry : batch) {
+            receiverRecords.add(resolveReceiver(entry.getReceiver()));
+            queueRecords.add(resolveQueues(entry.getQueues()));
+        }
+        int createTime = (int) (System.currentTimeMillis() / 1000);
+        MemoryTransaction mtx = transaction(tx);
+        for (int i = 0; i < batch.size(); i++) {
+            CreateMessage.BatchEntry entry = batch.get(i);
+            insert(mtx, lastMessageId.incrementAndGet(), queueRecords.get(i),
+                    senderRecord, receiverRecords.get(i), entry.getContext(),
+                    entry.getPriority(), createTime, entry.getMessage());
+        }
+    }
+
+    /**
+     * Get the sender of a new message.
+     *
+     * @param sender
+     *            id of the client.
+     * @return the client.
+     * @throws SQLException
+     *             if there is no client with the id.
+     */
+    private ClientRecord resolveSender(int sender) throws SQLException {
+        ClientRecord record = clientsById.get(sender);
+        if (record == null)
+            throw new SQLException("Sender " + sender
+                    + " does not exist in the store.");
+        return record;
+    }
+
+    /**
+     * Get the receiver of a new message.
+     *
+     * @param receiver
+     *            username of the client, may be null.
+     * @return the client, or null if any client can receive the message.
+     * @throws InexistentClientException
+     *             if there is no client with the username.
+     */
+    private ClientRecord resolveReceiver(String receiver)
+            throws InexistentClientException {
+        if (receiver == null)
+            return null;
+        ClientRecord record = clients.get(receiver);
+        if (record == null)
+            throw new InexistentClientException("Receiver " + receiver
+                    + " does not exist in the database.");
+        return record;
+    }
+
+    /**
+     * Get the queues of a new message.
+     *
+     * @param queueNames
+     *            names of the queues.
+     * @return the queues in the same order.
+     * @throws InexistentQueueException
+     *             if one of the queues doesn't exist.
+     */
+    private List<QueueRecord> resolveQueues(Iterable<String> queueNames)
+            throws InexistentQueueException {
+        List<QueueRecord> records = new ArrayList<QueueRecord>();
+        for (String queueName : queueNames) {
+            QueueRecord record = queues.get(queueName);
+            if (record == null)
+                throw new InexistentQueueException("Queue " + queueName
+                        + " does not exist in the database.");
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Add the pending entries of a message to its queues.
+     *
+     * @param tx
+     *            transaction creating the message.
+     * @param messageId
+     *            id of the message.
+     * @param queueRecords
+     *            queues of the message.
+     * @param sender
+     *            client that sent the message.
+     * @param receiver
+     *            client that should receive the message, may be null.
+     * @param context
+     *            context of the message.
+     * @param priority
+     *            priority of the message.
+     * @param createTime
+     *            time when the message was created.
+     * @param content
+     *            body of the message.
+     * @throws InexistentQueueException
+     *             if one of the queues was deleted meanwhile, the entries
+     *             added to the other queues are removed by the rollback.
+     */
+    private void insert(MemoryTransaction tx, long messageId,
+            List<QueueRecord> queueRecords, ClientRecord sender,
+            ClientRecord receiver, int context, short priority,
+            int createTime, String content) throws InexistentQueueException {
+        StoredMessage message = newMessage(messageId, sender.id,
+                sender.username, receiver == null ? ANY_RECEIVER : receiver.id,
+                receiver == null ? null : receiver.username, context,
+                priority, createTime, content);
+        for (QueueRecord queue : queueRecords) {
+            Entry entry = new Entry(message, queue, PENDING);
+            if (!link(entry))
+                throw new InexistentQueueException("Queue " + queue.name
+                        + " does not exist in the database.");
+            tx.created.add(entry);
+        }
+    }
+
+    /**
+     * Add an entry to the indexes of its queue and sender.
+     *
+     * @param entry
+     *            the entry.
+     * @return false if the queue was deleted, the entry is not added then.
+     */
+    private boolean link(Entry entry) {
+        StoredMessage message = entry.message;
+        QueueRecord queue = entry.queue;
+        synchronized (queue) {
+            if (queue.deleted)
+                return false;
+            entry.queueBucket = queue.entries.bucket(message.receiverId);
+            entry.queueBucket.add(entry);
+        }
+        entry.senderBucket = senderIndex(message.senderId).bucket(
+                message.receiverId);
+        entry.senderBucket.add(entry);
+        message.entries.add(entry);
+        return true;
+    }
+
+    /**
+     * Create the record of a new message. Stores that keep the bodies of the
+     * messages elsewhere return a subclass of StoredMessage.
+     *
+     * @param id
+     *            id of the message.
+     * @param senderId
+     *            id of the client that sent the message.
+     * @param senderName
+     *            username of the client that sent the message.
+     * @param receiverId
+     *            id of the client that should receive the message, negative
+     *            if any client can.
+     * @param receiverName
+     *            username of the client that should receive the message, may
+     *            be null.
+     * @param context
+     *            context of the message.
+     * @param priority
+     *            priority of the message.
+     * @param createTime
+     *            time when the message was created.
+     * @param content
+     *            body of the message.
+     * @return the message.
+     */
+    StoredMessage newMessage(long id, int senderId, String senderName,
+            int receiverId, String receiverName, int context, short priority,
+            int createTime, String content) {
+        return new StoredMessage(id, senderId, senderName, receiverId,
+                receiverName, context, priority, createTime, content);
+    }
+
+    /**
+     * Restore a client, or its online status if it exists already. The
+     * restore methods bring back the committed state of a persistent store
+     * before it is used, from a single thread.
+     *
+     * @param id
+     *            id of the client.
+     * @param username
+     *            username of the client.
+     * @param online
+     *            online status.
+     */
+    void restoreClient(int id, String username, boolean online) {
+        ClientRecord record = clientsById.get(id);
+        if (record == null) {
+            record = new ClientRecord(id, username, online);
+            clients.put(username, record);
+            clientsById.put(id, record);
+        } else
+            record.online = online;
+        restoreIds(id, 0, 0);
+    }
+
+    /**
+     * Restore a queue if it doesn't exist already.
+     *
+     * @param id
+     *            id of the queue.
+     * @param name
+     *            name of the queue.
+     */
+    void restoreQueue(long id, String name) {
+        if (!queues.containsKey(name))
+            queues.put(name, new QueueRecord(id, name));
+        restoreIds(0, id, 0);
+    }
+
+    /**
+     * Remove a restored queue.
+     *
+     * @param name
+     *            name of the queue.
+     */
+    void restoreQueueDeletion(String name) {
+        QueueRecord record = queues.remove(name);
+        if (record != null) {
+            synchronized (record) {
+                record.deleted = true;
+            }
+        }
+    }
+
+    /**
+     * Restore a committed message in the given queues, skipping the queues
+     * that don't exist.
+     *
+     * @param message
+     *            the message, obtained from newMessage.
+     * @param queueNames
+     *            names of the queues where the message is.
+     */
+    void restoreMessage(StoredMessage message, Iterable<String> queueNames) {
+        for (String queueName : queueNames) {
+            QueueRecord queue = queues.get(queueName);
+            if (queue != null)
+                link(new Entry(message, queue, VISIBLE));
+        }
+        restoreIds(0, 0, message.id);
+    }
+
+    /**
+     * Make sure the ids assigned from now on are above the given ones.
+     *
+     * @param clientId
+     *            id of a client.
+     * @param queueId
+     *            id of a queue.
+     * @param messageId
+     *            id of a message.
+     */
+    void restoreIds(int clientId, long queueId, long messageId) {
+        if (clientId > lastClientId.get())
+            lastClientId.set(clientId);
+        if (queueId > lastQueueId.get())
+            lastQueueId.set(queueId);
+        if (messageId > lastMessageId.get())
+            lastMessageId.set(messageId);
+    }
+
+    /**
+     * Get the id of a queue.
+     *
+     * @param queueName
+     *            name of the queue.
+     * @return the id, or -1 if the queue doesn't exist.
+     */
+    long getQueueId(String queueName) {
+        QueueRecord record = queues.get(queueName);
+        return record == null ? -1 : record.id;
+    }
+
+    /**
+     * Get the last ids assigned to a client, a queue and a message.
+     *
+     * @return the client, queue and message ids in that order.
+     */
+    long[] lastIds() {
+        return new long[] { lastClientId.get(), lastQueueId.get(),
+                lastMessageId.get() };
+    }
+
+    /**
+     * Get the index of the entries of a sender, creating it if needed.
+     *
+     * @param sender
+     *            id of the sender.
+     * @return the index.
+     */
+    private ReceiverIndex senderIndex(int sender) {
+        ReceiverIndex index = senders.get(sender);
+        if (index == null) {
+            ReceiverIndex created = new ReceiverIndex();
+            index = senders.putIfAbsent(sender, created);
+            if (index == null)
+                index = created;
+        }
+        return index;
+    }
+
+    @Override
+    public List<Message> retrieveMessages(int receiver, String argument,
+            boolean prioFirst, boolean byQueue, int limit, StoreTransaction tx) {
+        return collect(index(argument, byQueue), receiver, prioFirst, limit,
+                null);
+    }
+
+    @Override
+    public List<Message> dequeueMessages(int receiver, String argument,
+            boolean prioFirst, boolean byQueue, int limit, StoreTransaction tx) {
+        return collect(index(argument, byQueue), receiver, prioFirst, limit,
+                transaction(tx));
+    }
+
+    /**
+     * Get the index of the entries of a queue or a sender.
+     *
+     * @param argument
+     *            name of the queue or the sender.
+     * @param byQueue
+     *            true if argument is a queue.
+     * @return the index, or null if the queue or sender doesn't exist.
+     */
+    private ReceiverIndex index(String argument, boolean byQueue) {
+        if (byQueue) {
+            QueueRecord queue = queues.get(argument);
+            return queue == null ? null : queue.entries;
+        }
+        ClientRecord sender = clients.get(argument);
+        return sender == null ? null : senders.get(sender.id);
+    }
+
+    /**
+     * Collect the first visible entries for a receiver by merging its bucket
+     * with the bucket of the messages any client can receive.
+     *
+     * @param index
+     *            index of the queue or sender, may be null.
+     * @param receiver
+     *            id of the receiver.
+     * @param prioFirst
+     *            true to order by priority first.
+     * @param limit
+     *            maximum number of messages.
+     * @param claimer
+     *            transaction that pops the entries, null to leave them.
+     * @return the messages of the entries.
+     */
+    private static List<Message> collect(ReceiverIndex index, int receiver,
+            boolean prioFirst, int limit, MemoryTransaction claimer) {
+        List<Message> result = new ArrayList<Message>();
+        if (index == null)
+            return result;
+        Comparator<Entry> order = prioFirst ? BY_PRIORITY : BY_TIME;
+        Iterator<Entry> any = iterator(index.buckets.get(ANY_RECEIVER),
+                prioFirst);
+        Iterator<Entry> own = iterator(index.buckets.get(receiver), prioFirst);
+        Entry nextAny = nextVisible(any);
+        Entry nextOwn = nextVisible(own);
+        while (result.size() < limit && (nextAny != null || nextOwn != null)) {
+            Entry head;
+            if (nextOwn == null
+                    || (nextAny != null && order.compare(nextAny, nextOwn) < 0)) {
+                head = nextAny;
+                nextAny = nextVisible(any);
+            } else {
+                head = nextOwn;
+                nextOwn = nextVisible(own);
+            }
+            if (claimer != null) {
+                // Lost to a concurrent pop
+                if (!head.state.compareAndSet(VISIBLE, CLAIMED))
+                    continue;
+                claimer.claimed.add(head);
+            }
+            result.add(head.toMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Iterate over the entries of a bucket.
+     *
+     * @param bucket
+     *            the bucket, may be null.
+     * @param prioFirst
+     *            true to order by priority first.
+     * @return the iterator.
+     */
+    private static Iterator<Entry> iterator(Bucket bucket, boolean prioFirst) {
+        if (bucket == null)
+            return Collections.<Entry> emptyIterator();
+        return prioFirst ? bucket.byPriority.iterator() : bucket.byTime
+                .iterator();
+    }
+
+    /**
+     * Advance an iterator to the next visible entry.
+     *
+     * @param entries
+     *            iterator over a bucket.
+     * @return the entry, or null if there is not any.
+     */
+    private static Entry nextVisible(Iterator<Entry> entries) {
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.state.get() == VISIBLE)
+                return entry;
+        }
+        return null;
+    }
+
+    @Override
+    public List<String> getQueuesWithMessages(int receiverId,
+            StoreTransaction tx) {
+        List<String> result = new ArrayList<String>();
+        for (QueueRecord queue : queues.values()) {
+            if (nextVisible(iterator(queue.entries.buckets.get(receiverId),
+                    false)) != null)
+                result.add(queue.name);
+        }
+        return result;
+    }
+
+    @Override
+    public void announceMessages(String channel, Collection<String> payloads,
+            StoreTransaction tx) {
+        // The store is not shared, the notifier of the server is enough
+    }
+
+    @Override
+    public void close() throws SQLException {
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * MessageStore.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.database;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+
+import org.ftab.database.exceptions.CreateMessageException;
+import org.ftab.database.exceptions.InexistentClientException;
+import org.ftab.database.exceptions.InexistentQueueException;
+import org.ftab.database.exceptions.QueueAlreadyExistsException;
+import org.ftab.database.exceptions.QueueNotEmptyException;
+import org.ftab.database.message.CreateMessage;
+
+/**
+ * Storage of the clients, queues and messages of the system. Every operation
+ * is executed within a transaction obtained from {@link #begin()}, and the
+ * semantics of each one are those of the DAO with the same name. Checking
+ * restrictions such as maximum size of the inputs is expected to be done by
+ * the caller.
+ */
+public interface MessageStore {
+
+    /**
+     * Start a transaction.
+     *
+     * @return the new transaction, which must be closed by the caller.
+     * @throws SQLException
+     *             if the transaction can't be started.
+     */
+    StoreTransaction begin() throws SQLException;
+
+    /**
+     * Fetch a client given its username.
+     *
+     * @param username
+     *            client's username.
+     * @param tx
+     *            transaction.
+     * @return the client, or null if it doesn't exist.
+     * @throws SQLException
+     *             if there is an error accessing the store.
+     */
+    Client fetchClient(String username, StoreTransaction tx)
+            throws SQLException;
+
+    /**
+     * Create a client.
+     *
+     * @param username
+     *            client's username.
+     * @param online
+     *            initial online status.
+     * @param tx
+     *            transaction.
+     * @return the id of the new client.
+     * @throws SQLException
+     *             if the client can't be created.
+     */
+    int createClient(String username, boolean online, StoreTransaction tx)
+            throws SQLException;
+
+    /**
+     * Change the online status of a client.
+     *
+     * @param username
+     *            client's username.
+     * @param online
+     *            online status.
+     * @param tx
+     *            transaction.
+     * @throws SQLException
+     *             if the status can't be changed.
+     */
+    void changeClientStatus(String username, boolean online,
+            StoreTransaction tx) throws SQLException;
+
+    /**
+     * Change the online status of several clients at once.
+     *
+     * @param clientIds
+     *            ids of the clients, the ones that don't exist are ignored.
+     * @param online
+     *            online status.
+     * @param tx
+     *            transaction.
+     * @throws SQLException
+     *             if the status can't be changed.
+     */
+    void changeClientsStatus(Collection<Integer> clientIds, boolean online,
+            StoreTransaction tx) throws SQLException;
+
+    /**
+     * Create a queue.
+     *
+     * @param queueName
+     *            name of the queue.
+     * @param tx
+     *            transaction.
+     * @throws SQLException
+     *             if there is an error accessing the store.
+     * @throws QueueAlreadyExistsException
+     *             if there is a queue with the same name.
+     */
+    void createQueue(String queueName, StoreTransaction tx)
+            throws SQLException, QueueAlreadyExistsException;
+
+    /**
+     * Delete an empty queue.
+     *
+     * @param queueName
+     *            name of the queue.
+     * @param tx
+     *            transaction.
+     * @throws SQLException
+     *             if there is an error accessing the store.
+     * @throws InexistentQueueException
+     *             if there is no queue with the given name.
+     * @throws QueueNotEmptyException
+     *             if the queue is not empty.
+     */
+    void deleteQueue(String queueName, StoreTransaction tx)
+            throws SQLException, InexistentQueueException,
+            QueueNotEmptyException;
+
+    /**
+     * Create a message and put it in the given queues.
+     *
+     * @param sender
+     *            id of the client that sends the message, assumed to be valid.
+     * @param receiver
+     *            username of the client that should receive the message, null
+     *            if any client can receive it.
+     * @param queues
+     *            list of queues where to send the message.
+     * @param context
+     *            context of the message.
+     * @param priority
+     *            priority of the message, from 1 to 10.
+     * @param message
+     *            content of the message.
+     * @param tx
+     *            transaction.
+     * @throws SQLException
+     *             if there is an error accessing the store.
+     * @throws InexistentQueueException
+     *             if one of the queues doesn't exist.
+     * @throws InexistentClientException
+     *             if the receiver doesn't exist.
+     * @throws CreateMessageException
+     *             if the message was not created but no error was triggered.
+     */
+    void createMessage(int sender, String receiver, Iterable<String> queues,
+            int context, short priority, String message, StoreTransaction tx)
+            throws SQLException, InexistentQueueException,
+            InexistentClientException, CreateMessageException;
+
+    /**
+     * Create a batch of messages from the same sender.
+     *
+     * @param sender
+     *            id of the client that sends the messages, assumed to be
+     *            valid.
+     * @param batch
+     *            messages to create.
+     * @param tx
+     *            transaction.
+     * @throws SQLException
+     *             if there is an error accessing the store.
+     * @throws InexistentQueueException
+     *             if one of the queues doesn't exist.
+     * @throws InexistentClientException
+     *             if one of the receivers doesn't exist.
+     * @throws CreateMessageException
+     *             if the messages were not created but no error was
+     *             triggered.
+     */
+    void createMessages(int sender, List<CreateMessage.BatchEntry> batch,
+            StoreTransaction tx) throws SQLException,
+            InexistentQueueException, InexistentClientException,
+            CreateMessageException;
+
+    /**
+     * Read the first messages for a receiver from a queue or a sender without
+     * removing them.
+     *
+     * @param receiver
+     *            id of the client that reads the messages.
+     * @param argument
+     *            queue or sender whose messages are read.
+     * @param prioFirst
+     *            true to order by priority first, otherwise by creation time
+     *            first.
+     * @param byQueue
+     *            true if argument is a queue, false if it is a sender.
+     * @param limit
+     *            maximum number of messages to read.
+     * @param tx
+     *            transaction.
+     * @return the messages, empty if there is not any or the queue or sender
+     *         doesn't exist.
+     * @throws SQLException
+     *             if there is an error accessing the store.
+     */
+    List<Message> retrieveMessages(int receiver, String argument,
+            boolean prioFirst, boolean byQueue, int limit, StoreTransaction tx)
+            throws SQLException;
+
+    /**
+     * Remove the first messages for a receiver from a queue or a sender. The
+     * messages claimed by a transaction are skipped by the others, and they
+     * are back in their queues if it rolls back.
+     *
+     * @param receiver
+     *            id of the client that pops the messages.
+     * @param argument
+     *            queue or sender whose messages are popped.
+     * @param prioFirst
+     *            true to order by priority first, otherwise by creation time
+     *            first.
+     * @param byQueue
+     *            true if argument is a queue, false if it is a sender.
+     * @param limit
+     *            maximum number of messages to pop.
+     * @param tx
+     *            transaction.
+     * @return the popped messages, empty if there is not any or the queue or
+     *         sender doesn't exist.
+     * @throws SQLException
+     *             if there is an error accessing the store.
+     */
+    List<Message> dequeueMessages(int receiver, String argument,
+            boolean prioFirst, boolean byQueue, int limit, StoreTransaction tx)
+            throws SQLException;
+
+    /**
+     * Retrieve the queues with messages addressed to a specific client.
+     *
+     * @param receiverId
+     *            id of the client.
+     * @param tx
+     *            transaction.
+     * @return names of the queues.
+     * @throws SQLException
+     *             if there is an error accessing the store.
+     */
+    List<String> getQueuesWithMessages(int receiverId, StoreTransaction tx)
+            throws SQLException;
+
+    /**
+     * Announce new messages to the other servers sharing the store, the
+     * announcement is delivered when the transaction commits. Stores that
+     * can't be shared ignore it.
+     *
+     * @param channel
+     *            name of the channel.
+     * @param payloads
+     *            keys of the messages.
+     * @param tx
+     *            transaction creating the messages.
+     * @throws SQLException
+     *             if there is an error announcing the messages.
+     */
+    void announceMessages(String channel, Collection<String> payloads,
+            StoreTransaction tx) throws SQLException;
+
+    /**
+     * Release the resources of the store once the server stops using it.
+     *
+     * @throws SQLException
+     *             if the store can't be closed cleanly.
+     */
+    void close() throws SQLException;
+}
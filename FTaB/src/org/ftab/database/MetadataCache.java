@@ -0,0 +1,414 @@
+/**
+ * MetadataCache.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the name to id mappings of the client and queue records, so the
+ * DAOs can send plain ids to the database instead of resolving the names in
+ * every statement. Mappings are loaded from the database on a miss and kept
+ * until they are invalidated; client records are never deleted and queue
+ * records only by DeleteQueue, which invalidates the name. The queue DAOs
+ * announce their changes on {@link #QUEUE_CHANNEL} so that the other servers
+ * sharing the database invalidate the name as well. The listener of the
+ * announcements clears the cache when it reconnects, since it may have missed
+ * some, and a statement that fails on a stale queue id invalidates it.
+ * <p>
+ * The cache is safe for concurrent use and reads don't lock.
+ */
+public class MetadataCache {
+    /**
+     * Notification channel where the names of the created and deleted queues
+     * are announced.
+     */
+    public final static String QUEUE_CHANNEL = "ftab_queues";
+
+    /**
+     * SQL statement to retrieve the ids of several clients given their
+     * usernames.
+     */
+    private final static String SQL_CLIENTS_BY_NAME = "SELECT username, id "
+            + "FROM client WHERE username = ANY (?)";
+
+    /**
+     * SQL statement to retrieve the usernames of several clients given their
+     * ids.
+     */
+    private final static String SQL_CLIENTS_BY_ID = "SELECT username, id "
+            + "FROM client WHERE id = ANY (?)";
+
+    /**
+     * SQL statement to retrieve the ids of several queues given their names.
+     */
+    private final static String SQL_QUEUES_BY_NAME = "SELECT name, id "
+            + "FROM queue WHERE name = ANY (?)";
+
+    /**
+     * SQL statement to retrieve the names of several queues given their ids.
+     */
+    private final static String SQL_QUEUES_BY_ID = "SELECT name, id "
+            + "FROM queue WHERE id = ANY (?)";
+
+    /**
+     * Client ids by username.
+     */
+    private final ConcurrentHashMap<String, Integer> clientIds;
+
+    /**
+     * Client usernames by id.
+     */
+    private final ConcurrentHashMap<Integer, String> clientNames;
+
+    /**
+     * Queue ids by name.
+     */
+    private final ConcurrentHashMap<String, Long> queueIds;
+
+    /**
+     * Queue names by id.
+     */
+    private final ConcurrentHashMap<Long, String> queueNames;
+
+    /**
+     * Number of lookups answered from the cache.
+     */
+    private final AtomicLong hits;
+
+    /**
+     * Number of lookups that had to query the database.
+     */
+    private final AtomicLong misses;
+
+    /**
+     * Create an empty cache.
+     */
+    public MetadataCache() {
+        clientIds = new ConcurrentHashMap<String, Integer>();
+        clientNames = new ConcurrentHashMap<Integer, String>();
+        queueIds = new ConcurrentHashMap<String, Long>();
+        queueNames = new ConcurrentHashMap<Long, String>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * Get the id of a client.
+     *
+     * @param username
+     *            username of the client.
+     * @param conn
+     *            database connection used on a miss.
+     * @return id of the client, or -1 if it doesn't exist.
+     * @throws SQLException
+     *             if the database can't be accessed.
+     */
+    public int getClientId(String username, Connection conn)
+            throws SQLException {
+        Integer id = clientIds.get(username);
+        if (id != null) {
+            hits.incrementAndGet();
+            return id;
+        }
+        id = getClientIds(Collections.singleton(username), conn)
+                .get(username);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the ids of several clients with at most one query.
+     *
+     * @param usernames
+     *            usernames of the clients.
+     * @param conn
+     *            database connection used on a miss.
+     * @return map from username to id of the clients that exist.
+     * @throws SQLException
+     *             if the database can't be accessed.
+     */
+    public Map<String, Integer> getClientIds(Collection<String> usernames,
+            Connection conn) throws SQLException {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        LinkedHashSet<String> missing = new LinkedHashSet<String>();
+        for (String username : usernames) {
+            Integer id = clientIds.get(username);
+            if (id != null)
+                ids.put(username, id);
+            else
+                missing.add(username);
+        }
+        record(usernames.size() - missing.size(), missing.size());
+        if (missing.isEmpty())
+            return ids;
+
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement(SQL_CLIENTS_BY_NAME);
+            stmt.setArray(1, conn.createArrayOf("varchar", missing.toArray()));
+            ResultSet result = stmt.executeQuery();
+            while (result.next()) {
+                putClient(result.getInt(2), result.getString(1));
+                ids.put(result.getString(1), result.getInt(2));
+            }
+        } finally {
+            if (stmt != null)
+                stmt.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Get the usernames of several clients with at most one query.
+     *
+     * @param ids
+     *            ids of the clients.
+     * @param conn
+     *            database connection used on a miss.
+     * @return map from id to username of the clients that exist.
+     * @throws SQLException
+     *             if the database can't be accessed.
+     */
+    public Map<Integer, String> getClientNames(Collection<Integer> ids,
+            Connection conn) throws SQLException {
+        Map<Integer, String> names = new HashMap<Integer, String>();
+        LinkedHashSet<Integer> missing = new LinkedHashSet<Integer>();
+        for (Integer id : ids) {
+            String name = clientNames.get(id);
+            if (name != null)
+                names.put(id, name);
+            else
+                missing.add(id);
+        }
+        record(ids.size() - missing.size(), missing.size());
+        if (missing.isEmpty())
+            return names;
+
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement(SQL_CLIENTS_BY_ID);
+            stmt.setArray(1, conn.createArrayOf("int4", missing.toArray()));
+            ResultSet result = stmt.executeQuery();
+            while (result.next()) {
+                putClient(result.getInt(2), result.getString(1));
+                names.put(result.getInt(2), result.getString(1));
+            }
+        } finally {
+            if (stmt != null)
+                stmt.close();
+        }
+        return names;
+    }
+
+    /**
+     * Get the id of a queue.
+     *
+     * @param queueName
+     *            name of the queue.
+     * @param conn
+     *            database connection used on a miss.
+     * @return id of the queue, or -1 if it doesn't exist.
+     * @throws SQLException
+     *             if the database can't be accessed.
+     */
+    public long getQueueId(String queueName, Connection conn)
+            throws SQLException {
+        Long id = queueIds.get(queueName);
+        if (id != null) {
+            hits.incrementAndGet();
+            return id;
+        }
+        id = getQueueIds(Collections.singleton(queueName), conn)
+                .get(queueName);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the ids of several queues with at most one query.
+     *
+     * @param names
+     *            names of the queues.
+     * @param conn
+     *            database connection used on a miss.
+     * @return map from name to id of the queues that exist.
+     * @throws SQLException
+     *             if the database can't be accessed.
+     */
+    public Map<String, Long> getQueueIds(Collection<String> names,
+            Connection conn) throws SQLException {
+        Map<String, Long> ids = new HashMap<String, Long>();
+        LinkedHashSet<String> missing = new LinkedHashSet<String>();
+        for (String name : names) {
+            Long id = queueIds.get(name);
+            if (id != null)
+                ids.put(name, id);
+            else
+                missing.add(name);
+        }
+        record(names.size() - missing.size(), missing.size());
+        if (missing.isEmpty())
+            return ids;
+
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement(SQL_QUEUES_BY_NAME);
+            stmt.setArray(1, conn.createArrayOf("varchar", missing.toArray()));
+            ResultSet result = stmt.executeQuery();
+            while (result.next()) {
+                putQueue(result.getLong(2), result.getString(1));
+                ids.put(result.getString(1), result.getLong(2));
+            }
+        } finally {
+            if (stmt != null)
+                stmt.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Get the names of several queues with at most one query.
+     *
+     * @param ids
+     *            ids of the queues.
+     * @param conn
+     *            database connection used on a miss.
+     * @return map from id to name of the queues that exist.
+     * @throws SQLException
+     *             if the database can't be accessed.
+     */
+    public Map<Long, String> getQueueNames(Collection<Long> ids,
+            Connection conn) throws SQLException {
+        Map<Long, String> names = new HashMap<Long, String>();
+        LinkedHashSet<Long> missing = new LinkedHashSet<Long>();
+        for (Long id : ids) {
+            String name = queueNames.get(id);
+            if (name != null)
+                names.put(id, name);
+            else
+                missing.add(id);
+        }
+        record(ids.size() - missing.size(), missing.size());
+        if (missing.isEmpty())
+            return names;
+
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement(SQL_QUEUES_BY_ID);
+            stmt.setArray(1, conn.createArrayOf("int8", missing.toArray()));
+            ResultSet result = stmt.executeQuery();
+            while (result.next()) {
+                putQueue(result.getLong(2), result.getString(1));
+                names.put(result.getLong(2), result.getString(1));
+            }
+        } finally {
+            if (stmt != null)
+                stmt.close();
+        }
+        return names;
+    }
+
+    /**
+     * Add the mapping of a client.
+     *
+     * @param id
+     *            id of the client.
+     * @param username
+     *            username of the client.
+     */
+    public void putClient(int id, String username) {
+        clientIds.put(username, id);
+        clientNames.put(id, username);
+    }
+
+    /**
+     * Add the mapping of a queue.
+     *
+     * @param id
+     *            id of the queue.
+     * @param name
+     *            name of the queue.
+     */
+    public void putQueue(long id, String name) {
+        queueIds.put(name, id);
+        queueNames.put(id, name);
+    }
+
+    /**
+     * Remove the mapping of a client, if cached.
+     *
+     * @param username
+     *            username of the client.
+     */
+    public void invalidateClient(String username) {
+        Integer id = clientIds.remove(username);
+        if (id != null)
+            clientNames.remove(id, username);
+    }
+
+    /**
+     * Remove the mapping of a queue, if cached.
+     *
+     * @param name
+     *            name of the queue.
+     */
+    public void invalidateQueue(String name) {
+        Long id = queueIds.remove(name);
+        if (id != null)
+            queueNames.remove(id, name);
+    }
+
+    /**
+     * Remove all the mappings, needed when the schema is recreated.
+     */
+    public void clear() {
+        clientIds.clear();
+        clientNames.clear();
+        queueIds.clear();
+        queueNames.clear();
+    }
+
+    /**
+     * Count the lookups of a call.
+     *
+     * @param hitCount
+     *            lookups answered from the cache.
+     * @param missCount
+     *            lookups sent to the database.
+     */
+    private void record(int hitCount, int missCount) {
+        if (hitCount > 0)
+            hits.addAndGet(hitCount);
+        if (missCount > 0)
+            misses.addAndGet(missCount);
+    }
+
+    /**
+     * Get the number of lookups answered from the cache.
+     *
+     * @return number of hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups that had to query the database.
+     *
+     * @return number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
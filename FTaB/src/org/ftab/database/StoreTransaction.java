@@ -0,0 +1,42 @@
+/**
+ * StoreTransaction.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.database;
+
+import java.sql.SQLException;
+
+/**
+ * Unit of work in a {@link MessageStore}. The operations executed with a
+ * transaction take effect for the other clients only once it is committed and
+ * are undone if it is rolled back. A transaction must always be closed, which
+ * rolls back the work that was not committed.
+ */
+public interface StoreTransaction {
+
+    /**
+     * Make the work done in the transaction visible.
+     *
+     * @throws SQLException
+     *             if the work can't be committed.
+     */
+    void commit() throws SQLException;
+
+    /**
+     * Undo the work done in the transaction since the last commit.
+     *
+     * @throws SQLException
+     *             if the work can't be rolled back.
+     */
+    void rollback() throws SQLException;
+
+    /**
+     * Release the resources of the transaction, rolling back the work that
+     * was not committed.
+     *
+     * @throws SQLException
+     *             if the resources can't be released.
+     */
+    void close() throws SQLException;
+}
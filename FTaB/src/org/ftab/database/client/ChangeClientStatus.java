@@ -8,6 +8,7 @@ package org.ftab.database.client;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.Collection;
 
 /**
  * DAO for changing the online status of a client.
@@ -76,4 +77,36 @@ public class ChangeClientStatus {
                 stmt.close();
         }
     }
+
+    /**
+     * Change the online status of several clients given their ids, in a
+     * single batch.
+     * 
+     * @param ids
+     *            clients' unique ids.
+     * @param status
+     *            online status.
+     * @param conn
+     *            database connection.
+     * @throws SQLException
+     *             if the update can't be performed.
+     */
+    public static void executeBatch(Collection<Integer> ids, boolean status,
+            Connection conn) throws SQLException {
+        if (ids.isEmpty())
+            return;
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement(SQL_BY_ID);
+            for (int id : ids) {
+                stmt.setBoolean(1, status);
+                stmt.setInt(2, id);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        } finally {
+            if (stmt != null)
+                stmt.close();
+        }
+    }
 }
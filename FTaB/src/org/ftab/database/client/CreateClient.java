@@ -10,6 +10,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import org.ftab.database.MetadataCache;
+
 /**
  * DAO for creating a client record in the database.
  */
@@ -35,6 +37,28 @@ public class CreateClient {
      */
     public static int execute(String username, boolean online, Connection conn)
             throws SQLException {
+        return execute(username, online, new MetadataCache(), conn);
+    }
+
+    /**
+     * Insert a new client with the given username and online status and
+     * invalidate any stale mapping of the username in the cache.
+     * 
+     * @param username
+     *            desired username for the client.
+     * @param online
+     *            online status of the client.
+     * @param cache
+     *            cache of the client ids.
+     * @param conn
+     *            database connection.
+     * @return the id of the newly created client.
+     * @throws SQLException
+     *             if the statement fails to be created or executed.
+     */
+    public static int execute(String username, boolean online,
+            MetadataCache cache, Connection conn) throws SQLException {
+        cache.invalidateClient(username);
         PreparedStatement stmt = null;
         try {
             stmt = conn.prepareStatement(SQL);
@@ -0,0 +1,31 @@
+/**
+ * StaleQueueException.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.database.exceptions;
+
+/**
+ * Exception that identifies a queue referenced by a cached id that no longer
+ * exists, e.g. because another server deleted the queue. The cached id is
+ * invalidated before throwing, so the operation can be tried again with the
+ * current one.
+ */
+public class StaleQueueException extends InexistentQueueException {
+
+    /**
+     * Serial version UID for serializable classes.
+     */
+    private static final long serialVersionUID = 3829561047215839154L;
+
+    /**
+     * Creates an exception with the given detail message.
+     * 
+     * @param message
+     *            details about the exception.
+     */
+    public StaleQueueException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,53 @@
+/**
+ * AnnounceMessage.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.database.message;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * DAO for announcing new messages to the listeners of a notification channel.
+ * The notifications are queued in the current transaction and delivered only
+ * when it commits, so the listeners never see messages that were rolled back.
+ * Duplicated payloads in the same transaction are delivered once.
+ */
+public class AnnounceMessage {
+
+    /**
+     * SQL statement to send a notification for each of the given payloads.
+     */
+    private final static String SQL_NOTIFY = "SELECT pg_notify(?, payload) "
+            + "FROM unnest(?) AS payload";
+
+    /**
+     * Queue a notification for each of the given payloads.
+     * 
+     * @param channel
+     *            name of the notification channel.
+     * @param payloads
+     *            payloads to send, each one in its own notification.
+     * @param conn
+     *            database connection, the notifications are sent when its
+     *            transaction commits.
+     * @throws SQLException
+     *             if there is an error accessing the database.
+     */
+    public static void execute(String channel, Collection<String> payloads,
+            Connection conn) throws SQLException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement(SQL_NOTIFY);
+            stmt.setString(1, channel);
+            stmt.setArray(2, conn.createArrayOf("text", payloads.toArray()));
+            stmt.executeQuery().close();
+        } finally {
+            if (stmt != null)
+                stmt.close();
+        }
+    }
+}
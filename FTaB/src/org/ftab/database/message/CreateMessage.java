@@ -10,17 +10,26 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.ftab.database.MetadataCache;
 import org.ftab.database.exceptions.CreateMessageException;
 import org.ftab.database.exceptions.InexistentClientException;
 import org.ftab.database.exceptions.InexistentQueueException;
+import org.ftab.database.exceptions.StaleQueueException;
 
 /**
  * DAO for creating messages in the database, it provides different overloaded
  * execute methods depending on the type of message being sent. Checking
  * restrictions such as maximum size of the inputs is expected to be done by the
- * caller of this class.
+ * caller of this class. Receivers and queues are resolved to their ids through
+ * a {@link MetadataCache}, so the statements only carry ids.
  */
 public class CreateMessage {
 
@@ -41,13 +50,149 @@ public class CreateMessage {
      * SQL statement to insert association records between queues and messages.
      */
     private final static String SQL_ASSOC_QUEUE = "INSERT INTO msg_queue_assoc "
-            + "(message_id, queue_id) VALUES (?, "
-            + "(SELECT id FROM queue WHERE name = ?))";
+            + "(message_id, queue_id) VALUES (?, ?)";
+
+    /**
+     * SQL statement to reserve a number of message ids, so the rows of a batch
+     * insert can reference them without depending on the order of RETURNING.
+     */
+    private final static String SQL_RESERVE_IDS = "SELECT nextval("
+            + "pg_get_serial_sequence('message', 'id')) "
+            + "FROM generate_series(1, ?)";
+
+    /**
+     * Prefix of the multi-row statement to insert messages with explicit ids,
+     * it is followed by one SQL_INSERT_BATCH_ROW per message.
+     */
+    private final static String SQL_INSERT_BATCH = "INSERT INTO message "
+            + "(id, sender, receiver, context, prio, create_time, message) "
+            + "VALUES ";
+
     /**
-     * SQL statement to retrieve a client id given its username.
+     * Values of a single message in SQL_INSERT_BATCH.
      */
-    private final static String SQL_RETRIEVE_CLIENT = "SELECT id FROM client "
-            + "WHERE username = ?";
+    private final static String SQL_INSERT_BATCH_ROW = "(?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Prefix of the multi-row statement to associate messages to queues, it is
+     * followed by one SQL_ASSOC_BATCH_ROW per association.
+     */
+    private final static String SQL_ASSOC_BATCH = "INSERT INTO msg_queue_assoc "
+            + "(message_id, queue_id) VALUES ";
+
+    /**
+     * Values of a single association in SQL_ASSOC_BATCH.
+     */
+    private final static String SQL_ASSOC_BATCH_ROW = "(?, ?)";
+
+    /**
+     * SQL state of a foreign key violation, raised when a cached queue id
+     * refers to a queue deleted by another server.
+     */
+    private final static String FOREIGN_KEY_VIOLATION = "23503";
+
+    /**
+     * Maximum number of rows in a single multi-row statement, it keeps the
+     * number of bind parameters well below the protocol limit.
+     */
+    private final static int MAX_ROWS_PER_STATEMENT = 1000;
+
+    /**
+     * Description of a message in a batch.
+     */
+    public static class BatchEntry {
+        /**
+         * Username of the receiver, may be null.
+         */
+        private final String receiver;
+        /**
+         * Queues where to send the message.
+         */
+        private final Iterable<String> queues;
+        /**
+         * Context of the message.
+         */
+        private final int context;
+        /**
+         * Priority of the message.
+         */
+        private final short priority;
+        /**
+         * Content of the message.
+         */
+        private final String message;
+
+        /**
+         * Describe a message to create in a batch.
+         * 
+         * @param nReceiver
+         *            username of the client that should receive the message,
+         *            null if any client can receive it.
+         * @param nQueues
+         *            list of queues where to send the message.
+         * @param nContext
+         *            context of the message.
+         * @param nPriority
+         *            priority of the message, from 1 to 10.
+         * @param nMessage
+         *            content of the message, assumed to be less than 2k
+         *            characters.
+         */
+        public BatchEntry(String nReceiver, Iterable<String> nQueues,
+                int nContext, short nPriority, String nMessage) {
+            receiver = nReceiver;
+            queues = nQueues;
+            context = nContext;
+            priority = nPriority;
+            message = nMessage;
+        }
+
+        /**
+         * Get the receiver of the message.
+         * 
+         * @return username of the receiver, null if any client can receive
+         *         the message.
+         */
+        public String getReceiver() {
+            return receiver;
+        }
+
+        /**
+         * Get the queues where to send the message.
+         * 
+         * @return names of the queues.
+         */
+        public Iterable<String> getQueues() {
+            return queues;
+        }
+
+        /**
+         * Get the context of the message.
+         * 
+         * @return context of the message.
+         */
+        public int getContext() {
+            return context;
+        }
+
+        /**
+         * Get the priority of the message.
+         * 
+         * @return priority of the message.
+         */
+        public short getPriority() {
+            return priority;
+        }
+
+        /**
+         * Get the content of the message.
+         * 
+         * @return content of the message.
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
 
     /**
      * Create a message with a specific receiver and put it in multiple queues
@@ -82,18 +227,57 @@ public class CreateMessage {
             String message, Connection conn) throws SQLException,
             InexistentQueueException, InexistentClientException,
             CreateMessageException {
+        execute(sender, receiver, queues, context, priority, message,
+                new MetadataCache(), conn);
+    }
+
+    /**
+     * Create a message with a specific receiver and put it in multiple queues
+     * as specified in the input list, resolving the names through the given
+     * cache.
+     * 
+     * @param sender
+     *            id of the client that sends the message, assumed to be valid.
+     * @param receiver
+     *            username of the client that should receive the message, may
+     *            not exist in the database.
+     * @param queues
+     *            list of queues where to send the message.
+     * @param context
+     *            context of the message.
+     * @param priority
+     *            priority of the message, from 1 to 10.
+     * @param message
+     *            content of the message, assumed to be less than 2k characters.
+     * @param cache
+     *            cache of the client and queue ids.
+     * @param conn
+     *            database connection.
+     * @throws SQLException
+     *             if there is an unexpected error accessing the database.
+     * @throws InexistentQueueException
+     *             if one of the queue names in the list doesn't exist.
+     *             StaleQueueException if the cached id of one of them was
+     *             stale.
+     * @throws InexistentClientException
+     *             if the receiver doesn't exist.
+     * @throws CreateMessageException
+     *             if the message was not created but no error was triggered.
+     */
+    public static void execute(int sender, String receiver,
+            Iterable<String> queues, int context, short priority,
+            String message, MetadataCache cache, Connection conn)
+            throws SQLException, InexistentQueueException,
+            InexistentClientException, CreateMessageException {
+        // Get the receiver's id and throw an exception if not found
+        int receiver_id = cache.getClientId(receiver, conn);
+        if (receiver_id < 0)
+            throw new InexistentClientException("Receiver " + receiver
+                    + " does not exist in the database.");
+        long[] queueIds = resolveQueueIds(queues, cache, conn);
+
         PreparedStatement stmt = null;
         try {
-            // Get the receiver's id and throw an exception if not found
-            stmt = conn.prepareStatement(SQL_RETRIEVE_CLIENT);
-            stmt.setString(1, receiver);
-            ResultSet result = stmt.executeQuery();
-            if (!result.next())
-                throw new InexistentClientException("Receiver " + receiver
-                        + " does not exist in the database.");
-            int receiver_id = result.getInt(1);
-            stmt.close();
-
             // Prepare the message insert and execute it, no expected exception
             long current_time = System.currentTimeMillis();
             int current_time_int = (int) (current_time / 1000.0);
@@ -104,11 +288,12 @@ public class CreateMessage {
             stmt.setShort(4, priority);
             stmt.setInt(5, current_time_int);
             stmt.setString(6, message);
-            result = stmt.executeQuery();
+            ResultSet result = stmt.executeQuery();
             if (!result.next())
                 throw new CreateMessageException();
             long message_id = result.getLong(1);
-            associateMessagesToQueues(queues, message_id, conn);
+            associateMessagesToQueues(queues, queueIds, message_id, cache,
+                    conn);
         } finally {
             if (stmt != null)
                 stmt.close();
@@ -142,9 +327,45 @@ public class CreateMessage {
             int context, short priority, String message, Connection conn)
             throws SQLException, InexistentQueueException,
             CreateMessageException {
+        execute(sender, queues, context, priority, message,
+                new MetadataCache(), conn);
+    }
+
+    /**
+     * Create a message without specific receiver and put it in multiple queues
+     * as specified in the input list, resolving the names through the given
+     * cache.
+     * 
+     * @param sender
+     *            id of the client that sends the message, assumed to be valid.
+     * @param queues
+     *            list of queues where to send the message.
+     * @param context
+     *            context of the message.
+     * @param priority
+     *            priority of the message, from 1 to 10.
+     * @param message
+     *            content of the message, assumed to be less than 2k characters.
+     * @param cache
+     *            cache of the queue ids.
+     * @param conn
+     *            database connection.
+     * @throws SQLException
+     *             if there is an unexpected error accessing the database.
+     * @throws InexistentQueueException
+     *             if one of the queue names in the list doesn't exist.
+     *             StaleQueueException if the cached id of one of them was
+     *             stale.
+     * @throws CreateMessageException
+     *             if the message was not created but no error was triggered.
+     */
+    public static void execute(int sender, Iterable<String> queues,
+            int context, short priority, String message, MetadataCache cache,
+            Connection conn) throws SQLException, InexistentQueueException,
+            CreateMessageException {
+        long[] queueIds = resolveQueueIds(queues, cache, conn);
         PreparedStatement stmt = null;
         try {
-
             // Prepare the message insert and execute it, no expected exception
             long current_time = System.currentTimeMillis();
             int current_time_int = (int) (current_time / 1000.0);
@@ -158,7 +379,8 @@ public class CreateMessage {
             if (!result.next())
                 throw new CreateMessageException();
             long message_id = result.getLong(1);
-            associateMessagesToQueues(queues, message_id, conn);
+            associateMessagesToQueues(queues, queueIds, message_id, cache,
+                    conn);
         } finally {
             if (stmt != null)
                 stmt.close();
@@ -232,6 +454,275 @@ public class CreateMessage {
         execute(sender, queues, context, priority, message, conn);
     }
 
+    /**
+     * Create a batch of messages with multi-row inserts, so the cost of the
+     * round-trips is paid per statement instead of per message. The caller is
+     * expected to commit once for the whole batch.
+     * 
+     * @param sender
+     *            id of the client that sends the messages, assumed to be valid.
+     * @param batch
+     *            messages to create.
+     * @param conn
+     *            database connection.
+     * @throws SQLException
+     *             if there is an unexpected error accessing the database.
+     * @throws InexistentQueueException
+     *             if one of the queue names doesn't exist.
+     * @throws InexistentClientException
+     *             if one of the receivers doesn't exist.
+     * @throws CreateMessageException
+     *             if the message ids could not be reserved.
+     */
+    public static void executeBatch(int sender, List<BatchEntry> batch,
+            Connection conn) throws SQLException, InexistentQueueException,
+            InexistentClientException, CreateMessageException {
+        executeBatch(sender, batch, new MetadataCache(), conn);
+    }
+
+    /**
+     * Create a batch of messages with multi-row inserts, resolving the names
+     * through the given cache.
+     * 
+     * @param sender
+     *            id of the client that sends the messages, assumed to be valid.
+     * @param batch
+     *            messages to create.
+     * @param cache
+     *            cache of the client and queue ids.
+     * @param conn
+     *            database connection.
+     * @throws SQLException
+     *             if there is an unexpected error accessing the database.
+     * @throws InexistentQueueException
+     *             if one of the queue names doesn't exist.
+     *             StaleQueueException if the cached id of one of them was
+     *             stale.
+     * @throws InexistentClientException
+     *             if one of the receivers doesn't exist.
+     * @throws CreateMessageException
+     *             if the message ids could not be reserved.
+     */
+    public static void executeBatch(int sender, List<BatchEntry> batch,
+            MetadataCache cache, Connection conn) throws SQLException,
+            InexistentQueueException, InexistentClientException,
+            CreateMessageException {
+        if (batch.isEmpty())
+            return;
+        Map<String, Integer> receiverIds = retrieveReceiverIds(batch, cache,
+                conn);
+        Set<String> queueNames = new HashSet<String>();
+        for (BatchEntry entry : batch) {
+            for (String queueName : entry.queues)
+                queueNames.add(queueName);
+        }
+        Map<String, Long> queueIds = cache.getQueueIds(queueNames, conn);
+        for (String queueName : queueNames) {
+            if (!queueIds.containsKey(queueName))
+                throw new InexistentQueueException("Queue " + queueName
+                        + " does not exist in the database.");
+        }
+        long[] messageIds = reserveMessageIds(batch.size(), conn);
+        int current_time_int = (int) (System.currentTimeMillis() / 1000.0);
+
+        // Insert the messages
+        PreparedStatement stmt = null;
+        try {
+            for (int start = 0; start < batch.size(); start += MAX_ROWS_PER_STATEMENT) {
+                int end = Math.min(batch.size(), start
+                        + MAX_ROWS_PER_STATEMENT);
+                stmt = conn.prepareStatement(multiRowStatement(
+                        SQL_INSERT_BATCH, SQL_INSERT_BATCH_ROW, "", end
+                                - start));
+                int param = 1;
+                for (int i = start; i < end; i++) {
+                    BatchEntry entry = batch.get(i);
+                    stmt.setLong(param++, messageIds[i]);
+                    stmt.setInt(param++, sender);
+                    if (entry.receiver == null)
+                        stmt.setNull(param++, Types.INTEGER);
+                    else
+                        stmt.setInt(param++, receiverIds.get(entry.receiver));
+                    stmt.setInt(param++, entry.context);
+                    stmt.setShort(param++, entry.priority);
+                    stmt.setInt(param++, current_time_int);
+                    stmt.setString(param++, entry.message);
+                }
+                stmt.executeUpdate();
+                stmt.close();
+                stmt = null;
+            }
+        } finally {
+            if (stmt != null)
+                stmt.close();
+        }
+
+        // Put them in their queues
+        ArrayList<Long> assocMessages = new ArrayList<Long>();
+        ArrayList<Long> assocQueues = new ArrayList<Long>();
+        for (int i = 0; i < batch.size(); i++) {
+            for (String queueName : batch.get(i).queues) {
+                assocMessages.add(messageIds[i]);
+                assocQueues.add(queueIds.get(queueName));
+            }
+        }
+        try {
+            for (int start = 0; start < assocMessages.size(); start += MAX_ROWS_PER_STATEMENT) {
+                int end = Math.min(assocMessages.size(), start
+                        + MAX_ROWS_PER_STATEMENT);
+                stmt = conn.prepareStatement(multiRowStatement(
+                        SQL_ASSOC_BATCH, SQL_ASSOC_BATCH_ROW, "", end - start));
+                int param = 1;
+                for (int i = start; i < end; i++) {
+                    stmt.setLong(param++, assocMessages.get(i));
+                    stmt.setLong(param++, assocQueues.get(i));
+                }
+                stmt.executeUpdate();
+                stmt.close();
+                stmt = null;
+            }
+        } catch (SQLException ex) {
+            if (FOREIGN_KEY_VIOLATION.equals(ex.getSQLState())) {
+                for (String queueName : queueNames)
+                    cache.invalidateQueue(queueName);
+                throw new StaleQueueException(ex.getMessage());
+            } else
+                throw ex;
+        } finally {
+            if (stmt != null)
+                stmt.close();
+        }
+    }
+
+    /**
+     * Retrieve the ids of all the receivers referenced in a batch with at most
+     * one query.
+     * 
+     * @param batch
+     *            messages to create.
+     * @param cache
+     *            cache of the client ids.
+     * @param conn
+     *            database connection.
+     * @return map from username to client id.
+     * @throws SQLException
+     *             if the database can't be accessed.
+     * @throws InexistentClientException
+     *             if one of the receivers doesn't exist.
+     */
+    private static Map<String, Integer> retrieveReceiverIds(
+            List<BatchEntry> batch, MetadataCache cache, Connection conn)
+            throws SQLException, InexistentClientException {
+        Set<String> receivers = new HashSet<String>();
+        for (BatchEntry entry : batch) {
+            if (entry.receiver != null)
+                receivers.add(entry.receiver);
+        }
+        if (receivers.isEmpty())
+            return new HashMap<String, Integer>();
+
+        Map<String, Integer> receiverIds = cache.getClientIds(receivers, conn);
+        for (String receiver : receivers) {
+            if (!receiverIds.containsKey(receiver))
+                throw new InexistentClientException("Receiver " + receiver
+                        + " does not exist in the database.");
+        }
+        return receiverIds;
+    }
+
+    /**
+     * Reserve ids for new messages from the message id sequence.
+     * 
+     * @param count
+     *            number of ids to reserve.
+     * @param conn
+     *            database connection.
+     * @return the reserved ids.
+     * @throws SQLException
+     *             if the database can't be accessed.
+     * @throws CreateMessageException
+     *             if fewer ids than requested were returned.
+     */
+    private static long[] reserveMessageIds(int count, Connection conn)
+            throws SQLException, CreateMessageException {
+        long[] ids = new long[count];
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement(SQL_RESERVE_IDS);
+            stmt.setInt(1, count);
+            ResultSet result = stmt.executeQuery();
+            for (int i = 0; i < count; i++) {
+                if (!result.next())
+                    throw new CreateMessageException();
+                ids[i] = result.getLong(1);
+            }
+        } finally {
+            if (stmt != null)
+                stmt.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Build a multi-row statement out of its parts.
+     * 
+     * @param prefix
+     *            statement up to the first row.
+     * @param row
+     *            placeholder for a single row.
+     * @param suffix
+     *            statement after the last row.
+     * @param rows
+     *            number of rows.
+     * @return the complete statement.
+     */
+    private static String multiRowStatement(String prefix, String row,
+            String suffix, int rows) {
+        StringBuilder sql = new StringBuilder(prefix.length() + rows
+                * (row.length() + 2) + suffix.length());
+        sql.append(prefix);
+        for (int i = 0; i < rows; i++) {
+            if (i > 0)
+                sql.append(", ");
+            sql.append(row);
+        }
+        sql.append(suffix);
+        return sql.toString();
+    }
+
+    /**
+     * Resolve the ids of the queues where a message is sent.
+     * 
+     * @param queues
+     *            list of queues where to put the message.
+     * @param cache
+     *            cache of the queue ids.
+     * @param conn
+     *            database connection.
+     * @return ids of the queues in the order of the list.
+     * @throws SQLException
+     *             if the database can't be accessed.
+     * @throws InexistentQueueException
+     *             if one of the queues in the list doesn't exist.
+     */
+    private static long[] resolveQueueIds(Iterable<String> queues,
+            MetadataCache cache, Connection conn) throws SQLException,
+            InexistentQueueException {
+        ArrayList<String> names = new ArrayList<String>();
+        for (String queueName : queues)
+            names.add(queueName);
+        Map<String, Long> ids = cache.getQueueIds(names, conn);
+        long[] queueIds = new long[names.size()];
+        for (int i = 0; i < queueIds.length; i++) {
+            Long id = ids.get(names.get(i));
+            if (id == null)
+                throw new InexistentQueueException("Queue " + names.get(i)
+                        + " does not exist in the database.");
+            queueIds[i] = id;
+        }
+        return queueIds;
+    }
+
     /**
      * Creates records in the database that associate a message with one or more
      * queues, in the context of the messaging system this means putting a newly
@@ -239,33 +730,41 @@ public class CreateMessage {
      * 
      * @param queues
      *            list of queues where to put the message.
+     * @param queueIds
+     *            ids of the queues, in the order of the list.
      * @param message_id
      *            id of the message to put in the queues.
+     * @param cache
+     *            cache of the queue ids, invalidated if one of them is stale.
      * @param conn
      *            database connection.
      * @throws SQLException
      *             if the database can't be accessed.
-     * @throws InexistentQueueException
-     *             if one of the queues in the list doesn't exist.
+     * @throws StaleQueueException
+     *             if the cached id of one of the queues was stale.
      */
     private static void associateMessagesToQueues(Iterable<String> queues,
-            long message_id, Connection conn) throws SQLException,
-            InexistentQueueException {
+            long[] queueIds, long message_id, MetadataCache cache,
+            Connection conn) throws SQLException, StaleQueueException {
         PreparedStatement stmt = null;
         try {
             stmt = conn.prepareStatement(SQL_ASSOC_QUEUE);
-            for (String queueName : queues) {
+            for (long queueId : queueIds) {
                 stmt.setLong(1, message_id);
-                stmt.setString(2, queueName);
+                stmt.setLong(2, queueId);
                 stmt.addBatch();
             }
             stmt.executeBatch();
         } catch (BatchUpdateException ex) {
             SQLException batchEx = ex.getNextException();
-            String sqlState = batchEx.getSQLState();
-            if (sqlState.equals("23502"))
-                throw new InexistentQueueException(batchEx.getMessage());
-            else
+            String sqlState = batchEx == null ? ex.getSQLState() : batchEx
+                    .getSQLState();
+            if (FOREIGN_KEY_VIOLATION.equals(sqlState)) {
+                for (String queueName : queues)
+                    cache.invalidateQueue(queueName);
+                throw new StaleQueueException(batchEx == null ? ex
+                        .getMessage() : batchEx.getMessage());
+            } else
                 throw ex;
         } finally {
             if (stmt != null)
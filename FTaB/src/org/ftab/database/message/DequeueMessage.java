@@ -0,0 +1,251 @@
+/**
+ * DequeueMessage.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.database.message;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+import org.ftab.database.Message;
+import org.ftab.database.MetadataCache;
+
+/**
+ * DAO for popping messages from the database, i.e. retrieving the top messages
+ * that match the criteria and deleting them from their queues in a single
+ * statement. The top messages are claimed with FOR UPDATE SKIP LOCKED, so
+ * concurrent readers of the same queue take different messages instead of
+ * waiting on each other. The queue or sender is resolved to its id through a
+ * {@link MetadataCache}, so the statements don't join the queue and client
+ * tables.
+ */
+public class DequeueMessage {
+
+    /**
+     * Common tail of the dequeue statements. It deletes the claimed
+     * message-queue associations, deletes the message records that are not in
+     * any queue besides the claimed ones and returns the information of the
+     * claimed messages. All the sub-statements see the same snapshot, so the
+     * final select still finds the deleted rows.
+     */
+    private final static String SQL_CLAIM_AND_DELETE = "claimed AS ("
+            + "DELETE FROM msg_queue_assoc USING head "
+            + "WHERE msg_queue_assoc.message_id = head.message_id "
+            + "AND msg_queue_assoc.queue_id = head.queue_id "
+            + "RETURNING msg_queue_assoc.message_id, msg_queue_assoc.queue_id), "
+            + "removed AS ("
+            + "DELETE FROM message USING claimed "
+            + "WHERE message.id = claimed.message_id AND NOT EXISTS ("
+            + "SELECT 1 FROM msg_queue_assoc msa "
+            + "WHERE msa.message_id = claimed.message_id AND NOT EXISTS ("
+            + "SELECT 1 FROM claimed other "
+            + "WHERE other.message_id = msa.message_id AND "
+            + "other.queue_id = msa.queue_id)) RETURNING message.id) "
+            + "SELECT message.id AS msg_id, claimed.queue_id, context, "
+            + "prio, create_time, message, sender, receiver "
+            + "FROM claimed INNER JOIN message ON message.id = claimed.message_id ";
+
+    /**
+     * Selection of the top message in the given queue, the message row is
+     * locked as well so pops of the same message from different queues can't
+     * both leave it behind.
+     */
+    private final static String SQL_HEAD_BY_QUEUE = "WITH head AS ("
+            + "SELECT msg_queue_assoc.message_id, msg_queue_assoc.queue_id "
+            + "FROM msg_queue_assoc "
+            + "INNER JOIN message ON message.id = msg_queue_assoc.message_id "
+            + "WHERE msg_queue_assoc.queue_id = ? "
+            + "AND (message.receiver = ? OR message.receiver IS NULL) ";
+
+    /**
+     * Selection of the top message from the given sender in any queue.
+     */
+    private final static String SQL_HEAD_BY_SENDER = "WITH head AS ("
+            + "SELECT msg_queue_assoc.message_id, msg_queue_assoc.queue_id "
+            + "FROM msg_queue_assoc "
+            + "INNER JOIN message ON message.id = msg_queue_assoc.message_id "
+            + "WHERE message.sender = ? "
+            + "AND (message.receiver = ? OR message.receiver IS NULL) ";
+
+    /**
+     * Ordering by priority first.
+     */
+    private final static String SQL_ORDER_PRIO = "ORDER BY message.prio DESC, "
+            + "message.create_time DESC ";
+
+    /**
+     * Ordering by creation time first.
+     */
+    private final static String SQL_ORDER_TIME = "ORDER BY "
+            + "message.create_time DESC, message.prio DESC ";
+
+    /**
+     * Limit and locking clause of the head selection.
+     */
+    private final static String SQL_LOCK_HEAD = "LIMIT ? "
+            + "FOR UPDATE OF msg_queue_assoc, message SKIP LOCKED), ";
+
+    /**
+     * SQL statement to pop the top message ordered by priority first from a
+     * given queue. Only messages that can be accessed by the given receiver are
+     * considered.
+     */
+    private final static String SQL_POP_BY_QUEUE_PRIO = SQL_HEAD_BY_QUEUE
+            + SQL_ORDER_PRIO + SQL_LOCK_HEAD + SQL_CLAIM_AND_DELETE
+            + SQL_ORDER_PRIO;
+
+    /**
+     * SQL statement to pop the top message ordered by creation time first from
+     * a given queue. Only messages that can be accessed by the given receiver
+     * are considered.
+     */
+    private final static String SQL_POP_BY_QUEUE_TIME = SQL_HEAD_BY_QUEUE
+            + SQL_ORDER_TIME + SQL_LOCK_HEAD + SQL_CLAIM_AND_DELETE
+            + SQL_ORDER_TIME;
+
+    /**
+     * SQL statement to pop the top message ordered by priority first from a
+     * given sender in any queue. Only messages that can be accessed by the
+     * given receiver are considered.
+     */
+    private final static String SQL_POP_BY_SENDER_PRIO = SQL_HEAD_BY_SENDER
+            + SQL_ORDER_PRIO + SQL_LOCK_HEAD + SQL_CLAIM_AND_DELETE
+            + SQL_ORDER_PRIO;
+
+    /**
+     * SQL statement to pop the top message ordered by creation time first from
+     * a given sender in any queue. Only messages that can be accessed by the
+     * given receiver are considered.
+     */
+    private final static String SQL_POP_BY_SENDER_TIME = SQL_HEAD_BY_SENDER
+            + SQL_ORDER_TIME + SQL_LOCK_HEAD + SQL_CLAIM_AND_DELETE
+            + SQL_ORDER_TIME;
+
+    /**
+     * Pop a message according to the specified criteria. If no message is
+     * found, or all the matching messages are claimed by other transactions,
+     * then null is returned.
+     *
+     * @param receiver
+     *            client that is retrieving the message.
+     * @param argument
+     *            either sender or queue that will be used as criteria for
+     *            retrieving the message.
+     * @param prioFirst
+     *            indicates if the top priority message should be retrieved,
+     *            otherwise it will be the newest one. true indicates by
+     *            priority.
+     * @param byQueue
+     *            indicates if argument is a queue or a sender. <b>true</b>
+     *            indicates queue.
+     * @param conn
+     *            database connection.
+     * @return popped message, or null if there is not any.
+     * @throws SQLException
+     *             if there is an error accessing the database.
+     */
+    public static Message execute(int receiver, String argument,
+            boolean prioFirst, boolean byQueue, Connection conn)
+            throws SQLException {
+        ArrayList<Message> result = execute(receiver, argument, prioFirst,
+                byQueue, 1, conn);
+        if (result.isEmpty())
+            return null;
+        return result.get(0);
+    }
+
+    /**
+     * Pop up to a given number of messages according to the specified
+     * criteria, in the order defined by the criteria. Messages claimed by
+     * other transactions are skipped, so fewer messages than available can be
+     * returned under contention.
+     *
+     * @param receiver
+     *            client that is retrieving the messages.
+     * @param argument
+     *            either sender or queue that will be used as criteria for
+     *            retrieving the messages.
+     * @param prioFirst
+     *            indicates if the messages are ordered by priority first,
+     *            otherwise by creation time first. true indicates by priority.
+     * @param byQueue
+     *            indicates if argument is a queue or a sender. <b>true</b>
+     *            indicates queue.
+     * @param limit
+     *            maximum number of messages to pop.
+     * @param conn
+     *            database connection.
+     * @return list with the popped messages, empty if there is not any.
+     * @throws SQLException
+     *             if there is an error accessing the database.
+     */
+    public static ArrayList<Message> execute(int receiver, String argument,
+            boolean prioFirst, boolean byQueue, int limit, Connection conn)
+            throws SQLException {
+        return execute(receiver, argument, prioFirst, byQueue, limit,
+                new MetadataCache(), conn);
+    }
+
+    /**
+     * Pop up to a given number of messages according to the specified
+     * criteria, resolving the names through the given cache. An inexistent
+     * queue or sender has no messages.
+     *
+     * @param receiver
+     *            client that is retrieving the messages.
+     * @param argument
+     *            either sender or queue that will be used as criteria for
+     *            retrieving the messages.
+     * @param prioFirst
+     *            indicates if the messages are ordered by priority first,
+     *            otherwise by creation time first. true indicates by priority.
+     * @param byQueue
+     *            indicates if argument is a queue or a sender. <b>true</b>
+     *            indicates queue.
+     * @param limit
+     *            maximum number of messages to pop.
+     * @param cache
+     *            cache of the client and queue ids.
+     * @param conn
+     *            database connection.
+     * @return list with the popped messages, empty if there is not any.
+     * @throws SQLException
+     *             if there is an error accessing the database.
+     */
+    public static ArrayList<Message> execute(int receiver, String argument,
+            boolean prioFirst, boolean byQueue, int limit,
+            MetadataCache cache, Connection conn) throws SQLException {
+        long argumentId = byQueue ? cache.getQueueId(argument, conn) : cache
+                .getClientId(argument, conn);
+        if (argumentId < 0)
+            return new ArrayList<Message>();
+
+        PreparedStatement stmt = null;
+        try {
+            if (byQueue) {
+                if (prioFirst)
+                    stmt = conn.prepareStatement(SQL_POP_BY_QUEUE_PRIO);
+                else
+                    stmt = conn.prepareStatement(SQL_POP_BY_QUEUE_TIME);
+            } else {
+                if (prioFirst)
+                    stmt = conn.prepareStatement(SQL_POP_BY_SENDER_PRIO);
+                else
+                    stmt = conn.prepareStatement(SQL_POP_BY_SENDER_TIME);
+            }
+            if (byQueue)
+                stmt.setLong(1, argumentId);
+            else
+                stmt.setInt(1, (int) argumentId);
+            stmt.setInt(2, receiver);
+            stmt.setInt(3, limit);
+            return MessageRows.read(stmt.executeQuery(), cache, conn);
+        } finally {
+            if (stmt != null)
+                stmt.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * MessageRows.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.database.message;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.ftab.database.Message;
+import org.ftab.database.MetadataCache;
+
+/**
+ * Conversion of the message rows returned by the retrieval statements into
+ * {@link Message} objects. The statements only return the ids of the sender,
+ * the receiver and the queue, their names are resolved through the
+ * {@link MetadataCache} once for all the rows.
+ */
+class MessageRows {
+
+    /**
+     * Columns of a single row, before the names are resolved.
+     */
+    private static class Row {
+        private long id;
+        private long queueId;
+        private int context;
+        private short priority;
+        private int createTime;
+        private String content;
+        private int sender;
+        private Integer receiver;
+    }
+
+    /**
+     * Read all the rows of a result with the columns msg_id, queue_id,
+     * context, prio, create_time, message, sender and receiver.
+     *
+     * @param result
+     *            result of the statement.
+     * @param cache
+     *            cache of the client and queue names.
+     * @param conn
+     *            database connection used on a cache miss.
+     * @return list with the messages in the order of the rows.
+     * @throws SQLException
+     *             if there is an error accessing the database.
+     */
+    static ArrayList<Message> read(ResultSet result, MetadataCache cache,
+            Connection conn) throws SQLException {
+        ArrayList<Row> rows = new ArrayList<Row>();
+        HashSet<Integer> clientIds = new HashSet<Integer>();
+        HashSet<Long> queueIds = new HashSet<Long>();
+        while (result.next()) {
+            Row row = new Row();
+            row.id = result.getLong("msg_id");
+            row.queueId = result.getLong("queue_id");
+            row.context = result.getInt("context");
+            row.priority = result.getShort("prio");
+            row.createTime = result.getInt("create_time");
+            row.content = result.getString("message");
+            row.sender = result.getInt("sender");
+            int receiver = result.getInt("receiver");
+            row.receiver = result.wasNull() ? null : receiver;
+            rows.add(row);
+
+            clientIds.add(row.sender);
+            if (row.receiver != null)
+                clientIds.add(row.receiver);
+            queueIds.add(row.queueId);
+        }
+
+        ArrayList<Message> messages = new ArrayList<Message>(rows.size());
+        if (rows.isEmpty())
+            return messages;
+        Map<Integer, String> clientNames = cache.getClientNames(clientIds,
+                conn);
+        Map<Long, String> queueNames = cache.getQueueNames(queueIds, conn);
+        for (Row row : rows) {
+            messages.add(new Message(row.id, row.context, row.priority,
+                    row.content, clientNames.get(row.sender), row.createTime,
+                    queueNames.get(row.queueId), row.queueId,
+                    row.receiver == null ? null : clientNames.get(row.receiver)));
+        }
+        return messages;
+    }
+}
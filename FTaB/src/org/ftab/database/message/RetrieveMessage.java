@@ -7,34 +7,38 @@ package org.ftab.database.message;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 
 import org.ftab.database.Message;
+import org.ftab.database.MetadataCache;
 
 /**
- * DAO for peeking at messages in the database, in every realization of this DAO
- * at most one message is returned.
+ * DAO for peeking at messages in the database, either at the top message that
+ * matches the criteria or at up to a given number of them in order. The queue
+ * or sender is resolved to its id through a {@link MetadataCache}, so the
+ * statements don't join the queue and client tables.
  */
 public class RetrieveMessage {
 
+    /**
+     * Columns returned by the peek statements, the names of the sender,
+     * receiver and queue are resolved through the metadata cache.
+     */
+    private final static String SQL_COLUMNS = "SELECT message.id AS msg_id, "
+            + "msg_queue_assoc.queue_id, context, prio, create_time, message, "
+            + "sender, receiver FROM message INNER JOIN msg_queue_assoc "
+            + "ON msg_queue_assoc.message_id = message.id ";
+
     /**
      * SQL statement to get the top message ordered by priority first from a
      * given sender in any queue, which queue is selected is not specified and
      * depends on the first record returned from the database. Only messages
      * that can be accessed by the given receiver are considered.
      */
-    private final static String SQL_PEEK_BY_SENDER_PRIO = "SELECT message.id AS msg_id, queue.id AS queue_id, context, prio, "
-            + "create_time, message, queue.name, "
-            + "rc.username AS receiver FROM message "
-            + "INNER JOIN msg_queue_assoc "
-            + "ON msg_queue_assoc.message_id = message.id "
-            + "INNER JOIN queue ON queue_id = queue.id "
-            + "LEFT OUTER JOIN client rc ON rc.id = receiver "
-            + "WHERE sender = "
-            + "(SELECT id FROM client WHERE username = ?) AND "
-            + "(receiver = ? OR receiver IS NULL) "
-            + "ORDER BY prio DESC, create_time DESC " + "FETCH FIRST ROW ONLY";
+    private final static String SQL_PEEK_BY_SENDER_PRIO = SQL_COLUMNS
+            + "WHERE sender = ? AND (receiver = ? OR receiver IS NULL) "
+            + "ORDER BY prio DESC, create_time DESC " + "LIMIT ?";
 
     /**
      * SQL statement to get the top message ordered by creation time first from
@@ -42,51 +46,29 @@ public class RetrieveMessage {
      * depends on the first record returned from the database. Only messages
      * that can be accessed by the given receiver are considered.
      */
-    private final static String SQL_PEEK_BY_SENDER_TIME = "SELECT message.id AS msg_id, queue.id AS queue_id, context, prio, "
-            + "create_time, message, queue.name, "
-            + "rc.username AS receiver FROM message "
-            + "INNER JOIN msg_queue_assoc "
-            + "ON msg_queue_assoc.message_id = message.id "
-            + "INNER JOIN queue ON queue_id = queue.id "
-            + "LEFT OUTER JOIN client rc ON rc.id = receiver "
-            + "WHERE sender = "
-            + "(SELECT id FROM client WHERE username = ?) AND "
-            + "(receiver = ? OR receiver IS NULL) "
-            + "ORDER BY create_time DESC, prio DESC " + "FETCH FIRST ROW ONLY";
+    private final static String SQL_PEEK_BY_SENDER_TIME = SQL_COLUMNS
+            + "WHERE sender = ? AND (receiver = ? OR receiver IS NULL) "
+            + "ORDER BY create_time DESC, prio DESC " + "LIMIT ?";
 
     /**
      * SQL statement to get the top message in the given queue ordered by
      * priority first. Only messages that can be accessed by the given receiver
      * are considered.
      */
-    private final static String SQL_PEEK_BY_QUEUE_PRIO = "SELECT message.id AS msg_id, queue.id AS queue_id, context, prio, "
-            + "create_time, message, queue.name, "
-            + "sc.username AS sender, rc.username AS receiver "
-            + "FROM message INNER JOIN msg_queue_assoc "
-            + "ON msg_queue_assoc.message_id = message.id "
-            + "INNER JOIN queue ON queue_id = queue.id "
-            + "INNER JOIN client sc ON sc.id = sender "
-            + "LEFT OUTER JOIN client rc ON rc.id = receiver "
-            + "WHERE queue.name = ? "
+    private final static String SQL_PEEK_BY_QUEUE_PRIO = SQL_COLUMNS
+            + "WHERE msg_queue_assoc.queue_id = ? "
             + "AND (receiver = ? OR receiver IS NULL) "
-            + "ORDER BY prio DESC, create_time DESC " + "FETCH FIRST ROW ONLY";
+            + "ORDER BY prio DESC, create_time DESC " + "LIMIT ?";
 
     /**
      * SQL statement to get the top message in the given queue ordered by
      * creation time first. Only messages that can be accessed by the given
      * receiver are considered.
      */
-    private final static String SQL_PEEK_BY_QUEUE_TIME = "SELECT message.id AS msg_id, queue.id AS queue_id, context, prio, "
-            + "create_time, message, queue.name, "
-            + "sc.username AS sender, rc.username AS receiver "
-            + "FROM message INNER JOIN msg_queue_assoc "
-            + "ON msg_queue_assoc.message_id = message.id "
-            + "INNER JOIN queue ON queue_id = queue.id "
-            + "INNER JOIN client sc ON sc.id = sender "
-            + "LEFT OUTER JOIN client rc ON rc.id = receiver "
-            + "WHERE queue.name = ? "
+    private final static String SQL_PEEK_BY_QUEUE_TIME = SQL_COLUMNS
+            + "WHERE msg_queue_assoc.queue_id = ? "
             + "AND (receiver = ? OR receiver IS NULL) "
-            + "ORDER BY create_time DESC, prio DESC " + "FETCH FIRST ROW ONLY";
+            + "ORDER BY create_time DESC, prio DESC " + "LIMIT ?";
 
     /**
      * Retrieve a message according to the specified criteria. If no message is
@@ -114,6 +96,78 @@ public class RetrieveMessage {
     public static Message execute(int receiver, String argument,
             boolean prioFirst, boolean byQueue, Connection conn)
             throws SQLException {
+        ArrayList<Message> result = execute(receiver, argument, prioFirst,
+                byQueue, 1, conn);
+        if (result.isEmpty())
+            return null;
+        return result.get(0);
+    }
+
+    /**
+     * Retrieve up to a given number of messages according to the specified
+     * criteria, in the order defined by the criteria. A message in several
+     * queues is returned once for each of them when retrieving by sender.
+     * 
+     * @param receiver
+     *            client that is retrieving the messages.
+     * @param argument
+     *            either sender or queue that will be used as criteria for
+     *            retrieving the messages.
+     * @param prioFirst
+     *            indicates if the messages are ordered by priority first,
+     *            otherwise by creation time first. true indicates by priority.
+     * @param byQueue
+     *            indicates if argument is a queue or a sender. <b>true</b>
+     *            indicates queue.
+     * @param limit
+     *            maximum number of messages to retrieve.
+     * @param conn
+     *            database connection.
+     * @return list with the messages found, empty if there is not any.
+     * @throws SQLException
+     *             if there is an error accessing the database.
+     */
+    public static ArrayList<Message> execute(int receiver, String argument,
+            boolean prioFirst, boolean byQueue, int limit, Connection conn)
+            throws SQLException {
+        return execute(receiver, argument, prioFirst, byQueue, limit,
+                new MetadataCache(), conn);
+    }
+
+    /**
+     * Retrieve up to a given number of messages according to the specified
+     * criteria, resolving the names through the given cache. An inexistent
+     * queue or sender has no messages.
+     * 
+     * @param receiver
+     *            client that is retrieving the messages.
+     * @param argument
+     *            either sender or queue that will be used as criteria for
+     *            retrieving the messages.
+     * @param prioFirst
+     *            indicates if the messages are ordered by priority first,
+     *            otherwise by creation time first. true indicates by priority.
+     * @param byQueue
+     *            indicates if argument is a queue or a sender. <b>true</b>
+     *            indicates queue.
+     * @param limit
+     *            maximum number of messages to retrieve.
+     * @param cache
+     *            cache of the client and queue ids.
+     * @param conn
+     *            database connection.
+     * @return list with the messages found, empty if there is not any.
+     * @throws SQLException
+     *             if there is an error accessing the database.
+     */
+    public static ArrayList<Message> execute(int receiver, String argument,
+            boolean prioFirst, boolean byQueue, int limit,
+            MetadataCache cache, Connection conn) throws SQLException {
+        long argumentId = byQueue ? cache.getQueueId(argument, conn) : cache
+                .getClientId(argument, conn);
+        if (argumentId < 0)
+            return new ArrayList<Message>();
+
         PreparedStatement stmt = null;
         try {
             if (byQueue) {
@@ -127,23 +181,13 @@ public class RetrieveMessage {
                 else
                     stmt = conn.prepareStatement(SQL_PEEK_BY_SENDER_TIME);
             }
-            // TODO: Check queue/sender existence first and throw exception
-            stmt.setString(1, argument);
-            stmt.setInt(2, receiver);
-            ResultSet result = stmt.executeQuery();
-            if (!result.next())
-                return null;
-            String sender;
             if (byQueue)
-                sender = result.getString("sender");
+                stmt.setLong(1, argumentId);
             else
-                sender = argument;
-            Message formattedResult = new Message(result.getLong("msg_id"),
-                    result.getInt("context"), result.getShort("prio"),
-                    result.getString("message"), sender,
-                    result.getInt("create_time"), result.getString("name"),
-                    result.getLong("queue_id"), result.getString("receiver"));
-            return formattedResult;
+                stmt.setInt(1, (int) argumentId);
+            stmt.setInt(2, receiver);
+            stmt.setInt(3, limit);
+            return MessageRows.read(stmt.executeQuery(), cache, conn);
         } finally {
             if (stmt != null)
                 stmt.close();
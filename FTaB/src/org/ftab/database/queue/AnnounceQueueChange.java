@@ -0,0 +1,52 @@
+/**
+ * AnnounceQueueChange.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.database.queue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.ftab.database.MetadataCache;
+
+/**
+ * DAO for announcing that a queue was created or deleted, so the other
+ * servers sharing the database drop the id they cached for its name. The
+ * notification is queued in the current transaction and delivered only when
+ * it commits.
+ */
+public class AnnounceQueueChange {
+
+    /**
+     * SQL statement to send a notification with the name of the queue.
+     */
+    private final static String SQL_NOTIFY = "SELECT pg_notify(?, ?)";
+
+    /**
+     * Queue a notification for the given queue on
+     * {@link MetadataCache#QUEUE_CHANNEL}.
+     * 
+     * @param queueName
+     *            name of the created or deleted queue.
+     * @param conn
+     *            database connection, the notification is sent when its
+     *            transaction commits.
+     * @throws SQLException
+     *             if there is an error accessing the database.
+     */
+    public static void execute(String queueName, Connection conn)
+            throws SQLException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement(SQL_NOTIFY);
+            stmt.setString(1, MetadataCache.QUEUE_CHANNEL);
+            stmt.setString(2, queueName);
+            stmt.executeQuery().close();
+        } finally {
+            if (stmt != null)
+                stmt.close();
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
+import org.ftab.database.MetadataCache;
 import org.ftab.database.exceptions.QueueAlreadyExistsException;
 
 /**
@@ -33,6 +34,28 @@ public class CreateQueue {
      */
     public static void execute(String queueName, Connection conn)
             throws SQLException, QueueAlreadyExistsException {
+        execute(queueName, new MetadataCache(), conn);
+    }
+
+    /**
+     * Create the queue with the given name and invalidate any stale mapping of
+     * the name in the cache, here and in the other servers once the
+     * transaction commits.
+     * 
+     * @param queueName
+     *            desired name for the queue.
+     * @param cache
+     *            cache of the queue ids.
+     * @param conn
+     *            database connection.
+     * @throws SQLException
+     *             if there is an unexpected error when accessing the database.
+     * @throws QueueAlreadyExistsException
+     *             if there is already a queue with the given name.
+     */
+    public static void execute(String queueName, MetadataCache cache,
+            Connection conn) throws SQLException, QueueAlreadyExistsException {
+        cache.invalidateQueue(queueName);
         PreparedStatement stmt = null;
         try {
             stmt = conn.prepareStatement(SQL);
@@ -42,6 +65,7 @@ public class CreateQueue {
             if (result == 0)
                 throw new QueueAlreadyExistsException("Queue " + queueName
                         + " already exists.");
+            AnnounceQueueChange.execute(queueName, conn);
         } finally {
             if (stmt != null)
                 stmt.close();
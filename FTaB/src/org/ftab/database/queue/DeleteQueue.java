@@ -10,6 +10,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import org.ftab.database.MetadataCache;
 import org.ftab.database.exceptions.InexistentQueueException;
 import org.ftab.database.exceptions.QueueNotEmptyException;
 
@@ -48,6 +49,31 @@ public class DeleteQueue {
     public static void execute(String queueName, Connection conn)
             throws SQLException, InexistentQueueException,
             QueueNotEmptyException {
+        execute(queueName, new MetadataCache(), conn);
+    }
+
+    /**
+     * Delete a queue given its name and remove it from the cache, here and in
+     * the other servers once the transaction commits. It only deletes
+     * non-empty queues.
+     * 
+     * @param queueName
+     *            name of the queue.
+     * @param cache
+     *            cache of the queue ids.
+     * @param conn
+     *            database connection.
+     * @throws SQLException
+     *             if there is a problem with the database access.
+     * @throws InexistentQueueException
+     *             if there is no queue with the given name.
+     * @throws QueueNotEmptyException
+     *             if the queue is not empty.
+     */
+    public static void execute(String queueName, MetadataCache cache,
+            Connection conn) throws SQLException, InexistentQueueException,
+            QueueNotEmptyException {
+        cache.invalidateQueue(queueName);
         PreparedStatement query = null;
         PreparedStatement update = null;
         try {
@@ -66,6 +92,7 @@ public class DeleteQueue {
                 if (result == 0)
                     throw new QueueNotEmptyException("Queue " + queueName
                             + " can't be deleted because it is not empty.");
+                AnnounceQueueChange.execute(queueName, conn);
             }
         } finally {
             if (query != null)
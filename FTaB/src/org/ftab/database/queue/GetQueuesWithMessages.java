@@ -10,6 +10,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Map;
+
+import org.ftab.database.MetadataCache;
 
 /**
  * DAO to retrieve the list of queues where there are messages addressed to a
@@ -22,9 +25,8 @@ public class GetQueuesWithMessages {
      * SQL statement to retrieve the queues which have messages for the given
      * user.
      */
-    private static final String SQL = "SELECT DISTINCT name FROM queue "
-            + "INNER JOIN msg_queue_assoc "
-            + "ON msg_queue_assoc.queue_id = queue.id " + "INNER JOIN message "
+    private static final String SQL = "SELECT DISTINCT queue_id "
+            + "FROM msg_queue_assoc INNER JOIN message "
             + "ON message.id = msg_queue_assoc.message_id "
             + "WHERE message.receiver = ?";
 
@@ -41,14 +43,42 @@ public class GetQueuesWithMessages {
      */
     public static ArrayList<String> execute(int receiverId, Connection conn)
             throws SQLException {
+        return execute(receiverId, new MetadataCache(), conn);
+    }
+
+    /**
+     * Retrieve the list of queues with messages for the given receiver,
+     * resolving the queue names through the given cache.
+     * 
+     * @param receiverId
+     *            id of the client that should receive the messages.
+     * @param cache
+     *            cache of the queue names.
+     * @param conn
+     *            database connection.
+     * @return list with the queues with messages waiting for the client.
+     * @throws SQLException
+     *             if there is an error accessing the database.
+     */
+    public static ArrayList<String> execute(int receiverId,
+            MetadataCache cache, Connection conn) throws SQLException {
         PreparedStatement stmt = null;
         try {
             stmt = conn.prepareStatement(SQL);
             stmt.setInt(1, receiverId);
             ResultSet result = stmt.executeQuery();
-            ArrayList<String> formattedResult = new ArrayList<String>();
+            ArrayList<Long> queueIds = new ArrayList<Long>();
             while (result.next()) {
-                formattedResult.add(result.getString(1));
+                queueIds.add(result.getLong(1));
+            }
+            ArrayList<String> formattedResult = new ArrayList<String>();
+            if (queueIds.isEmpty())
+                return formattedResult;
+            Map<Long, String> names = cache.getQueueNames(queueIds, conn);
+            for (Long queueId : queueIds) {
+                String name = names.get(queueId);
+                if (name != null)
+                    formattedResult.add(name);
             }
             return formattedResult;
         } finally {
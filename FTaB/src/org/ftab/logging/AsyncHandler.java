@@ -0,0 +1,211 @@
+package org.ftab.logging;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Handler that moves the formatting and writing of the records off the
+ * logging threads. Records are put in a bounded buffer and a single writer
+ * thread drains it in batches, publishing each record to the target handlers
+ * and flushing them once per batch.<br>
+ * <br>
+ * When the buffer is full, records below WARNING are dropped and counted,
+ * the writer reports the count in a WARNING record. Records of level WARNING
+ * and above wait for space in the buffer so errors are never lost.
+ * @author Jean-Pierre Smith
+ *
+ */
+public class AsyncHandler extends Handler {
+	/**
+	 * Default number of records the buffer can hold
+	 */
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * Maximum number of records written between flushes
+	 */
+	private static final int MAX_BATCH = 512;
+
+	/**
+	 * Record that tells the writer to stop
+	 */
+	private static final LogRecord END = new LogRecord(Level.OFF, "");
+
+	/**
+	 * The handlers the records are published to
+	 */
+	private final Handler[] targets;
+
+	/**
+	 * Records waiting to be written
+	 */
+	private final ArrayBlockingQueue<LogRecord> buffer;
+
+	/**
+	 * Thread writing the records to the targets
+	 */
+	private final Thread writer;
+
+	/**
+	 * Records dropped since the last report
+	 */
+	private final AtomicLong dropped;
+
+	/**
+	 * Records dropped since the handler was created
+	 */
+	private final AtomicLong totalDropped;
+
+	/**
+	 * Whether the handler was closed
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new asynchronous handler and starts its writer thread
+	 * @param name The name of the writer thread
+	 * @param capacity The number of records the buffer can hold
+	 * @param targets The handlers the records are published to
+	 */
+	public AsyncHandler(String name, int capacity, Handler... targets) {
+		this.targets = targets.clone();
+		this.buffer = new ArrayBlockingQueue<LogRecord>(capacity);
+		this.dropped = new AtomicLong();
+		this.totalDropped = new AtomicLong();
+		this.closed = false;
+
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, name);
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record) || !isWanted(record)) {
+			return;
+		}
+
+		if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+			try {
+				buffer.put(record);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else if (!buffer.offer(record)) {
+			dropped.incrementAndGet();
+			totalDropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Checks whether any target would write a record, so records that are
+	 * filtered out everywhere don't take space in the buffer
+	 * @param record The record to check
+	 * @return True if at least one target accepts the record
+	 */
+	private boolean isWanted(LogRecord record) {
+		for (Handler target : targets) {
+			if (target.isLoggable(record)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the buffered records to the targets until the handler is closed
+	 */
+	private void drain() {
+		ArrayList<LogRecord> batch = new ArrayList<LogRecord>(MAX_BATCH);
+		boolean running = true;
+		while (running) {
+			try {
+				batch.add(buffer.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			buffer.drainTo(batch, MAX_BATCH - 1);
+
+			for (LogRecord record : batch) {
+				if (record == END) {
+					running = false;
+				} else {
+					for (Handler target : targets) {
+						target.publish(record);
+					}
+				}
+			}
+			batch.clear();
+
+			long count = dropped.getAndSet(0);
+			if (count > 0) {
+				LogRecord report = new LogRecord(Level.WARNING, String.format(
+						"Dropped %d log records because the log buffer was full.",
+						count));
+				for (Handler target : targets) {
+					target.publish(report);
+				}
+			}
+
+			for (Handler target : targets) {
+				target.flush();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of records dropped because the buffer was full
+	 * @return The number of dropped records
+	 */
+	public long getDroppedRecords() {
+		return totalDropped.get();
+	}
+
+	/**
+	 * Gets the number of records waiting to be written
+	 * @return The number of buffered records
+	 */
+	public int getBufferedRecords() {
+		return buffer.size();
+	}
+
+	@Override
+	public void flush() {
+		for (Handler target : targets) {
+			target.flush();
+		}
+	}
+
+	/**
+	 * Writes the buffered records, stops the writer and closes the targets
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+
+		try {
+			buffer.put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (Handler target : targets) {
+			target.close();
+		}
+	}
+}
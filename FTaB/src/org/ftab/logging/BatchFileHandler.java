@@ -0,0 +1,49 @@
+package org.ftab.logging;
+
+import java.io.IOException;
+import java.util.logging.FileHandler;
+import java.util.logging.LogRecord;
+
+/**
+ * File handler that doesn't flush after every record, the file is flushed
+ * only when flush is called explicitly. Meant to be used behind an
+ * {@link AsyncHandler}, which flushes once per batch of records.
+ * @author Jean-Pierre Smith
+ *
+ */
+public class BatchFileHandler extends FileHandler {
+	/**
+	 * Whether a record is being published, set to skip the flush that
+	 * FileHandler performs after each record
+	 */
+	private boolean publishing;
+
+	/**
+	 * Creates a new file handler with rotation
+	 * @param pattern The pattern for naming the output files
+	 * @param limit The maximum number of bytes to write to any one file
+	 * @param count The number of files to use
+	 * @throws IOException If there are IO problems opening the files
+	 */
+	public BatchFileHandler(String pattern, int limit, int count)
+			throws IOException {
+		super(pattern, limit, count);
+	}
+
+	@Override
+	public synchronized void publish(LogRecord record) {
+		publishing = true;
+		try {
+			super.publish(record);
+		} finally {
+			publishing = false;
+		}
+	}
+
+	@Override
+	public synchronized void flush() {
+		if (!publishing) {
+			super.flush();
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package org.ftab.logging.client;
 
+import java.util.List;
 import java.util.logging.Level;
 
 import org.ftab.client.Client;
@@ -95,6 +96,32 @@ public class GetMessageLogRecord extends ClientLogRecord {
 		this.isAttemptStart = false;
 	}
 
+	/**
+	 * Creates a new record to log the successful retrieval of several messages
+	 * @param client The client that retrieved the messages
+	 * @param msgs The messages that were retrieved
+	 * @param filter The filter the attempt used
+	 * @param value The value of the filter that was being used
+	 * @param order The order that was being prioritized
+	 * @param andDelete Whether the messages were to be deleted after being retrieved
+	 * @param requestStart The record that logged the start of the attempt
+	 */
+	public GetMessageLogRecord(Client client, List<Message> msgs, Filter filter, String value, Order order, 
+			boolean andDelete, GetMessageLogRecord requestStart) {
+		super(Level.FINE, client, SystemEvent.RETRIEVE_MESSAGE, "", requestStart); 
+		
+		this.setMessage(String.format("%d messages successfully %s after %d milliseconds.", 
+				msgs.size(), andDelete ? "POPPED" : "PEEKED", this.getChainElapsedTime()));
+		
+		this.value = value;
+		this.filterBy = filter;
+		this.orderBy = order;
+		this.isDelete = andDelete;
+		this.retrievedMessage = msgs.isEmpty() ? null : msgs.get(0);
+		
+		this.isAttemptStart = false;
+	}
+
 	/**
 	 * Creates a new record to log the unsuccessful retrieval of a message
 	 * @param client The client that attempted to retrieve the message
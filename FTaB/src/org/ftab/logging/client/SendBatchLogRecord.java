@@ -0,0 +1,96 @@
+package org.ftab.logging.client;
+
+import java.util.logging.Level;
+
+import org.ftab.client.Client;
+import org.ftab.client.exceptions.ClientInexistentException;
+import org.ftab.client.exceptions.QueueInexistentException;
+import org.ftab.logging.SystemEvent;
+
+/**
+ * Log record for attempts to send a batch of messages
+ * @author Jean-Pierre
+ *
+ */
+@SuppressWarnings("serial")
+public class SendBatchLogRecord extends ClientLogRecord {
+	/**
+	 * Flag indicating whether the record is the start or end of an attempt
+	 */
+	private final boolean isAttemptStart;
+	
+	/**
+	 * The number of messages in the batch
+	 */
+	private final int batchSize;
+	
+	/**
+	 * Creates a new record for the start of a batch sending attempt
+	 * @param client The client that is attempting to send the messages
+	 * @param size The number of messages in the batch
+	 */
+	public SendBatchLogRecord(Client client, int size) {
+		super(Level.FINE, client, SystemEvent.SEND_MESSAGE, 
+				String.format("Attempting to send a batch of %d messages.", size));
+		
+		this.batchSize = size;
+		this.isAttemptStart = true;
+	}
+	
+	/**
+	 * Creates a new record for the end of a successful batch sending attempt
+	 * @param client The client that attempted to send the messages
+	 * @param startRecord The record logging the start of the attempt
+	 */
+	public SendBatchLogRecord(Client client, SendBatchLogRecord startRecord) {
+		super(Level.FINE, client, SystemEvent.SEND_MESSAGE, "", startRecord); 
+		
+		this.setMessage(String.format("Batch of %d messages successfully sent after %d milliseconds.", 
+				startRecord.getBatchSize(), this.getChainElapsedTime()));
+		
+		this.batchSize = startRecord.getBatchSize();
+		this.isAttemptStart = false;
+	}
+
+	/**
+	 * Creates a new record for the unsuccessful batch sending attempt
+	 * @param client The client that attempted to send the messages
+	 * @param thrown The exception thrown on the attempt
+	 * @param startRecord The record logging the start of the attempt
+	 */
+	public SendBatchLogRecord(Client client, Throwable thrown, SendBatchLogRecord startRecord) {
+		super(Level.WARNING, client, SystemEvent.SEND_MESSAGE, "", startRecord);				
+		
+		/*
+		 * If the exception thrown was not one of the expected errors then
+		 * mark this log as severe
+		 */
+		if (thrown.getClass() != ClientInexistentException.class && 
+				thrown.getClass() != QueueInexistentException.class) {
+			this.setLevel(Level.SEVERE);
+		}
+		
+		this.setMessage(String.format("The send batch attempt failed after %d milliseconds, reason: %s", 
+				this.getChainElapsedTime(), thrown.getMessage()));
+				
+		this.batchSize = startRecord.getBatchSize();
+		this.isAttemptStart = false;
+	}
+	
+	/**
+	 * Gets whether the record represents the start of an attempt
+	 * @return True if it is a start, false otherwise
+	 */
+	public boolean isAttemptStart() {
+		return isAttemptStart;
+	}
+	
+	/**
+	 * Gets the number of messages in the batch
+	 * @return The number of messages that were attempted to be sent
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+}
@@ -0,0 +1,105 @@
+package org.ftab.logging.client;
+
+import java.util.logging.Level;
+
+import org.ftab.client.Client;
+import org.ftab.logging.SystemEvent;
+
+/**
+ * Log record for attempts to subscribe to or unsubscribe from queues
+ * @author Jean-Pierre
+ *
+ */
+@SuppressWarnings("serial")
+public class SubscriptionLogRecord extends ClientLogRecord {
+	/**
+	 * Flag indicating whether the record is the start or end of an attempt
+	 */
+	private final boolean isAttemptStart;
+	
+	/**
+	 * Flag indicating whether the attempt is to subscribe or unsubscribe
+	 */
+	private final boolean isSubscribe;
+	
+	/**
+	 * The number of queues of the attempt
+	 */
+	private final int queueCount;
+	
+	/**
+	 * Creates a new record for the start of a subscription attempt
+	 * @param client The client that is attempting to subscribe or unsubscribe
+	 * @param subscribe True if the client is subscribing, false if unsubscribing
+	 * @param count The number of queues of the attempt
+	 */
+	public SubscriptionLogRecord(Client client, boolean subscribe, int count) {
+		super(Level.FINE, client, SystemEvent.RETRIEVE_MESSAGE, 
+				String.format("Attempting to %s %d queues.", 
+						subscribe ? "subscribe to" : "unsubscribe from", count));
+		
+		this.isSubscribe = subscribe;
+		this.queueCount = count;
+		this.isAttemptStart = true;
+	}
+	
+	/**
+	 * Creates a new record for the end of a successful subscription attempt
+	 * @param client The client that attempted to subscribe or unsubscribe
+	 * @param startRecord The record logging the start of the attempt
+	 */
+	public SubscriptionLogRecord(Client client, SubscriptionLogRecord startRecord) {
+		super(Level.FINE, client, SystemEvent.RETRIEVE_MESSAGE, "", startRecord); 
+		
+		this.setMessage(String.format("%s %d queues successfully after %d milliseconds.", 
+				startRecord.isSubscribe() ? "Subscribed to" : "Unsubscribed from",
+				startRecord.getQueueCount(), this.getChainElapsedTime()));
+		
+		this.isSubscribe = startRecord.isSubscribe();
+		this.queueCount = startRecord.getQueueCount();
+		this.isAttemptStart = false;
+	}
+
+	/**
+	 * Creates a new record for the unsuccessful subscription attempt
+	 * @param client The client that attempted to subscribe or unsubscribe
+	 * @param thrown The exception thrown on the attempt
+	 * @param startRecord The record logging the start of the attempt
+	 */
+	public SubscriptionLogRecord(Client client, Throwable thrown, SubscriptionLogRecord startRecord) {
+		super(Level.SEVERE, client, SystemEvent.RETRIEVE_MESSAGE, "", startRecord);				
+		
+		this.setMessage(String.format("The %s attempt failed after %d milliseconds, reason: %s", 
+				startRecord.isSubscribe() ? "subscription" : "unsubscription",
+				this.getChainElapsedTime(), thrown.getMessage()));
+				
+		this.isSubscribe = startRecord.isSubscribe();
+		this.queueCount = startRecord.getQueueCount();
+		this.isAttemptStart = false;
+	}
+	
+	/**
+	 * Gets whether the record represents the start of an attempt
+	 * @return True if it is a start, false otherwise
+	 */
+	public boolean isAttemptStart() {
+		return isAttemptStart;
+	}
+	
+	/**
+	 * Gets whether the attempt is to subscribe or unsubscribe
+	 * @return True if subscribing, false if unsubscribing
+	 */
+	public boolean isSubscribe() {
+		return isSubscribe;
+	}
+	
+	/**
+	 * Gets the number of queues of the attempt
+	 * @return The number of queues that were attempted to be subscribed or unsubscribed
+	 */
+	public int getQueueCount() {
+		return queueCount;
+	}
+	
+}
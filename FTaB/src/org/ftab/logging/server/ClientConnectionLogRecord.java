@@ -107,6 +107,12 @@ public class ClientConnectionLogRecord extends ServerLogRecord {
 		this.success = false;
 	}
 	
+	@Override
+	public ClientConnectionLogRecord withArguments(Object... args) {
+		super.withArguments(args);
+		return this;
+	}
+	
 	/**
 	 * Gets the client address of the client associated with the log
 	 * @return The client address
@@ -21,6 +21,21 @@ public class ServerLogRecord extends SystemLogRecord {
 	
 	private final static String logMessageFormat = "%s - %s | %s";
 	
+	/**
+	 * The message as given, without the date and unit tag
+	 */
+	private String rawMessage;
+	
+	/**
+	 * The arguments of the message, if it is a format string
+	 */
+	private transient Object[] arguments;
+	
+	/**
+	 * The formatted message, built the first time it is requested
+	 */
+	private transient volatile String formattedMessage;
+	
 	/**
 	 * Creates a new server log record
 	 * @param level The level associated with the record
@@ -50,11 +65,41 @@ public class ServerLogRecord extends SystemLogRecord {
 		this.setMessage(msg);
 	}
 	
+	/**
+	 * Sets the message, which is only formatted when the record is written
+	 * so records that are filtered out cost no formatting
+	 */
 	@Override
 	public void setMessage(String message) {
-		super.setMessage(String.format(logMessageFormat, 
-				ServerLogger.calcDate(this.getMillis()), 
-				unitTag, message));
+		this.rawMessage = message;
+		this.formattedMessage = null;
+	}
+	
+	/**
+	 * Sets the arguments of the message, which is then treated as a format 
+	 * string for String.format. The arguments should be immutable, they are 
+	 * formatted later on the thread writing the record.
+	 * @param args The arguments of the message
+	 * @return This record
+	 */
+	public ServerLogRecord withArguments(Object... args) {
+		this.arguments = args;
+		this.formattedMessage = null;
+		return this;
+	}
+	
+	@Override
+	public String getMessage() {
+		String message = formattedMessage;
+		if (message == null) {
+			String body = arguments == null ? rawMessage 
+					: String.format(rawMessage, arguments);
+			message = String.format(logMessageFormat, 
+					ServerLogger.calcDate(this.getMillis()), 
+					unitTag, body);
+			formattedMessage = message;
+		}
+		return message;
 	}
 	
 	/**
@@ -84,5 +84,10 @@ public class ServerManagerLogRecord extends ServerLogRecord {
 		
 		this.setThrown(thrown);
 	}
-	
+
+	@Override
+	public ServerManagerLogRecord withArguments(Object... args) {
+		super.withArguments(args);
+		return this;
+	}
 }
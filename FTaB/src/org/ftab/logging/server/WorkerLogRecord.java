@@ -57,4 +57,10 @@ public class WorkerLogRecord extends ServerLogRecord {
 		
 		this.setThrown(e);
 	}
+
+	@Override
+	public WorkerLogRecord withArguments(Object... args) {
+		super.withArguments(args);
+		return this;
+	}
 }
@@ -0,0 +1,187 @@
+/**
+ * AdmissionQueue.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Waiting room for the connections accepted while the server is full. The
+ * connections wait in arrival order until a worker has capacity for them or
+ * their maximum wait expires, and the connections that don't fit in the room
+ * are rejected right away. This queue is only used by the thread of the
+ * {@link ServerManager}.
+ */
+public class AdmissionQueue {
+
+    /**
+     * A connection waiting for a worker.
+     */
+    public static class Waiting {
+        /**
+         * Channel of the connection.
+         */
+        private final SocketChannel channel;
+        /**
+         * Context of the connection.
+         */
+        private final ConnectionContext context;
+        /**
+         * Time when the connection stops waiting, in milliseconds.
+         */
+        private final long deadline;
+
+        /**
+         * Describe a waiting connection.
+         *
+         * @param nChannel
+         *            channel of the connection.
+         * @param nContext
+         *            context of the connection.
+         * @param nDeadline
+         *            time when the connection stops waiting, in milliseconds.
+         */
+        Waiting(SocketChannel nChannel, ConnectionContext nContext,
+                long nDeadline) {
+            channel = nChannel;
+            context = nContext;
+            deadline = nDeadline;
+        }
+
+        /**
+         * Get the channel of the connection.
+         *
+         * @return the socket channel.
+         */
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Get the context of the connection.
+         *
+         * @return the connection context.
+         */
+        public ConnectionContext getContext() {
+            return context;
+        }
+    }
+
+    /**
+     * Connections in arrival order, so the deadlines are ordered too.
+     */
+    private final ArrayDeque<Waiting> waiting;
+
+    /**
+     * Maximum number of waiting connections.
+     */
+    private final int capacity;
+
+    /**
+     * Maximum time a connection waits, in milliseconds.
+     */
+    private final long maxWait;
+
+    /**
+     * Create an empty waiting room.
+     *
+     * @param nCapacity
+     *            maximum number of waiting connections, 0 to reject every
+     *            connection while the server is full.
+     * @param nMaxWait
+     *            maximum time a connection waits, in milliseconds.
+     */
+    public AdmissionQueue(int nCapacity, long nMaxWait) {
+        waiting = new ArrayDeque<Waiting>();
+        capacity = nCapacity;
+        maxWait = nMaxWait;
+    }
+
+    /**
+     * Put a connection in the waiting room if there is room for it.
+     *
+     * @param channel
+     *            channel of the connection.
+     * @param context
+     *            context of the connection.
+     * @param now
+     *            current time in milliseconds.
+     * @return true if the connection waits, false if it must be rejected.
+     */
+    public boolean offer(SocketChannel channel, ConnectionContext context,
+            long now) {
+        if (waiting.size() >= capacity)
+            return false;
+        waiting.add(new Waiting(channel, context, now + maxWait));
+        return true;
+    }
+
+    /**
+     * Take the connection that has waited the longest.
+     *
+     * @return the connection, or null if the room is empty.
+     */
+    public Waiting poll() {
+        return waiting.poll();
+    }
+
+    /**
+     * Take the connection that has waited the longest if its wait expired.
+     *
+     * @param now
+     *            current time in milliseconds.
+     * @return the expired connection, or null if there is none.
+     */
+    public Waiting pollExpired(long now) {
+        Waiting first = waiting.peek();
+        if (first == null || first.deadline > now)
+            return null;
+        return waiting.poll();
+    }
+
+    /**
+     * Get the time until the next wait expires.
+     *
+     * @param now
+     *            current time in milliseconds.
+     * @return the time in milliseconds, at least 1, or 0 if the room is
+     *         empty.
+     */
+    public long timeToNextExpiration(long now) {
+        Waiting first = waiting.peek();
+        if (first == null)
+            return 0;
+        return Math.max(1, first.deadline - now);
+    }
+
+    /**
+     * Estimate how long a rejected client should wait before connecting
+     * again, long enough for the room to drain at least once.
+     *
+     * @return the time in milliseconds.
+     */
+    public long getRetryAfter() {
+        return Math.max(maxWait, 1);
+    }
+
+    /**
+     * Check if there are connections waiting.
+     *
+     * @return true if the room is empty.
+     */
+    public boolean isEmpty() {
+        return waiting.isEmpty();
+    }
+
+    /**
+     * Get the number of waiting connections.
+     *
+     * @return the size of the room.
+     */
+    public int size() {
+        return waiting.size();
+    }
+}
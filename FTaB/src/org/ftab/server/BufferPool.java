@@ -0,0 +1,152 @@
+/**
+ * BufferPool.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of direct buffers in power of two size classes. The socket channels
+ * read into and write from direct buffers without the copy through a
+ * temporary native buffer that heap buffers need, and reusing them avoids
+ * the cost of allocating native memory for each request. Requests bigger
+ * than the largest class get heap buffers that are not pooled. The pool is
+ * owned by one worker and is not thread-safe.
+ */
+public class BufferPool {
+
+    /**
+     * Size of the smallest class, in bytes.
+     */
+    public static final int MIN_BUFFER_SIZE = 512;
+
+    /**
+     * Size of the largest class, in bytes.
+     */
+    public static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default number of bytes kept in the idle buffers of a pool.
+     */
+    public static final int DEFAULT_MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Idle buffers by size class, the smallest first.
+     */
+    private final List<ArrayDeque<ByteBuffer>> classes;
+
+    /**
+     * Maximum number of bytes kept in the idle buffers, a released buffer
+     * that doesn't fit is left to the garbage collector.
+     */
+    private final int maxPooledBytes;
+
+    /**
+     * Number of bytes in the idle buffers.
+     */
+    private int pooledBytes;
+
+    /**
+     * Number of direct buffers allocated by the pool.
+     */
+    private long allocations;
+
+    /**
+     * Create an empty pool.
+     *
+     * @param nMaxPooledBytes
+     *            maximum number of bytes kept in the idle buffers.
+     */
+    public BufferPool(int nMaxPooledBytes) {
+        int count = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE)
+                - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1;
+        classes = new ArrayList<ArrayDeque<ByteBuffer>>(count);
+        for (int i = 0; i < count; i++)
+            classes.add(new ArrayDeque<ByteBuffer>());
+        maxPooledBytes = nMaxPooledBytes;
+        pooledBytes = 0;
+        allocations = 0;
+    }
+
+    /**
+     * Get the index of the smallest class that holds the given size.
+     *
+     * @param size
+     *            number of bytes, at most MAX_BUFFER_SIZE.
+     * @return the index of the class.
+     */
+    private static int classOf(int size) {
+        if (size <= MIN_BUFFER_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1)
+                - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * Take a buffer for the given number of bytes.
+     *
+     * @param size
+     *            number of bytes needed.
+     * @return a buffer with its position set to zero and its limit set to
+     *         the given size. It is direct unless the size is bigger than
+     *         the largest class.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > MAX_BUFFER_SIZE)
+            return ByteBuffer.allocate(size);
+        int index = classOf(size);
+        ByteBuffer buffer = classes.get(index).poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << index);
+            allocations++;
+        } else {
+            pooledBytes -= buffer.capacity();
+            buffer.clear();
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer taken from a pool, it must not be used afterwards.
+     * Buffers that don't belong to any pool are ignored.
+     *
+     * @param buffer
+     *            buffer to give back.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity < MIN_BUFFER_SIZE
+                || capacity > MAX_BUFFER_SIZE
+                || Integer.bitCount(capacity) != 1)
+            return;
+        if (pooledBytes + capacity > maxPooledBytes)
+            return;
+        classes.get(classOf(capacity)).push(buffer);
+        pooledBytes += capacity;
+    }
+
+    /**
+     * Get the number of bytes in the idle buffers.
+     *
+     * @return the number of bytes.
+     */
+    public int getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * Get the number of direct buffers allocated by the pool, the buffers
+     * taken from the idle ones are not counted.
+     *
+     * @return the number of allocations.
+     */
+    public long getAllocations() {
+        return allocations;
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * CachingConnection.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedList;
+
+/**
+ * Physical database connection of the {@link DBConnectionDispatcher} pool
+ * together with its {@link StatementCache}. Each time the connection is
+ * handed out it is wrapped in a new logical connection: closing the logical
+ * connection returns the physical one to the pool, and closing the statements
+ * it prepares returns them to the cache, so the DAOs reuse the prepared
+ * statements without knowing about the cache.
+ */
+class CachingConnection {
+    /**
+     * The physical connection.
+     */
+    private final Connection physical;
+
+    /**
+     * Cache of the prepared statements of the physical connection.
+     */
+    private final StatementCache cache;
+
+    /**
+     * Pool that owns the connection.
+     */
+    private final DBConnectionDispatcher pool;
+
+    /**
+     * Time when the physical connection was opened, in nanoseconds.
+     */
+    final long createdAt;
+
+    /**
+     * Time when the connection was last returned to the pool, in nanoseconds,
+     * guarded by the pool.
+     */
+    long releasedAt;
+
+    /**
+     * Time when the connection was last handed out, in nanoseconds, guarded by
+     * the pool.
+     */
+    long checkedOutAt;
+
+    /**
+     * Name of the thread that last retrieved the connection, guarded by the
+     * pool.
+     */
+    String checkoutThread;
+
+    /**
+     * Stack of the last retrieval of the connection, only captured when the
+     * pool traces the leaks, guarded by the pool.
+     */
+    Throwable checkoutTrace;
+
+    /**
+     * Indicates if the current use of the connection was already reported as
+     * a leak, guarded by the pool.
+     */
+    boolean leakReported;
+
+    /**
+     * Wrap a physical connection.
+     * 
+     * @param nPhysical
+     *            the physical connection.
+     * @param cacheSize
+     *            maximum number of idle statements kept.
+     * @param prepareThreshold
+     *            number of executions after which a statement is prepared in
+     *            the server, 0 for the driver's default.
+     * @param nPool
+     *            pool that owns the connection.
+     */
+    CachingConnection(Connection nPhysical, int cacheSize,
+            int prepareThreshold, DBConnectionDispatcher nPool) {
+        physical = nPhysical;
+        cache = new StatementCache(nPhysical, cacheSize, prepareThreshold);
+        pool = nPool;
+        createdAt = System.nanoTime();
+        releasedAt = createdAt;
+    }
+
+    /**
+     * Get the physical connection.
+     * 
+     * @return the physical connection.
+     */
+    Connection getPhysical() {
+        return physical;
+    }
+
+    /**
+     * Get the statement cache of the connection.
+     * 
+     * @return the statement cache.
+     */
+    StatementCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Create a logical connection for a new user of the physical connection.
+     * 
+     * @return the logical connection.
+     */
+    Connection checkout() {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new LogicalConnection());
+    }
+
+    /**
+     * Close the statements and the physical connection, ignoring errors since
+     * the connection is discarded.
+     */
+    void close() {
+        cache.close();
+        try {
+            physical.close();
+        } catch (SQLException e) {
+            // The connection is discarded either way
+        }
+    }
+
+    /**
+     * Invoke a method on the physical object, unwrapping the exceptions.
+     * 
+     * @param target
+     *            physical object.
+     * @param method
+     *            method to invoke.
+     * @param args
+     *            arguments of the call.
+     * @return result of the call.
+     * @throws Throwable
+     *             the exception thrown by the method.
+     */
+    private static Object delegate(Object target, Method method, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Logical connection handed to one user of the physical connection.
+     */
+    private class LogicalConnection implements InvocationHandler {
+        /**
+         * Statements prepared through this connection and not closed yet.
+         */
+        private final LinkedList<LogicalStatement> openStatements = new LinkedList<LogicalStatement>();
+
+        /**
+         * Indicates if the logical connection was closed.
+         */
+        private boolean closed = false;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                if (!closed) {
+                    closed = true;
+                    while (!openStatements.isEmpty())
+                        openStatements.getFirst().close();
+                    pool.releaseConnection(CachingConnection.this);
+                }
+                return null;
+            } else if (name.equals("isClosed")) {
+                return closed || physical.isClosed();
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "Pooled " + physical.toString();
+            }
+            if (closed)
+                throw new SQLException("The connection was already closed.");
+            if (name.equals("prepareStatement") && args.length == 1) {
+                String sql = (String) args[0];
+                LogicalStatement handler = new LogicalStatement(sql,
+                        cache.acquire(sql), (Connection) proxy, this);
+                openStatements.add(handler);
+                return Proxy.newProxyInstance(
+                        PreparedStatement.class.getClassLoader(),
+                        new Class<?>[] { PreparedStatement.class }, handler);
+            }
+            return delegate(physical, method, args);
+        }
+    }
+
+    /**
+     * Prepared statement handed out by a logical connection, closing it gives
+     * the physical statement back to the cache.
+     */
+    private class LogicalStatement implements InvocationHandler {
+        /**
+         * SQL text of the statement.
+         */
+        private final String sql;
+
+        /**
+         * The physical statement.
+         */
+        private final PreparedStatement statement;
+
+        /**
+         * Logical connection that prepared the statement, as seen by the user.
+         */
+        private final Connection connection;
+
+        /**
+         * Handler of the logical connection that prepared the statement.
+         */
+        private final LogicalConnection owner;
+
+        /**
+         * Indicates if the logical statement was closed.
+         */
+        private boolean closed = false;
+
+        /**
+         * Wrap a physical statement.
+         * 
+         * @param nSql
+         *            SQL text of the statement.
+         * @param nStatement
+         *            the physical statement.
+         * @param nConnection
+         *            logical connection that prepared the statement.
+         * @param nOwner
+         *            handler of the logical connection.
+         */
+        LogicalStatement(String nSql, PreparedStatement nStatement,
+                Connection nConnection, LogicalConnection nOwner) {
+            sql = nSql;
+            statement = nStatement;
+            connection = nConnection;
+            owner = nOwner;
+        }
+
+        /**
+         * Give the physical statement back to the cache.
+         */
+        void close() {
+            if (!closed) {
+                closed = true;
+                owner.openStatements.remove(this);
+                cache.release(sql, statement);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                close();
+                return null;
+            } else if (name.equals("isClosed")) {
+                return closed || statement.isClosed();
+            } else if (name.equals("getConnection")) {
+                return connection;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return statement.toString();
+            }
+            if (closed)
+                throw new SQLException("The statement was already closed.");
+            return delegate(statement, method, args);
+        }
+    }
+}
@@ -7,40 +7,49 @@ package org.ftab.server;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.ftab.communication.Heartbeat;
 import org.ftab.communication.ProtocolMessage;
+import org.ftab.communication.ProtocolMessage.MessageType;
 import org.ftab.communication.exceptions.InvalidHeaderException;
 import org.ftab.communication.requests.ConnectionRequest;
 import org.ftab.communication.requests.QueueModificationRequest;
 import org.ftab.communication.requests.RetrieveMessageRequest;
+import org.ftab.communication.requests.SendMessageBatchRequest;
 import org.ftab.communication.requests.SendMessageRequest;
+import org.ftab.communication.requests.SubscriptionRequest;
 import org.ftab.communication.responses.GetQueuesResponse;
 import org.ftab.communication.responses.RequestResponse;
 import org.ftab.communication.responses.RequestResponse.Status;
 import org.ftab.communication.responses.RetrieveMessageResponse;
+import org.ftab.communication.responses.RetrieveMessagesResponse;
 import org.ftab.database.Client;
 import org.ftab.database.Message;
-import org.ftab.database.client.ChangeClientStatus;
-import org.ftab.database.client.CreateClient;
-import org.ftab.database.client.FetchClient;
+import org.ftab.database.MessageStore;
+import org.ftab.database.StoreTransaction;
 import org.ftab.database.exceptions.CreateMessageException;
 import org.ftab.database.exceptions.InexistentClientException;
 import org.ftab.database.exceptions.InexistentQueueException;
 import org.ftab.database.exceptions.QueueAlreadyExistsException;
 import org.ftab.database.exceptions.QueueNotEmptyException;
+import org.ftab.database.exceptions.StaleQueueException;
 import org.ftab.database.message.CreateMessage;
-import org.ftab.database.message.DeleteMessage;
-import org.ftab.database.message.RetrieveMessage;
-import org.ftab.database.queue.CreateQueue;
-import org.ftab.database.queue.DeleteQueue;
-import org.ftab.database.queue.GetQueuesWithMessages;
 import org.ftab.logging.SystemEvent;
 import org.ftab.logging.server.ClientConnectionLogRecord;
 import org.ftab.pubenums.Filter;
@@ -49,7 +58,17 @@ import org.ftab.server.exceptions.RemoteSocketClosedException;
 
 /**
  * Framework object that takes care of processing the requests from a single
- * client in the associated socket channel.
+ * client in the associated socket channel. When a {@link DatabaseStage} is
+ * provided the decoded requests are executed there, one at a time per client so
+ * the responses keep the order of the requests, and the results are handed back
+ * to the owning {@link MessagingWorker}. Otherwise the requests are executed in
+ * the thread that reads them. With a stage and a {@link MessageNotifier} a
+ * retrieve request with a wait timeout that finds no message is parked,
+ * without holding a stage thread, until a matching message is announced or the
+ * timeout expires, and only then answered. The same components allow the
+ * client to subscribe to queues, whose messages are then pushed to it as they
+ * arrive, independently of its requests, for as long as the subscription has
+ * credits.
  */
 public class ClientConnection {
 	/**
@@ -76,18 +95,36 @@ public class ClientConnection {
 		IDLE, WRITING, DISCONNECT
 	};
 
+	/**
+	 * Maximum number of queued buffers handed to a single gathering write.
+	 */
+	private static final int MAX_GATHERED_BUFFERS = 64;
+
+	/**
+	 * Time in milliseconds after which a subscription fetch rejected by the
+	 * database stage is submitted again.
+	 */
+	private static final long FETCH_RETRY_DELAY = 100;
+
 	/**
 	 * Fixed size buffer to maintain the header of requests.
 	 */
 	private final ByteBuffer headerBuffer;
 	/**
-	 * Dynamic buffer to store the body of requests.
+	 * Dynamic buffer to store the body of requests, taken from the buffer
+	 * pool of the worker.
 	 */
 	private ByteBuffer bodyBuffer;
 	/**
-	 * Queue with buffers to write through the socket.
+	 * Queue with buffers to write through the socket, the direct ones were
+	 * taken from the buffer pool of the worker.
 	 */
 	private LinkedList<ByteBuffer> writeBuffer;
+	/**
+	 * Array reused to hand the head of the write queue to a gathering write,
+	 * created on the first write.
+	 */
+	private ByteBuffer[] gatheredBuffers;
 	/**
 	 * Database client object with the client information.
 	 */
@@ -98,34 +135,338 @@ public class ClientConnection {
 	private ReadStatus readingStatus;
 	/**
 	 * Status of the connection, indicates if the client did the initial
-	 * connection request already.
+	 * connection request already. It is set from the database stage and read
+	 * by the worker when it reaps the connection.
 	 */
-	private boolean connected;
+	private volatile boolean connected;
 	/**
 	 * Flag to indicate that as soon as the write queue is empty we must
-	 * disconnect the socket.
+	 * disconnect the socket. It is set from the database stage.
 	 */
-	private boolean disconnectionRequested;
+	private volatile boolean disconnectionRequested;
 	/**
-	 * Database connection pool handler.
+	 * Store of the clients, queues and messages.
 	 */
-	private final DBConnectionDispatcher dbConnectionDispatcher;
+	private final MessageStore messageStore;
+	/**
+	 * Stage where the database work is executed, null if the requests are
+	 * processed in the reading thread.
+	 */
+	private final DatabaseStage databaseStage;
+	/**
+	 * Worker that owns the channel and must be notified of completed requests.
+	 * It only changes while the connection has no work in progress.
+	 */
+	private MessagingWorker worker;
+	/**
+	 * Key of the channel in the worker's selector.
+	 */
+	private SelectionKey selectionKey;
+	/**
+	 * Decoded requests waiting for the previous request of this client to
+	 * complete. Only touched by the worker thread.
+	 */
+	private final LinkedList<ProtocolMessage> pendingRequests;
+	/**
+	 * Indicates that a request of this client is in the database stage. Only
+	 * touched by the worker thread.
+	 */
+	private boolean requestInFlight;
+	/**
+	 * Responses produced by the database stage that the worker has not moved to
+	 * the write queue yet.
+	 */
+	private final ConcurrentLinkedQueue<ByteBuffer> completedResponses;
+	/**
+	 * Highest protocol version this connection may negotiate.
+	 */
+	private byte maxProtocolVersion;
+	/**
+	 * Protocol version negotiated with the client in its connection request,
+	 * it determines the encoding of the responses.
+	 */
+	private volatile byte protocolVersion;
+	/**
+	 * Indicates if the client advertised PING and PONG when it connected,
+	 * regardless of the encoding negotiated for the responses.
+	 */
+	private volatile boolean heartbeats;
+	/**
+	 * Registry of the requests waiting for messages, null if retrieve requests
+	 * are never parked.
+	 */
+	private final MessageNotifier messageNotifier;
+	/**
+	 * Time of the last read from the client in milliseconds. Only touched by
+	 * the worker thread.
+	 */
+	private long lastActivity;
+	/**
+	 * Time when the client was pinged for being idle in milliseconds, 0 if it
+	 * wasn't. Only touched by the worker thread.
+	 */
+	private long pingSentAt;
+	/**
+	 * Retrieve request of this client that is parked waiting for a message,
+	 * null if there is none.
+	 */
+	private volatile ParkedRetrieval parkedRetrieval;
+	/**
+	 * Indicates that the socket channel was closed, a parked request is then
+	 * dropped instead of retried.
+	 */
+	private volatile boolean closed;
+	/**
+	 * Subscriptions of the client by queue name, guarded by itself.
+	 */
+	private final HashMap<String, Subscription> subscriptions;
+	/**
+	 * Buffers with the messages pushed for the subscriptions, waiting to be
+	 * moved to the write queue by the owning worker.
+	 */
+	private final ConcurrentLinkedQueue<ByteBuffer> pushedMessages;
+	/**
+	 * Context of the connection with the address and the traffic counters,
+	 * created on the first read if none was given.
+	 */
+	private ConnectionContext context;
+	/**
+	 * Registry where the latencies of the requests are recorded, null if they
+	 * are not measured.
+	 */
+	private RequestMetrics requestMetrics;
+	/**
+	 * Time at which the request in flight started executing, in nanoseconds.
+	 * This and the next two fields are only touched by the thread executing
+	 * the request in flight.
+	 */
+	private long requestStarted;
+	/**
+	 * Kind of the request in flight.
+	 */
+	private SystemEvent requestEvent;
+	/**
+	 * Status of the last response encoded for the request in flight.
+	 */
+	private Status responseStatus;
 
 	/**
 	 * Create a new framework object with the given DB connection pool and
-	 * initial disconnected state. It is ready to read requests.
+	 * initial disconnected state. It is ready to read requests, which will be
+	 * processed in the thread that reads them.
 	 * 
 	 * @param nDispatcher
 	 *            database connection pool handler.
 	 */
 	public ClientConnection(DBConnectionDispatcher nDispatcher) {
+		this(nDispatcher, null, null, null);
+	}
+
+	/**
+	 * Create a new framework object that executes the requests in the given
+	 * database stage and reports the completions to the given worker.
+	 * 
+	 * @param nDispatcher
+	 *            database connection pool handler.
+	 * @param nStage
+	 *            stage where the database work is executed, may be null.
+	 * @param nWorker
+	 *            worker that owns the channel, may be null only if the stage
+	 *            is null.
+	 * @param nNotifier
+	 *            registry of the requests waiting for messages, if null the
+	 *            retrieve requests are always answered immediately.
+	 */
+	public ClientConnection(DBConnectionDispatcher nDispatcher,
+			DatabaseStage nStage, MessagingWorker nWorker,
+			MessageNotifier nNotifier) {
+		this(nDispatcher, nStage, nWorker, nNotifier, null);
+	}
+
+	/**
+	 * Create a new framework object for an accepted connection, executing the
+	 * requests in the given database stage and reporting the completions to
+	 * the given worker.
+	 * 
+	 * @param nDispatcher
+	 *            database connection pool handler.
+	 * @param nStage
+	 *            stage where the database work is executed, may be null.
+	 * @param nWorker
+	 *            worker that owns the channel, may be null only if the stage
+	 *            is null.
+	 * @param nNotifier
+	 *            registry of the requests waiting for messages, if null the
+	 *            retrieve requests are always answered immediately.
+	 * @param nContext
+	 *            context of the connection, if null it is created from the
+	 *            channel on the first read.
+	 */
+	public ClientConnection(DBConnectionDispatcher nDispatcher,
+			DatabaseStage nStage, MessagingWorker nWorker,
+			MessageNotifier nNotifier, ConnectionContext nContext) {
+		this(new PostgresMessageStore(nDispatcher), nStage, nWorker,
+				nNotifier, nContext);
+	}
+
+	/**
+	 * Create a new framework object for an accepted connection that keeps the
+	 * clients, queues and messages in the given store, executing the requests
+	 * in the given database stage and reporting the completions to the given
+	 * worker.
+	 * 
+	 * @param nStore
+	 *            store of the clients, queues and messages.
+	 * @param nStage
+	 *            stage where the database work is executed, may be null.
+	 * @param nWorker
+	 *            worker that owns the channel, may be null only if the stage
+	 *            is null.
+	 * @param nNotifier
+	 *            registry of the requests waiting for messages, if null the
+	 *            retrieve requests are always answered immediately.
+	 * @param nContext
+	 *            context of the connection, if null it is created from the
+	 *            channel on the first read.
+	 */
+	public ClientConnection(MessageStore nStore, DatabaseStage nStage,
+			MessagingWorker nWorker, MessageNotifier nNotifier,
+			ConnectionContext nContext) {
 		headerBuffer = ByteBuffer.allocate(ProtocolMessage.HEADER_SIZE);
 		client = null;
 		connected = false;
 		readingStatus = ReadStatus.READING_HEADER;
 		writeBuffer = new LinkedList<ByteBuffer>();
-		dbConnectionDispatcher = nDispatcher;
+		messageStore = nStore;
+		databaseStage = nStage;
+		worker = nWorker;
 		disconnectionRequested = false;
+		pendingRequests = new LinkedList<ProtocolMessage>();
+		requestInFlight = false;
+		completedResponses = new ConcurrentLinkedQueue<ByteBuffer>();
+		maxProtocolVersion = ProtocolMessage.PROTOCOL_VERSION;
+		protocolVersion = ProtocolMessage.TEXT_PROTOCOL_VERSION;
+		heartbeats = false;
+		messageNotifier = nNotifier;
+		parkedRetrieval = null;
+		closed = false;
+		subscriptions = new HashMap<String, Subscription>();
+		pushedMessages = new ConcurrentLinkedQueue<ByteBuffer>();
+		context = nContext;
+		lastActivity = System.currentTimeMillis();
+		pingSentAt = 0;
+	}
+
+	/**
+	 * Get the context of the connection, creating it if needed. This must be
+	 * called from the thread of the owning worker.
+	 * 
+	 * @param sc
+	 *            socket channel of the client.
+	 * @return the context of the connection.
+	 */
+	private ConnectionContext getContext(SocketChannel sc) {
+		if (context == null)
+			context = new ConnectionContext(sc);
+		return context;
+	}
+
+	/**
+	 * Get the context of the connection.
+	 * 
+	 * @return the context, or null if the connection didn't read anything
+	 *         yet and was created without one.
+	 */
+	public ConnectionContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Set the key of the channel in the owning worker's selector, it is used to
+	 * notify the worker of completed requests.
+	 * 
+	 * @param key
+	 *            selection key of the channel.
+	 */
+	void setSelectionKey(SelectionKey key) {
+		selectionKey = key;
+	}
+
+	/**
+	 * Hand the connection to another worker. This must be called while the
+	 * connection is quiescent, after its key in the old worker was cancelled.
+	 * 
+	 * @param nWorker
+	 *            new owner of the channel.
+	 * @param key
+	 *            selection key of the channel in the new worker's selector.
+	 */
+	void moveTo(MessagingWorker nWorker, SelectionKey key) {
+		worker = nWorker;
+		selectionKey = key;
+	}
+
+	/**
+	 * Indicates if the connection has no work in progress, so no other thread
+	 * will look for its worker or key and it can be moved to another worker.
+	 * This must be called from the thread of the owning worker.
+	 * 
+	 * @return true if the connection is quiescent, false otherwise.
+	 */
+	boolean isQuiescent() {
+		if (requestInFlight || closed || disconnectionRequested
+				|| !pendingRequests.isEmpty() || !writeBuffer.isEmpty()
+				|| !completedResponses.isEmpty() || !pushedMessages.isEmpty())
+			return false;
+		synchronized (subscriptions) {
+			return subscriptions.isEmpty();
+		}
+	}
+
+	/**
+	 * Set the highest protocol version that can be negotiated with the client,
+	 * it must be called before the first request is read.
+	 * 
+	 * @param version
+	 *            highest protocol version.
+	 */
+	void setMaxProtocolVersion(byte version) {
+		maxProtocolVersion = version;
+	}
+
+	/**
+	 * Set the registry where the latencies of the requests are recorded, it
+	 * must be called before the first request is read.
+	 * 
+	 * @param metrics
+	 *            registry of the latencies.
+	 */
+	void setRequestMetrics(RequestMetrics metrics) {
+		requestMetrics = metrics;
+	}
+
+	/**
+	 * Serialize a response to the request in flight with the encoding
+	 * negotiated with the client.
+	 * 
+	 * @param response
+	 *            response to serialize.
+	 * @return buffer with the full response message.
+	 */
+	private ByteBuffer encodeResponse(ProtocolMessage response) {
+		responseStatus = response instanceof RequestResponse ? ((RequestResponse) response)
+				.getStatus() : Status.SUCCESS;
+		return ProtocolMessage.toBytes(response, protocolVersion);
+	}
+
+	/**
+	 * Record the latency of the request in flight, once its response is
+	 * ready.
+	 */
+	private void recordLatency() {
+		if (requestMetrics != null && requestEvent != null)
+			requestMetrics.record(requestEvent, responseStatus,
+					System.nanoTime() - requestStarted);
 	}
 
 	/**
@@ -144,7 +485,9 @@ public class ClientConnection {
 	 */
 	public boolean processRead(SocketChannel sc) throws IOException,
 			RemoteSocketClosedException {
-		final String socketAddresss = ServerLogger.parseSocketAddress(sc);
+		final ConnectionContext ctx = getContext(sc);
+		final String socketAddresss = ctx.getAddress();
+		lastActivity = System.currentTimeMillis();
 
 		if (disconnectionRequested) {
 			// Block the reads if a disconnect was requested, let the outbound
@@ -163,6 +506,7 @@ public class ClientConnection {
 		switch (readingStatus) {
 		case READING_HEADER:
 			int r = sc.read(headerBuffer);
+			ctx.recordRead(r);
 			if (r < 0) {
 				LOGGER.log(new ClientConnectionLogRecord(Level.SEVERE,
 						socketAddresss, SystemEvent.BUFFER_IO,
@@ -175,15 +519,13 @@ public class ClientConnection {
 				try {
 					int bodyLength = processHeader();
 					readingStatus = ReadStatus.READING_BODY;
-					bodyBuffer = ByteBuffer.allocate(bodyLength);
+					bodyBuffer = acquireBuffer(bodyLength);
 
-					LOGGER.log(new ClientConnectionLogRecord(
-							socketAddresss,
+					LOGGER.log(new ClientConnectionLogRecord(socketAddresss,
 							SystemEvent.BUFFER_IO,
-							String.format(
-									"Finished reading header for new request"
-											+ " from %s expecting now %d bytes for the body",
-									socketAddresss, bodyLength)));
+							"Finished reading header for new request"
+									+ " from %s expecting now %d bytes for the body")
+							.withArguments(socketAddresss, bodyLength));
 
 				} catch (InvalidHeaderException e) {
 					LOGGER.log(new ClientConnectionLogRecord(socketAddresss,
@@ -198,6 +540,7 @@ public class ClientConnection {
 			return false;
 		case READING_BODY:
 			int k = sc.read(bodyBuffer);
+			ctx.recordRead(k);
 			if (k < 0) {
 				LOGGER.log(new ClientConnectionLogRecord(Level.SEVERE,
 						socketAddresss, SystemEvent.BUFFER_IO,
@@ -206,12 +549,35 @@ public class ClientConnection {
 			}
 			if (!bodyBuffer.hasRemaining()) {
 				bodyBuffer.flip();
-				boolean needWrite = processBody(ServerLogger
-						.parseSocketAddress(sc));
+				ProtocolMessage request;
+				try {
+					request = ProtocolMessage.fromBytes(bodyBuffer);
+				} catch (RuntimeException e) {
+					// The whole frame was read so the connection stays usable,
+					// the error is answered in turn with the other requests
+					LOGGER.log(new ClientConnectionLogRecord(socketAddresss,
+							SystemEvent.BUFFER_IO,
+							"Received a malformed request from "
+									+ socketAddresss + ".", e));
+					request = new RequestResponse(Status.EXCEPTION,
+							"Malformed request: " + e.getMessage());
+				}
+				// The decoded request doesn't keep references to the body
+				releaseBuffer(bodyBuffer);
 				headerBuffer.clear();
 				bodyBuffer = null;
 				readingStatus = ReadStatus.READING_HEADER;
-				return needWrite;
+				switch (request.getMessageType()) {
+				case PING:
+					// Answered right away, it doesn't wait for the requests
+					return queueResponse(ProtocolMessage.toBytes(new Heartbeat(
+							false), protocolVersion));
+				case PONG:
+					return false;
+				default:
+					ctx.recordRequest();
+					return dispatchRequest(request, socketAddresss);
+				}
 			}
 			return false;
 		}
@@ -219,9 +585,704 @@ public class ClientConnection {
 	}
 
 	/**
-	 * Write bytes from the buffers in the write queue to the socket channel. It
+	 * Get the time of the last read from the client. This must be called from
+	 * the thread of the owning worker.
+	 * 
+	 * @return the time in milliseconds.
+	 */
+	long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * Get the time when the client was pinged for being idle. This must be
+	 * called from the thread of the owning worker.
+	 * 
+	 * @return the time in milliseconds, 0 if it wasn't pinged since it was
+	 *         last active.
+	 */
+	long getPingSentAt() {
+		return pingSentAt;
+	}
+
+	/**
+	 * Check the client for liveness, sending it a PING if it understands it.
+	 * This must be called from the thread of the owning worker.
+	 * 
+	 * @param now
+	 *            current time in milliseconds.
+	 * @return true if there is a new buffer in the write queue, false
+	 *         otherwise.
+	 */
+	boolean ping(long now) {
+		pingSentAt = now;
+		if (!heartbeats)
+			return false;
+		return queueResponse(ProtocolMessage.toBytes(new Heartbeat(true),
+				protocolVersion));
+	}
+
+	/**
+	 * Forget the last ping after the client was active again. This must be
+	 * called from the thread of the owning worker.
+	 */
+	void clearPing() {
+		pingSentAt = 0;
+	}
+
+	/**
+	 * Indicates if the client connected with a protocol version that
+	 * understands PING, so it can prove that it is alive when it is idle.
+	 * 
+	 * @return true if the client can be pinged, false otherwise.
+	 */
+	boolean acceptsPings() {
+		return heartbeats;
+	}
+
+	/**
+	 * Indicates if the client waits for the answer to one of its requests,
+	 * for instance a parked retrieval, so its silence is not idleness. This
+	 * must be called from the thread of the owning worker.
+	 * 
+	 * @return true if a request is in flight or pending, false otherwise.
+	 */
+	boolean isAwaitingResponse() {
+		return requestInFlight || !pendingRequests.isEmpty();
+	}
+
+	/**
+	 * Get the id of the client connected through this connection.
+	 * 
+	 * @return the id, or -1 if the client didn't connect.
+	 */
+	int getConnectedClientId() {
+		Client connectedClient = client;
+		if (!connected || connectedClient == null)
+			return -1;
+		return connectedClient.getClientId();
+	}
+
+	/**
+	 * Hand a decoded request for processing. Without a database stage the
+	 * request is processed immediately, otherwise it is queued behind the
+	 * outstanding request of this client, if any.
+	 * 
+	 * @param request
+	 *            decoded request.
+	 * @param address
+	 *            String representation of the remote address originating the
+	 *            request.
+	 * @return true if there is a new buffer in the write queue, false
+	 *         otherwise.
+	 */
+	private boolean dispatchRequest(ProtocolMessage request, String address) {
+		if (databaseStage == null) {
+			return queueResponse(processBody(request, address));
+		}
+		pendingRequests.addLast(request);
+		if (!requestInFlight)
+			return submitNextRequest(address);
+		return false;
+	}
+
+	/**
+	 * Submit the oldest pending request to the database stage. If the stage
+	 * rejects it then the client is answered with an error right away.
+	 * 
+	 * @param address
+	 *            String representation of the remote address originating the
+	 *            request.
+	 * @return true if there is a new buffer in the write queue, false
+	 *         otherwise.
+	 */
+	private boolean submitNextRequest(final String address) {
+		final ProtocolMessage request = pendingRequests.poll();
+		if (request == null)
+			return false;
+		requestInFlight = true;
+		try {
+			databaseStage.submit(new StageTask(address) {
+				@Override
+				protected ByteBuffer execute() {
+					return processBody(request, address);
+				}
+			});
+			return false;
+		} catch (RejectedExecutionException e) {
+			LOGGER.log(new ClientConnectionLogRecord(Level.WARNING, address,
+					eventOf(request), "The database stage rejected a "
+							+ "request from " + address + "."));
+
+			requestInFlight = false;
+			queueResponse(encodeResponse(new RequestResponse(
+					Status.EXCEPTION, "The server is overloaded.")));
+			submitNextRequest(address);
+			return true;
+		}
+	}
+
+	/**
+	 * Task that carries out a request of this client in the database stage
+	 * and hands the response to the owning worker. If the request is parked
+	 * the worker is not notified, the request is still in flight until the
+	 * parked retrieval completes.
+	 */
+	private abstract class StageTask implements Runnable {
+		/**
+		 * String representation of the remote address of the client.
+		 */
+		private final String address;
+
+		/**
+		 * Create a task for a request of the client.
+		 * 
+		 * @param nAddress
+		 *            String representation of the remote address of the
+		 *            client.
+		 */
+		StageTask(String nAddress) {
+			address = nAddress;
+		}
+
+		/**
+		 * Carry out the request.
+		 * 
+		 * @return buffer with the response, or null if the request was parked.
+		 */
+		protected abstract ByteBuffer execute();
+
+		@Override
+		public void run() {
+			ByteBuffer response = null;
+			try {
+				response = execute();
+			} catch (RuntimeException e) {
+				LOGGER.log(new ClientConnectionLogRecord(address,
+						SystemEvent.BUFFER_IO,
+						"Unexpected error while processing a request from "
+								+ address + ".", e));
+				ParkedRetrieval parked = parkedRetrieval;
+				if (parked != null)
+					parked.cancel();
+				response = encodeResponse(new RequestResponse(
+						Status.EXCEPTION, e.toString()));
+				recordLatency();
+			} finally {
+				if (response != null)
+					completeRequest(response);
+			}
+		}
+	}
+
+	/**
+	 * Hand the response of the request in flight to the owning worker.
+	 * 
+	 * @param response
+	 *            buffer with the response.
+	 */
+	private void completeRequest(ByteBuffer response) {
+		completedResponses.add(response);
+		worker.requestCompleted(selectionKey);
+	}
+
+	/**
+	 * Retrieve request waiting for a message. It is registered in the
+	 * notifier before the messages are queried, so a message created while the
+	 * query runs is not missed, and it is retried in the database stage once
+	 * signalled by the notifier or by its timeout. A retry after the deadline
+	 * answers the request with whatever it finds.
+	 */
+	private class ParkedRetrieval implements Runnable {
+		/**
+		 * The request is registered and its query is running.
+		 */
+		private final static int QUERYING = 0;
+		/**
+		 * The query found nothing and the request waits for a signal.
+		 */
+		private final static int PARKED = 1;
+		/**
+		 * The request was signalled while its query was running.
+		 */
+		private final static int SIGNALLED = 2;
+		/**
+		 * The request was retried or cancelled.
+		 */
+		private final static int DONE = 3;
+
+		/**
+		 * Current state of the retrieval.
+		 */
+		private final AtomicInteger state;
+		/**
+		 * The parked request.
+		 */
+		private final RetrieveMessageRequest request;
+		/**
+		 * String representation of the remote address of the client.
+		 */
+		private final String address;
+		/**
+		 * Time at which the request must be answered, in milliseconds.
+		 */
+		private final long deadline;
+		/**
+		 * Key the retrieval is registered under in the notifier.
+		 */
+		private final String key;
+		/**
+		 * Pending expiration of the retrieval, null until parked.
+		 */
+		private volatile ScheduledFuture<?> timeout;
+
+		/**
+		 * Create a retrieval and register it in the notifier.
+		 * 
+		 * @param nRequest
+		 *            the request to park.
+		 * @param nAddress
+		 *            String representation of the remote address of the
+		 *            client.
+		 * @param nDeadline
+		 *            time at which the request must be answered.
+		 */
+		ParkedRetrieval(RetrieveMessageRequest nRequest, String nAddress,
+				long nDeadline) {
+			state = new AtomicInteger(QUERYING);
+			request = nRequest;
+			address = nAddress;
+			deadline = nDeadline;
+			key = nRequest.getFilterType() == Filter.QUEUE ? MessageNotifier
+					.queueKey(nRequest.getFilterValue()) : MessageNotifier
+					.senderKey(nRequest.getFilterValue());
+			parkedRetrieval = this;
+			messageNotifier.register(key, this);
+		}
+
+		/**
+		 * Park the request after its query found nothing. If it was signalled
+		 * meanwhile then it is retried right away.
+		 */
+		void park() {
+			timeout = messageNotifier.schedule(this,
+					Math.max(0, deadline - System.currentTimeMillis()));
+			if (!state.compareAndSet(QUERYING, PARKED)
+					&& state.compareAndSet(SIGNALLED, DONE))
+				retry();
+		}
+
+		/**
+		 * Signal the retrieval, called by the notifier when a message arrives
+		 * and by the timer when the deadline passes.
+		 */
+		@Override
+		public void run() {
+			while (true) {
+				int current = state.get();
+				if (current == QUERYING) {
+					if (state.compareAndSet(QUERYING, SIGNALLED))
+						return;
+				} else if (current == PARKED) {
+					if (state.compareAndSet(PARKED, DONE))
+						retry();
+					return;
+				} else {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Withdraw the retrieval because its request was answered.
+		 */
+		void cancel() {
+			state.set(DONE);
+			release();
+		}
+
+		/**
+		 * Remove the retrieval from the notifier and the timer.
+		 */
+		private void release() {
+			messageNotifier.unregister(key, this);
+			ScheduledFuture<?> pending = timeout;
+			if (pending != null)
+				pending.cancel(false);
+			if (parkedRetrieval == this)
+				parkedRetrieval = null;
+		}
+
+		/**
+		 * Query again for the request in the database stage.
+		 */
+		private void retry() {
+			release();
+			if (closed)
+				return;
+			try {
+				databaseStage.submit(new StageTask(address) {
+					@Override
+					protected ByteBuffer execute() {
+						ByteBuffer response = retrieveMessage(request,
+								address, deadline);
+						if (response != null)
+							recordLatency();
+						return response;
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOGGER.log(new ClientConnectionLogRecord(Level.WARNING,
+						address, SystemEvent.BUFFER_IO, "The database stage "
+								+ "rejected a parked request from " + address
+								+ "."));
+
+				completeRequest(encodeResponse(new RequestResponse(
+						Status.EXCEPTION, "The server is overloaded.")));
+			}
+		}
+	}
+
+	/**
+	 * Notify the framework object that its socket channel was closed, so a
+	 * parked request is not carried out for a client that is gone. This must
+	 * be called from the thread of the owning worker.
+	 */
+	public void connectionClosed() {
+		closed = true;
+		ParkedRetrieval parked = parkedRetrieval;
+		if (parked != null)
+			parked.cancel();
+		cancelSubscriptions();
+		if (worker != null)
+			worker.pendingWritesChanged(-writeBuffer.size());
+		for (ByteBuffer buffer : writeBuffer)
+			releaseBuffer(buffer);
+		writeBuffer.clear();
+		if (bodyBuffer != null) {
+			releaseBuffer(bodyBuffer);
+			bodyBuffer = null;
+		}
+	}
+
+	/**
+	 * Take a buffer from the pool of the owning worker, or from the heap if
+	 * there is no worker. This must be called from the thread of the owning
+	 * worker.
+	 * 
+	 * @param size
+	 *            number of bytes needed.
+	 * @return a buffer with its limit set to the given size.
+	 */
+	private ByteBuffer acquireBuffer(int size) {
+		if (worker == null)
+			return ByteBuffer.allocate(size);
+		return worker.getBufferPool().acquire(size);
+	}
+
+	/**
+	 * Give a buffer back to the pool of the owning worker. This must be called
+	 * from the thread of the owning worker.
+	 * 
+	 * @param buffer
+	 *            buffer that is no longer used.
+	 */
+	private void releaseBuffer(ByteBuffer buffer) {
+		if (worker != null)
+			worker.getBufferPool().release(buffer);
+	}
+
+	/**
+	 * Subscription of the client to a queue. It is registered in the notifier
+	 * whenever it is not fetching, and each signal or grant of credits pops
+	 * up to as many messages as it has credits in the database stage and
+	 * pushes them to the client. Without credits it stays idle until the
+	 * client grants more, which bounds the pushed messages waiting in the
+	 * write queue.
+	 */
+	private class Subscription implements Runnable {
+		/**
+		 * Name of the subscribed queue.
+		 */
+		private final String queueName;
+		/**
+		 * Key the subscription is registered under in the notifier.
+		 */
+		private final String key;
+		/**
+		 * Indicates if the messages are popped by priority first.
+		 */
+		private final boolean prioFirst;
+		/**
+		 * String representation of the remote address of the client.
+		 */
+		private final String address;
+		/**
+		 * Number of messages that may still be pushed.
+		 */
+		private final AtomicInteger credits;
+		/**
+		 * Indicates if a fetch is submitted or running.
+		 */
+		private final AtomicBoolean fetching;
+		/**
+		 * Indicates that the queue was signalled since the last fetch started.
+		 */
+		private volatile boolean signalled;
+		/**
+		 * Indicates if the subscription is still active, guarded by this.
+		 */
+		private boolean active;
+
+		/**
+		 * Create an active subscription without credits.
+		 * 
+		 * @param nQueueName
+		 *            name of the queue.
+		 * @param order
+		 *            order in which the messages are pushed.
+		 * @param nAddress
+		 *            String representation of the remote address of the
+		 *            client.
+		 */
+		Subscription(String nQueueName, Order order, String nAddress) {
+			queueName = nQueueName;
+			key = MessageNotifier.queueKey(nQueueName);
+			prioFirst = order == Order.PRIORITY;
+			address = nAddress;
+			credits = new AtomicInteger(0);
+			fetching = new AtomicBoolean(false);
+			signalled = true;
+			active = true;
+		}
+
+		/**
+		 * Grant more credits to the subscription and fetch the messages they
+		 * allow.
+		 * 
+		 * @param amount
+		 *            number of messages that may be pushed additionally.
+		 */
+		void grant(int amount) {
+			while (true) {
+				int current = credits.get();
+				int updated = (int) Math.min(Integer.MAX_VALUE, (long) current
+						+ amount);
+				if (credits.compareAndSet(current, updated))
+					break;
+			}
+			signalled = true;
+			schedule();
+		}
+
+		/**
+		 * Signal the subscription, called by the notifier when a message is
+		 * created in the queue.
+		 */
+		@Override
+		public void run() {
+			signalled = true;
+			schedule();
+		}
+
+		/**
+		 * Submit a fetch to the database stage, unless one is already pending
+		 * or the subscription has no credits.
+		 */
+		private void schedule() {
+			if (!signalled || credits.get() <= 0 || !isActive())
+				return;
+			if (!fetching.compareAndSet(false, true))
+				return;
+			try {
+				databaseStage.submit(new Runnable() {
+					@Override
+					public void run() {
+						fetch();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOGGER.log(new ClientConnectionLogRecord(Level.WARNING,
+						address, SystemEvent.RETRIEVE_MESSAGE, "The database "
+								+ "stage rejected a fetch for the subscription of "
+								+ address + " to queue " + queueName + "."));
+
+				// Retried on the timer, the messages already in the queue
+				// would otherwise wait for the next signal or grant
+				fetching.set(false);
+				register();
+				messageNotifier.schedule(this, FETCH_RETRY_DELAY);
+			}
+		}
+
+		/**
+		 * Register the subscription in the notifier, once.
+		 */
+		private void register() {
+			messageNotifier.unregister(key, this);
+			messageNotifier.register(key, this);
+		}
+
+		/**
+		 * Pop as many messages as the credits allow and push them to the
+		 * client.
+		 */
+		private void fetch() {
+			signalled = false;
+			// Register before popping so a message created meanwhile is not
+			// missed
+			register();
+			int limit = Math.min(credits.get(),
+					RetrieveMessageRequest.MAX_MESSAGES);
+			int pushed = 0;
+			StoreTransaction tx = null;
+			try {
+				tx = messageStore.begin();
+				List<Message> msgs = messageStore.dequeueMessages(
+						client.getClientId(), queueName, prioFirst, true,
+						limit, tx);
+				synchronized (this) {
+					if (msgs.isEmpty() || !active) {
+						tx.rollback();
+					} else {
+						tx.commit();
+						credits.addAndGet(-msgs.size());
+						pushed = msgs.size();
+						// Not a response to the request in flight
+						pushedMessages.add(ProtocolMessage.toBytes(
+								RetrieveMessagesResponse.fromMessages(msgs,
+										true), protocolVersion));
+					}
+				}
+				if (pushed > 0) {
+					LOGGER.log(new ClientConnectionLogRecord(Level.INFO,
+							address, SystemEvent.RETRIEVE_MESSAGE,
+							"Pushed %s from queue %s to %s.").withArguments(
+							lazyDescription(msgs), queueName, address));
+					worker.requestCompleted(selectionKey);
+				}
+			} catch (SQLException e) {
+				LOGGER.log(new ClientConnectionLogRecord(address,
+						SystemEvent.RETRIEVE_MESSAGE,
+						"Caught exception while trying to push messages from queue "
+								+ queueName + " to " + address + ".", e));
+				rollbackQuietly(tx);
+			} catch (RuntimeException e) {
+				LOGGER.log(new ClientConnectionLogRecord(address,
+						SystemEvent.RETRIEVE_MESSAGE,
+						"Unexpected error while pushing messages from queue "
+								+ queueName + " to " + address + ".", e));
+				rollbackQuietly(tx);
+			} finally {
+				if (tx != null) {
+					try {
+						tx.close();
+					} catch (SQLException e) {
+						logCloseException(e);
+					}
+				}
+				fetching.set(false);
+			}
+			// A full fetch may have left more messages behind
+			if (pushed == limit)
+				signalled = true;
+			schedule();
+		}
+
+		/**
+		 * Indicate if the subscription is still active.
+		 * 
+		 * @return true if it is active.
+		 */
+		private synchronized boolean isActive() {
+			return active;
+		}
+
+		/**
+		 * Deactivate the subscription. A fetch that didn't commit yet rolls
+		 * back, so no message is pushed after this returns.
+		 */
+		void cancel() {
+			synchronized (this) {
+				active = false;
+			}
+			messageNotifier.unregister(key, this);
+		}
+	}
+
+	/**
+	 * Cancel every subscription of the client.
+	 */
+	private void cancelSubscriptions() {
+		synchronized (subscriptions) {
+			for (Subscription subscription : subscriptions.values())
+				subscription.cancel();
+			subscriptions.clear();
+		}
+	}
+
+	/**
+	 * Move the responses completed by the database stage to the write queue and
+	 * submit the next pending request, if any. This must be called from the
+	 * thread of the owning worker.
+	 * 
+	 * @param sc
+	 *            socket channel of the client.
+	 * @return true if there is a new buffer in the write queue, false
+	 *         otherwise.
+	 */
+	public boolean processCompletions(SocketChannel sc) {
+		boolean needWrite = false;
+		ByteBuffer response;
+		// Pushes go first, they were committed before any later response
+		while ((response = pushedMessages.poll()) != null) {
+			needWrite |= queueResponse(response);
+		}
+		boolean completed = false;
+		while ((response = completedResponses.poll()) != null) {
+			needWrite |= queueResponse(response);
+			completed = true;
+		}
+		if (completed && requestInFlight) {
+			requestInFlight = false;
+			needWrite |= submitNextRequest(getContext(sc).getAddress());
+		}
+		return needWrite;
+	}
+
+	/**
+	 * Append a response to the write queue.
+	 * 
+	 * @param response
+	 *            buffer with the response, may be null.
+	 * @return true if the buffer was queued, false otherwise.
+	 */
+	private boolean queueResponse(ByteBuffer response) {
+		if (response != null) {
+			// Responses are encoded in heap buffers by the database stage,
+			// the socket writes them from a pooled direct buffer
+			if (worker != null && !response.isDirect()
+					&& response.remaining() <= BufferPool.MAX_BUFFER_SIZE) {
+				ByteBuffer direct = acquireBuffer(response.remaining());
+				direct.put(response);
+				direct.flip();
+				response = direct;
+			}
+			writeBuffer.addLast(response);
+			if (worker != null)
+				worker.pendingWritesChanged(1);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Write bytes from the buffers in the write queue to the socket channel,
+	 * gathering as many queued responses as possible in a single write. It
 	 * returns a status indicating if the object has anything else to write
-	 * after the operation and whether it is the last message to be sent.
+	 * after the operation and whether it is the last message to be sent. It
+	 * may be called eagerly when responses are queued, without waiting for
+	 * the channel to be selected for writing.
 	 * 
 	 * @param sc
 	 *            socket channel where to write.
@@ -230,35 +1291,54 @@ public class ClientConnection {
 	 *             if there is an error writing to the socket.
 	 */
 	public WriteStatus processWrite(SocketChannel sc) throws IOException {
-		final String socketAddress = ServerLogger.parseSocketAddress(sc);
+		final ConnectionContext ctx = getContext(sc);
+		final String socketAddress = ctx.getAddress();
+
+		if (!writeBuffer.isEmpty()) {
+			if (gatheredBuffers == null)
+				gatheredBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+			int count = 0;
+			for (ByteBuffer buffer : writeBuffer) {
+				if (count == gatheredBuffers.length)
+					break;
+				gatheredBuffers[count++] = buffer;
+			}
+			ctx.recordWrite(sc.write(gatheredBuffers, 0, count));
+			Arrays.fill(gatheredBuffers, 0, count, null);
+
+			int sent = 0;
+			while (!writeBuffer.isEmpty() && !writeBuffer.peek().hasRemaining()) {
+				releaseBuffer(writeBuffer.pop());
+				ctx.recordResponse();
+				sent++;
+			}
+			if (sent > 0) {
+				if (worker != null)
+					worker.pendingWritesChanged(-sent);
+
+				LOGGER.log(new ClientConnectionLogRecord(socketAddress,
+						SystemEvent.BUFFER_IO, "Finished sending %d responses to %s.")
+						.withArguments(sent, socketAddress));
+			}
+			if (!writeBuffer.isEmpty())
+				return WriteStatus.WRITING;
+		}
 
-		if (writeBuffer.size() == 0 && disconnectionRequested) {
+		if (disconnectionRequested && !requestInFlight) {
 			LOGGER.log(new ClientConnectionLogRecord(socketAddress,
 					SystemEvent.BUFFER_IO,
 					"There are no more responses in the queue and a "
 							+ "disconnect was requested, changing the writing "
-							+ "status for " + socketAddress + "."));
+							+ "status for %s.").withArguments(socketAddress));
 
 			return WriteStatus.DISCONNECT;
 		}
-		if (writeBuffer.size() == 0 && !disconnectionRequested) {
-			LOGGER.log(new ClientConnectionLogRecord(socketAddress,
-					SystemEvent.BUFFER_IO,
-					"Finished writing the queued responses for "
-							+ socketAddress + "."));
-
-			return WriteStatus.IDLE;
-		}
-		ByteBuffer toWrite = writeBuffer.peek();
-		sc.write(toWrite);
-		if (!toWrite.hasRemaining()) {
-			writeBuffer.pop();
+		LOGGER.log(new ClientConnectionLogRecord(socketAddress,
+				SystemEvent.BUFFER_IO,
+				"Finished writing the queued responses for %s.")
+				.withArguments(socketAddress));
 
-			LOGGER.log(new ClientConnectionLogRecord(socketAddress,
-					SystemEvent.BUFFER_IO, "Finished sending a responses to "
-							+ socketAddress + "."));
-		}
-		return WriteStatus.WRITING;
+		return WriteStatus.IDLE;
 	}
 
 	/**
@@ -278,16 +1358,67 @@ public class ClientConnection {
 	}
 
 	/**
-	 * Process a full body buffer and carry out the provided request.
+	 * Carry out a request decoded from a full body buffer.
 	 * 
+	 * @param request
+	 *            the decoded request.
 	 * @param address
 	 *            String representation of the remote address originating the
 	 *            requests.
-	 * @return true if there is a new object in the write queue, false
-	 *         otherwise.
+	 * @return buffer with the response to the request, or null if the request
+	 *         was parked and will be answered later.
 	 */
-	private boolean processBody(String address) {
-		ProtocolMessage request = ProtocolMessage.fromBytes(bodyBuffer);
+	private ByteBuffer processBody(ProtocolMessage request, String address) {
+		requestStarted = System.nanoTime();
+		requestEvent = eventOf(request);
+		responseStatus = Status.SUCCESS;
+		ByteBuffer response = executeRequest(request, address);
+		if (response != null)
+			recordLatency();
+		return response;
+	}
+
+	/**
+	 * Get the kind of a request, used to classify its latency.
+	 * 
+	 * @param request
+	 *            the decoded request.
+	 * @return the event matching the request.
+	 */
+	private static SystemEvent eventOf(ProtocolMessage request) {
+		switch (request.getMessageType()) {
+		case CONNECTION_REQUEST:
+			return SystemEvent.CLIENT_CONNECTION;
+		case QUEUE_MODIFICATION:
+			return ((QueueModificationRequest) request).isDelete() ? SystemEvent.QUEUE_DELETION
+					: SystemEvent.QUEUE_CREATION;
+		case SEND_MESSAGE:
+		case SEND_MESSAGE_BATCH:
+			return SystemEvent.SEND_MESSAGE;
+		case RETRIEVE_MESSAGE:
+			return SystemEvent.RETRIEVE_MESSAGE;
+		case RETRIEVE_QUEUES:
+			return SystemEvent.FETCH_WAITING_QUEUES;
+		default:
+			return SystemEvent.SYSTEM_GENERIC;
+		}
+	}
+
+	/**
+	 * Dispatch a decoded request to the method carrying it out.
+	 * 
+	 * @param request
+	 *            the decoded request.
+	 * @param address
+	 *            String representation of the remote address originating the
+	 *            requests.
+	 * @return buffer with the response to the request, or null if the request
+	 *         was parked and will be answered later.
+	 */
+	private ByteBuffer executeRequest(ProtocolMessage request, String address) {
+		// A response stands for a request that couldn't be decoded
+		if (request.getMessageType() == MessageType.REQUEST_RESPONSE)
+			return encodeResponse(request);
 		ByteBuffer nextResponseBuffer = null;
 		if (!connected) {
 			switch (request.getMessageType()) {
@@ -295,6 +1426,10 @@ public class ClientConnection {
 				ConnectionRequest conRequest = (ConnectionRequest) request;
 				String username = conRequest.getUsername();
 				if (conRequest.isConnection()) {
+					protocolVersion = (byte) Math.min(
+							conRequest.getProtocolVersion(), maxProtocolVersion);
+					heartbeats = conRequest.getProtocolVersion() >=
+							ProtocolMessage.HEARTBEAT_PROTOCOL_VERSION;
 					nextResponseBuffer = connectClient(username, address);
 					break;
 				}
@@ -302,7 +1437,7 @@ public class ClientConnection {
 				RequestResponse errorResponse = new RequestResponse(
 						Status.EXCEPTION,
 						"Client must be connected before attempting any other action.");
-				nextResponseBuffer = ProtocolMessage.toBytes(errorResponse);
+				nextResponseBuffer = encodeResponse(errorResponse);
 				break;
 			}
 		} else {
@@ -321,7 +1456,7 @@ public class ClientConnection {
 
 					RequestResponse errorResponse = new RequestResponse(
 							Status.SUCCESS);
-					nextResponseBuffer = ProtocolMessage.toBytes(errorResponse);
+					nextResponseBuffer = encodeResponse(errorResponse);
 				}
 				break;
 			case QUEUE_MODIFICATION:
@@ -336,6 +1471,10 @@ public class ClientConnection {
 				SendMessageRequest sendMessageRequest = (SendMessageRequest) request;
 				nextResponseBuffer = sendMessage(sendMessageRequest, address);
 				break;
+			case SEND_MESSAGE_BATCH:
+				SendMessageBatchRequest batchRequest = (SendMessageBatchRequest) request;
+				nextResponseBuffer = sendMessageBatch(batchRequest, address);
+				break;
 			case RETRIEVE_MESSAGE:
 				RetrieveMessageRequest retrieveMessageRequest = (RetrieveMessageRequest) request;
 				nextResponseBuffer = retrieveMessage(retrieveMessageRequest,
@@ -344,6 +1483,16 @@ public class ClientConnection {
 			case RETRIEVE_QUEUES:
 				nextResponseBuffer = getQueues(address);
 				break;
+			case SUBSCRIBE:
+			case UNSUBSCRIBE:
+				SubscriptionRequest subscriptionRequest = (SubscriptionRequest) request;
+				if (subscriptionRequest.isSubscribe())
+					nextResponseBuffer = subscribe(subscriptionRequest,
+							address);
+				else
+					nextResponseBuffer = unsubscribe(subscriptionRequest,
+							address);
+				break;
 			default:
 				LOGGER.log(new ClientConnectionLogRecord(Level.SEVERE, address,
 						SystemEvent.BUFFER_IO,
@@ -351,15 +1500,11 @@ public class ClientConnection {
 
 				RequestResponse errorResponse = new RequestResponse(
 						Status.EXCEPTION, "Unexpected message type received.");
-				nextResponseBuffer = ProtocolMessage.toBytes(errorResponse);
+				nextResponseBuffer = encodeResponse(errorResponse);
 				break;
 			}
 		}
-		if (nextResponseBuffer != null) {
-			writeBuffer.addLast(nextResponseBuffer);
-			return true;
-		}
-		return false;
+		return nextResponseBuffer;
 	}
 
 	/**
@@ -383,12 +1528,12 @@ public class ClientConnection {
 						+ username + ".");
 		LOGGER.log(record);
 
-		Connection conn = null;
+		StoreTransaction tx = null;
 		try {
-			conn = dbConnectionDispatcher.retrieveDatabaseConnection();
-			Client tmpClient = FetchClient.execute(username, conn);
+			tx = messageStore.begin();
+			Client tmpClient = messageStore.fetchClient(username, tx);
 			if (tmpClient == null) {
-				int clientId = CreateClient.execute(username, true, conn);
+				int clientId = messageStore.createClient(username, true, tx);
 				client = new Client(clientId, username, true);
 
 				record = new ClientConnectionLogRecord(address,
@@ -409,10 +1554,10 @@ public class ClientConnection {
 									+ "is already online.", record);
 					LOGGER.log(record);
 
-					return ProtocolMessage.toBytes(failureResponse);
+					return encodeResponse(failureResponse);
 				} else {
 					client = tmpClient;
-					ChangeClientStatus.execute(username, true, conn);
+					messageStore.changeClientStatus(username, true, tx);
 				}
 			}
 			connected = true;
@@ -424,10 +1569,10 @@ public class ClientConnection {
 							+ address + ".", record);
 			LOGGER.log(record);
 
-			conn.commit();
+			tx.commit();
 			RequestResponse successResponse = new RequestResponse(
 					Status.SUCCESS);
-			return ProtocolMessage.toBytes(successResponse);
+			return encodeResponse(successResponse);
 		} catch (SQLException e) {
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.CLIENT_CONNECTION,
@@ -436,17 +1581,17 @@ public class ClientConnection {
 
 			RequestResponse errorResponse = new RequestResponse(
 					Status.EXCEPTION, e.toString());
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(errorResponse);
+			return encodeResponse(errorResponse);
 		} finally {
-			if (conn != null) {
+			if (tx != null) {
 				try {
-					conn.close();
+					tx.close();
 				} catch (SQLException e) {
 					logCloseException(e);
 				}
@@ -472,13 +1617,15 @@ public class ClientConnection {
 						+ " for client " + client.getClientUsername() + ".");
 		LOGGER.log(record);
 
-		Connection conn = null;
+		StoreTransaction tx = null;
 		try {
-			conn = dbConnectionDispatcher.retrieveDatabaseConnection();
-			ChangeClientStatus.execute(client.getClientUsername(), false, conn);
+			tx = messageStore.begin();
+			messageStore.changeClientStatus(client.getClientUsername(),
+					false, tx);
+			cancelSubscriptions();
 			disconnectionRequested = true;
 			connected = false;
-			conn.commit();
+			tx.commit();
 
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.CLIENT_CONNECTION,
@@ -488,7 +1635,7 @@ public class ClientConnection {
 
 			RequestResponse successResponse = new RequestResponse(
 					Status.SUCCESS);
-			return ProtocolMessage.toBytes(successResponse);
+			return encodeResponse(successResponse);
 		} catch (SQLException e) {
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.CLIENT_CONNECTION,
@@ -497,17 +1644,17 @@ public class ClientConnection {
 
 			RequestResponse errorResponse = new RequestResponse(
 					Status.EXCEPTION, e.toString());
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(errorResponse);
+			return encodeResponse(errorResponse);
 		} finally {
-			if (conn != null) {
+			if (tx != null) {
 				try {
-					conn.close();
+					tx.close();
 				} catch (SQLException e) {
 					logCloseException(e);
 				}
@@ -531,11 +1678,11 @@ public class ClientConnection {
 						+ address + ".");
 		LOGGER.log(record);
 
-		Connection conn = null;
+		StoreTransaction tx = null;
 		try {
-			conn = dbConnectionDispatcher.retrieveDatabaseConnection();
-			CreateQueue.execute(queueName, conn);
-			conn.commit();
+			tx = messageStore.begin();
+			messageStore.createQueue(queueName, tx);
+			tx.commit();
 
 			record = new ClientConnectionLogRecord(address,
 					SystemEvent.QUEUE_CREATION, "Queue " + queueName
@@ -544,7 +1691,7 @@ public class ClientConnection {
 
 			RequestResponse successResponse = new RequestResponse(
 					Status.SUCCESS);
-			return ProtocolMessage.toBytes(successResponse);
+			return encodeResponse(successResponse);
 		} catch (SQLException e) {
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.QUEUE_CREATION,
@@ -553,13 +1700,13 @@ public class ClientConnection {
 
 			RequestResponse errorResponse = new RequestResponse(
 					Status.EXCEPTION, e.toString());
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(errorResponse);
+			return encodeResponse(errorResponse);
 		} catch (QueueAlreadyExistsException e) {
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.QUEUE_CREATION,
@@ -569,17 +1716,17 @@ public class ClientConnection {
 
 			RequestResponse failureResponse = new RequestResponse(
 					Status.QUEUE_EXISTS);
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(failureResponse);
+			return encodeResponse(failureResponse);
 		} finally {
-			if (conn != null) {
+			if (tx != null) {
 				try {
-					conn.close();
+					tx.close();
 				} catch (SQLException e) {
 					logCloseException(e);
 				}
@@ -604,11 +1751,11 @@ public class ClientConnection {
 						+ address + ".");
 		LOGGER.log(record);
 
-		Connection conn = null;
+		StoreTransaction tx = null;
 		try {
-			conn = dbConnectionDispatcher.retrieveDatabaseConnection();
-			DeleteQueue.execute(queueName, conn);
-			conn.commit();
+			tx = messageStore.begin();
+			messageStore.deleteQueue(queueName, tx);
+			tx.commit();
 
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.QUEUE_DELETION, "Queue " + queueName
@@ -616,7 +1763,7 @@ public class ClientConnection {
 
 			RequestResponse successResponse = new RequestResponse(
 					Status.SUCCESS);
-			return ProtocolMessage.toBytes(successResponse);
+			return encodeResponse(successResponse);
 		} catch (SQLException e) {
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.QUEUE_DELETION,
@@ -625,13 +1772,13 @@ public class ClientConnection {
 
 			RequestResponse errorResponse = new RequestResponse(
 					Status.EXCEPTION, e.toString());
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(errorResponse);
+			return encodeResponse(errorResponse);
 		} catch (QueueNotEmptyException e) {
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.QUEUE_DELETION,
@@ -641,13 +1788,13 @@ public class ClientConnection {
 
 			RequestResponse failureResponse = new RequestResponse(
 					Status.QUEUE_NOT_EMPTY);
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(failureResponse);
+			return encodeResponse(failureResponse);
 		} catch (InexistentQueueException e) {
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.QUEUE_DELETION,
@@ -657,17 +1804,17 @@ public class ClientConnection {
 
 			RequestResponse failureResponse = new RequestResponse(
 					Status.QUEUE_NOT_EXISTS);
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(failureResponse);
+			return encodeResponse(failureResponse);
 		} finally {
-			if (conn != null) {
+			if (tx != null) {
 				try {
-					conn.close();
+					tx.close();
 				} catch (SQLException e) {
 					logCloseException(e);
 				}
@@ -693,41 +1840,47 @@ public class ClientConnection {
 		// TODO: P1
 		ClientConnectionLogRecord record = new ClientConnectionLogRecord(
 				address, SystemEvent.SEND_MESSAGE,
-				"Received request to create a message of "
-						+ sendMessageRequest.getMessage().length()
-						+ " chars, sent to " + queueListSize + " queues from "
-						+ address + ".");
+				"Received request to create a message of %d chars, sent to "
+						+ "%d queues from %s.").withArguments(
+				sendMessageRequest.getMessage().length(), queueListSize,
+				address);
 		LOGGER.log(record);
 
-		Connection conn = null;
+		StoreTransaction tx = null;
 		try {
-			conn = dbConnectionDispatcher.retrieveDatabaseConnection();
-			String receiver = sendMessageRequest.getReceiver();
-			if (!sendMessageRequest.hasReceiver()) {
-				CreateMessage.execute(client.getClientId(),
+			tx = messageStore.begin();
+			String receiver = sendMessageRequest.hasReceiver() ? sendMessageRequest
+					.getReceiver() : null;
+			try {
+				messageStore.createMessage(client.getClientId(), receiver,
 						sendMessageRequest.getQueueList(),
 						sendMessageRequest.getContext(),
 						sendMessageRequest.getPriority(),
-						sendMessageRequest.getMessage(), conn);
-
-			} else {
-				CreateMessage.execute(client.getClientId(), receiver,
+						sendMessageRequest.getMessage(), tx);
+			} catch (StaleQueueException e) {
+				// The cached id of a queue deleted and created again by
+				// another server was invalidated by the failure, so one more
+				// try resolves the new one
+				tx.rollback();
+				messageStore.createMessage(client.getClientId(), receiver,
 						sendMessageRequest.getQueueList(),
 						sendMessageRequest.getContext(),
 						sendMessageRequest.getPriority(),
-						sendMessageRequest.getMessage(), conn);
+						sendMessageRequest.getMessage(), tx);
 			}
-			conn.commit();
+			announceMessages(sendMessageRequest.getQueueList(), tx);
+			tx.commit();
+			signalMessages(sendMessageRequest.getQueueList());
 
 			LOGGER.log(new ClientConnectionLogRecord(Level.INFO, address,
-					SystemEvent.SEND_MESSAGE, "Created message message of "
-							+ sendMessageRequest.getMessage().length()
-							+ " chars, sent to " + queueListSize
-							+ " queues from " + address + ".", record));
+					SystemEvent.SEND_MESSAGE, "Created message message of %d "
+							+ "chars, sent to %d queues from %s.", record)
+					.withArguments(sendMessageRequest.getMessage().length(),
+							queueListSize, address));
 			// TODO:P2
 			RequestResponse successResponse = new RequestResponse(
 					Status.SUCCESS);
-			return ProtocolMessage.toBytes(successResponse);
+			return encodeResponse(successResponse);
 		} catch (SQLException e) {
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.SEND_MESSAGE,
@@ -736,13 +1889,13 @@ public class ClientConnection {
 
 			RequestResponse errorResponse = new RequestResponse(
 					Status.EXCEPTION, e.toString());
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(errorResponse);
+			return encodeResponse(errorResponse);
 		} catch (InexistentQueueException e) {
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.SEND_MESSAGE,
@@ -752,13 +1905,13 @@ public class ClientConnection {
 
 			RequestResponse failureResponse = new RequestResponse(
 					Status.QUEUE_NOT_EXISTS);
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(failureResponse);
+			return encodeResponse(failureResponse);
 		} catch (CreateMessageException e) {
 			LOGGER.log(new ClientConnectionLogRecord(Level.SEVERE, address,
 					SystemEvent.SEND_MESSAGE,
@@ -768,13 +1921,13 @@ public class ClientConnection {
 
 			RequestResponse failureResponse = new RequestResponse(
 					Status.EXCEPTION, e.toString());
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(failureResponse);
+			return encodeResponse(failureResponse);
 		} catch (InexistentClientException e) {
 			LOGGER.log(new ClientConnectionLogRecord(
 					address,
@@ -785,17 +1938,153 @@ public class ClientConnection {
 
 			RequestResponse failureResponse = new RequestResponse(
 					Status.NO_CLIENT);
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(failureResponse);
+			return encodeResponse(failureResponse);
+		} finally {
+			if (tx != null) {
+				try {
+					tx.close();
+				} catch (SQLException e) {
+					logCloseException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Announce new messages of the client to the other servers sharing the
+	 * database, if enabled. The announcement is delivered when the transaction
+	 * that creates the messages commits.
+	 * 
+	 * @param queues
+	 *            names of the queues where the messages are created.
+	 * @param tx
+	 *            transaction creating the messages.
+	 * @throws SQLException
+	 *             if there is an error announcing the messages.
+	 */
+	private void announceMessages(Iterable<String> queues, StoreTransaction tx)
+			throws SQLException {
+		if (messageNotifier != null && messageNotifier.isPublishingToDatabase())
+			messageStore.announceMessages(MessageNotifier.CHANNEL,
+					MessageNotifier.messageKeys(queues,
+							client.getClientUsername()), tx);
+	}
+
+	/**
+	 * Wake up the requests of this server waiting for the new messages of the
+	 * client, after the transaction that created them committed.
+	 * 
+	 * @param queues
+	 *            names of the queues where the messages were created.
+	 */
+	private void signalMessages(Iterable<String> queues) {
+		if (messageNotifier != null)
+			messageNotifier.messageCreated(queues, client.getClientUsername());
+	}
+
+	/**
+	 * Process a request to send a batch of messages, all of them are created
+	 * in a single transaction.
+	 * 
+	 * @param batchRequest
+	 *            request with the messages.
+	 * @param address
+	 *            remote address that originated the request.
+	 * @return the buffer with the response.
+	 */
+	private ByteBuffer sendMessageBatch(SendMessageBatchRequest batchRequest,
+			String address) {
+		ClientConnectionLogRecord record = new ClientConnectionLogRecord(
+				address, SystemEvent.SEND_MESSAGE,
+				"Received request to create a batch of %d messages from %s.")
+				.withArguments(batchRequest.size(), address);
+		LOGGER.log(record);
+
+		ArrayList<CreateMessage.BatchEntry> batch = new ArrayList<CreateMessage.BatchEntry>(
+				batchRequest.size());
+		LinkedHashSet<String> queues = new LinkedHashSet<String>();
+		for (SendMessageRequest message : batchRequest.getMessages()) {
+			for (String queue : message.getQueueList())
+				queues.add(queue);
+			batch.add(new CreateMessage.BatchEntry(message.getReceiver(),
+					message.getQueueList(), message.getContext(), message
+							.getPriority(), message.getMessage()));
+		}
+
+		StoreTransaction tx = null;
+		try {
+			tx = messageStore.begin();
+			try {
+				messageStore.createMessages(client.getClientId(), batch, tx);
+			} catch (StaleQueueException e) {
+				// As for a single message, the stale ids were invalidated
+				tx.rollback();
+				messageStore.createMessages(client.getClientId(), batch, tx);
+			}
+			announceMessages(queues, tx);
+			tx.commit();
+			signalMessages(queues);
+
+			LOGGER.log(new ClientConnectionLogRecord(Level.INFO, address,
+					SystemEvent.SEND_MESSAGE,
+					"Created a batch of %d messages from %s.", record)
+					.withArguments(batchRequest.size(), address));
+			RequestResponse successResponse = new RequestResponse(
+					Status.SUCCESS);
+			return encodeResponse(successResponse);
+		} catch (SQLException e) {
+			LOGGER.log(new ClientConnectionLogRecord(address,
+					SystemEvent.SEND_MESSAGE,
+					"Caught exception while trying to send a batch of messages from "
+							+ address + ".", record, e));
+
+			RequestResponse errorResponse = new RequestResponse(
+					Status.EXCEPTION, e.toString());
+			rollbackQuietly(tx);
+			return encodeResponse(errorResponse);
+		} catch (InexistentQueueException e) {
+			LOGGER.log(new ClientConnectionLogRecord(address,
+					SystemEvent.SEND_MESSAGE,
+					"Responded with failure to a batch send request from "
+							+ address + " because a queue does not exist.",
+					record));
+
+			RequestResponse failureResponse = new RequestResponse(
+					Status.QUEUE_NOT_EXISTS);
+			rollbackQuietly(tx);
+			return encodeResponse(failureResponse);
+		} catch (CreateMessageException e) {
+			LOGGER.log(new ClientConnectionLogRecord(Level.SEVERE, address,
+					SystemEvent.SEND_MESSAGE,
+					"Responded with failure to a batch send request from "
+							+ address + " because of unknown circumstances",
+					record));
+
+			RequestResponse failureResponse = new RequestResponse(
+					Status.EXCEPTION, e.toString());
+			rollbackQuietly(tx);
+			return encodeResponse(failureResponse);
+		} catch (InexistentClientException e) {
+			LOGGER.log(new ClientConnectionLogRecord(address,
+					SystemEvent.SEND_MESSAGE,
+					"Responded with failure to a batch send request from "
+							+ address + " because a receiver does not exist.",
+					record));
+
+			RequestResponse failureResponse = new RequestResponse(
+					Status.NO_CLIENT);
+			rollbackQuietly(tx);
+			return encodeResponse(failureResponse);
 		} finally {
-			if (conn != null) {
+			if (tx != null) {
 				try {
-					conn.close();
+					tx.close();
 				} catch (SQLException e) {
 					logCloseException(e);
 				}
@@ -804,7 +2093,60 @@ public class ClientConnection {
 	}
 
 	/**
-	 * Process a request for a message in the system.
+	 * Roll back the given transaction, if any, logging the exceptions.
+	 * 
+	 * @param tx
+	 *            transaction, may be null.
+	 */
+	private void rollbackQuietly(StoreTransaction tx) {
+		if (tx != null)
+			try {
+				tx.rollback();
+			} catch (SQLException e1) {
+				logRollbackException(e1);
+			}
+	}
+
+	/**
+	 * Describes a list of retrieved messages for the log records.
+	 * 
+	 * @param msgs
+	 *            retrieved messages, at least one.
+	 * @return a description with the ids of the messages.
+	 */
+	private static String describeMessages(List<Message> msgs) {
+		if (msgs.size() == 1)
+			return "message " + msgs.get(0).getId();
+		StringBuilder description = new StringBuilder(msgs.size()
+				+ " messages");
+		String separator = " ";
+		for (Message msg : msgs) {
+			description.append(separator).append(msg.getId());
+			separator = ", ";
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Describe the ids of some messages only when the description is printed,
+	 * for use as an argument of a log record. The list must not be modified
+	 * afterwards.
+	 * 
+	 * @param msgs
+	 *            messages to describe.
+	 * @return object whose string representation describes the messages.
+	 */
+	private static Object lazyDescription(final List<Message> msgs) {
+		return new Object() {
+			@Override
+			public String toString() {
+				return describeMessages(msgs);
+			}
+		};
+	}
+
+	/**
+	 * Process a request for one or more messages in the system.
 	 * 
 	 * @param retrieveMessageRequest
 	 *            request for a message.
@@ -814,102 +2156,153 @@ public class ClientConnection {
 	 */
 	private ByteBuffer retrieveMessage(
 			RetrieveMessageRequest retrieveMessageRequest, String address) {
+		long deadline = 0;
+		if (retrieveMessageRequest.getWaitTimeout() > 0
+				&& databaseStage != null && messageNotifier != null)
+			deadline = System.currentTimeMillis()
+					+ retrieveMessageRequest.getWaitTimeout();
+		return retrieveMessage(retrieveMessageRequest, address, deadline);
+	}
+
+	/**
+	 * Process a request for one or more messages in the system, parking it if
+	 * there are none and its deadline did not pass yet.
+	 * 
+	 * @param retrieveMessageRequest
+	 *            request for a message.
+	 * @param address
+	 *            remote address that originated the request.
+	 * @param deadline
+	 *            time at which the request must be answered, in milliseconds,
+	 *            0 to answer immediately.
+	 * @return the buffer with the response, or null if the request was
+	 *         parked.
+	 */
+	private ByteBuffer retrieveMessage(
+			RetrieveMessageRequest retrieveMessageRequest, String address,
+			long deadline) {
 		// TODO: P1
 		ClientConnectionLogRecord record = new ClientConnectionLogRecord(
 				address, SystemEvent.RETRIEVE_MESSAGE,
-				"Received request to retrieve a message by "
-						+ retrieveMessageRequest.getFilterType().toString()
-						+ " ordered by "
-						+ retrieveMessageRequest.getOrderBy().toString()
-						+ " from " + address + ".");
+				"Received request to retrieve a message by %s ordered by %s "
+						+ "from %s.").withArguments(
+				retrieveMessageRequest.getFilterType(),
+				retrieveMessageRequest.getOrderBy(), address);
 		LOGGER.log(record);
 
-		Connection conn = null;
+		// Register before querying so a message created meanwhile is not missed
+		ParkedRetrieval parked = null;
+		if (deadline > System.currentTimeMillis())
+			parked = new ParkedRetrieval(retrieveMessageRequest, address,
+					deadline);
+
+		StoreTransaction tx = null;
 		try {
-			conn = dbConnectionDispatcher.retrieveDatabaseConnection();
+			tx = messageStore.begin();
 			boolean byQueue = retrieveMessageRequest.getFilterType() == Filter.QUEUE;
 			boolean byPrio = retrieveMessageRequest.getOrderBy() == Order.PRIORITY;
 			boolean isPop = retrieveMessageRequest.isPopMessage();
-			Message msg = RetrieveMessage.execute(client.getClientId(),
-					retrieveMessageRequest.getFilterValue(), byPrio, byQueue,
-					conn);
-			if (msg == null) {
-				conn.commit();
+			int limit = retrieveMessageRequest.getMaxMessages();
+			// A pop claims and deletes the messages in one statement, so
+			// concurrent pops on the same queue don't serialize on its head.
+			List<Message> msgs;
+			if (isPop)
+				msgs = messageStore.dequeueMessages(client.getClientId(),
+						retrieveMessageRequest.getFilterValue(), byPrio,
+						byQueue, limit, tx);
+			else
+				msgs = messageStore.retrieveMessages(client.getClientId(),
+						retrieveMessageRequest.getFilterValue(), byPrio,
+						byQueue, limit, tx);
+			if (msgs.isEmpty()) {
+				tx.commit();
+				if (parked != null) {
+					LOGGER.log(new ClientConnectionLogRecord(address,
+							SystemEvent.RETRIEVE_MESSAGE,
+							"Parked a retrieve message request from "
+									+ address + " for up to "
+									+ (deadline - System.currentTimeMillis())
+									+ " ms because no message was found.",
+							record));
+
+					parked.park();
+					return null;
+				}
 				// TODO: P2a
 				record = new ClientConnectionLogRecord(Level.INFO, address,
 						SystemEvent.RETRIEVE_MESSAGE,
 						"Responded with failure to a retrieve message request from "
-								+ address + " because no message was found.",
-						record);
+								+ "%s because no message was found.", record)
+						.withArguments(address);
 				record.setSuccess(false);
 				LOGGER.log(record);
 
 				RequestResponse errorResponse = new RequestResponse(
 						Status.NO_MESSAGE);
-				return ProtocolMessage.toBytes(errorResponse);
+				return encodeResponse(errorResponse);
 			} else {
+				if (parked != null)
+					parked.cancel();
 				// TODO: P2b
+				Object description = lazyDescription(msgs);
 				record = new ClientConnectionLogRecord(address,
-						SystemEvent.RETRIEVE_MESSAGE, "Found message "
-								+ msg.getId()
-								+ " filtered by "
-								+ retrieveMessageRequest.getFilterType()
-										.toString()
-								+ " ordered by "
-								+ retrieveMessageRequest.getOrderBy()
-										.toString() + " for " + address + ".",
-						record);
+						SystemEvent.RETRIEVE_MESSAGE,
+						"Found %s filtered by %s ordered by %s for %s.", record)
+						.withArguments(description,
+								retrieveMessageRequest.getFilterType(),
+								retrieveMessageRequest.getOrderBy(), address);
 				LOGGER.log(record);
 
+				tx.commit();
 				if (isPop) {
-					DeleteMessage
-							.execute(msg.getId(), msg.getQueueName(), conn);
-					conn.commit();
 					// TODO: P3
-					record = new ClientConnectionLogRecord(address, SystemEvent.RETRIEVE_MESSAGE,
-							"Popped message " + msg.getId() + " from queue "
-									+ msg.getQueueName() + " for " + address
-									+ ".", record);
-					LOGGER.log(record);
-
-				} else {
-					conn.commit();
+					for (Message msg : msgs) {
+						record = new ClientConnectionLogRecord(address,
+								SystemEvent.RETRIEVE_MESSAGE,
+								"Popped message %d from queue %s for %s.",
+								record).withArguments(msg.getId(),
+								msg.getQueueName(), address);
+						LOGGER.log(record);
+					}
 				}
 				
 				LOGGER.log(new ClientConnectionLogRecord(Level.INFO, address,
-						SystemEvent.RETRIEVE_MESSAGE, "Found and returned message "
-								+ msg.getId()
-								+ " filtered by "
-								+ retrieveMessageRequest.getFilterType()
-										.toString()
-								+ " ordered by "
-								+ retrieveMessageRequest.getOrderBy()
-										.toString() + " for " + address + ".",
-						record));
+						SystemEvent.RETRIEVE_MESSAGE,
+						"Found and returned %s filtered by %s ordered by %s "
+								+ "for %s.", record).withArguments(description,
+						retrieveMessageRequest.getFilterType(),
+						retrieveMessageRequest.getOrderBy(), address));
 				
-				RetrieveMessageResponse messageResponse = new RetrieveMessageResponse(
-						msg);
-				return ProtocolMessage.toBytes(messageResponse);
+				// A request for a single message gets the single message
+				// response, which is the only one older clients understand.
+				if (limit == 1) {
+					RetrieveMessageResponse messageResponse = new RetrieveMessageResponse(
+							msgs.get(0));
+					return encodeResponse(messageResponse);
+				}
+				return encodeResponse(RetrieveMessagesResponse.fromMessages(msgs));
 			}
 		} catch (SQLException e) {
 			LOGGER.log(new ClientConnectionLogRecord(address,
 					SystemEvent.RETRIEVE_MESSAGE,
 					"Caught exception while trying to retrieve message for "
 							+ address + ".", record, e));
+			if (parked != null)
+				parked.cancel();
 
 			RequestResponse errorResponse = new RequestResponse(
 					Status.EXCEPTION, e.toString());
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(errorResponse);
+			return encodeResponse(errorResponse);
 		} finally {
-			if (conn != null) {
+			if (tx != null) {
 				try {
-					conn.close();
+					tx.close();
 				} catch (SQLException e) {
 					logCloseException(e);
 				}
@@ -917,6 +2310,79 @@ public class ClientConnection {
 		}
 	}
 
+	/**
+	 * Process a request to subscribe to queues, or to grant more credits to
+	 * the queues that are already subscribed. The messages already waiting in
+	 * the queues are pushed right away.
+	 * 
+	 * @param subscriptionRequest
+	 *            request with the queues and the credits.
+	 * @param address
+	 *            remote address that originated the request.
+	 * @return the buffer with the response.
+	 */
+	private ByteBuffer subscribe(SubscriptionRequest subscriptionRequest,
+			String address) {
+		if (databaseStage == null || messageNotifier == null) {
+			LOGGER.log(new ClientConnectionLogRecord(Level.WARNING, address,
+					SystemEvent.RETRIEVE_MESSAGE,
+					"Rejected a subscription request from " + address
+							+ " because the server can't push messages."));
+
+			return encodeResponse(new RequestResponse(Status.EXCEPTION,
+					"Subscriptions are not supported by the server."));
+		}
+
+		for (String queueName : subscriptionRequest.getQueueNames()) {
+			Subscription subscription;
+			synchronized (subscriptions) {
+				subscription = subscriptions.get(queueName);
+				if (subscription == null) {
+					subscription = new Subscription(queueName,
+							subscriptionRequest.getOrderBy(), address);
+					subscriptions.put(queueName, subscription);
+				}
+			}
+			subscription.grant(subscriptionRequest.getCredits());
+		}
+
+		LOGGER.log(new ClientConnectionLogRecord(Level.INFO, address,
+				SystemEvent.RETRIEVE_MESSAGE, "Granted "
+						+ subscriptionRequest.getCredits() + " credits to "
+						+ subscriptionRequest.getQueueNames().size()
+						+ " subscribed queues of " + address + "."));
+
+		return encodeResponse(new RequestResponse(Status.SUCCESS));
+	}
+
+	/**
+	 * Process a request to unsubscribe from queues. No message of the queues
+	 * is pushed after the response.
+	 * 
+	 * @param subscriptionRequest
+	 *            request with the queues.
+	 * @param address
+	 *            remote address that originated the request.
+	 * @return the buffer with the response.
+	 */
+	private ByteBuffer unsubscribe(SubscriptionRequest subscriptionRequest,
+			String address) {
+		synchronized (subscriptions) {
+			for (String queueName : subscriptionRequest.getQueueNames()) {
+				Subscription subscription = subscriptions.remove(queueName);
+				if (subscription != null)
+					subscription.cancel();
+			}
+		}
+
+		LOGGER.log(new ClientConnectionLogRecord(Level.INFO, address,
+				SystemEvent.RETRIEVE_MESSAGE, "Unsubscribed " + address
+						+ " from " + subscriptionRequest.getQueueNames().size()
+						+ " queues."));
+
+		return encodeResponse(new RequestResponse(Status.SUCCESS));
+	}
+
 	/**
 	 * Process a request to retrieve queues where there are messages waiting for
 	 * a client.
@@ -932,12 +2398,12 @@ public class ClientConnection {
 						+ client.getClientUsername() + " from " + address + ".");
 		LOGGER.log(record);
 
-		Connection conn = null;
+		StoreTransaction tx = null;
 		try {
-			conn = dbConnectionDispatcher.retrieveDatabaseConnection();
-			ArrayList<String> result = GetQueuesWithMessages.execute(
-					client.getClientId(), conn);
-			conn.commit();
+			tx = messageStore.begin();
+			List<String> result = messageStore.getQueuesWithMessages(
+					client.getClientId(), tx);
+			tx.commit();
 			if (result.size() > 0) {
 				LOGGER.log(new ClientConnectionLogRecord(Level.INFO, address,
 						SystemEvent.FETCH_WAITING_QUEUES, "Found "
@@ -946,7 +2412,7 @@ public class ClientConnection {
 								+ address + ".", record));
 
 				GetQueuesResponse queueResponse = new GetQueuesResponse(result);
-				return ProtocolMessage.toBytes(queueResponse);
+				return encodeResponse(queueResponse);
 			} else {
 			    record = new ClientConnectionLogRecord(Level.INFO, address,
                         SystemEvent.FETCH_WAITING_QUEUES,
@@ -956,22 +2422,22 @@ public class ClientConnection {
 				LOGGER.log(record);
 
 				RequestResponse response = new RequestResponse(Status.NO_QUEUE);
-				return ProtocolMessage.toBytes(response);
+				return encodeResponse(response);
 			}
 		} catch (SQLException e) {
 			RequestResponse errorResponse = new RequestResponse(
 					Status.EXCEPTION, e.toString());
-			if (conn != null)
+			if (tx != null)
 				try {
-					conn.rollback();
+					tx.rollback();
 				} catch (SQLException e1) {
 					logRollbackException(e1);
 				}
-			return ProtocolMessage.toBytes(errorResponse);
+			return encodeResponse(errorResponse);
 		} finally {
-			if (conn != null) {
+			if (tx != null) {
 				try {
-					conn.close();
+					tx.close();
 				} catch (SQLException e) {
 					logCloseException(e);
 				}
@@ -0,0 +1,194 @@
+/**
+ * ConnectionContext.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Information about a client connection that is computed once when the
+ * connection is accepted, so the hot paths don't have to query the socket
+ * again. The address is kept in numeric form, resolving the host name may
+ * require a reverse DNS lookup that stalls the worker thread. The context also
+ * keeps counters of the traffic of the connection, which are updated by the
+ * worker owning the channel and may be read from any thread.
+ */
+public class ConnectionContext {
+    /**
+     * Source of the connection ids.
+     */
+    private final static AtomicLong NEXT_ID = new AtomicLong();
+
+    /**
+     * Unique id of the connection in this server.
+     */
+    private final long id;
+
+    /**
+     * Numeric address and port of the remote end, as [address:port].
+     */
+    private final String address;
+
+    /**
+     * Time when the connection was accepted, in milliseconds since the epoch.
+     */
+    private final long acceptedAt;
+
+    /**
+     * Number of requests read from the connection.
+     */
+    private final AtomicLong requests;
+
+    /**
+     * Number of responses written to the connection.
+     */
+    private final AtomicLong responses;
+
+    /**
+     * Number of bytes read from the connection.
+     */
+    private final AtomicLong bytesRead;
+
+    /**
+     * Number of bytes written to the connection.
+     */
+    private final AtomicLong bytesWritten;
+
+    /**
+     * Create the context of a newly accepted connection.
+     *
+     * @param sc
+     *            socket channel of the connection, it must be connected.
+     */
+    public ConnectionContext(SocketChannel sc) {
+        id = NEXT_ID.incrementAndGet();
+        address = formatAddress(sc.socket());
+        acceptedAt = System.currentTimeMillis();
+        requests = new AtomicLong();
+        responses = new AtomicLong();
+        bytesRead = new AtomicLong();
+        bytesWritten = new AtomicLong();
+    }
+
+    /**
+     * Format the remote address of a socket without resolving its host name.
+     *
+     * @param socket
+     *            socket to describe.
+     * @return numeric address and port of the remote end.
+     */
+    static String formatAddress(Socket socket) {
+        InetAddress remote = socket.getInetAddress();
+        return "[" + (remote == null ? "unconnected" : remote.getHostAddress())
+                + ":" + socket.getPort() + "]";
+    }
+
+    /**
+     * Get the unique id of the connection.
+     *
+     * @return id of the connection.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Get the numeric address of the remote end, used to tag the log records.
+     *
+     * @return address and port as [address:port].
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the time when the connection was accepted.
+     *
+     * @return milliseconds since the epoch.
+     */
+    public long getAcceptedAt() {
+        return acceptedAt;
+    }
+
+    /**
+     * Count a request read from the connection.
+     */
+    void recordRequest() {
+        requests.incrementAndGet();
+    }
+
+    /**
+     * Count a response written to the connection.
+     */
+    void recordResponse() {
+        responses.incrementAndGet();
+    }
+
+    /**
+     * Count bytes read from the connection.
+     *
+     * @param count
+     *            number of bytes read.
+     */
+    void recordRead(int count) {
+        if (count > 0)
+            bytesRead.addAndGet(count);
+    }
+
+    /**
+     * Count bytes written to the connection.
+     *
+     * @param count
+     *            number of bytes written.
+     */
+    void recordWrite(long count) {
+        if (count > 0)
+            bytesWritten.addAndGet(count);
+    }
+
+    /**
+     * Get the number of requests read from the connection.
+     *
+     * @return number of requests.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of responses written to the connection.
+     *
+     * @return number of responses.
+     */
+    public long getResponses() {
+        return responses.get();
+    }
+
+    /**
+     * Get the number of bytes read from the connection.
+     *
+     * @return number of bytes.
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Get the number of bytes written to the connection.
+     *
+     * @return number of bytes.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connection %d from %s", id, address);
+    }
+}
@@ -7,28 +7,279 @@ package org.ftab.server;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.postgresql.ds.PGPoolingDataSource;
+import org.ftab.database.MetadataCache;
+import org.ftab.logging.SystemEvent;
+import org.ftab.logging.server.ServerLogRecord;
+import org.postgresql.ds.PGSimpleDataSource;
 
 /**
- * Wrapper class around PostgreSQL connection pool object.
+ * Pool of PostgreSQL connections. Each physical connection keeps a cache of
+ * its prepared statements, which the DAOs reuse transparently by preparing
+ * and closing their statements as usual on the connections handed out by the
+ * pool. Connections are handed out most recently used first, so the busy
+ * connections have their statements cached.
+ * <p>
+ * When all connections are in use the threads retrieving one wait in a FIFO
+ * queue and each released connection is handed directly to the oldest waiter,
+ * for at most the configured acquire timeout. A maintenance timer closes the
+ * connections that were idle or open for too long and reports the connections
+ * held for longer than the leak threshold. The acquire latency, the usage of
+ * the pool and the timeouts are kept for monitoring.
  */
 public class DBConnectionDispatcher {
     /**
-     * The PostgreSQL connection pool source.
+     * Logger of the pool.
      */
-    private final PGPoolingDataSource dbConnectionPool;
+    private final static Logger LOGGER = Logger
+            .getLogger(DBConnectionDispatcher.class.getName());
+
+    /**
+     * Default maximum number of idle prepared statements per connection.
+     */
+    public final static int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    /**
+     * Default number of executions of a statement after which it is prepared
+     * in the server. Cached statements are executed many times, so they are
+     * prepared in the server from the first execution.
+     */
+    public final static int DEFAULT_PREPARE_THRESHOLD = 1;
+
+    /**
+     * Default time to wait for a connection, in milliseconds.
+     */
+    public final static long DEFAULT_ACQUIRE_TIMEOUT = 30000;
+
+    /**
+     * Default time after which an idle connection is closed, in milliseconds.
+     */
+    public final static long DEFAULT_MAX_IDLE_TIME = 600000;
+
+    /**
+     * Default time after which a connection is closed once released, in
+     * milliseconds.
+     */
+    public final static long DEFAULT_MAX_LIFETIME = 1800000;
+
+    /**
+     * Default time after which a connection that was not released is reported
+     * as leaked, in milliseconds.
+     */
+    public final static long DEFAULT_LEAK_THRESHOLD = 60000;
+
+    /**
+     * Time between runs of the maintenance, in milliseconds.
+     */
+    private final static long MAINTENANCE_INTERVAL = 5000;
+
+    /**
+     * Time after which an idle connection is validated before being handed
+     * out, in milliseconds.
+     */
+    private final static long VALIDATION_IDLE_TIME = 5000;
+
+    /**
+     * Identifier of the pool in the logs.
+     */
+    private final String poolTag;
+
+    /**
+     * The PostgreSQL source of the physical connections.
+     */
+    private final PGSimpleDataSource dataSource;
+
+    /**
+     * Idle connections, most recently used first, guarded by this.
+     */
+    private final ArrayDeque<CachingConnection> idleConnections;
+
+    /**
+     * Connections handed out and not released yet, guarded by this.
+     */
+    private final HashSet<CachingConnection> usedConnections;
+
+    /**
+     * Threads waiting for a connection in arrival order, guarded by this.
+     */
+    private final ArrayDeque<Waiter> waiters;
+
+    /**
+     * Latency of the successful connection retrievals.
+     */
+    private final LatencyHistogram acquireLatency;
+
+    /**
+     * Cache of the client and queue ids of the database.
+     */
+    private final MetadataCache metadataCache;
+
+    /**
+     * Timer running the maintenance of the pool.
+     */
+    private final ScheduledThreadPoolExecutor maintenanceTimer;
+
+    /**
+     * Maximum number of physical connections, 0 for no limit.
+     */
+    private int maxConnections;
+
+    /**
+     * Maximum number of idle prepared statements per connection.
+     */
+    private int statementCacheSize;
+
+    /**
+     * Number of executions after which a statement is prepared in the server.
+     */
+    private int prepareThreshold;
+
+    /**
+     * Time to wait for a connection in milliseconds, 0 to wait forever.
+     */
+    private volatile long acquireTimeout;
+
+    /**
+     * Time after which an idle connection is closed in milliseconds, 0 to
+     * keep them.
+     */
+    private volatile long maxIdleTime;
+
+    /**
+     * Time after which a connection is closed once released in milliseconds,
+     * 0 to keep them.
+     */
+    private volatile long maxLifetime;
+
+    /**
+     * Time after which a connection that was not released is reported in
+     * milliseconds, 0 to disable the leak detection.
+     */
+    private volatile long leakThreshold;
+
+    /**
+     * Indicates if the stack of every retrieval is captured, so that the
+     * leak reports show where the connection was retrieved.
+     */
+    private volatile boolean leakTraces;
+
+    /**
+     * Number of open physical connections, including the ones being opened,
+     * guarded by this.
+     */
+    private int openConnections;
+
+    /**
+     * Number of retrievals that timed out, guarded by this.
+     */
+    private long acquireTimeouts;
+
+    /**
+     * Number of timeouts already reported by the maintenance, guarded by this.
+     */
+    private long reportedTimeouts;
+
+    /**
+     * Number of connections reported as leaked, guarded by this.
+     */
+    private long leakedConnections;
+
+    /**
+     * Indicates if the pool was closed, guarded by this.
+     */
+    private boolean closed;
+
+    /**
+     * Thread waiting for a connection. It is either handed a released
+     * connection or allowed to open a new one.
+     */
+    private static class Waiter {
+        /**
+         * Connection handed to the waiter.
+         */
+        private CachingConnection connection = null;
+
+        /**
+         * Indicates if the waiter may open a new connection.
+         */
+        private boolean mayOpen = false;
+
+        /**
+         * Indicate if the waiter can stop waiting.
+         *
+         * @return true if the waiter got a connection or may open one.
+         */
+        private boolean isGranted() {
+            return connection != null || mayOpen;
+        }
+    }
 
     /**
      * Create a new dispatcher with a default connection pool.
      */
     public DBConnectionDispatcher() {
-        dbConnectionPool = new PGPoolingDataSource();
+        this("dbpool");
+    }
+
+    /**
+     * Create a new dispatcher with a default connection pool.
+     *
+     * @param nPoolTag
+     *            identifier of the pool in the logs and in the name of its
+     *            maintenance thread.
+     */
+    public DBConnectionDispatcher(String nPoolTag) {
+        poolTag = nPoolTag;
+        dataSource = new PGSimpleDataSource();
+        idleConnections = new ArrayDeque<CachingConnection>();
+        usedConnections = new HashSet<CachingConnection>();
+        waiters = new ArrayDeque<Waiter>();
+        acquireLatency = new LatencyHistogram();
+        metadataCache = new MetadataCache();
+        maxConnections = 0;
+        statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+        prepareThreshold = DEFAULT_PREPARE_THRESHOLD;
+        acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+        maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+        maxLifetime = DEFAULT_MAX_LIFETIME;
+        leakThreshold = DEFAULT_LEAK_THRESHOLD;
+        leakTraces = false;
+        openConnections = 0;
+        acquireTimeouts = 0;
+        reportedTimeouts = 0;
+        leakedConnections = 0;
+        closed = false;
+
+        maintenanceTimer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "maintenance@" + poolTag);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        maintenanceTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Configure the database connection pool settings.
-     * 
+     *
      * @param username
      *            database username.
      * @param password
@@ -42,27 +293,474 @@ public class DBConnectionDispatcher {
      */
     public void configureDatabaseConnectionPool(String username,
             String password, String server, String database, int maxConnections) {
-        dbConnectionPool.setUser(username);
-        dbConnectionPool.setPassword(password);
-        dbConnectionPool.setServerName(server);
-        dbConnectionPool.setDatabaseName(database);
-        dbConnectionPool.setMaxConnections(maxConnections);
+        dataSource.setUser(username);
+        dataSource.setPassword(password);
+        dataSource.setServerName(server);
+        dataSource.setDatabaseName(database);
+        synchronized (this) {
+            this.maxConnections = maxConnections;
+        }
     }
 
     /**
-     * Retrieve a database connection from the pool. The connection comes with
-     * autoCommit disabled.
+     * Configure the prepared statement caches, this must be done before the
+     * first connection is retrieved.
+     *
+     * @param cacheSize
+     *            maximum number of idle prepared statements per connection, 0
+     *            disables the caches.
+     * @param threshold
+     *            number of executions of a statement after which it is
+     *            prepared in the server, 0 for the driver's default.
+     */
+    public void configureStatementCache(int cacheSize, int threshold) {
+        statementCacheSize = cacheSize;
+        prepareThreshold = threshold;
+    }
+
+    /**
+     * Configure the timeouts of the pool, all of them in milliseconds and 0
+     * to disable them.
+     *
+     * @param nAcquireTimeout
+     *            maximum time to wait for a connection.
+     * @param nMaxIdleTime
+     *            time after which an idle connection is closed.
+     * @param nMaxLifetime
+     *            time after which a connection is closed once released.
+     * @param nLeakThreshold
+     *            time after which a connection that was not released is
+     *            reported as leaked.
+     */
+    public void configurePoolTimeouts(long nAcquireTimeout, long nMaxIdleTime,
+            long nMaxLifetime, long nLeakThreshold) {
+        acquireTimeout = nAcquireTimeout;
+        maxIdleTime = nMaxIdleTime;
+        maxLifetime = nMaxLifetime;
+        leakThreshold = nLeakThreshold;
+    }
+
+    /**
+     * Configure if the stack of every retrieval is captured, so that the
+     * leak reports show where the leaked connection was retrieved. It costs
+     * a stack trace per retrieval, so it is meant for debugging.
+     *
+     * @param nLeakTraces
+     *            true to capture the stack of the retrievals.
+     */
+    public void setLeakTraces(boolean nLeakTraces) {
+        leakTraces = nLeakTraces;
+    }
+
+    /**
+     * Retrieve a database connection from the pool, waiting for one to be
+     * released if all of them are in use. The connection comes with
+     * autoCommit disabled, and closing it returns it to the pool.
+     *
+     * @throws SQLException
+     *             if no connection could be opened, the acquire timeout
+     *             expired or the pool is closed.
      */
     public Connection retrieveDatabaseConnection() throws SQLException {
-        Connection conn = dbConnectionPool.getConnection();
-        conn.setAutoCommit(false);
-        return conn;
+        long start = System.nanoTime();
+        while (true) {
+            CachingConnection pooled = null;
+            boolean mayOpen = false;
+            synchronized (this) {
+                if (closed)
+                    throw new SQLException("The connection pool is closed.");
+                if (waiters.isEmpty() && !idleConnections.isEmpty()) {
+                    pooled = idleConnections.pollFirst();
+                } else if (waiters.isEmpty() && hasRoom()) {
+                    ++openConnections;
+                    mayOpen = true;
+                } else {
+                    Waiter waiter = awaitConnection(start);
+                    pooled = waiter.connection;
+                    mayOpen = waiter.mayOpen;
+                }
+            }
+
+            if (mayOpen) {
+                try {
+                    pooled = new CachingConnection(openPhysicalConnection(),
+                            statementCacheSize, prepareThreshold, this);
+                } catch (SQLException e) {
+                    discardConnection(null);
+                    throw e;
+                }
+            } else if (!validate(pooled)) {
+                discardConnection(pooled);
+                continue;
+            }
+
+            synchronized (this) {
+                usedConnections.add(pooled);
+                pooled.checkedOutAt = System.nanoTime();
+                pooled.checkoutThread = Thread.currentThread().getName();
+                pooled.checkoutTrace = leakTraces ? new Throwable(
+                        "Connection retrieved by " + pooled.checkoutThread)
+                        : null;
+                pooled.leakReported = false;
+            }
+            Connection conn = pooled.checkout();
+            try {
+                conn.setAutoCommit(false);
+            } catch (SQLException e) {
+                synchronized (this) {
+                    usedConnections.remove(pooled);
+                }
+                discardConnection(pooled);
+                throw e;
+            }
+            acquireLatency.record(System.nanoTime() - start);
+            return conn;
+        }
+    }
+
+    /**
+     * Indicate if another physical connection can be opened, must be called
+     * holding the lock.
+     *
+     * @return true if the limit of connections was not reached.
+     */
+    private boolean hasRoom() {
+        return maxConnections <= 0 || openConnections < maxConnections;
+    }
+
+    /**
+     * Wait in the queue until a connection is handed over or may be opened,
+     * must be called holding the lock.
+     *
+     * @param start
+     *            time when the retrieval started, in nanoseconds.
+     * @return the granted waiter.
+     * @throws SQLException
+     *             if the wait timed out, was interrupted or the pool closed.
+     */
+    private Waiter awaitConnection(long start) throws SQLException {
+        Waiter waiter = new Waiter();
+        waiters.addLast(waiter);
+        long timeout = acquireTimeout;
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            while (!waiter.isGranted()) {
+                if (closed)
+                    throw new SQLException("The connection pool is closed.");
+                if (timeout > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        ++acquireTimeouts;
+                        throw new SQLException(String.format(
+                                "Timed out after %d ms waiting for a "
+                                        + "connection, %d in use and %d "
+                                        + "waiting.", timeout,
+                                usedConnections.size(), waiters.size()));
+                    }
+                    wait(Math.max(1,
+                            TimeUnit.NANOSECONDS.toMillis(remaining)));
+                } else {
+                    wait();
+                }
+            }
+            return waiter;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // A connection handed over at the same time must not be lost
+            if (waiter.isGranted())
+                return waiter;
+            throw new SQLException("Interrupted while waiting for a connection.");
+        } finally {
+            if (!waiter.isGranted())
+                waiters.remove(waiter);
+        }
+    }
+
+    /**
+     * Check that an idle connection can still be used, closing the ones that
+     * are too old and querying the ones that were idle for a while.
+     *
+     * @param pooled
+     *            connection taken from the pool.
+     * @return true if the connection can be handed out.
+     */
+    private boolean validate(CachingConnection pooled) {
+        long now = System.nanoTime();
+        long lifetime = maxLifetime;
+        if (lifetime > 0
+                && now - pooled.createdAt > TimeUnit.MILLISECONDS
+                        .toNanos(lifetime))
+            return false;
+        Connection physical = pooled.getPhysical();
+        try {
+            if (physical.isClosed())
+                return false;
+            if (now - pooled.releasedAt > TimeUnit.MILLISECONDS
+                    .toNanos(VALIDATION_IDLE_TIME)) {
+                Statement stmt = physical.createStatement();
+                try {
+                    stmt.execute("SELECT 1");
+                } finally {
+                    stmt.close();
+                }
+                if (!physical.getAutoCommit())
+                    physical.rollback();
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Open a physical connection for the pool.
+     *
+     * @return the new connection.
+     * @throws SQLException
+     *             if the connection couldn't be opened.
+     */
+    protected Connection openPhysicalConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    /**
+     * Return a physical connection to the pool once its logical connection is
+     * closed, rolling back any unfinished transaction. The connection is
+     * handed to the oldest waiting thread if there is one.
+     *
+     * @param pooled
+     *            the released connection.
+     */
+    void releaseConnection(CachingConnection pooled) {
+        synchronized (this) {
+            usedConnections.remove(pooled);
+            pooled.checkoutThread = null;
+            pooled.checkoutTrace = null;
+        }
+        try {
+            Connection physical = pooled.getPhysical();
+            if (physical.isClosed()) {
+                discardConnection(pooled);
+                return;
+            }
+            if (!physical.getAutoCommit())
+                physical.rollback();
+        } catch (SQLException e) {
+            discardConnection(pooled);
+            return;
+        }
+        long lifetime = maxLifetime;
+        if (lifetime > 0
+                && System.nanoTime() - pooled.createdAt > TimeUnit.MILLISECONDS
+                        .toNanos(lifetime)) {
+            discardConnection(pooled);
+            return;
+        }
+        synchronized (this) {
+            if (!closed) {
+                pooled.releasedAt = System.nanoTime();
+                Waiter waiter = waiters.pollFirst();
+                if (waiter != null) {
+                    waiter.connection = pooled;
+                    notifyAll();
+                } else {
+                    idleConnections.addFirst(pooled);
+                }
+                return;
+            }
+        }
+        discardConnection(pooled);
+    }
+
+    /**
+     * Close a physical connection and let the oldest waiting thread open a
+     * new one.
+     *
+     * @param pooled
+     *            the connection to discard, null if it couldn't be opened.
+     */
+    private void discardConnection(CachingConnection pooled) {
+        if (pooled != null)
+            pooled.close();
+        synchronized (this) {
+            --openConnections;
+            if (!closed && !waiters.isEmpty() && hasRoom()) {
+                ++openConnections;
+                waiters.pollFirst().mayOpen = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Close the connections that were idle or open for too long, report the
+     * connections held for longer than the leak threshold and the retrievals
+     * that timed out since the last run. This runs periodically in the
+     * maintenance timer.
+     */
+    public void maintain() {
+        long now = System.nanoTime();
+        long idleLimit = TimeUnit.MILLISECONDS.toNanos(maxIdleTime);
+        long lifeLimit = TimeUnit.MILLISECONDS.toNanos(maxLifetime);
+        long leakLimit = TimeUnit.MILLISECONDS.toNanos(leakThreshold);
+        LinkedList<CachingConnection> expired = new LinkedList<CachingConnection>();
+        LinkedList<ServerLogRecord> records = new LinkedList<ServerLogRecord>();
+        synchronized (this) {
+            Iterator<CachingConnection> it = idleConnections.iterator();
+            while (it.hasNext()) {
+                CachingConnection pooled = it.next();
+                if ((idleLimit > 0 && now - pooled.releasedAt > idleLimit)
+                        || (lifeLimit > 0 && now - pooled.createdAt > lifeLimit)) {
+                    it.remove();
+                    expired.add(pooled);
+                }
+            }
+
+            if (leakLimit > 0) {
+                for (CachingConnection pooled : usedConnections) {
+                    if (!pooled.leakReported
+                            && now - pooled.checkedOutAt > leakLimit) {
+                        pooled.leakReported = true;
+                        ++leakedConnections;
+                        ServerLogRecord record = new ServerLogRecord(
+                                Level.WARNING, poolTag,
+                                SystemEvent.SYSTEM_GENERIC, String.format(
+                                        "Connection retrieved by %s held for "
+                                                + "%d ms, it may have leaked.",
+                                        pooled.checkoutThread,
+                                        TimeUnit.NANOSECONDS.toMillis(now
+                                                - pooled.checkedOutAt)));
+                        if (pooled.checkoutTrace != null)
+                            record.setThrown(pooled.checkoutTrace);
+                        records.add(record);
+                    }
+                }
+            }
+
+            if (acquireTimeouts > reportedTimeouts) {
+                records.add(new ServerLogRecord(Level.WARNING, poolTag,
+                        SystemEvent.SYSTEM_GENERIC, String.format(
+                                "%d connection retrievals timed out, %d of %d "
+                                        + "connections in use and %d waiting. "
+                                        + "Acquire latency: %s.",
+                                acquireTimeouts - reportedTimeouts,
+                                usedConnections.size(), openConnections,
+                                waiters.size(), acquireLatency)));
+                reportedTimeouts = acquireTimeouts;
+            }
+        }
+
+        for (CachingConnection pooled : expired)
+            discardConnection(pooled);
+        for (ServerLogRecord record : records)
+            LOGGER.log(record);
+    }
+
+    /**
+     * Get the cache of the client and queue ids of the database, shared by
+     * all the users of the pool.
+     *
+     * @return the metadata cache.
+     */
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Get the latency of the successful connection retrievals, including the
+     * time spent waiting and opening new connections.
+     *
+     * @return the live histogram of latencies.
+     */
+    public LatencyHistogram getAcquireLatency() {
+        return acquireLatency;
+    }
+
+    /**
+     * Get the number of open physical connections.
+     *
+     * @return number of connections, including the ones being opened.
+     */
+    public synchronized int getOpenConnections() {
+        return openConnections;
+    }
+
+    /**
+     * Get the number of connections handed out and not released yet.
+     *
+     * @return number of connections in use.
+     */
+    public synchronized int getConnectionsInUse() {
+        return usedConnections.size();
+    }
+
+    /**
+     * Get the number of idle connections.
+     *
+     * @return number of idle connections.
+     */
+    public synchronized int getIdleConnections() {
+        return idleConnections.size();
+    }
+
+    /**
+     * Get the number of threads waiting for a connection.
+     *
+     * @return number of waiting threads.
+     */
+    public synchronized int getWaitingThreads() {
+        return waiters.size();
+    }
+
+    /**
+     * Get the number of retrievals that timed out.
+     *
+     * @return number of timeouts.
+     */
+    public synchronized long getAcquireTimeouts() {
+        return acquireTimeouts;
+    }
+
+    /**
+     * Get the number of connections reported as leaked.
+     *
+     * @return number of leak reports.
+     */
+    public synchronized long getLeakedConnections() {
+        return leakedConnections;
+    }
+
+    /**
+     * Open a connection outside of the pool with the same settings, for
+     * long-lived uses that must not hold a pooled connection. The connection
+     * comes with autoCommit enabled and must be closed by the caller.
+     */
+    public Connection openDedicatedConnection() throws SQLException {
+        return dataSource.getConnection();
     }
 
     /**
-     * Close all connections.
+     * Close all connections and stop the maintenance. The connections in use
+     * are closed when they are released and the waiting threads fail.
      */
     public void closePool() {
-        dbConnectionPool.close();
+        LinkedList<CachingConnection> idle;
+        String statistics;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            idle = new LinkedList<CachingConnection>(idleConnections);
+            idleConnections.clear();
+            notifyAll();
+            statistics = String.format("Closed the connection pool. Acquire "
+                    + "latency: %s, %d timeouts, %d leaks reported.",
+                    acquireLatency, acquireTimeouts, leakedConnections);
+        }
+        maintenanceTimer.shutdownNow();
+        for (CachingConnection pooled : idle)
+            discardConnection(pooled);
+        LOGGER.log(new ServerLogRecord(Level.INFO, poolTag,
+                SystemEvent.SYSTEM_GENERIC, statistics));
     }
 }
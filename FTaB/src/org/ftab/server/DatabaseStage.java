@@ -0,0 +1,107 @@
+/**
+ * DatabaseStage.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stage of the server pipeline that executes the database work of the client
+ * requests. The MessagingWorkers only parse the incoming frames and hand the
+ * decoded requests to this stage, so a slow database round-trip does not stall
+ * the other channels registered in the same selector. The stage is backed by a
+ * fixed number of threads, which is meant to match the size of the database
+ * connection pool, and a bounded queue of pending tasks.
+ */
+public class DatabaseStage {
+    /**
+     * Used to generate unique names for the stages in the same process.
+     */
+    private static final AtomicInteger uniqueID = new AtomicInteger(0);
+
+    /**
+     * Executor that runs the database tasks.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Create a stage with the given number of threads and capacity for pending
+     * tasks.
+     *
+     * @param nThreads
+     *            number of threads executing database tasks, it should be the
+     *            number of pooled database connections.
+     * @param nQueueCapacity
+     *            maximum number of tasks waiting for a thread.
+     * @param serverTag
+     *            name of the server that owns the stage, used to name the
+     *            threads.
+     */
+    public DatabaseStage(int nThreads, int nQueueCapacity, String serverTag) {
+        final String stageTag = String.format("dbstage#%d@%s",
+                uniqueID.getAndIncrement(), serverTag);
+        executor = new ThreadPoolExecutor(nThreads, nThreads, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        Math.max(1, nQueueCapacity)), new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, stageTag + "-"
+                                + threadCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Queue a task for execution in the stage.
+     *
+     * @param task
+     *            database task to execute.
+     * @throws RejectedExecutionException
+     *             if the stage is saturated or shutdown.
+     */
+    public void submit(Runnable task) throws RejectedExecutionException {
+        executor.execute(task);
+    }
+
+    /**
+     * Get the number of tasks waiting for a database thread.
+     *
+     * @return number of queued tasks.
+     */
+    public int getQueuedTasks() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Get the number of tasks currently being executed.
+     *
+     * @return number of active tasks.
+     */
+    public int getActiveTasks() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Stop accepting tasks and wait a bounded amount of time for the running
+     * ones to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * LatencyHistogram.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with buckets of exponentially growing size, the
+ * upper bound of bucket i is 2^i microseconds and the last bucket also counts
+ * everything above its bound. Each bucket can be split in 2^precision
+ * sub-buckets of equal size, which bounds the relative error of the
+ * percentiles to 2^-precision instead of a factor of 2.
+ * <p>
+ * The memory used is fixed at creation and recording a latency doesn't lock
+ * or allocate, so it is cheap enough to record every operation from any
+ * number of threads. The readings are not an atomic snapshot of the
+ * histogram, a latency recorded meanwhile may be missing from some of them.
+ */
+public class LatencyHistogram {
+    /**
+     * Number of buckets, the last one starts at about 18 minutes.
+     */
+    public final static int BUCKETS = 31;
+
+    /**
+     * Largest supported precision.
+     */
+    public final static int MAX_PRECISION = 8;
+
+    /**
+     * Number of bits of the sub-bucket index.
+     */
+    private final int precision;
+
+    /**
+     * Number of latencies recorded in each sub-bucket, sub-bucket j of bucket
+     * i is at index (i << precision) + j.
+     */
+    private final AtomicLongArray counts;
+
+    /**
+     * Number of latencies recorded.
+     */
+    private final AtomicLong count;
+
+    /**
+     * Sum of the latencies recorded in nanoseconds.
+     */
+    private final AtomicLong sum;
+
+    /**
+     * Maximum latency recorded in nanoseconds.
+     */
+    private final AtomicLong max;
+
+    /**
+     * Create an empty histogram without sub-buckets.
+     */
+    public LatencyHistogram() {
+        this(0);
+    }
+
+    /**
+     * Create an empty histogram.
+     *
+     * @param nPrecision
+     *            number of bits of the sub-bucket index, between 0 and
+     *            {@link #MAX_PRECISION}.
+     */
+    public LatencyHistogram(int nPrecision) {
+        if (nPrecision < 0 || nPrecision > MAX_PRECISION)
+            throw new IllegalArgumentException("Invalid precision "
+                    + nPrecision + ".");
+        precision = nPrecision;
+        counts = new AtomicLongArray(BUCKETS << precision);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Get the bucket of a latency.
+     *
+     * @param micros
+     *            latency in microseconds.
+     * @return index of the bucket.
+     */
+    private static int bucketOf(long micros) {
+        if (micros <= 1)
+            return 0;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros - 1);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * Get the counter of a latency.
+     *
+     * @param micros
+     *            latency in microseconds.
+     * @return index of the sub-bucket in the counters.
+     */
+    private int indexOf(long micros) {
+        int bucket = bucketOf(micros);
+        int sub = 0;
+        if (bucket > 0 && precision > 0) {
+            // Bucket i covers (2^(i-1), 2^i]
+            long offset = micros - (1L << (bucket - 1)) - 1;
+            sub = (int) Math.min((offset << precision) >>> (bucket - 1),
+                    (1 << precision) - 1);
+        }
+        return (bucket << precision) + sub;
+    }
+
+    /**
+     * Get the upper bound of a sub-bucket.
+     *
+     * @param index
+     *            index of the sub-bucket in the counters.
+     * @return upper bound in microseconds.
+     */
+    private long upperBoundOf(int index) {
+        int bucket = index >>> precision;
+        int sub = index & ((1 << precision) - 1);
+        if (bucket == 0)
+            return 1;
+        long width = 1L << (bucket - 1);
+        return width + (((sub + 1) * width + (1 << precision) - 1) >>> precision);
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos
+     *            latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(indexOf(nanos / 1000));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos))
+            current = max.get();
+    }
+
+    /**
+     * Get the upper bound of a bucket.
+     *
+     * @param bucket
+     *            index of the bucket.
+     * @return upper bound in microseconds.
+     */
+    public static long getUpperBound(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Get the number of latencies recorded in a bucket.
+     *
+     * @param bucket
+     *            index of the bucket.
+     * @return number of latencies.
+     */
+    public long getBucketCount(int bucket) {
+        long total = 0;
+        for (int i = bucket << precision; i < (bucket + 1) << precision; ++i)
+            total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * Get the number of latencies recorded.
+     *
+     * @return number of latencies.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the sum of the latencies recorded.
+     *
+     * @return sum in nanoseconds.
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Get the maximum latency recorded.
+     *
+     * @return maximum in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get an upper bound of the latency below which the given fraction of the
+     * recorded latencies are.
+     *
+     * @param fraction
+     *            fraction between 0 and 1, for example 0.99.
+     * @return upper bound of the sub-bucket where the percentile falls, in
+     *         microseconds, 0 if nothing was recorded.
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); ++i)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); ++i) {
+            seen += counts.get(i);
+            if (seen >= rank && seen > 0)
+                return upperBoundOf(i);
+        }
+        return getUpperBound(BUCKETS - 1);
+    }
+
+    @Override
+    public String toString() {
+        long n = getCount();
+        return String.format(
+                "count=%d avg=%dus p50<=%dus p99<=%dus p999<=%dus max=%dus", n,
+                n == 0 ? 0 : getSum() / n / 1000, getPercentile(0.5),
+                getPercentile(0.99), getPercentile(0.999), getMax() / 1000);
+    }
+}
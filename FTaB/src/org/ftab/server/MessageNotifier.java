@@ -0,0 +1,255 @@
+/**
+ * MessageNotifier.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of the retrieve requests that are waiting for a message to arrive.
+ * Waiters register under the key of the queue or sender they are retrieving
+ * from and are signalled, and removed, when a message is created for that key.
+ * Messages created by this server are announced directly by the
+ * ClientConnections after their transaction commits, messages created by
+ * other servers are announced by a {@link PostgresNotificationListener}. The
+ * notifier also owns the timer used to expire the waiting requests.
+ */
+public class MessageNotifier {
+    /**
+     * Name of the Postgres notification channel where the servers announce
+     * new messages to each other.
+     */
+    public final static String CHANNEL = "ftab_messages";
+
+    /**
+     * Prefix of the keys of queues.
+     */
+    private final static String QUEUE_PREFIX = "Q:";
+
+    /**
+     * Prefix of the keys of senders.
+     */
+    private final static String SENDER_PREFIX = "S:";
+
+    /**
+     * Waiters registered by key, guarded by itself.
+     */
+    private final HashMap<String, LinkedList<Runnable>> waiters;
+
+    /**
+     * Timer for the expiration of the waiters.
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Indicates if new messages must also be announced through the database
+     * for the other servers.
+     */
+    private volatile boolean publishingToDatabase;
+
+    /**
+     * Create an empty notifier.
+     *
+     * @param serverTag
+     *            name of the server that owns the notifier, used to name the
+     *            timer thread.
+     */
+    public MessageNotifier(final String serverTag) {
+        waiters = new HashMap<String, LinkedList<Runnable>>();
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "notifier-timer@" + serverTag);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        publishingToDatabase = false;
+    }
+
+    /**
+     * Get the key under which the waiters for a queue are registered.
+     *
+     * @param queueName
+     *            name of the queue.
+     * @return key of the queue.
+     */
+    public static String queueKey(String queueName) {
+        return QUEUE_PREFIX + queueName;
+    }
+
+    /**
+     * Get the key under which the waiters for a sender are registered.
+     *
+     * @param senderName
+     *            username of the sender.
+     * @return key of the sender.
+     */
+    public static String senderKey(String senderName) {
+        return SENDER_PREFIX + senderName;
+    }
+
+    /**
+     * Get the keys that must be signalled for a new message.
+     *
+     * @param queues
+     *            names of the queues where the message was created.
+     * @param senderName
+     *            username of the sender of the message.
+     * @return list of keys.
+     */
+    public static LinkedList<String> messageKeys(Iterable<String> queues,
+            String senderName) {
+        LinkedList<String> keys = new LinkedList<String>();
+        for (String queue : queues)
+            keys.add(queueKey(queue));
+        keys.add(senderKey(senderName));
+        return keys;
+    }
+
+    /**
+     * Register a waiter under the given key. It runs once, on the thread
+     * signalling the key, after which it is no longer registered.
+     *
+     * @param key
+     *            key of the queue or sender to wait for.
+     * @param waiter
+     *            action to run when a message arrives, it must not block.
+     */
+    public void register(String key, Runnable waiter) {
+        synchronized (waiters) {
+            LinkedList<Runnable> list = waiters.get(key);
+            if (list == null) {
+                list = new LinkedList<Runnable>();
+                waiters.put(key, list);
+            }
+            list.add(waiter);
+        }
+    }
+
+    /**
+     * Remove a waiter that is no longer interested in the key.
+     *
+     * @param key
+     *            key the waiter was registered under.
+     * @param waiter
+     *            waiter to remove.
+     */
+    public void unregister(String key, Runnable waiter) {
+        synchronized (waiters) {
+            LinkedList<Runnable> list = waiters.get(key);
+            if (list != null) {
+                list.remove(waiter);
+                if (list.isEmpty())
+                    waiters.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Signal that a message is available for the given key, running and
+     * removing all the waiters registered under it.
+     *
+     * @param key
+     *            key of the queue or sender.
+     */
+    public void signal(String key) {
+        LinkedList<Runnable> list;
+        synchronized (waiters) {
+            list = waiters.remove(key);
+        }
+        if (list != null)
+            for (Runnable waiter : list)
+                waiter.run();
+    }
+
+    /**
+     * Signal the keys of a new message.
+     *
+     * @param queues
+     *            names of the queues where the message was created.
+     * @param senderName
+     *            username of the sender of the message.
+     */
+    public void messageCreated(Iterable<String> queues, String senderName) {
+        for (String key : messageKeys(queues, senderName))
+            signal(key);
+    }
+
+    /**
+     * Signal every registered waiter, used when notifications may have been
+     * lost.
+     */
+    public void signalAll() {
+        LinkedList<Runnable> all = new LinkedList<Runnable>();
+        synchronized (waiters) {
+            for (LinkedList<Runnable> list : waiters.values())
+                all.addAll(list);
+            waiters.clear();
+        }
+        for (Runnable waiter : all)
+            waiter.run();
+    }
+
+    /**
+     * Get the number of registered waiters.
+     *
+     * @return number of waiters.
+     */
+    public int getWaiterCount() {
+        int count = 0;
+        synchronized (waiters) {
+            for (LinkedList<Runnable> list : waiters.values())
+                count += list.size();
+        }
+        return count;
+    }
+
+    /**
+     * Run a task after the given delay in the timer thread.
+     *
+     * @param task
+     *            task to run, it must not block.
+     * @param delayMillis
+     *            delay in milliseconds.
+     * @return future that can be used to cancel the task.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Indicate if new messages must also be announced through the database.
+     *
+     * @return true if the messages are announced through the database.
+     */
+    public boolean isPublishingToDatabase() {
+        return publishingToDatabase;
+    }
+
+    /**
+     * Set if new messages must also be announced through the database, which
+     * is needed when several servers share it.
+     *
+     * @param publish
+     *            true to announce the messages through the database.
+     */
+    public void setPublishingToDatabase(boolean publish) {
+        publishingToDatabase = publish;
+    }
+
+    /**
+     * Stop the timer, the waiters that didn't expire yet never will.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
@@ -10,17 +10,29 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.ftab.database.MessageStore;
+import org.ftab.database.StoreTransaction;
 import org.ftab.logging.server.WorkerLogRecord;
 import org.ftab.server.ClientConnection.WriteStatus;
 import org.ftab.server.exceptions.RemoteSocketClosedException;
 
 /**
  * Worker process that process multiple socket channels for read and write
- * operations.
+ * operations. The database work of the requests is delegated to a
+ * {@link DatabaseStage}, which reports back the completed requests through a
+ * lock-free queue and a wakeup of the selector.
  */
 public class MessagingWorker implements Runnable {
     /**
@@ -33,6 +45,29 @@ public class MessagingWorker implements Runnable {
      * Used to generate unique IDs for the messaging workers
      */
     private static int uniqueID = 0;
+
+    /**
+     * Time between the updates of the request rate, in milliseconds.
+     */
+    private static final long RATE_INTERVAL = 1000;
+
+    /**
+     * Weight of the last interval in the smoothed request rate.
+     */
+    private static final double RATE_SMOOTHING = 0.5;
+    /**
+     * Number of slots of the wheel of the idle connections.
+     */
+    private static final int WHEEL_SLOTS = 512;
+    /**
+     * Shortest tick of the wheel of the idle connections, in milliseconds.
+     */
+    private static final long MIN_WHEEL_TICK = 100;
+    /**
+     * Time a retiring worker keeps trying to migrate its connections before
+     * it gives up and goes back to work, in milliseconds.
+     */
+    private static final long RETIRE_TIMEOUT = 30000;
     
     /**
      * User friendly identifier for the worker
@@ -50,15 +85,97 @@ public class MessagingWorker implements Runnable {
     /**
      * Indicates the max number of keys in the selector.
      */
-    private int capacity;
+    private volatile int capacity;
+    /**
+     * Number of channels registered in the worker. It is kept by the worker
+     * so the server can read it without waking up the selector.
+     */
+    private final AtomicInteger connectionCount;
+    /**
+     * Free connection slots of all the workers of the server, may be null.
+     */
+    private final AtomicInteger serverFreeSlots;
+    /**
+     * Number of read events processed by the worker.
+     */
+    private final AtomicLong requestCount;
+    /**
+     * Smoothed number of read events processed per second.
+     */
+    private volatile double requestRate;
+    /**
+     * Time of the last update of the request rate, only used by the worker
+     * thread.
+     */
+    private long rateUpdateTime;
+    /**
+     * Number of read events at the last update of the request rate, only used
+     * by the worker thread.
+     */
+    private long rateUpdateCount;
+    /**
+     * Smoothed fraction of the time the worker spends outside the select,
+     * processing events.
+     */
+    private volatile double busyRatio;
+    /**
+     * Time spent blocked in the select since the last update of the busy
+     * ratio in nanoseconds, only used by the worker thread.
+     */
+    private long selectNanos;
+    /**
+     * Direct buffers for the requests and responses of the connections, only
+     * used by the worker thread.
+     */
+    private final BufferPool bufferPool;
+    /**
+     * Workers that receive the connections of this worker while it retires,
+     * null if it is not retiring.
+     */
+    private volatile List<MessagingWorker> heirs;
+    /**
+     * Time when a retirement in progress is abandoned, 0 if the worker
+     * thread hasn't started migrating yet. Only used by the worker thread.
+     */
+    private long retireDeadline;
+    /**
+     * Indicates that the worker handed all its connections to its heirs and
+     * stopped.
+     */
+    private volatile boolean retired;
     /**
      * Unique ientifier for the worker.
      */
     private final String identifier;
     /**
-     * Database connection pool.
+     * Store of the clients, queues and messages.
+     */
+    private final MessageStore messageStore;
+    /**
+     * Stage where the database work of the requests is executed.
      */
-    private final DBConnectionDispatcher dispatcher;
+    private final DatabaseStage databaseStage;
+    /**
+     * Keys of the channels with requests completed by the database stage.
+     */
+    private final ConcurrentLinkedQueue<SelectionKey> completedKeys;
+    /**
+     * Highest protocol version the clients of this worker may negotiate.
+     */
+    private final byte maxProtocolVersion;
+    /**
+     * Registry of the retrieve requests waiting for messages.
+     */
+    private final MessageNotifier messageNotifier;
+    /**
+     * Registry where the latencies of the requests are recorded, may be null.
+     */
+    private final RequestMetrics requestMetrics;
+    /**
+     * Number of responses waiting in the write queues of the clients of this
+     * worker.
+     */
+    private final AtomicLong pendingWrites;
     /**
      * Indicates if the worker should keep running.
      */
@@ -67,47 +184,200 @@ public class MessagingWorker implements Runnable {
      * Indicates if the worker is running.
      */
     private volatile boolean active;
-    
     /**
-     * Max time that a channel is allowed to be inactive (i.e. no read/write
-     * event has been selected), in seconds.
+     * Time without reads after which a client is pinged, in milliseconds. 0
+     * disables the reaping of idle clients.
+     */
+    private long idleTimeout;
+    /**
+     * Time that a pinged client has to show activity before it is reaped, in
+     * milliseconds.
+     */
+    private long pingTimeout;
+    /**
+     * Wheel with the next check of each connection, only touched by the
+     * worker thread.
+     */
+    private TimingWheel<SelectionKey> idleWheel;
+    /**
+     * Keys registered since the last select, waiting to enter the wheel.
      */
-    private final long clientTimeout;
+    private final ConcurrentLinkedQueue<SelectionKey> newKeys;
+    /**
+     * Reaped clients whose offline mark the database stage rejected, only
+     * touched by the worker thread.
+     */
+    private final List<Integer> unmarkedClients;
 
     /**
      * Create a worker with the given capacity.
      * 
      * @param nCapacity
      *            initial capacity of the worker.
-     * @param nDispatcher
-     *            database connection pool.
+     * @param nStore
+     *            store of the clients, queues and messages.
+     * @param nStage
+     *            stage where the database work is executed, if null the
+     *            requests are processed in the worker thread.
+     * @param nMaxProtocolVersion
+     *            highest protocol version the clients may negotiate.
+     * @param nNotifier
+     *            registry of the retrieve requests waiting for messages, if
+     *            null the retrieve requests never wait.
+     * @param nMetrics
+     *            registry where the latencies of the requests are recorded,
+     *            if null they are not measured.
+     * @param nFreeSlots
+     *            free connection slots of all the workers of the server, the
+     *            worker adds its capacity and keeps it up to date with its
+     *            connections. May be null.
+     * @param serverTag
+     *            name of the server that owns the worker.
      * @throws IOException
      *             If there is a problem opening the selector.
      */
-    public MessagingWorker(int nCapacity, DBConnectionDispatcher nDispatcher, 
-    		String serverTag)
+    public MessagingWorker(int nCapacity, MessageStore nStore, 
+    		DatabaseStage nStage, byte nMaxProtocolVersion,
+    		MessageNotifier nNotifier, RequestMetrics nMetrics,
+    		AtomicInteger nFreeSlots, String serverTag)
             throws IOException {
         selector = Selector.open();
         capacity = nCapacity;
+        connectionCount = new AtomicInteger();
+        serverFreeSlots = nFreeSlots;
+        if (serverFreeSlots != null)
+            serverFreeSlots.addAndGet(nCapacity);
+        requestCount = new AtomicLong();
+        requestRate = 0;
+        rateUpdateTime = System.currentTimeMillis();
+        rateUpdateCount = 0;
+        busyRatio = 0;
+        selectNanos = 0;
+        bufferPool = new BufferPool(BufferPool.DEFAULT_MAX_POOLED_BYTES);
+        heirs = null;
+        retireDeadline = 0;
+        retired = false;
         guardlock = new Object();
         identifier = UUID.randomUUID().toString();
-        dispatcher = nDispatcher;
+        messageStore = nStore;
+        databaseStage = nStage;
+        completedKeys = new ConcurrentLinkedQueue<SelectionKey>();
+        maxProtocolVersion = nMaxProtocolVersion;
+        messageNotifier = nNotifier;
+        requestMetrics = nMetrics;
+        pendingWrites = new AtomicLong();
         active = false;
         keepRunning = true;
-        clientTimeout = 3600;
+        idleTimeout = 0;
+        pingTimeout = 0;
+        idleWheel = null;
+        newKeys = new ConcurrentLinkedQueue<SelectionKey>();
+        unmarkedClients = new ArrayList<Integer>();
         workerTag = String.format("worker#%d@%s", uniqueID++, serverTag);
     }
 
+    /**
+     * Configure the reaping of idle clients, it must be called before the
+     * worker starts. A client that doesn't send anything during the idle
+     * timeout is pinged, and if it still shows no activity after the ping
+     * timeout its connection is closed and it is marked as offline. Clients
+     * waiting for the answer to a request are not idle. Connected clients of
+     * protocol versions without heartbeats can't be pinged and are never
+     * reaped, while connections that didn't connect a client yet are closed
+     * once both timeouts elapse.
+     * 
+     * @param nIdleTimeout
+     *            time without reads before a client is pinged, in
+     *            milliseconds. 0 disables reaping.
+     * @param nPingTimeout
+     *            time that a pinged client has to answer, in milliseconds.
+     */
+    public void configureReaping(long nIdleTimeout, long nPingTimeout) {
+        if (nIdleTimeout < 0 || nPingTimeout < 0)
+            throw new IllegalArgumentException(
+                    "The idle timeouts can't be negative.");
+        idleTimeout = nIdleTimeout;
+        pingTimeout = nPingTimeout;
+        if (idleTimeout == 0) {
+            idleWheel = null;
+            return;
+        }
+        // Ticks of a fraction of the shortest timeout keep the checks close
+        // to their deadlines
+        long shortest = pingTimeout > 0 ? Math.min(idleTimeout, pingTimeout)
+                : idleTimeout;
+        long tick = Math.max(MIN_WHEEL_TICK, shortest / 8);
+        idleWheel = new TimingWheel<SelectionKey>(tick, WHEEL_SLOTS,
+                System.currentTimeMillis());
+    }
+
     /**
      * Indicates if the worker is at full capacity.
      * 
      * @return true if the worker is at full capacity, false otherwise.
      */
     public boolean isFull() {
-        synchronized (guardlock) {
-            selector.wakeup();
-            return selector.keys().size() >= capacity;
-        }
+        return connectionCount.get() >= capacity;
+    }
+
+    /**
+     * Returns the number of clients assigned to the worker.
+     * 
+     * @return number of registered channels.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Returns the recent rate of requests of the clients of the worker,
+     * measured as read events per second and smoothed over the last seconds.
+     * 
+     * @return requests per second.
+     */
+    public double getRequestRate() {
+        return requestRate;
+    }
+
+    /**
+     * Returns the recent fraction of the time that the worker spends
+     * processing events instead of waiting for them, smoothed over the last
+     * seconds.
+     * 
+     * @return the busy ratio, between 0 and 1.
+     */
+    public double getBusyRatio() {
+        return busyRatio;
+    }
+
+    /**
+     * Get the pool of direct buffers of the worker. It must only be used from
+     * the worker thread.
+     * 
+     * @return the buffer pool.
+     */
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Returns the number of responses waiting to be written to the clients of
+     * the worker.
+     * 
+     * @return number of queued responses.
+     */
+    public long getPendingWrites() {
+        return pendingWrites.get();
+    }
+
+    /**
+     * Count responses added to or removed from the write queue of a client.
+     * 
+     * @param delta
+     *            change in the number of queued responses.
+     */
+    void pendingWritesChanged(int delta) {
+        pendingWrites.addAndGet(delta);
     }
 
     /**
@@ -116,10 +386,7 @@ public class MessagingWorker implements Runnable {
      * @return number of clients that can be assigned to the worker.
      */
     public int remainingCapacity() {
-        synchronized (guardlock) {
-            selector.wakeup();
-            return capacity - selector.keys().size();
-        }
+        return capacity - connectionCount.get();
     }
     
     /**
@@ -155,6 +422,66 @@ public class MessagingWorker implements Runnable {
      */
     public void increaseCapacity(int increase) {
         capacity += increase;
+        if (serverFreeSlots != null)
+            serverFreeSlots.addAndGet(increase);
+    }
+
+    /**
+     * Dynamically set the capacity of the worker. A capacity under the
+     * current number of connections only stops new connections, the existing
+     * ones are kept.
+     * 
+     * @param nCapacity
+     *            new capacity of the worker.
+     */
+    public void setCapacity(int nCapacity) {
+        increaseCapacity(nCapacity - capacity);
+    }
+
+    /**
+     * Get the capacity of the worker.
+     * 
+     * @return maximum number of connections handed to the worker.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Retire the worker, it moves its connections to the given workers as
+     * soon as they have no work in progress and stops once it has none left.
+     * If some connection can't be moved for a while the retirement is
+     * abandoned and the worker keeps running. The worker must not receive
+     * new connections while it retires.
+     * 
+     * @param nHeirs
+     *            running workers that receive the connections, at least one.
+     */
+    public void retire(List<MessagingWorker> nHeirs) {
+        if (nHeirs.isEmpty())
+            throw new IllegalArgumentException(
+                    "A worker needs heirs to retire.");
+        heirs = new ArrayList<MessagingWorker>(nHeirs);
+        selector.wakeup();
+    }
+
+    /**
+     * Indicates if the worker is moving its connections to other workers.
+     * 
+     * @return true if it is retiring, false otherwise.
+     */
+    public boolean isRetiring() {
+        return heirs != null && !retired;
+    }
+
+    /**
+     * Indicates if the worker moved all its connections to other workers and
+     * stopped.
+     * 
+     * @return true if it retired, false otherwise.
+     */
+    public boolean isRetired() {
+        return retired;
     }
 
     /**
@@ -164,19 +491,132 @@ public class MessagingWorker implements Runnable {
      *            socket channel to register.
      */
     public void registerChannel(SocketChannel channel) {
+        registerChannel(channel, new ConnectionContext(channel));
+    }
+
+    /**
+     * Register a new accepted channel in the worker's selector, with the
+     * context created when it was accepted.
+     * 
+     * @param channel
+     *            channel to register.
+     * @param context
+     *            context of the connection.
+     */
+    public void registerChannel(SocketChannel channel,
+            ConnectionContext context) {
+        connectionsChanged(1);
         synchronized (guardlock) {
             selector.wakeup();
             SelectionKey key;
             try {
                 key = channel.register(selector, SelectionKey.OP_READ);
-                key.attach(new ClientConnection(dispatcher));
+                ClientConnection cc = new ClientConnection(messageStore,
+                        databaseStage, this, messageNotifier, context);
+                cc.setSelectionKey(key);
+                cc.setMaxProtocolVersion(maxProtocolVersion);
+                cc.setRequestMetrics(requestMetrics);
+                key.attach(cc);
+                if (idleTimeout > 0)
+                    newKeys.add(key);
             } catch (ClosedChannelException e) {
+                connectionsChanged(-1);
             	LOGGER.log(new WorkerLogRecord(this,  
             			"Couldn't register new channel in worker because it was already closed.", e));
             }
         }
     }
 
+    /**
+     * Thread-safe registration of a connection moved from a retiring worker.
+     * 
+     * @param channel
+     *            channel of the connection, its key in the old worker must be
+     *            cancelled.
+     * @param cc
+     *            connection, it must have no work in progress.
+     */
+    void adoptChannel(SocketChannel channel, ClientConnection cc) {
+        connectionsChanged(1);
+        synchronized (guardlock) {
+            selector.wakeup();
+            try {
+                SelectionKey key = channel.register(selector,
+                        SelectionKey.OP_READ, cc);
+                cc.moveTo(this, key);
+                if (idleTimeout > 0)
+                    newKeys.add(key);
+            } catch (ClosedChannelException e) {
+                connectionsChanged(-1);
+                cc.connectionClosed();
+                LOGGER.log(new WorkerLogRecord(this,  
+                        "Couldn't adopt channel in worker because it was already closed.", e));
+            }
+        }
+    }
+
+    /**
+     * Count connections added to or removed from the worker.
+     * 
+     * @param delta
+     *            change in the number of connections.
+     */
+    private void connectionsChanged(int delta) {
+        connectionCount.addAndGet(delta);
+        if (serverFreeSlots != null)
+            serverFreeSlots.addAndGet(-delta);
+    }
+
+    /**
+     * Update the smoothed request rate and busy ratio once per interval,
+     * called from the worker thread.
+     */
+    private void updateLoadStats() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - rateUpdateTime;
+        if (elapsed < RATE_INTERVAL)
+            return;
+        long count = requestCount.get();
+        double lastRate = (count - rateUpdateCount) * 1000.0 / elapsed;
+        requestRate = RATE_SMOOTHING * lastRate + (1 - RATE_SMOOTHING)
+                * requestRate;
+        double lastBusy = Math.max(0, 1 - selectNanos / (elapsed * 1e6));
+        busyRatio = RATE_SMOOTHING * lastBusy + (1 - RATE_SMOOTHING)
+                * busyRatio;
+        rateUpdateTime = now;
+        rateUpdateCount = count;
+        selectNanos = 0;
+    }
+
+    /**
+     * Notify the worker that the database stage completed a request of the
+     * channel with the given key, or pushed messages for one of its
+     * subscriptions. This is called from the database stage threads.
+     * 
+     * @param key
+     *            key of the channel with new output.
+     */
+    void requestCompleted(SelectionKey key) {
+        completedKeys.add(key);
+        selector.wakeup();
+    }
+
+    /**
+     * Get the address of the client of a channel for the log records.
+     * 
+     * @param key
+     *            key of the channel, with its {@link ClientConnection}
+     *            attached.
+     * @return numeric address of the client.
+     */
+    private static String addressOf(SelectionKey key) {
+        ClientConnection cc = (ClientConnection) key.attachment();
+        if (cc != null && cc.getContext() != null)
+            return cc.getContext().getAddress();
+        return ConnectionContext.formatAddress(((SocketChannel) key.channel())
+                .socket());
+    }
+
     /**
      * Thread-safe cancellation of a channel in the worker's selector.
      * 
@@ -187,10 +627,11 @@ public class MessagingWorker implements Runnable {
         synchronized (guardlock) {
             selector.wakeup();
             key.cancel();
+            connectionsChanged(-1);
             
-            LOGGER.log(new WorkerLogRecord(this, 
-        			String.format("Canceled key for connection from %s.", 
-        					ServerLogger.parseSocketAddress((SocketChannel)key.channel()))));
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(new WorkerLogRecord(this, "Canceled key for connection from %s.")
+                        .withArguments(addressOf(key)));
         }
     }
 
@@ -207,9 +648,9 @@ public class MessagingWorker implements Runnable {
             selector.wakeup();
             key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
             
-            LOGGER.log(new WorkerLogRecord(this,  
-        			String.format("Channel connected to %s is now interested in writing.", 
-        					ServerLogger.parseSocketAddress((SocketChannel)key.channel()))));
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(new WorkerLogRecord(this, "Channel connected to %s is now interested in writing.")
+                        .withArguments(addressOf(key)));
         }
     }
 
@@ -226,9 +667,9 @@ public class MessagingWorker implements Runnable {
             selector.wakeup();
             key.interestOps(SelectionKey.OP_READ);
             
-            LOGGER.log(new WorkerLogRecord(this, 
-            		String.format("Channel connected to %s is now only interested in reading.", 
-        					ServerLogger.parseSocketAddress((SocketChannel)key.channel()))));
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(new WorkerLogRecord(this, "Channel connected to %s is now only interested in reading.")
+                        .withArguments(addressOf(key)));
         }
     }
 
@@ -245,11 +686,17 @@ public class MessagingWorker implements Runnable {
                 // Wait for the lock on the selector key-set before continuing
             }
             try {
-                int eventCount = selector.select(clientTimeout);
-                if (eventCount == 0) {
-                    // TODO: Check for timed out clients and reap them.
+                long selectStart = System.nanoTime();
+                int eventCount = selector.select(idleWheel != null ? idleWheel
+                        .getTickDuration() : RATE_INTERVAL);
+                selectNanos += System.nanoTime() - selectStart;
+                processCompletedRequests();
+                updateLoadStats();
+                reapIdleClients();
+                if (heirs != null && migrateConnections())
+                    break;
+                if (eventCount == 0)
                     continue;
-                }
                 Iterator<SelectionKey> it = selector.selectedKeys().iterator();
                 while (it.hasNext()) {
                     SelectionKey key = it.next();
@@ -267,6 +714,188 @@ public class MessagingWorker implements Runnable {
         }
         closeWorker();
         active = false;
+        if (heirs != null)
+            retired = true;
+    }
+
+    /**
+     * Move the connections without work in progress to the heirs of the
+     * worker, each to the heir with the most remaining capacity. If the
+     * retirement takes too long it is abandoned.
+     * 
+     * @return true if all the connections were moved, false otherwise.
+     * @throws IOException
+     *             if the selector can't flush the cancelled keys.
+     */
+    private boolean migrateConnections() throws IOException {
+        List<MessagingWorker> currentHeirs = heirs;
+        long now = System.currentTimeMillis();
+        if (retireDeadline == 0)
+            retireDeadline = now + RETIRE_TIMEOUT;
+
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid())
+                continue;
+            ClientConnection cc = (ClientConnection) key.attachment();
+            if (cc == null || !cc.isQuiescent())
+                continue;
+            MessagingWorker heir = null;
+            for (MessagingWorker candidate : currentHeirs) {
+                if (heir == null
+                        || candidate.remainingCapacity() > heir
+                                .remainingCapacity())
+                    heir = candidate;
+            }
+            deregisterKey(key);
+            heir.adoptChannel((SocketChannel) key.channel(), cc);
+        }
+
+        if (connectionCount.get() == 0) {
+            // Drop the cancelled keys so closing the selector leaves the
+            // moved channels open
+            selector.selectNow();
+            LOGGER.log(new WorkerLogRecord(this, String.format(
+                    "Worker %s retired.", identifier)));
+            return true;
+        }
+        if (now >= retireDeadline) {
+            heirs = null;
+            retireDeadline = 0;
+            LOGGER.log(new WorkerLogRecord(this, String.format(
+                    "Worker %s couldn't move %d busy connections, it stays.",
+                    identifier, connectionCount.get())));
+        }
+        return false;
+    }
+
+    /**
+     * Check the connections whose timers expired in the idle wheel, pinging
+     * the ones that have been idle for too long and reaping those that didn't
+     * answer a ping. The reaped clients are marked as offline in one batch,
+     * together with the ones whose mark was rejected earlier. The connections waiting for a response and the legacy clients that
+     * can't be pinged are only checked again later.
+     */
+    private void reapIdleClients() {
+        if (idleWheel == null)
+            return;
+        long now = System.currentTimeMillis();
+        SelectionKey key;
+        while ((key = newKeys.poll()) != null)
+            idleWheel.schedule(key, now + idleTimeout);
+
+        List<SelectionKey> expired = new ArrayList<SelectionKey>();
+        idleWheel.advance(now, expired);
+        if (expired.isEmpty() && unmarkedClients.isEmpty())
+            return;
+
+        List<Integer> reapedClients = new ArrayList<Integer>(unmarkedClients);
+        unmarkedClients.clear();
+        for (SelectionKey expiredKey : expired) {
+            if (!expiredKey.isValid())
+                continue;
+            ClientConnection cc = (ClientConnection) expiredKey.attachment();
+            if (cc.isAwaitingResponse()
+                    || (cc.getConnectedClientId() != -1 && !cc.acceptsPings())) {
+                cc.clearPing();
+                idleWheel.schedule(expiredKey, now + idleTimeout);
+                continue;
+            }
+            long lastActivity = cc.getLastActivity();
+            long pingSentAt = cc.getPingSentAt();
+            if (pingSentAt != 0 && lastActivity >= pingSentAt) {
+                cc.clearPing();
+                pingSentAt = 0;
+            }
+
+            if (pingSentAt == 0) {
+                if (now - lastActivity < idleTimeout) {
+                    idleWheel.schedule(expiredKey, lastActivity + idleTimeout);
+                } else {
+                    if (cc.ping(now)
+                            && (expiredKey.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                        try {
+                            writeEagerly(expiredKey);
+                        } catch (IOException e) {
+                            LOGGER.log(new WorkerLogRecord(this, String.format(
+                                    "Failed to ping %s.", addressOf(expiredKey)), e));
+                        }
+                    }
+                    idleWheel.schedule(expiredKey, now + pingTimeout);
+                }
+            } else if (now - pingSentAt < pingTimeout) {
+                idleWheel.schedule(expiredKey, pingSentAt + pingTimeout);
+            } else {
+                int clientId = cc.getConnectedClientId();
+                if (clientId != -1)
+                    reapedClients.add(clientId);
+                reap(expiredKey);
+            }
+        }
+        if (!reapedClients.isEmpty())
+            markOffline(reapedClients);
+    }
+
+    /**
+     * Close the connection of a client that didn't answer a ping.
+     * 
+     * @param key
+     *            key of the connection.
+     */
+    private void reap(SelectionKey key) {
+        ClientConnection cc = (ClientConnection) key.attachment();
+        String address = addressOf(key);
+        cc.connectionClosed();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            LOGGER.log(new WorkerLogRecord(this, String.format(
+                    "Failed to close the idle connection from %s.", address), e));
+        }
+        deregisterKey(key);
+        LOGGER.log(new WorkerLogRecord(this,
+                "Reaped idle connection from %s.").withArguments(address));
+    }
+
+    /**
+     * Mark the reaped clients as offline, in the database stage if there is
+     * one, otherwise in the worker thread. If the stage rejects the work the
+     * clients are kept for the next check, since the rejection usually means
+     * that the database connections are exhausted and the worker would stall
+     * waiting for one.
+     * 
+     * @param clientIds
+     *            ids of the reaped clients.
+     */
+    private void markOffline(final List<Integer> clientIds) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    StoreTransaction tx = messageStore.begin();
+                    try {
+                        messageStore.changeClientsStatus(clientIds, false, tx);
+                        tx.commit();
+                    } finally {
+                        tx.close();
+                    }
+                } catch (SQLException e) {
+                    LOGGER.log(new WorkerLogRecord(MessagingWorker.this, 
+                            String.format("Failed to mark %d reaped clients as offline.", 
+                                    clientIds.size()), e));
+                }
+            }
+        };
+        if (databaseStage != null) {
+            try {
+                databaseStage.submit(task);
+            } catch (RejectedExecutionException e) {
+                LOGGER.log(new WorkerLogRecord(this, String.format(
+                        "The database stage rejected marking %d reaped "
+                                + "clients as offline.", clientIds.size())));
+                unmarkedClients.addAll(clientIds);
+            }
+        } else
+            task.run();
     }
 
     /**
@@ -281,6 +910,9 @@ public class MessagingWorker implements Runnable {
         try {
             for (SelectionKey key : selector.keys()) {
                 SocketChannel sc = (SocketChannel) key.channel();
+                ClientConnection cc = (ClientConnection) key.attachment();
+                if (cc != null)
+                    cc.connectionClosed();
                 sc.close();
             }
             selector.close();
@@ -303,25 +935,100 @@ public class MessagingWorker implements Runnable {
     private void processReadReady(SelectionKey key) {
         SocketChannel sc = (SocketChannel) key.channel();
         ClientConnection cc = (ClientConnection) key.attachment();
+        requestCount.incrementAndGet();
         
-        final WorkerLogRecord record = new WorkerLogRecord(this, 
-        		String.format("Processing read event from %s.", ServerLogger.parseSocketAddress(sc)));
-        LOGGER.log(record);
+        // Per-event records are only built when debugging, they are the
+        // most frequent records of the server.
+        WorkerLogRecord record = null;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            record = new WorkerLogRecord(this, "Processing read event from %s.")
+                    .withArguments(addressOf(key));
+            LOGGER.log(record);
+        }
         
         try {
             boolean needWrite = false;
             try {
                 needWrite = cc.processRead(sc);
             } catch (RemoteSocketClosedException e) {
+                cc.connectionClosed();
                 sc.close();
                 deregisterKey(key);
             }
             if (needWrite && ((key.interestOps() & SelectionKey.OP_WRITE) == 0))
-                announceWriteNeed(key);
+                writeEagerly(key);
         } catch (IOException e) {
         	LOGGER.log(new WorkerLogRecord(this, 
         			String.format("Failed to process a read event from %s.", 
-        					ServerLogger.parseSocketAddress(sc)), record, e));
+        					addressOf(key)), record, e));
+        } catch (RuntimeException e) {
+            // A bug triggered by one client must not kill the worker and
+            // drop the other connections with it
+            LOGGER.log(new WorkerLogRecord(this,
+                    String.format("Unexpected error while reading from %s, "
+                            + "closing the connection.", addressOf(key)),
+                    record, e));
+            cc.connectionClosed();
+            try {
+                sc.close();
+            } catch (IOException e1) {
+                LOGGER.log(new WorkerLogRecord(this, String.format(
+                        "Failed to close the connection to %s.",
+                        addressOf(key)), record, e1));
+            }
+            deregisterKey(key);
+        }
+    }
+
+    /**
+     * Move the responses of the requests completed by the database stage to
+     * the write queues of their channels, announcing the need to write where
+     * necessary.
+     */
+    private void processCompletedRequests() {
+        SelectionKey key;
+        while ((key = completedKeys.poll()) != null) {
+            if (!key.isValid())
+                continue;
+            SocketChannel sc = (SocketChannel) key.channel();
+            ClientConnection cc = (ClientConnection) key.attachment();
+            boolean needWrite = cc.processCompletions(sc);
+            if (needWrite && ((key.interestOps() & SelectionKey.OP_WRITE) == 0)) {
+                try {
+                    writeEagerly(key);
+                } catch (IOException e) {
+                    LOGGER.log(new WorkerLogRecord(this, String.format(
+                            "Failed to write the completed responses to %s.",
+                            addressOf(key)), e));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the responses just queued for a channel that isn't waiting to be
+     * selected for writing, instead of waiting for the next select. The key
+     * only becomes interested in writing if the socket doesn't take them all.
+     * 
+     * @param key
+     *            key of the channel, it must belong to the Selector's key-set.
+     * @throws IOException
+     *             if there is an error writing to the socket.
+     */
+    private void writeEagerly(SelectionKey key) throws IOException {
+        SocketChannel sc = (SocketChannel) key.channel();
+        ClientConnection cc = (ClientConnection) key.attachment();
+        switch (cc.processWrite(sc)) {
+        case IDLE:
+            break;
+        case WRITING:
+            announceWriteNeed(key);
+            break;
+        case DISCONNECT:
+            cc.connectionClosed();
+            sc.close();
+            deregisterKey(key);
+            break;
         }
     }
 
@@ -338,9 +1045,14 @@ public class MessagingWorker implements Runnable {
         SocketChannel sc = (SocketChannel) key.channel();
         ClientConnection cc = (ClientConnection) key.attachment();
         
-        final WorkerLogRecord record = new WorkerLogRecord(this, 
-        		String.format("Processing write event from %s.", ServerLogger.parseSocketAddress(sc)));
-        LOGGER.log(record);
+        // Per-event records are only built when debugging, they are the
+        // most frequent records of the server.
+        WorkerLogRecord record = null;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            record = new WorkerLogRecord(this, "Processing write event from %s.")
+                    .withArguments(addressOf(key));
+            LOGGER.log(record);
+        }
         
         try {
             WriteStatus ccs = cc.processWrite(sc);
@@ -351,6 +1063,7 @@ public class MessagingWorker implements Runnable {
             case WRITING:
                 break;
             case DISCONNECT:
+                cc.connectionClosed();
                 sc.close();
                 deregisterKey(key);
                 break;
@@ -358,7 +1071,7 @@ public class MessagingWorker implements Runnable {
         } catch (IOException e) {
         	LOGGER.log(new WorkerLogRecord(this, 
         			String.format("Failed to process a write event from %s.", 
-        					ServerLogger.parseSocketAddress(sc)), record, e));
+        					addressOf(key)), record, e));
         }
     }
     
@@ -0,0 +1,295 @@
+/**
+ * MetricsHttpServer.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.ftab.communication.responses.RequestResponse.Status;
+import org.ftab.logging.SystemEvent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server that exposes the {@link ServerStats} of a server at
+ * /metrics in the Prometheus text format. The page is built on every request
+ * from the live counters, so scraping doesn't add any work to the request
+ * path. Requests are answered one at a time by the thread of the HTTP server.
+ */
+public class MetricsHttpServer {
+    /**
+     * Path of the metrics page.
+     */
+    public final static String PATH = "/metrics";
+
+    /**
+     * Content type of the Prometheus text format.
+     */
+    private final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Statistics exported.
+     */
+    private final ServerStats stats;
+
+    /**
+     * The HTTP server.
+     */
+    private final HttpServer httpServer;
+
+    /**
+     * Create the HTTP server, it doesn't listen until started.
+     *
+     * @param nStats
+     *            statistics to export.
+     * @param port
+     *            port to listen to, 0 picks any free port.
+     * @throws IOException
+     *             if the port can't be bound.
+     */
+    public MetricsHttpServer(ServerStats nStats, int port) throws IOException {
+        stats = nStats;
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = render(stats).getBytes(Charset.forName("UTF-8"));
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Start answering requests.
+     */
+    public void start() {
+        httpServer.start();
+    }
+
+    /**
+     * Stop answering requests and release the port.
+     */
+    public void stop() {
+        httpServer.stop(0);
+    }
+
+    /**
+     * Get the port where the server listens.
+     *
+     * @return the port.
+     */
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * Build the metrics page.
+     *
+     * @param stats
+     *            statistics to export.
+     * @return the page in the Prometheus text format.
+     */
+    public static String render(ServerStats stats) {
+        StringBuilder page = new StringBuilder(4096);
+        gauge(page, "ftab_workers", "Number of messaging workers.",
+                stats.getWorkerCount());
+        header(page, "ftab_worker_connections", "gauge",
+                "Number of clients connected to each worker.");
+        for (Map.Entry<String, Integer> entry : stats
+                .getConnectionsPerWorker().entrySet())
+            sample(page, "ftab_worker_connections",
+                    "worker=\"" + escape(entry.getKey()) + "\"",
+                    entry.getValue());
+        gauge(page, "ftab_pending_writes",
+                "Number of responses waiting to be written to the clients.",
+                stats.getPendingWrites());
+        gauge(page, "ftab_database_stage_queued_tasks",
+                "Number of requests waiting for a database thread.",
+                stats.getDatabaseStageQueuedTasks());
+        gauge(page, "ftab_database_stage_active_tasks",
+                "Number of requests being executed by the database threads.",
+                stats.getDatabaseStageActiveTasks());
+        gauge(page, "ftab_waiting_retrievals",
+                "Number of retrieve requests and subscriptions waiting for messages.",
+                stats.getWaitingRetrievals());
+
+        gauge(page, "ftab_db_pool_open_connections",
+                "Number of database connections open in the pool.",
+                stats.getDbOpenConnections());
+        gauge(page, "ftab_db_pool_connections_in_use",
+                "Number of database connections retrieved from the pool.",
+                stats.getDbConnectionsInUse());
+        gauge(page, "ftab_db_pool_waiting_threads",
+                "Number of threads waiting for a database connection.",
+                stats.getDbWaitingThreads());
+        counter(page, "ftab_db_pool_acquire_timeouts_total",
+                "Number of retrievals from the pool that timed out.",
+                stats.getDbAcquireTimeouts());
+        counter(page, "ftab_db_pool_leaked_connections_total",
+                "Number of connections held longer than the leak threshold.",
+                stats.getDbLeakedConnections());
+        header(page, "ftab_db_pool_acquire_seconds", "histogram",
+                "Time spent waiting for a database connection.");
+        histogram(page, "ftab_db_pool_acquire_seconds", "",
+                stats.getDbAcquireHistogram());
+
+        counter(page, "ftab_metadata_cache_hits_total",
+                "Client and queue lookups answered from the cache.",
+                stats.getMetadataCacheHits());
+        counter(page, "ftab_metadata_cache_misses_total",
+                "Client and queue lookups sent to the database.",
+                stats.getMetadataCacheMisses());
+
+        header(page, "ftab_request_seconds", "histogram",
+                "Latency of the requests by kind and response status.");
+        RequestMetrics metrics = stats.getRequestMetrics();
+        for (SystemEvent event : SystemEvent.values()) {
+            for (Status status : Status.values()) {
+                LatencyHistogram latencies = metrics.getHistogram(event,
+                        status);
+                if (latencies != null)
+                    histogram(page, "ftab_request_seconds", "event=\""
+                            + event + "\",status=\"" + status + "\",",
+                            latencies);
+            }
+        }
+        return page.toString();
+    }
+
+    /**
+     * Append the HELP and TYPE lines of a metric.
+     *
+     * @param page
+     *            page being built.
+     * @param name
+     *            name of the metric.
+     * @param type
+     *            type of the metric.
+     * @param help
+     *            description of the metric.
+     */
+    private static void header(StringBuilder page, String name, String type,
+            String help) {
+        page.append("# HELP ").append(name).append(' ').append(help)
+                .append('\n');
+        page.append("# TYPE ").append(name).append(' ').append(type)
+                .append('\n');
+    }
+
+    /**
+     * Append a sample of a metric.
+     *
+     * @param page
+     *            page being built.
+     * @param name
+     *            name of the metric.
+     * @param labels
+     *            labels of the sample, or empty.
+     * @param value
+     *            value of the sample.
+     */
+    private static void sample(StringBuilder page, String name,
+            String labels, long value) {
+        page.append(name);
+        if (!labels.isEmpty())
+            page.append('{').append(labels).append('}');
+        page.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Append a gauge without labels.
+     *
+     * @param page
+     *            page being built.
+     * @param name
+     *            name of the metric.
+     * @param help
+     *            description of the metric.
+     * @param value
+     *            value of the gauge.
+     */
+    private static void gauge(StringBuilder page, String name, String help,
+            long value) {
+        header(page, name, "gauge", help);
+        sample(page, name, "", value);
+    }
+
+    /**
+     * Append a counter without labels.
+     *
+     * @param page
+     *            page being built.
+     * @param name
+     *            name of the metric.
+     * @param help
+     *            description of the metric.
+     * @param value
+     *            value of the counter.
+     */
+    private static void counter(StringBuilder page, String name, String help,
+            long value) {
+        header(page, name, "counter", help);
+        sample(page, name, "", value);
+    }
+
+    /**
+     * Append the samples of a histogram, with one cumulative bucket per
+     * power-of-two bucket of the latency histogram.
+     *
+     * @param page
+     *            page being built.
+     * @param name
+     *            name of the metric.
+     * @param labels
+     *            labels of the histogram followed by a comma, or empty.
+     * @param latencies
+     *            the histogram.
+     */
+    private static void histogram(StringBuilder page, String name,
+            String labels, LatencyHistogram latencies) {
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS - 1; ++i) {
+            cumulative += latencies.getBucketCount(i);
+            page.append(name).append("_bucket{").append(labels)
+                    .append("le=\"")
+                    .append(LatencyHistogram.getUpperBound(i) / 1e6)
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        // The count is taken from the buckets so the page is consistent
+        cumulative += latencies.getBucketCount(LatencyHistogram.BUCKETS - 1);
+        page.append(name).append("_bucket{").append(labels)
+                .append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String plain = labels.isEmpty() ? "" : "{"
+                + labels.substring(0, labels.length() - 1) + "}";
+        page.append(name).append("_sum").append(plain).append(' ')
+                .append(latencies.getSum() / 1e9).append('\n');
+        page.append(name).append("_count").append(plain).append(' ')
+                .append(cumulative).append('\n');
+    }
+
+    /**
+     * Escape a label value.
+     *
+     * @param value
+     *            the value.
+     * @return the value with backslashes and quotes escaped.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * PostgresMessageStore.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+
+import org.ftab.database.Client;
+import org.ftab.database.Message;
+import org.ftab.database.MessageStore;
+import org.ftab.database.StoreTransaction;
+import org.ftab.database.client.ChangeClientStatus;
+import org.ftab.database.client.CreateClient;
+import org.ftab.database.client.FetchClient;
+import org.ftab.database.exceptions.CreateMessageException;
+import org.ftab.database.exceptions.InexistentClientException;
+import org.ftab.database.exceptions.InexistentQueueException;
+import org.ftab.database.exceptions.QueueAlreadyExistsException;
+import org.ftab.database.exceptions.QueueNotEmptyException;
+import org.ftab.database.message.AnnounceMessage;
+import org.ftab.database.message.CreateMessage;
+import org.ftab.database.message.DequeueMessage;
+import org.ftab.database.message.RetrieveMessage;
+import org.ftab.database.queue.CreateQueue;
+import org.ftab.database.queue.DeleteQueue;
+import org.ftab.database.queue.GetQueuesWithMessages;
+
+/**
+ * Message store backed by the PostgreSQL database, each transaction holds a
+ * pooled connection and the operations are executed by the DAOs, resolving
+ * the names through the metadata cache of the pool.
+ */
+public class PostgresMessageStore implements MessageStore {
+
+    /**
+     * Transaction on a pooled database connection.
+     */
+    private static class JdbcTransaction implements StoreTransaction {
+        /**
+         * Connection with the transaction.
+         */
+        private final Connection conn;
+
+        /**
+         * Wrap a pooled connection.
+         *
+         * @param nConn
+         *            database connection, not in auto-commit mode.
+         */
+        JdbcTransaction(Connection nConn) {
+            conn = nConn;
+        }
+
+        @Override
+        public void commit() throws SQLException {
+            conn.commit();
+        }
+
+        @Override
+        public void rollback() throws SQLException {
+            conn.rollback();
+        }
+
+        @Override
+        public void close() throws SQLException {
+            conn.close();
+        }
+    }
+
+    /**
+     * Database connection pool handler.
+     */
+    private final DBConnectionDispatcher dispatcher;
+
+    /**
+     * Create a store on the given connection pool.
+     *
+     * @param nDispatcher
+     *            database connection pool handler.
+     */
+    public PostgresMessageStore(DBConnectionDispatcher nDispatcher) {
+        dispatcher = nDispatcher;
+    }
+
+    /**
+     * Get the connection of a transaction of this store.
+     *
+     * @param tx
+     *            transaction obtained from {@link #begin()}.
+     * @return the database connection.
+     */
+    private static Connection connection(StoreTransaction tx) {
+        return ((JdbcTransaction) tx).conn;
+    }
+
+    @Override
+    public StoreTransaction begin() throws SQLException {
+        return new JdbcTransaction(dispatcher.retrieveDatabaseConnection());
+    }
+
+    @Override
+    public Client fetchClient(String username, StoreTransaction tx)
+            throws SQLException {
+        return FetchClient.execute(username, connection(tx));
+    }
+
+    @Override
+    public int createClient(String username, boolean online,
+            StoreTransaction tx) throws SQLException {
+        return CreateClient.execute(username, online,
+                dispatcher.getMetadataCache(), connection(tx));
+    }
+
+    @Override
+    public void changeClientStatus(String username, boolean online,
+            StoreTransaction tx) throws SQLException {
+        ChangeClientStatus.execute(username, online, connection(tx));
+    }
+
+    @Override
+    public void changeClientsStatus(Collection<Integer> clientIds,
+            boolean online, StoreTransaction tx) throws SQLException {
+        ChangeClientStatus.executeBatch(clientIds, online, connection(tx));
+    }
+
+    @Override
+    public void createQueue(String queueName, StoreTransaction tx)
+            throws SQLException, QueueAlreadyExistsException {
+        CreateQueue.execute(queueName, dispatcher.getMetadataCache(),
+                connection(tx));
+    }
+
+    @Override
+    public void deleteQueue(String queueName, StoreTransaction tx)
+            throws SQLException, InexistentQueueException,
+            QueueNotEmptyException {
+        DeleteQueue.execute(queueName, dispatcher.getMetadataCache(),
+                connection(tx));
+    }
+
+    @Override
+    public void createMessage(int sender, String receiver,
+            Iterable<String> queues, int context, short priority,
+            String message, StoreTransaction tx) throws SQLException,
+            InexistentQueueException, InexistentClientException,
+            CreateMessageException {
+        if (receiver == null)
+            CreateMessage.execute(sender, queues, context, priority, message,
+                    dispatcher.getMetadataCache(), connection(tx));
+        else
+            CreateMessage.execute(sender, receiver, queues, context,
+                    priority, message, dispatcher.getMetadataCache(),
+                    connection(tx));
+    }
+
+    @Override
+    public void createMessages(int sender,
+            List<CreateMessage.BatchEntry> batch, StoreTransaction tx)
+            throws SQLException, InexistentQueueException,
+            InexistentClientException, CreateMessageException {
+        CreateMessage.executeBatch(sender, batch,
+                dispatcher.getMetadataCache(), connection(tx));
+    }
+
+    @Override
+    public List<Message> retrieveMessages(int receiver, String argument,
+            boolean prioFirst, boolean byQueue, int limit, StoreTransaction tx)
+            throws SQLException {
+        return RetrieveMessage.execute(receiver, argument, prioFirst,
+                byQueue, limit, dispatcher.getMetadataCache(), connection(tx));
+    }
+
+    @Override
+    public List<Message> dequeueMessages(int receiver, String argument,
+            boolean prioFirst, boolean byQueue, int limit, StoreTransaction tx)
+            throws SQLException {
+        return DequeueMessage.execute(receiver, argument, prioFirst, byQueue,
+                limit, dispatcher.getMetadataCache(), connection(tx));
+    }
+
+    @Override
+    public List<String> getQueuesWithMessages(int receiverId,
+            StoreTransaction tx) throws SQLException {
+        return GetQueuesWithMessages.execute(receiverId,
+                dispatcher.getMetadataCache(), connection(tx));
+    }
+
+    @Override
+    public void announceMessages(String channel, Collection<String> payloads,
+            StoreTransaction tx) throws SQLException {
+        AnnounceMessage.execute(channel, payloads, connection(tx));
+    }
+
+    @Override
+    public void close() {
+        // The connection pool is closed by the server
+    }
+}
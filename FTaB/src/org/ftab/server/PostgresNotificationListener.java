@@ -0,0 +1,185 @@
+/**
+ * PostgresNotificationListener.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ftab.database.MetadataCache;
+import org.ftab.logging.SystemEvent;
+import org.ftab.logging.server.ServerLogRecord;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Background task that listens on the notification channel where the servers
+ * sharing the database announce their new messages, and signals them in the
+ * local {@link MessageNotifier}. It also listens for the queues created and
+ * deleted by the other servers and invalidates them in the metadata cache of
+ * the pool. The JDBC driver only receives notifications while it talks to the
+ * server, so the listener polls with an empty query at a fixed interval on a
+ * connection of its own. If the connection is lost the listener reconnects,
+ * signals every waiter and clears the metadata cache, since notifications may
+ * have been missed meanwhile.
+ */
+public class PostgresNotificationListener implements Runnable {
+    /**
+     * The class' logger
+     */
+    private final static Logger LOGGER = Logger
+            .getLogger(PostgresNotificationListener.class.getName());
+
+    /**
+     * Time to wait before reconnecting after an error, in milliseconds.
+     */
+    private final static long RECONNECT_DELAY = 1000;
+
+    /**
+     * Source of the connection used to listen.
+     */
+    private final DBConnectionDispatcher dispatcher;
+
+    /**
+     * Notifier where the announced messages are signalled.
+     */
+    private final MessageNotifier notifier;
+
+    /**
+     * Interval between polls, in milliseconds.
+     */
+    private final long pollInterval;
+
+    /**
+     * Name used to tag the log records of the listener.
+     */
+    private final String listenerTag;
+
+    /**
+     * Indicates if the listener should keep running.
+     */
+    private volatile boolean keepRunning;
+
+    /**
+     * Create a listener that signals the given notifier.
+     * 
+     * @param nDispatcher
+     *            source of the connection used to listen.
+     * @param nNotifier
+     *            notifier where the announced messages are signalled.
+     * @param nPollInterval
+     *            interval between polls, in milliseconds.
+     * @param serverTag
+     *            name of the server that owns the listener.
+     */
+    public PostgresNotificationListener(DBConnectionDispatcher nDispatcher,
+            MessageNotifier nNotifier, long nPollInterval, String serverTag) {
+        dispatcher = nDispatcher;
+        notifier = nNotifier;
+        pollInterval = nPollInterval;
+        listenerTag = "listener@" + serverTag;
+        keepRunning = true;
+    }
+
+    /**
+     * Change the keep running directive of the listener to false, it stops
+     * after the current poll.
+     */
+    public void stopRunning() {
+        keepRunning = false;
+    }
+
+    /**
+     * Runnable interface method, listen and poll for notifications until
+     * stopped, reconnecting after errors.
+     */
+    @Override
+    public void run() {
+        boolean reconnecting = false;
+        while (keepRunning && !Thread.interrupted()) {
+            Connection conn = null;
+            try {
+                conn = dispatcher.openDedicatedConnection();
+                Statement stmt = conn.createStatement();
+                try {
+                    stmt.execute("LISTEN " + MessageNotifier.CHANNEL);
+                    stmt.execute("LISTEN " + MetadataCache.QUEUE_CHANNEL);
+                    if (reconnecting) {
+                        notifier.signalAll();
+                        dispatcher.getMetadataCache().clear();
+                    }
+                    LOGGER.log(new ServerLogRecord(Level.CONFIG, listenerTag,
+                            SystemEvent.SYSTEM_GENERIC, "Listening on channels "
+                                    + MessageNotifier.CHANNEL + " and "
+                                    + MetadataCache.QUEUE_CHANNEL + "."));
+                    poll(conn, stmt);
+                } finally {
+                    stmt.close();
+                }
+            } catch (SQLException e) {
+                ServerLogRecord record = new ServerLogRecord(Level.WARNING,
+                        listenerTag, SystemEvent.SYSTEM_GENERIC,
+                        "Lost the notification connection, reconnecting.");
+                record.setThrown(e);
+                LOGGER.log(record);
+                reconnecting = true;
+                sleep(RECONNECT_DELAY);
+            } finally {
+                if (conn != null) {
+                    try {
+                        conn.close();
+                    } catch (SQLException e) {
+                        // The connection is discarded anyway
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Poll the connection for notifications until stopped.
+     * 
+     * @param conn
+     *            connection listening on the channel.
+     * @param stmt
+     *            statement used for the empty queries.
+     * @throws SQLException
+     *             if there is an error accessing the database.
+     */
+    private void poll(Connection conn, Statement stmt) throws SQLException {
+        PGConnection pgConn = (PGConnection) conn;
+        while (keepRunning && !Thread.interrupted()) {
+            stmt.executeQuery("SELECT 1").close();
+            PGNotification[] notifications = pgConn.getNotifications();
+            if (notifications != null)
+                for (PGNotification notification : notifications) {
+                    if (MetadataCache.QUEUE_CHANNEL.equals(notification
+                            .getName()))
+                        dispatcher.getMetadataCache().invalidateQueue(
+                                notification.getParameter());
+                    else
+                        notifier.signal(notification.getParameter());
+                }
+            sleep(pollInterval);
+        }
+    }
+
+    /**
+     * Sleep the given time, stopping the listener if interrupted.
+     * 
+     * @param millis
+     *            time to sleep in milliseconds.
+     */
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            keepRunning = false;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * RequestMetrics.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.ftab.communication.responses.RequestResponse.Status;
+import org.ftab.logging.SystemEvent;
+
+/**
+ * Registry of the latencies of the requests processed by the server, with one
+ * histogram per kind of request and status of the response. The latencies go
+ * from the moment the request starts executing until its response is ready,
+ * including the time a retrieve request is parked waiting for a message.
+ * <p>
+ * A histogram is created the first time its combination is recorded, after
+ * that recording doesn't lock or allocate.
+ */
+public class RequestMetrics {
+    /**
+     * Sub-bucket precision of the histograms, the percentiles are within
+     * 12.5% of the real values.
+     */
+    public final static int PRECISION = 3;
+
+    /**
+     * Kinds of requests, by ordinal.
+     */
+    private final static SystemEvent[] EVENTS = SystemEvent.values();
+
+    /**
+     * Response statuses, by ordinal.
+     */
+    private final static Status[] STATUSES = Status.values();
+
+    /**
+     * Histograms indexed by event ordinal * number of statuses + status
+     * ordinal, null until first used.
+     */
+    private final AtomicReferenceArray<LatencyHistogram> histograms;
+
+    /**
+     * Create an empty registry.
+     */
+    public RequestMetrics() {
+        histograms = new AtomicReferenceArray<LatencyHistogram>(EVENTS.length
+                * STATUSES.length);
+    }
+
+    /**
+     * Record the latency of a request.
+     *
+     * @param event
+     *            kind of request.
+     * @param status
+     *            status of the response.
+     * @param nanos
+     *            latency in nanoseconds.
+     */
+    public void record(SystemEvent event, Status status, long nanos) {
+        int index = event.ordinal() * STATUSES.length + status.ordinal();
+        LatencyHistogram histogram = histograms.get(index);
+        if (histogram == null) {
+            histograms.compareAndSet(index, null, new LatencyHistogram(
+                    PRECISION));
+            histogram = histograms.get(index);
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Get the histogram of a kind of request and response status.
+     *
+     * @param event
+     *            kind of request.
+     * @param status
+     *            status of the response.
+     * @return the histogram, or null if nothing was recorded for the
+     *         combination.
+     */
+    public LatencyHistogram getHistogram(SystemEvent event, Status status) {
+        return histograms.get(event.ordinal() * STATUSES.length
+                + status.ordinal());
+    }
+
+    /**
+     * Describe the histograms with recorded latencies, one per line.
+     *
+     * @return the description.
+     */
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < histograms.length(); ++i) {
+            LatencyHistogram histogram = histograms.get(i);
+            if (histogram == null)
+                continue;
+            description.append(String.format("%n%s/%s: %s",
+                    EVENTS[i / STATUSES.length], STATUSES[i % STATUSES.length],
+                    histogram));
+        }
+        return description.toString();
+    }
+}
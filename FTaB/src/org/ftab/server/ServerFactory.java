@@ -12,8 +12,11 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.ftab.database.LogMessageStore;
+import org.ftab.logging.AsyncHandler;
 import org.ftab.server.exceptions.ConfigurationErrorException;
 import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 /**
@@ -58,13 +61,94 @@ public class ServerFactory {
                     .getElementsByTagName("DatabaseConnections").item(0)
                     .getTextContent());
 
-            ServerLogger.setup(loggingLevel, logOutputPath);
+            boolean legacyTextEncoding = Boolean.parseBoolean(getOptionalTag(
+                    doc, "LegacyTextEncoding", "false"));
+            int notificationPollInterval = Integer.parseInt(getOptionalTag(
+                    doc, "ListenNotifyInterval", "0"));
+            int statementCacheSize = Integer.parseInt(getOptionalTag(doc,
+                    "StatementCacheSize", Integer
+                            .toString(DBConnectionDispatcher.DEFAULT_STATEMENT_CACHE_SIZE)));
+            int prepareThreshold = Integer.parseInt(getOptionalTag(doc,
+                    "PrepareThreshold", Integer
+                            .toString(DBConnectionDispatcher.DEFAULT_PREPARE_THRESHOLD)));
+            long acquireTimeout = Long.parseLong(getOptionalTag(doc,
+                    "ConnectionAcquireTimeout", Long
+                            .toString(DBConnectionDispatcher.DEFAULT_ACQUIRE_TIMEOUT)));
+            long maxIdleTime = Long.parseLong(getOptionalTag(doc,
+                    "ConnectionMaxIdleTime", Long
+                            .toString(DBConnectionDispatcher.DEFAULT_MAX_IDLE_TIME)));
+            long maxLifetime = Long.parseLong(getOptionalTag(doc,
+                    "ConnectionMaxLifetime", Long
+                            .toString(DBConnectionDispatcher.DEFAULT_MAX_LIFETIME)));
+            long leakThreshold = Long.parseLong(getOptionalTag(doc,
+                    "ConnectionLeakThreshold", Long
+                            .toString(DBConnectionDispatcher.DEFAULT_LEAK_THRESHOLD)));
+            boolean leakTraces = Boolean.parseBoolean(getOptionalTag(doc,
+                    "ConnectionLeakTraces", "false"));
+
+            String messageStore = getOptionalTag(doc, "MessageStore",
+                    "postgres");
+            String messageLogDirectory = getOptionalTag(doc,
+                    "MessageLogDirectory", "messagelog");
+            int messageLogSegmentSize = Integer.parseInt(getOptionalTag(doc,
+                    "MessageLogSegmentSize", Integer
+                            .toString(LogMessageStore.DEFAULT_SEGMENT_SIZE)));
+            boolean messageLogSync = Boolean.parseBoolean(getOptionalTag(doc,
+                    "MessageLogSync", "true"));
+            int admissionCapacity = Integer.parseInt(getOptionalTag(doc,
+                    "AdmissionQueueSize", Integer
+                            .toString(ServerManager.DEFAULT_ADMISSION_CAPACITY)));
+            long admissionMaxWait = Long.parseLong(getOptionalTag(doc,
+                    "AdmissionMaxWait", Long
+                            .toString(ServerManager.DEFAULT_ADMISSION_MAX_WAIT)));
+            int minWorkerThreads = Integer.parseInt(getOptionalTag(doc,
+                    "MinWorkerThreads", Integer
+                            .toString(ServerManager.DEFAULT_MIN_WORKERS)));
+            double spawnBusyRatio = Double.parseDouble(getOptionalTag(doc,
+                    "WorkerSpawnBusyRatio", Double
+                            .toString(ServerManager.DEFAULT_SPAWN_BUSY_RATIO)));
+            double retireBusyRatio = Double.parseDouble(getOptionalTag(doc,
+                    "WorkerRetireBusyRatio", Double
+                            .toString(ServerManager.DEFAULT_RETIRE_BUSY_RATIO)));
+            long retireDelay = Long.parseLong(getOptionalTag(doc,
+                    "WorkerRetireDelay", Long
+                            .toString(ServerManager.DEFAULT_RETIRE_DELAY)));
+            long idleTimeout = Long.parseLong(getOptionalTag(doc,
+                    "IdleTimeout", Long
+                            .toString(ServerManager.DEFAULT_IDLE_TIMEOUT)));
+            long heartbeatTimeout = Long.parseLong(getOptionalTag(doc,
+                    "HeartbeatTimeout", Long
+                            .toString(ServerManager.DEFAULT_HEARTBEAT_TIMEOUT)));
+            int metricsHttpPort = Integer.parseInt(getOptionalTag(doc,
+                    "MetricsHttpPort", "0"));
+            boolean metricsJmx = Boolean.parseBoolean(getOptionalTag(doc,
+                    "MetricsJmx", "true"));
+            int logBufferSize = Integer.parseInt(getOptionalTag(doc,
+                    "LogBufferSize",
+                    Integer.toString(AsyncHandler.DEFAULT_CAPACITY)));
+
+            ServerLogger.setup(loggingLevel, logOutputPath, logBufferSize);
 
             ServerManager instance = new ServerManager(workerThreads,
                     clientsPerWorker, listeningPort);
             instance.configureDatabaseConnectionPool(databaseUser,
                     databasePassword, databaseServer, databaseName,
                     databaseConnections);
+            instance.configureStatementCache(statementCacheSize,
+                    prepareThreshold);
+            instance.configurePoolTimeouts(acquireTimeout, maxIdleTime,
+                    maxLifetime, leakThreshold);
+            instance.setLeakTraces(leakTraces);
+            instance.configureMessageLog(messageLogDirectory,
+                    messageLogSegmentSize, messageLogSync);
+            instance.setMessageStore(messageStore);
+            instance.setLegacyTextEncoding(legacyTextEncoding);
+            instance.setNotificationPollInterval(notificationPollInterval);
+            instance.configureAdmission(admissionCapacity, admissionMaxWait);
+            instance.configureIdleTimeouts(idleTimeout, heartbeatTimeout);
+            instance.configureElasticPool(minWorkerThreads, spawnBusyRatio,
+                    retireBusyRatio, retireDelay);
+            instance.configureMetrics(metricsHttpPort, metricsJmx);
             return instance;
         } catch (SAXException saxex) {
             saxex.printStackTrace();
@@ -77,4 +161,23 @@ public class ServerFactory {
         }
         return null;
     }
+
+    /**
+     * Get the content of an optional configuration tag.
+     * 
+     * @param doc
+     *            parsed configuration file.
+     * @param tagName
+     *            name of the tag.
+     * @param defaultValue
+     *            value to use if the tag is not present.
+     * @return the content of the tag or the default value.
+     */
+    private static String getOptionalTag(Document doc, String tagName,
+            String defaultValue) {
+        NodeList nodes = doc.getElementsByTagName(tagName);
+        if (nodes.getLength() == 0)
+            return defaultValue;
+        return nodes.item(0).getTextContent().trim();
+    }
 }
@@ -17,6 +17,8 @@ import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
+import org.ftab.logging.AsyncHandler;
+import org.ftab.logging.BatchFileHandler;
 import org.ftab.logging.formatters.MessageOnlyFormatter;
 import org.ftab.logging.server.filters.SrvEmptyRetrieveFilter;
 import org.ftab.logging.server.filters.SrvQueueFoundFilter;
@@ -39,17 +41,29 @@ public class ServerLogger extends Formatter {
         DEBUG, INFO, WARNING
     };
 
+    /**
+     * Date format for the records, SimpleDateFormat is not thread safe so
+     * each thread keeps its own.
+     */
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        }
+    };
+
     /**
      * This utility method allows the server to easily format IP address from a
-     * SocketChannel object.
+     * SocketChannel object. The address is not resolved to a host name, that
+     * may require a DNS lookup; connections keep the result in their
+     * {@link ConnectionContext} instead of calling this repeatedly.
      * 
      * @param sc
      *            socket channel to parse.
      * @return ip address and port associated to the socket channel.
      */
     public static String parseSocketAddress(SocketChannel sc) {
-        return "[" + sc.socket().getInetAddress().getHostName() + ":" +
-                sc.socket().getPort() + "]";
+        return ConnectionContext.formatAddress(sc.socket());
     }
 
     /**
@@ -67,6 +81,27 @@ public class ServerLogger extends Formatter {
      */
     static public void setup(String logLevel, String logOutput)
             throws IOException, ConfigurationErrorException {
+        setup(logLevel, logOutput, AsyncHandler.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Setup the root logger to use this formatter and log to the file in the
+     * desired path, buffering the records written asynchronously.
+     * 
+     * @param logLevel
+     *            minimum level of logging.
+     * @param logOutput
+     *            path to the file where the log should be stored.
+     * @param bufferSize
+     *            number of records that can wait to be written, records
+     *            below WARNING are dropped when the buffer is full.
+     * @throws IOException
+     *             If there is a problem opening the log file.
+     * @throws ConfigurationErrorException
+     *             if the logging level is not correct.
+     */
+    static public void setup(String logLevel, String logOutput, int bufferSize)
+            throws IOException, ConfigurationErrorException {
 
         // Get the global logger to configure it
         Logger logger = Logger.getLogger("");
@@ -109,39 +144,35 @@ public class ServerLogger extends Formatter {
         File emptyQueueRetrieveFile = new File(file.getParent(), "noqueueret%g.log");
         File queueFoundFile = new File(file.getParent(), "queuefound%g.log");
         
-        FileHandler errorLogHandler = new FileHandler(errorLog.getAbsolutePath(), 1024 * 1024 * 1024, 1000);
+        FileHandler errorLogHandler = new BatchFileHandler(errorLog.getAbsolutePath(), 1024 * 1024 * 1024, 1000);
         errorLogHandler.setLevel(Level.WARNING);
         errorLogHandler.setFormatter(new MessageOnlyFormatter());
         
-        logger.addHandler(errorLogHandler);
-        
-        FileHandler rttHandler = new FileHandler(RTTFile.getAbsolutePath(), 1024 * 1024 * 1024, 1000);
+        FileHandler rttHandler = new BatchFileHandler(RTTFile.getAbsolutePath(), 1024 * 1024 * 1024, 1000);
         rttHandler.setFormatter(new ServerCCDetailRTFormatter());
         rttHandler.setFilter(new SrvSendRetFilter());
         
-        logger.addHandler(rttHandler);
-        
-        FileHandler emptyRetrHandler = new FileHandler(emptyRetrieveFile.getAbsolutePath(), 1024 * 1024 * 1024, 1000);
+        FileHandler emptyRetrHandler = new BatchFileHandler(emptyRetrieveFile.getAbsolutePath(), 1024 * 1024 * 1024, 1000);
         emptyRetrHandler.setFormatter(new ServerCCDetailRTFormatter());
         emptyRetrHandler.setFilter(new SrvEmptyRetrieveFilter());
         
-        logger.addHandler(emptyRetrHandler);
-
-        FileHandler emptyQueueRetrHandler = new FileHandler(emptyQueueRetrieveFile.getAbsolutePath(), 1024 * 1024 * 1024, 1000);
+        FileHandler emptyQueueRetrHandler = new BatchFileHandler(emptyQueueRetrieveFile.getAbsolutePath(), 1024 * 1024 * 1024, 1000);
         emptyQueueRetrHandler.setFormatter(new ServerCCDetailRTFormatter());
         emptyQueueRetrHandler.setFilter(new SrvQueueNotFoundFilter());
         
-        logger.addHandler(emptyQueueRetrHandler);
-
-        FileHandler queueFoundHandler = new FileHandler(queueFoundFile.getAbsolutePath(), 1024 * 1024 * 1024, 1000);
+        FileHandler queueFoundHandler = new BatchFileHandler(queueFoundFile.getAbsolutePath(), 1024 * 1024 * 1024, 1000);
         queueFoundHandler.setFormatter(new ServerCCDetailRTFormatter());
         queueFoundHandler.setFilter(new SrvQueueFoundFilter());
         
-        logger.addHandler(queueFoundHandler);
+        // The files are written by a single background thread, so the
+        // workers only pay for putting the records in the buffer.
+        logger.addHandler(new AsyncHandler("log-writer", bufferSize,
+                errorLogHandler, rttHandler, emptyRetrHandler,
+                emptyQueueRetrHandler, queueFoundHandler));
     }
 
     /**
-     * Close the handlers in the global logger.
+     * Close the handlers in the global logger, writing the buffered records.
      */
     public static void closeLogger() {
         // Get the global logger to close it
@@ -183,10 +214,8 @@ public class ServerLogger extends Formatter {
      * @return readable string for the data represented by milisecs.
      */
     public static String calcDate(long millisecs) {
-        SimpleDateFormat date_format = new SimpleDateFormat(
-                "MM-dd HH:mm:ss.SSS");
         Date resultdate = new Date(millisecs);
-        return date_format.format(resultdate);
+        return DATE_FORMAT.get().format(resultdate);
     }
 
 }
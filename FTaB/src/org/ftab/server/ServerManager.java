@@ -5,28 +5,42 @@
  */
 package org.ftab.server;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import org.ftab.communication.ProtocolMessage;
 import org.ftab.communication.responses.RequestResponse;
 import org.ftab.communication.responses.RequestResponse.Status;
+import org.ftab.database.LogMessageStore;
+import org.ftab.database.MemoryMessageStore;
+import org.ftab.database.MessageStore;
 import org.ftab.logging.server.ServerManagerLogRecord;
 
 /**
@@ -47,7 +61,63 @@ public class ServerManager implements Runnable {
      * An id used to distinguish servers on the same machine from one another
      */
     private static int uniqueServerID = 0;
-    
+
+    /**
+     * Default number of connections that can wait for a worker.
+     */
+    public static final int DEFAULT_ADMISSION_CAPACITY = 64;
+
+    /**
+     * Default time a connection waits for a worker, in milliseconds.
+     */
+    public static final long DEFAULT_ADMISSION_MAX_WAIT = 5000;
+
+    /**
+     * Default time without requests before a client is pinged, in
+     * milliseconds.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    /**
+     * Default time a pinged client has to answer before its connection is
+     * reaped, in milliseconds.
+     */
+    public static final long DEFAULT_HEARTBEAT_TIMEOUT = 30000;
+
+    /**
+     * Default number of workers that are never retired.
+     */
+    public static final int DEFAULT_MIN_WORKERS = 1;
+
+    /**
+     * Default average busy ratio of the workers above which a worker is
+     * added.
+     */
+    public static final double DEFAULT_SPAWN_BUSY_RATIO = 0.75;
+
+    /**
+     * Default average busy ratio of the workers below which a worker is
+     * retired.
+     */
+    public static final double DEFAULT_RETIRE_BUSY_RATIO = 0.1;
+
+    /**
+     * Default time the workers must stay below the retire ratio before one
+     * of them is retired, in milliseconds.
+     */
+    public static final long DEFAULT_RETIRE_DELAY = 30000;
+
+    /**
+     * Time between the checks of the load of the workers, in milliseconds.
+     */
+    private static final long POOL_CHECK_INTERVAL = 1000;
+
+    /**
+     * Time between the checks for free capacity while connections are
+     * waiting, in milliseconds.
+     */
+    private static final long ADMISSION_POLL_INTERVAL = 20;
+
     /**
      * Port where the server will listen for incoming connections
      */
@@ -59,11 +129,17 @@ public class ServerManager implements Runnable {
     private final String serverName;
     
     /**
-     * List of current active workers. TODO: Currently the workers don't die,
-     * correct that and implement a guard for the list so it can be modified by
-     * the workers when the die.
+     * List of the running workers, including a retiring one. Only the thread
+     * of the server adds and removes workers, the retired ones are removed
+     * on the next check of the pool.
      */
-    private final LinkedList<MessagingWorker> workers;
+    private final CopyOnWriteArrayList<MessagingWorker> workers;
+
+    /**
+     * Free connection slots of all the workers, kept up to date by the
+     * workers.
+     */
+    private final AtomicInteger freeSlots;
 
     /**
      * Executor service which implements the thread pool to execute the workers.
@@ -76,15 +152,126 @@ public class ServerManager implements Runnable {
     private final int maxThreads;
 
     /**
-     * Maximum number of clients that can be serviced by a MessagingWorker.
+     * Maximum number of clients that can be serviced by a MessagingWorker
+     * when all the workers run, the connections of the server are split
+     * among the running workers.
      */
     private final int maxClientsPerWorker;
 
+    /**
+     * Number of workers that are never retired.
+     */
+    private int minThreads = DEFAULT_MIN_WORKERS;
+
+    /**
+     * Average busy ratio of the workers above which a worker is added.
+     */
+    private double spawnBusyRatio = DEFAULT_SPAWN_BUSY_RATIO;
+
+    /**
+     * Average busy ratio of the workers below which a worker is retired.
+     */
+    private double retireBusyRatio = DEFAULT_RETIRE_BUSY_RATIO;
+
+    /**
+     * Time the workers must stay below the retire ratio before one of them
+     * is retired, in milliseconds.
+     */
+    private long retireDelay = DEFAULT_RETIRE_DELAY;
+
+    /**
+     * Time of the last check of the load of the workers, only used by the
+     * thread of the server.
+     */
+    private long lastPoolCheck;
+
+    /**
+     * Time since the workers are below the retire ratio, 0 if they are not.
+     * Only used by the thread of the server.
+     */
+    private long lowLoadSince;
+
     /**
      * Database connection pool.
      */
     private final DBConnectionDispatcher dbConnectionDispatcher;
 
+    /**
+     * Store of the clients, queues and messages, by default the database.
+     */
+    private MessageStore messageStore;
+
+    /**
+     * Directory of the segments of the message log.
+     */
+    private String messageLogDirectory = "messagelog";
+
+    /**
+     * Size of the segments of the message log in bytes.
+     */
+    private int messageLogSegmentSize = LogMessageStore.DEFAULT_SEGMENT_SIZE;
+
+    /**
+     * True to flush the message log to the disk on every commit.
+     */
+    private boolean messageLogSync = true;
+
+    /**
+     * Connections waiting for a worker while the server is full, only used by
+     * the thread of the server.
+     */
+    private AdmissionQueue admissionQueue;
+
+    /**
+     * Time without requests before a client is pinged, in milliseconds, 0 to
+     * never reap the idle connections.
+     */
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /**
+     * Time a pinged client has to answer, in milliseconds.
+     */
+    private long heartbeatTimeout = DEFAULT_HEARTBEAT_TIMEOUT;
+
+    /**
+     * Stage that executes the database work of the requests, it is created
+     * when the database connection pool is configured.
+     */
+    private DatabaseStage databaseStage;
+
+    /**
+     * Highest protocol version negotiated with the clients, lowering it to
+     * the text protocol version keeps every client on text-encoded responses.
+     */
+    private byte maxProtocolVersion;
+
+    /**
+     * Registry of the retrieve requests waiting for messages.
+     */
+    private final MessageNotifier messageNotifier;
+
+    /**
+     * Registry of the latencies of the requests processed by the server.
+     */
+    private final RequestMetrics requestMetrics;
+
+    /**
+     * HTTP server exporting the statistics, null if disabled.
+     */
+    private MetricsHttpServer metricsHttpServer;
+
+    /**
+     * Name under which the statistics are registered in the platform MBean
+     * server, null if they are not registered.
+     */
+    private ObjectName statsName;
+
+    /**
+     * Listener of the messages announced by other servers, null if the
+     * server doesn't listen for them.
+     */
+    private PostgresNotificationListener notificationListener;
+
     /**
      * Indicates if the manager should continue executing.
      */
@@ -111,10 +298,7 @@ public class ServerManager implements Runnable {
         maxClientsPerWorker = nClientsPerWorker;
         threadPool = Executors.newFixedThreadPool(maxThreads);
 
-        // 2. Create a database connection pool
-        dbConnectionDispatcher = new DBConnectionDispatcher();
-
-        // 3. Configure other attributes
+        // 2. Configure other attributes
         listeningPort = nListeningPort;
         String hostname = null;
         try {
@@ -126,7 +310,20 @@ public class ServerManager implements Runnable {
 				serverName = String.format("server%d@%s:%d", uniqueServerID++, hostname, listeningPort);
 			}
 		}
-        workers = new LinkedList<MessagingWorker>();
+
+        // 3. Create a database connection pool
+        dbConnectionDispatcher = new DBConnectionDispatcher("dbpool@"
+                + serverName);
+        messageStore = new PostgresMessageStore(dbConnectionDispatcher);
+
+        workers = new CopyOnWriteArrayList<MessagingWorker>();
+        freeSlots = new AtomicInteger();
+        maxProtocolVersion = ProtocolMessage.PROTOCOL_VERSION;
+        messageNotifier = new MessageNotifier(serverName);
+        requestMetrics = new RequestMetrics();
+        notificationListener = null;
+        admissionQueue = new AdmissionQueue(DEFAULT_ADMISSION_CAPACITY,
+                DEFAULT_ADMISSION_MAX_WAIT);
         keepRunning = true;
                 
         LOGGER.log(new ServerManagerLogRecord(Level.CONFIG, this, 
@@ -137,7 +334,8 @@ public class ServerManager implements Runnable {
     }
 
     /**
-     * Configure the database connection pool settings.
+     * Configure the database connection pool settings and create the database
+     * stage with one thread per pooled connection.
      * 
      * @param username
      *            database username.
@@ -154,14 +352,262 @@ public class ServerManager implements Runnable {
             String password, String server, String database, int maxConnections) {
         dbConnectionDispatcher.configureDatabaseConnectionPool(username,
                 password, server, database, maxConnections);
+        // Each client has at most one request in the stage at any time, a
+        // parked retrieval that is retried takes the place of its request.
+        // Subscription fetches and the offline marks of reaped clients come
+        // on top and get as much room again. Rejected fetches are retried on
+        // the timer of the notifier and rejected marks with the next check
+        // of the idle clients.
+        databaseStage = new DatabaseStage(maxConnections, 2 * maxThreads
+                * maxClientsPerWorker, serverName);
+    }
+
+    /**
+     * Configure the message log, used if the message store is "log". This
+     * must be called before the store is set.
+     * 
+     * @param directory
+     *            directory of the segment files.
+     * @param segmentSize
+     *            size of the segment files in bytes.
+     * @param syncOnCommit
+     *            true to flush every transaction to the disk when it commits,
+     *            false to flush them periodically.
+     */
+    public void configureMessageLog(String directory, int segmentSize,
+            boolean syncOnCommit) {
+        messageLogDirectory = directory;
+        messageLogSegmentSize = segmentSize;
+        messageLogSync = syncOnCommit;
+    }
+
+    /**
+     * Configure where the clients, queues and messages are kept. This must be
+     * called before the server starts.
+     * 
+     * @param store
+     *            name of the store, "postgres" for the database, "memory"
+     *            for an ephemeral store in the memory of the server or "log"
+     *            for the message log on the local disk.
+     * @throws IOException
+     *             if the message log can't be opened.
+     * @throws IllegalArgumentException
+     *             if there is no store with the given name.
+     */
+    public void setMessageStore(String store) throws IOException {
+        if ("memory".equalsIgnoreCase(store))
+            messageStore = new MemoryMessageStore();
+        else if ("log".equalsIgnoreCase(store))
+            messageStore = new LogMessageStore(new File(messageLogDirectory),
+                    messageLogSegmentSize, messageLogSync,
+                    LogMessageStore.DEFAULT_COMPACTION_INTERVAL);
+        else if ("postgres".equalsIgnoreCase(store))
+            messageStore = new PostgresMessageStore(dbConnectionDispatcher);
+        else
+            throw new IllegalArgumentException("Unknown message store: "
+                    + store);
+    }
+
+    /**
+     * Configure the prepared statement caches of the pooled connections. This
+     * must be called before the server starts.
+     * 
+     * @param cacheSize
+     *            maximum number of idle prepared statements per connection, 0
+     *            disables the caches.
+     * @param prepareThreshold
+     *            number of executions of a statement after which it is
+     *            prepared in the database server, 0 for the driver's default.
+     */
+    public void configureStatementCache(int cacheSize, int prepareThreshold) {
+        dbConnectionDispatcher.configureStatementCache(cacheSize,
+                prepareThreshold);
+    }
+
+    /**
+     * Configure the timeouts of the database connection pool, all of them in
+     * milliseconds and 0 to disable them.
+     * 
+     * @param acquireTimeout
+     *            maximum time to wait for a connection.
+     * @param maxIdleTime
+     *            time after which an idle connection is closed.
+     * @param maxLifetime
+     *            time after which a connection is closed once released.
+     * @param leakThreshold
+     *            time after which a connection that was not released is
+     *            reported as leaked.
+     */
+    public void configurePoolTimeouts(long acquireTimeout, long maxIdleTime,
+            long maxLifetime, long leakThreshold) {
+        dbConnectionDispatcher.configurePoolTimeouts(acquireTimeout,
+                maxIdleTime, maxLifetime, leakThreshold);
+    }
+
+    /**
+     * Configure if the leak reports of the pool show where the leaked
+     * connection was retrieved, which costs a stack trace per retrieval.
+     * 
+     * @param leakTraces
+     *            true to capture the stack of the retrievals.
+     */
+    public void setLeakTraces(boolean leakTraces) {
+        dbConnectionDispatcher.setLeakTraces(leakTraces);
+    }
+
+    /**
+     * Configure the encoding of the responses. Clients advertise the protocol
+     * version they understand when connecting, and receive binary-encoded
+     * responses if they support it unless legacy text encoding is forced.
+     * The heartbeats don't depend on the encoding.
+     * 
+     * @param legacyTextEncoding
+     *            true to answer every client with text-encoded responses.
+     */
+    public void setLegacyTextEncoding(boolean legacyTextEncoding) {
+        maxProtocolVersion = legacyTextEncoding ? ProtocolMessage.TEXT_PROTOCOL_VERSION
+                : ProtocolMessage.PROTOCOL_VERSION;
+    }
+
+    /**
+     * Configure how often the messages announced by other servers sharing the
+     * database are polled. Waiting retrieve requests are always woken up by
+     * the messages sent through this server, the listener is only needed when
+     * several servers share the database. This must be called after the
+     * database connection pool is configured.
+     * 
+     * @param pollInterval
+     *            time between polls in milliseconds, 0 to not listen for the
+     *            messages of other servers. It is ignored if the messages are
+     *            not kept in the database.
+     */
+    public void setNotificationPollInterval(int pollInterval) {
+        if (pollInterval <= 0 || notificationListener != null
+                || !(messageStore instanceof PostgresMessageStore))
+            return;
+        messageNotifier.setPublishingToDatabase(true);
+        notificationListener = new PostgresNotificationListener(
+                dbConnectionDispatcher, messageNotifier, pollInterval,
+                serverName);
+        Thread thread = new Thread(notificationListener, "notifications@"
+                + serverName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Configure the waiting room of the connections that arrive while the
+     * server is full. This must be called before the server starts.
+     * 
+     * @param capacity
+     *            maximum number of waiting connections, 0 to reject the
+     *            connections as soon as they arrive.
+     * @param maxWait
+     *            maximum time a connection waits for a worker before it is
+     *            rejected, in milliseconds.
+     */
+    public void configureAdmission(int capacity, long maxWait) {
+        admissionQueue = new AdmissionQueue(capacity, maxWait);
+    }
+
+    /**
+     * Configure the reaping of the idle connections, which frees their slots
+     * and marks their clients as offline. Clients waiting for a response and
+     * clients too old to answer a ping are never reaped. This must be called
+     * before the server starts.
+     * 
+     * @param idle
+     *            time without requests before a client is pinged, in
+     *            milliseconds. 0 disables reaping.
+     * @param heartbeat
+     *            time a pinged client has to answer before its connection is
+     *            closed, in milliseconds.
+     */
+    public void configureIdleTimeouts(long idle, long heartbeat) {
+        if (idle < 0 || heartbeat < 0)
+            throw new IllegalArgumentException(
+                    "The idle timeouts can't be negative.");
+        idleTimeout = idle;
+        heartbeatTimeout = heartbeat;
+    }
+
+    /**
+     * Configure the policy that adds workers when they are busy and retires
+     * them when they are idle, up to the maximum number of workers. This
+     * must be called before the server starts.
+     * 
+     * @param minWorkers
+     *            number of workers that are never retired, at least 1.
+     * @param spawnRatio
+     *            average busy ratio of the workers above which a worker is
+     *            added.
+     * @param retireRatio
+     *            average busy ratio of the workers below which a worker is
+     *            retired.
+     * @param delay
+     *            time the workers must stay below the retire ratio before
+     *            one of them is retired, in milliseconds.
+     */
+    public void configureElasticPool(int minWorkers, double spawnRatio,
+            double retireRatio, long delay) {
+        if (minWorkers < 1 || minWorkers > maxThreads)
+            throw new IllegalArgumentException(
+                    "The minimum number of workers must be between 1 and the maximum.");
+        if (retireRatio > spawnRatio || delay < 0)
+            throw new IllegalArgumentException(
+                    "The retire ratio can't be above the spawn ratio.");
+        minThreads = minWorkers;
+        spawnBusyRatio = spawnRatio;
+        retireBusyRatio = retireRatio;
+        retireDelay = delay;
+    }
+
+    /**
+     * Export the statistics of the server through an HTTP endpoint in the
+     * Prometheus text format and through JMX.
+     * 
+     * @param httpPort
+     *            port of the HTTP endpoint, 0 or less to disable it.
+     * @param jmx
+     *            true to register the statistics in the platform MBean
+     *            server.
+     */
+    public void configureMetrics(int httpPort, boolean jmx) {
+        ServerStats stats = new ServerStats(this);
+        if (httpPort > 0 && metricsHttpServer == null) {
+            try {
+                metricsHttpServer = new MetricsHttpServer(stats, httpPort);
+                metricsHttpServer.start();
+                LOGGER.log(new ServerManagerLogRecord(Level.CONFIG, this,
+                        "Serving metrics at port %d.").withArguments(httpPort));
+            } catch (IOException e) {
+                metricsHttpServer = null;
+                LOGGER.log(new ServerManagerLogRecord(this,
+                        "Couldn't start the metrics endpoint.", e));
+            }
+        }
+        if (jmx && statsName == null) {
+            try {
+                ObjectName name = new ObjectName("org.ftab:type=Server,name="
+                        + ObjectName.quote(serverName));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        stats, name);
+                statsName = name;
+            } catch (JMException e) {
+                LOGGER.log(new ServerManagerLogRecord(this,
+                        "Couldn't register the server statistics in JMX.", e));
+            }
+        }
     }
 
     /**
      * Main server method, open the connection and start listening in the
      * designated port. For each incoming connection, assign it to a worker if
      * the number of threads is not at the limit and any of them still have
-     * capacity otherwise accept the socket and write out a message indicating
-     * that the server is full before closing the connection.
+     * capacity, otherwise put it in the waiting room until a worker has
+     * capacity for it. The connections that don't fit in the waiting room or
+     * wait for too long are sent a message indicating that the server is full,
+     * with the time to wait before retrying, and closed.
      * 
      * @throws IOException
      *             when there is an error closing the selector or server
@@ -193,7 +639,19 @@ public class ServerManager implements Runnable {
             			"Polling for selector events.", record);  
             	LOGGER.log(innerRecord);
             	
-                serverSelector.select();
+                // Check for free capacity periodically while connections
+                // wait, the workers don't announce it
+                long now = System.currentTimeMillis();
+                long timeout = Math.max(1, lastPoolCheck + POOL_CHECK_INTERVAL
+                        - now);
+                if (!admissionQueue.isEmpty())
+                    timeout = Math.min(timeout, Math.min(
+                            ADMISSION_POLL_INTERVAL,
+                            admissionQueue.timeToNextExpiration(now)));
+                serverSelector.select(timeout);
+                adjustWorkers(System.currentTimeMillis());
+                admitWaiting(serverSelector, innerRecord);
+                
                 Set<SelectionKey> selectedKeys = serverSelector.selectedKeys();
                 Iterator<SelectionKey> it = selectedKeys.iterator();
                 while (it.hasNext()) {
@@ -205,45 +663,50 @@ public class ServerManager implements Runnable {
                         // we can assume which one it is.
                         SocketChannel sc = ssc.accept();
                         sc.configureBlocking(false);
+                        // Resolved once here, the workers only use the context
+                        ConnectionContext context = new ConnectionContext(sc);
                         
                         ServerManagerLogRecord innerInnerRecord = 
-                        		new ServerManagerLogRecord(this, "Received incoming connection "
-                        		+ ServerLogger.parseSocketAddress(sc) + ".", innerRecord);
+                        		new ServerManagerLogRecord(this, "Received incoming %s.", innerRecord)
+                        		.withArguments(context);
                         LOGGER.log(innerInnerRecord);
                         
                         // Check if the server is full or not, if it is then
-                        // register the socket for writing so we can inform the
-                        // client that we can't accept the connection. Otherwise
+                        // the connection waits behind the others for a worker
+                        // or, if the waiting room is full too, it is informed
+                        // that we can't accept the connection. Otherwise
                         // delegate to the first available thread.
-                        if (serverFull()) {
-                        	LOGGER.log(new ServerManagerLogRecord(this, 
-                        			"Registering connection for write, server is full",
-                        			innerInnerRecord));
-                        	
-                            sc.register(serverSelector, SelectionKey.OP_WRITE);
+                        if (!admissionQueue.isEmpty() || serverFull()) {
+                            if (admissionQueue.offer(sc, context,
+                                    System.currentTimeMillis())) {
+                                LOGGER.log(new ServerManagerLogRecord(this,
+                                        "Connection waits for a worker, server is full.",
+                                        innerInnerRecord));
+                            } else {
+                                reject(sc, context, serverSelector);
+                            }
                         } else {
                         	LOGGER.log(new ServerManagerLogRecord(this, 
                         			"Delegating connection to available worker.",
                         			innerInnerRecord));                            
                             
-                            delegateSocketToWorker(sc);
+                            delegateSocketToWorker(sc, context);
                         }
                     } else if (key.isWritable()) {
                         SocketChannel sc = (SocketChannel) key.channel();
-                        RequestResponse response = new RequestResponse(
-                                Status.FULL_SERVER);
-                        ByteBuffer responseBuffer = ProtocolMessage
-                                .toBytes(response);
-                        // TODO: Make unblocking
-                        while (responseBuffer.hasRemaining()) {
+                        // Only the rejected connections are registered for
+                        // writing, with the rest of their response attached
+                        ByteBuffer responseBuffer = (ByteBuffer) key.attachment();
+                        try {
                             sc.write(responseBuffer);
+                        } catch (IOException e) {
+                            // The client is gone, nothing left to tell it
+                            responseBuffer.position(responseBuffer.limit());
+                        }
+                        if (!responseBuffer.hasRemaining()) {
+                            key.cancel();
+                            sc.close();
                         }
-                        
-                        LOGGER.log(new ServerManagerLogRecord(this,
-                        		"Refused connection from " + ServerLogger.parseSocketAddress(sc) + " because the server is full.",
-                        		innerRecord));
-                        key.cancel();
-                        sc.close();
                     }
                 }
             }
@@ -251,6 +714,9 @@ public class ServerManager implements Runnable {
         	LOGGER.log(new ServerManagerLogRecord(this,
         			"There was an IO error while running the server, shutting it down.", record, e));
         } finally {
+            AdmissionQueue.Waiting waiting;
+            while ((waiting = admissionQueue.poll()) != null)
+                closeQuietly(waiting.getChannel());
             if (ssc != null) {
                 try {
                     ssc.close();
@@ -260,6 +726,10 @@ public class ServerManager implements Runnable {
                 }
             }
             if (serverSelector != null) {
+                for (SelectionKey key : serverSelector.keys()) {
+                    if (key.attachment() instanceof ByteBuffer)
+                        closeQuietly(key.channel());
+                }
                 try {
                     serverSelector.close();
                 } catch (IOException e) {
@@ -270,6 +740,79 @@ public class ServerManager implements Runnable {
         }
     }
 
+    /**
+     * Hand the waiting connections to the workers while they have capacity,
+     * in arrival order, and reject the connections that waited for too long.
+     * 
+     * @param serverSelector
+     *            selector of the server, where the rejections are written.
+     * @param parent
+     *            record of the current iteration of the server loop.
+     */
+    private void admitWaiting(Selector serverSelector,
+            ServerManagerLogRecord parent) {
+        AdmissionQueue.Waiting waiting;
+        while (!admissionQueue.isEmpty() && !serverFull()) {
+            waiting = admissionQueue.poll();
+            LOGGER.log(new ServerManagerLogRecord(this,
+                    "Delegating waiting connection from %s to available worker.",
+                    parent).withArguments(waiting.getContext().getAddress()));
+            delegateSocketToWorker(waiting.getChannel(), waiting.getContext());
+        }
+        long now = System.currentTimeMillis();
+        while ((waiting = admissionQueue.pollExpired(now)) != null)
+            reject(waiting.getChannel(), waiting.getContext(), serverSelector);
+    }
+
+    /**
+     * Tell a connection that the server is full and close it, without
+     * blocking. The response carries the time in milliseconds the client
+     * should wait before connecting again, if it doesn't fit in the socket
+     * buffer the rest is written when the channel is writable.
+     * 
+     * @param sc
+     *            channel of the connection.
+     * @param context
+     *            context of the connection.
+     * @param serverSelector
+     *            selector of the server.
+     */
+    private void reject(SocketChannel sc, ConnectionContext context,
+            Selector serverSelector) {
+        RequestResponse response = new RequestResponse(Status.FULL_SERVER,
+                Long.toString(admissionQueue.getRetryAfter()));
+        ByteBuffer responseBuffer = ProtocolMessage.toBytes(response);
+        
+        LOGGER.log(new ServerManagerLogRecord(this,
+                "Refused connection from " + context.getAddress()
+                + " because the server is full."));
+        try {
+            sc.write(responseBuffer);
+            if (responseBuffer.hasRemaining())
+                sc.register(serverSelector, SelectionKey.OP_WRITE,
+                        responseBuffer);
+            else
+                sc.close();
+        } catch (IOException e) {
+            closeQuietly(sc);
+        }
+    }
+
+    /**
+     * Close a channel of a connection that is not assigned to a worker.
+     * 
+     * @param channel
+     *            the channel.
+     */
+    private void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(new ServerManagerLogRecord(this,
+                    "IO exception while closing a refused connection.", e));
+        }
+    }
+
     /**
      * Instruct the server manager to stop the execution. This doesn't take care
      * of cleaning up the resources, that must be done with the shutdown
@@ -292,61 +835,73 @@ public class ServerManager implements Runnable {
             worker.stopRunning();
             while (!worker.isShutdown());
         }
+        if (notificationListener != null)
+            notificationListener.stopRunning();
+        messageNotifier.shutdown();
+        if (databaseStage != null)
+            databaseStage.shutdown();
+        if (metricsHttpServer != null)
+            metricsHttpServer.stop();
+        if (statsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                        statsName);
+            } catch (JMException e) {
+                LOGGER.log(new ServerManagerLogRecord(this,
+                        "Couldn't unregister the server statistics from JMX.", e));
+            }
+        }
+        try {
+            messageStore.close();
+        } catch (SQLException e) {
+            LOGGER.log(new ServerManagerLogRecord(this,
+                    "Couldn't close the message store.", e));
+        }
         dbConnectionDispatcher.closePool();
         threadPool.shutdown();
         
+        LOGGER.log(new ServerManagerLogRecord(Level.INFO, this,
+                "Request latencies:%s").withArguments(requestMetrics));
         LOGGER.log(new ServerManagerLogRecord(Level.INFO, this, "Ready to leave."));
         
         ServerLogger.closeLogger();
     }
 
     /**
-     * Delegate an incoming socket channel to a worker, first creating all
-     * possible workers until maxThreads is reached and then filling them up in
-     * a round-robin fashion. This method assumes that adding a worker won't
-     * take the server over its configured capacity.
+     * Delegate an incoming socket channel to a worker, creating workers until
+     * the minimum is running and then balancing the connections by the load
+     * of the workers. This method assumes that the server is not full.
      * 
      * @param sc
      *            SocketChannel to assign to a worker.
+     * @param context
+     *            context of the accepted connection.
      */
-    private void delegateSocketToWorker(SocketChannel sc) {
+    private void delegateSocketToWorker(SocketChannel sc,
+            ConnectionContext context) {
     	try {
-        	        	
-            // Check if we are not in the limit of workers, if so then create
-            // one.
-            if (workers.size() < maxThreads) {
-                MessagingWorker newWorker = new MessagingWorker(
-                        maxClientsPerWorker, dbConnectionDispatcher, this.getServerName());
-                
-                ServerManagerLogRecord record = new ServerManagerLogRecord(this, 
-                		"Created new worker: " + newWorker.getIdentifier() + ".");
-                LOGGER.log(record);
-                
-                newWorker.registerChannel(sc);
-                
-                LOGGER.log(new ServerManagerLogRecord(this,
-                		String.format("Assigned connection from %s to worker %s.", 
-                				ServerLogger.parseSocketAddress(sc), newWorker.getIdentifier()), record));
-                
-                threadPool.execute(newWorker);
-                workers.add(newWorker);
-            } else {
-                // If not then find the worker with the least amount of users.
-                MessagingWorker minWorker = null;
-                int maxCapacity = 0;
-                for (MessagingWorker worker : workers) {
-                    int remainingCap = worker.remainingCapacity();
-                    if (remainingCap > maxCapacity) {
-                        minWorker = worker;
-                        maxCapacity = remainingCap;
-                    }
-                }
-                minWorker.registerChannel(sc);
-                
-                LOGGER.log(new ServerManagerLogRecord(this, 
-                		String.format("Assigned connection from %s to worker %s.", 
-                				ServerLogger.parseSocketAddress(sc), minWorker.getIdentifier())));
+            // Check if we are under the minimum of workers, if so then create
+            // one. If not then pick the less loaded of two random workers.
+            MessagingWorker worker = null;
+            if (activeWorkers().size() < minThreads
+                    && workers.size() < maxThreads)
+                worker = spawnWorker();
+            else
+                worker = selectWorker();
+            if (worker == null && workers.size() < maxThreads)
+                worker = spawnWorker();
+            if (worker == null) {
+                LOGGER.log(new ServerManagerLogRecord(this, String.format(
+                        "No worker can take the connection from %s.",
+                        context.getAddress())));
+                closeQuietly(sc);
+                return;
             }
+            worker.registerChannel(sc, context);
+            
+            LOGGER.log(new ServerManagerLogRecord(this, 
+            		String.format("Assigned connection from %s to worker %s.", 
+            				context.getAddress(), worker.getIdentifier())));
         } catch (IOException e) {
         	LOGGER.log(new ServerManagerLogRecord(this, "There was an error creating a worker.", e));
         } catch (RejectedExecutionException e) {
@@ -355,20 +910,239 @@ public class ServerManager implements Runnable {
     }
 
     /**
-     * Check the existing workers and determine if we can accept an incoming
-     * connection. A connection can be accepted if the number of workers is less
-     * than the configure maximum or at least one of the current workers has
-     * less clients than the configured maximum.
+     * Create and start a worker, splitting the connections of the server
+     * again among the running workers.
+     * 
+     * @return the new worker.
+     * @throws IOException
+     *             if the selector of the worker can't be opened.
+     */
+    private MessagingWorker spawnWorker() throws IOException {
+        MessagingWorker newWorker = new MessagingWorker(0, messageStore,
+                databaseStage, maxProtocolVersion, messageNotifier,
+                requestMetrics, freeSlots, this.getServerName());
+        newWorker.configureReaping(idleTimeout, heartbeatTimeout);
+        threadPool.execute(newWorker);
+        workers.add(newWorker);
+        rebalanceCapacity();
+        
+        LOGGER.log(new ServerManagerLogRecord(this, 
+                "Created new worker: " + newWorker.getIdentifier() + "."));
+        return newWorker;
+    }
+
+    /**
+     * Check the load of the workers once per interval. A worker is added when
+     * their average busy ratio is over the spawn ratio, and the least loaded
+     * is retired when it stays under the retire ratio for the retire delay,
+     * one at a time. The retired workers are removed from the list.
+     * 
+     * @param now
+     *            current time in milliseconds.
+     */
+    private void adjustWorkers(long now) {
+        if (now - lastPoolCheck < POOL_CHECK_INTERVAL)
+            return;
+        lastPoolCheck = now;
+
+        boolean retiring = false;
+        for (MessagingWorker worker : workers) {
+            if (worker.isRetired()) {
+                workers.remove(worker);
+                LOGGER.log(new ServerManagerLogRecord(this, "Removed retired worker: "
+                        + worker.getIdentifier() + "."));
+            } else if (worker.isRetiring())
+                retiring = true;
+        }
+        List<MessagingWorker> active = activeWorkers();
+        if (active.isEmpty())
+            return;
+
+        double busy = 0;
+        for (MessagingWorker worker : active)
+            busy += worker.getBusyRatio();
+        busy /= active.size();
+
+        if (busy > spawnBusyRatio && workers.size() < maxThreads) {
+            lowLoadSince = 0;
+            try {
+                spawnWorker();
+            } catch (IOException e) {
+                LOGGER.log(new ServerManagerLogRecord(this, "There was an error creating a worker.", e));
+            } catch (RejectedExecutionException e) {
+                LOGGER.log(new ServerManagerLogRecord(this, "Thread pool could not accept a worker.", e)); 
+            }
+        } else if (busy < retireBusyRatio && active.size() > minThreads
+                && !retiring) {
+            if (lowLoadSince == 0)
+                lowLoadSince = now;
+            else if (now - lowLoadSince >= retireDelay) {
+                lowLoadSince = 0;
+                MessagingWorker victim = active.get(0);
+                for (MessagingWorker worker : active)
+                    victim = lessLoaded(victim, worker);
+                active.remove(victim);
+                victim.retire(active);
+                
+                LOGGER.log(new ServerManagerLogRecord(this, String.format(
+                        "Retiring worker %s, average busy ratio %.2f.",
+                        victim.getIdentifier(), busy)));
+            }
+        } else
+            lowLoadSince = 0;
+        // Also gives back their share to the workers that gave up retiring
+        rebalanceCapacity();
+    }
+
+    /**
+     * Get the workers that take new connections, those that are not
+     * retiring.
+     * 
+     * @return a new list with the workers.
+     */
+    private List<MessagingWorker> activeWorkers() {
+        List<MessagingWorker> active = new ArrayList<MessagingWorker>(
+                workers.size());
+        for (MessagingWorker worker : workers) {
+            if (!worker.isRetiring() && !worker.isRetired())
+                active.add(worker);
+        }
+        return active;
+    }
+
+    /**
+     * Split the connections of the server evenly among the workers that
+     * take new connections, so the capacity of the server doesn't depend on
+     * the number of running workers.
+     */
+    private void rebalanceCapacity() {
+        List<MessagingWorker> active = activeWorkers();
+        int total = maxThreads * maxClientsPerWorker;
+        for (MessagingWorker worker : workers) {
+            int index = active.indexOf(worker);
+            if (index < 0)
+                worker.setCapacity(0);
+            else
+                worker.setCapacity(total / active.size()
+                        + (index < total % active.size() ? 1 : 0));
+        }
+    }
+
+    /**
+     * Choose the worker for a new connection with the power of two choices:
+     * the less loaded of two random workers with capacity. The load is read
+     * from the counters of the workers, without waking them up. If the two
+     * workers are full the least loaded of all is chosen.
+     * 
+     * @return a worker with capacity, assuming the server is not full.
+     */
+    private MessagingWorker selectWorker() {
+        int count = workers.size();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        MessagingWorker first = workers.get(random.nextInt(count));
+        MessagingWorker second = workers.get(random.nextInt(count));
+        if (first.isFull())
+            first = null;
+        if (second.isFull())
+            second = null;
+        if (first != null && second != null)
+            return lessLoaded(first, second);
+        if (first != null || second != null)
+            return first != null ? first : second;
+        MessagingWorker minWorker = null;
+        for (MessagingWorker worker : workers) {
+            if (!worker.isFull()
+                    && (minWorker == null || lessLoaded(worker, minWorker) == worker))
+                minWorker = worker;
+        }
+        return minWorker;
+    }
+
+    /**
+     * Compare the load of two workers, counting their connections and their
+     * requests. The request rate of each worker is converted to connections
+     * with the average rate per connection of both, so a worker with few
+     * busy clients weighs like one with many idle ones.
+     * 
+     * @param a
+     *            a worker.
+     * @param b
+     *            another worker.
+     * @return the worker with the lowest load, a if they are even.
+     */
+    private static MessagingWorker lessLoaded(MessagingWorker a,
+            MessagingWorker b) {
+        int connectionsA = a.getConnectionCount();
+        int connectionsB = b.getConnectionCount();
+        double rateA = a.getRequestRate();
+        double rateB = b.getRequestRate();
+        double loadA = connectionsA;
+        double loadB = connectionsB;
+        if (rateA + rateB > 0) {
+            double ratePerConnection = (rateA + rateB)
+                    / Math.max(1, connectionsA + connectionsB);
+            loadA += rateA / ratePerConnection;
+            loadB += rateB / ratePerConnection;
+        }
+        return loadB < loadA ? b : a;
+    }
+
+    /**
+     * Determine if we can accept an incoming connection. The connections of
+     * the server are split among the running workers, so a connection can be
+     * accepted while the workers have free slots or before the first worker
+     * is created.
      * 
      * @return true if the server is full, false otherwise.
      */
     private boolean serverFull() {
-        if (workers.size() < maxThreads)
-            return false;
-        for (MessagingWorker worker : workers)
-            if (!worker.isFull())
-                return false;
-        return true;
+        return !workers.isEmpty() && freeSlots.get() <= 0;
+    }
+
+    /**
+     * Get the workers created by the server.
+     * 
+     * @return the workers, safe to iterate from any thread.
+     */
+    List<MessagingWorker> getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Get the database connection pool of the server.
+     * 
+     * @return the connection pool.
+     */
+    DBConnectionDispatcher getDatabaseConnectionDispatcher() {
+        return dbConnectionDispatcher;
+    }
+
+    /**
+     * Get the stage where the database work is executed.
+     * 
+     * @return the stage, or null if the pool was not configured yet.
+     */
+    DatabaseStage getDatabaseStage() {
+        return databaseStage;
+    }
+
+    /**
+     * Get the registry of the requests waiting for messages.
+     * 
+     * @return the registry.
+     */
+    MessageNotifier getMessageNotifier() {
+        return messageNotifier;
+    }
+
+    /**
+     * Get the registry of the latencies of the requests processed by the
+     * server.
+     * 
+     * @return the registry.
+     */
+    public RequestMetrics getRequestMetrics() {
+        return requestMetrics;
     }
 
     /**
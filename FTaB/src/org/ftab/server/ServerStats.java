@@ -0,0 +1,181 @@
+/**
+ * ServerStats.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.ftab.communication.responses.RequestResponse.Status;
+import org.ftab.logging.SystemEvent;
+
+/**
+ * Live statistics of a server, read from its components on every call. It is
+ * exported through JMX and by the {@link MetricsHttpServer}.
+ */
+public class ServerStats implements ServerStatsMXBean {
+    /**
+     * Server described by the statistics.
+     */
+    private final ServerManager server;
+
+    /**
+     * Create the statistics of a server.
+     *
+     * @param nServer
+     *            server to describe.
+     */
+    public ServerStats(ServerManager nServer) {
+        server = nServer;
+    }
+
+    @Override
+    public String getServerName() {
+        return server.getServerName();
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return server.getWorkers().size();
+    }
+
+    @Override
+    public int getConnectionCount() {
+        int count = 0;
+        for (MessagingWorker worker : server.getWorkers())
+            count += worker.getConnectionCount();
+        return count;
+    }
+
+    @Override
+    public Map<String, Integer> getConnectionsPerWorker() {
+        Map<String, Integer> connections = new LinkedHashMap<String, Integer>();
+        for (MessagingWorker worker : server.getWorkers())
+            connections.put(worker.getWorkerTag(), worker.getConnectionCount());
+        return connections;
+    }
+
+    @Override
+    public long getPendingWrites() {
+        long count = 0;
+        for (MessagingWorker worker : server.getWorkers())
+            count += worker.getPendingWrites();
+        return count;
+    }
+
+    @Override
+    public int getDatabaseStageQueuedTasks() {
+        DatabaseStage stage = server.getDatabaseStage();
+        return stage == null ? 0 : stage.getQueuedTasks();
+    }
+
+    @Override
+    public int getDatabaseStageActiveTasks() {
+        DatabaseStage stage = server.getDatabaseStage();
+        return stage == null ? 0 : stage.getActiveTasks();
+    }
+
+    @Override
+    public int getWaitingRetrievals() {
+        return server.getMessageNotifier().getWaiterCount();
+    }
+
+    @Override
+    public int getDbOpenConnections() {
+        return server.getDatabaseConnectionDispatcher().getOpenConnections();
+    }
+
+    @Override
+    public int getDbConnectionsInUse() {
+        return server.getDatabaseConnectionDispatcher()
+                .getConnectionsInUse();
+    }
+
+    @Override
+    public int getDbWaitingThreads() {
+        return server.getDatabaseConnectionDispatcher().getWaitingThreads();
+    }
+
+    @Override
+    public long getDbAcquireTimeouts() {
+        return server.getDatabaseConnectionDispatcher().getAcquireTimeouts();
+    }
+
+    @Override
+    public String getDbAcquireLatency() {
+        return getDbAcquireHistogram().toString();
+    }
+
+    /**
+     * Get the histogram of the time spent waiting for a database connection.
+     *
+     * @return the histogram.
+     */
+    public LatencyHistogram getDbAcquireHistogram() {
+        return server.getDatabaseConnectionDispatcher().getAcquireLatency();
+    }
+
+    /**
+     * Get the number of database connections held longer than the leak
+     * threshold.
+     *
+     * @return number of leaks reported.
+     */
+    public long getDbLeakedConnections() {
+        return server.getDatabaseConnectionDispatcher()
+                .getLeakedConnections();
+    }
+
+    @Override
+    public long getMetadataCacheHits() {
+        return server.getDatabaseConnectionDispatcher().getMetadataCache()
+                .getHits();
+    }
+
+    @Override
+    public long getMetadataCacheMisses() {
+        return server.getDatabaseConnectionDispatcher().getMetadataCache()
+                .getMisses();
+    }
+
+    @Override
+    public long getRequestCount() {
+        long count = 0;
+        RequestMetrics metrics = server.getRequestMetrics();
+        for (SystemEvent event : SystemEvent.values()) {
+            for (Status status : Status.values()) {
+                LatencyHistogram histogram = metrics.getHistogram(event,
+                        status);
+                if (histogram != null)
+                    count += histogram.getCount();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Map<String, String> getRequestLatencies() {
+        Map<String, String> latencies = new LinkedHashMap<String, String>();
+        RequestMetrics metrics = server.getRequestMetrics();
+        for (SystemEvent event : SystemEvent.values()) {
+            for (Status status : Status.values()) {
+                LatencyHistogram histogram = metrics.getHistogram(event,
+                        status);
+                if (histogram != null)
+                    latencies.put(event + "/" + status, histogram.toString());
+            }
+        }
+        return latencies;
+    }
+
+    /**
+     * Get the registry of the latencies of the requests.
+     *
+     * @return the registry.
+     */
+    public RequestMetrics getRequestMetrics() {
+        return server.getRequestMetrics();
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * ServerStatsMXBean.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.util.Map;
+
+/**
+ * Management interface with the live statistics of a server, registered in
+ * the platform MBean server under org.ftab:type=Server.
+ */
+public interface ServerStatsMXBean {
+
+    /**
+     * Get the name of the server.
+     *
+     * @return name of the server.
+     */
+    String getServerName();
+
+    /**
+     * Get the number of workers created.
+     *
+     * @return number of workers.
+     */
+    int getWorkerCount();
+
+    /**
+     * Get the number of clients connected to the server.
+     *
+     * @return number of connections.
+     */
+    int getConnectionCount();
+
+    /**
+     * Get the number of clients connected to each worker.
+     *
+     * @return map from worker tag to number of connections.
+     */
+    Map<String, Integer> getConnectionsPerWorker();
+
+    /**
+     * Get the number of responses waiting to be written to the clients.
+     *
+     * @return number of queued responses.
+     */
+    long getPendingWrites();
+
+    /**
+     * Get the number of requests waiting for a database thread.
+     *
+     * @return number of queued requests.
+     */
+    int getDatabaseStageQueuedTasks();
+
+    /**
+     * Get the number of requests being executed by the database threads.
+     *
+     * @return number of active requests.
+     */
+    int getDatabaseStageActiveTasks();
+
+    /**
+     * Get the number of retrieve requests and subscriptions waiting for
+     * messages.
+     *
+     * @return number of waiting requests.
+     */
+    int getWaitingRetrievals();
+
+    /**
+     * Get the number of database connections open in the pool.
+     *
+     * @return number of open connections.
+     */
+    int getDbOpenConnections();
+
+    /**
+     * Get the number of database connections retrieved from the pool.
+     *
+     * @return number of connections in use.
+     */
+    int getDbConnectionsInUse();
+
+    /**
+     * Get the number of threads waiting for a database connection.
+     *
+     * @return number of waiting threads.
+     */
+    int getDbWaitingThreads();
+
+    /**
+     * Get the number of retrievals from the pool that timed out.
+     *
+     * @return number of timeouts.
+     */
+    long getDbAcquireTimeouts();
+
+    /**
+     * Get a summary of the time spent waiting for a database connection.
+     *
+     * @return count, average and percentiles of the waits.
+     */
+    String getDbAcquireLatency();
+
+    /**
+     * Get the number of client and queue lookups answered from the cache.
+     *
+     * @return number of hits.
+     */
+    long getMetadataCacheHits();
+
+    /**
+     * Get the number of client and queue lookups sent to the database.
+     *
+     * @return number of misses.
+     */
+    long getMetadataCacheMisses();
+
+    /**
+     * Get the number of requests answered.
+     *
+     * @return number of requests.
+     */
+    long getRequestCount();
+
+    /**
+     * Get a summary of the latencies of the requests by kind of request and
+     * response status.
+     *
+     * @return map from event/status to count, average and percentiles.
+     */
+    Map<String, String> getRequestLatencies();
+}
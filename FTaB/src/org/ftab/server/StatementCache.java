@@ -0,0 +1,189 @@
+/**
+ * StatementCache.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * Least recently used cache of the prepared statements of a physical database
+ * connection, keyed by their SQL text. A statement is taken out of the cache
+ * while it is in use, so two uses of the same SQL at once get different
+ * statements, and is put back when it is released. Reusing the statements
+ * lets the driver keep them prepared in the server after the prepare
+ * threshold, skipping the parse and plan of the SQL. The cache is not
+ * thread-safe, the connection is only used by one thread at a time.
+ */
+public class StatementCache {
+    /**
+     * Physical connection that prepares the statements.
+     */
+    private final Connection connection;
+
+    /**
+     * Maximum number of idle statements kept.
+     */
+    private final int capacity;
+
+    /**
+     * Number of executions after which the driver prepares a statement in the
+     * server, 0 to keep the driver's default.
+     */
+    private final int prepareThreshold;
+
+    /**
+     * Idle statements by SQL text, least recently used first.
+     */
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    /**
+     * Number of statements served from the cache.
+     */
+    private long hits;
+
+    /**
+     * Number of statements that had to be prepared.
+     */
+    private long misses;
+
+    /**
+     * Create an empty cache.
+     * 
+     * @param nConnection
+     *            physical connection that prepares the statements.
+     * @param nCapacity
+     *            maximum number of idle statements kept, 0 disables caching.
+     * @param nPrepareThreshold
+     *            number of executions after which the driver prepares a
+     *            statement in the server, 0 to keep the driver's default.
+     */
+    public StatementCache(Connection nConnection, int nCapacity,
+            int nPrepareThreshold) {
+        connection = nConnection;
+        capacity = nCapacity;
+        prepareThreshold = nPrepareThreshold;
+        statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f,
+                true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity)
+                    return false;
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+        hits = 0;
+        misses = 0;
+    }
+
+    /**
+     * Get a statement for the given SQL, from the cache if there is an idle
+     * one or prepared otherwise.
+     * 
+     * @param sql
+     *            SQL text of the statement.
+     * @return statement ready to use, it must be given back with release.
+     * @throws SQLException
+     *             if there is an error preparing the statement.
+     */
+    public PreparedStatement acquire(String sql) throws SQLException {
+        PreparedStatement stmt = statements.remove(sql);
+        if (stmt != null) {
+            ++hits;
+            return stmt;
+        }
+        ++misses;
+        stmt = connection.prepareStatement(sql);
+        if (prepareThreshold > 0 && stmt instanceof PGStatement)
+            ((PGStatement) stmt).setPrepareThreshold(prepareThreshold);
+        return stmt;
+    }
+
+    /**
+     * Give back a statement after its use, keeping it for the next use of the
+     * same SQL unless it was closed.
+     * 
+     * @param sql
+     *            SQL text of the statement.
+     * @param stmt
+     *            statement returned by acquire.
+     */
+    public void release(String sql, PreparedStatement stmt) {
+        try {
+            if (capacity <= 0 || stmt.isClosed()) {
+                stmt.close();
+                return;
+            }
+            // Leave nothing from the last use behind
+            stmt.clearParameters();
+            stmt.clearBatch();
+        } catch (SQLException e) {
+            closeQuietly(stmt);
+            return;
+        }
+        PreparedStatement previous = statements.put(sql, stmt);
+        if (previous != null && previous != stmt)
+            closeQuietly(previous);
+    }
+
+    /**
+     * Close every idle statement.
+     */
+    public void close() {
+        for (PreparedStatement stmt : statements.values())
+            closeQuietly(stmt);
+        statements.clear();
+    }
+
+    /**
+     * Get the number of idle statements in the cache.
+     * 
+     * @return number of statements.
+     */
+    public int size() {
+        return statements.size();
+    }
+
+    /**
+     * Get the number of statements served from the cache.
+     * 
+     * @return number of hits.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of statements that had to be prepared.
+     * 
+     * @return number of misses.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Close a statement, ignoring errors since it is no longer needed.
+     * 
+     * @param stmt
+     *            statement to close.
+     */
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // The statement is discarded either way
+        }
+    }
+}
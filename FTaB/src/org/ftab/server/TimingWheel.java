@@ -0,0 +1,163 @@
+/**
+ * TimingWheel.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel, a ring of slots that each cover one tick of time.
+ * A timer goes to the slot of its deadline modulo the size of the ring, so
+ * scheduling is constant time and each advance only visits the slots of the
+ * ticks elapsed. Timers further than one rotation away stay in their slot
+ * until a later rotation reaches their deadline. Timers can't be cancelled,
+ * their owner ignores them when they expire instead. This wheel is used by a
+ * single thread.
+ *
+ * @param <T>
+ *            type of the items of the timers.
+ */
+public class TimingWheel<T> {
+
+    /**
+     * A timer in a slot.
+     *
+     * @param <T>
+     *            type of the item.
+     */
+    private static class Timer<T> {
+        /**
+         * Item handed back when the timer expires.
+         */
+        private final T item;
+        /**
+         * Time when the timer expires, in milliseconds.
+         */
+        private final long deadline;
+
+        /**
+         * Create a timer.
+         *
+         * @param nItem
+         *            item of the timer.
+         * @param nDeadline
+         *            time when the timer expires, in milliseconds.
+         */
+        Timer(T nItem, long nDeadline) {
+            item = nItem;
+            deadline = nDeadline;
+        }
+    }
+
+    /**
+     * Slots of the ring, indexed by tick modulo their number.
+     */
+    private final List<ArrayList<Timer<T>>> slots;
+
+    /**
+     * Duration of a tick in milliseconds.
+     */
+    private final long tickDuration;
+
+    /**
+     * Tick that the wheel will visit first in the next advance.
+     */
+    private long currentTick;
+
+    /**
+     * Number of timers in the wheel.
+     */
+    private int size;
+
+    /**
+     * Create an empty wheel.
+     *
+     * @param nTickDuration
+     *            duration of a tick in milliseconds.
+     * @param slotCount
+     *            number of slots of the ring.
+     * @param now
+     *            current time in milliseconds.
+     */
+    public TimingWheel(long nTickDuration, int slotCount, long now) {
+        if (nTickDuration <= 0 || slotCount <= 0)
+            throw new IllegalArgumentException(
+                    "The tick and the number of slots must be positive.");
+        tickDuration = nTickDuration;
+        slots = new ArrayList<ArrayList<Timer<T>>>(slotCount);
+        for (int i = 0; i < slotCount; i++)
+            slots.add(new ArrayList<Timer<T>>());
+        currentTick = now / tickDuration;
+        size = 0;
+    }
+
+    /**
+     * Get the duration of a tick.
+     *
+     * @return the tick in milliseconds.
+     */
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * Get the number of timers in the wheel.
+     *
+     * @return the number of timers, expired or not.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add a timer. A deadline in the past expires on the next advance.
+     *
+     * @param item
+     *            item handed back when the timer expires.
+     * @param deadline
+     *            time when the timer expires, in milliseconds.
+     */
+    public void schedule(T item, long deadline) {
+        long tick = Math.max(deadline / tickDuration, currentTick);
+        slots.get((int) (tick % slots.size())).add(
+                new Timer<T>(item, deadline));
+        size++;
+    }
+
+    /**
+     * Advance the wheel to the current time, removing the expired timers.
+     *
+     * @param now
+     *            current time in milliseconds.
+     * @param expired
+     *            list where the items of the expired timers are added.
+     */
+    public void advance(long now, List<T> expired) {
+        long target = now / tickDuration;
+        // A whole rotation visits every slot
+        long last = Math.min(target, currentTick + slots.size() - 1);
+        for (long tick = currentTick; tick <= last; tick++) {
+            ArrayList<Timer<T>> slot = slots.get((int) (tick % slots.size()));
+            int i = 0;
+            while (i < slot.size()) {
+                Timer<T> timer = slot.get(i);
+                if (timer.deadline <= now) {
+                    // Fill the hole with the last timer, the order of a slot
+                    // doesn't matter
+                    Timer<T> moved = slot.remove(slot.size() - 1);
+                    if (i < slot.size())
+                        slot.set(i, moved);
+                    expired.add(timer.item);
+                    size--;
+                } else
+                    i++;
+            }
+        }
+        // The current tick is visited again, its later timers are pending
+        if (target > currentTick)
+            currentTick = target;
+    }
+}
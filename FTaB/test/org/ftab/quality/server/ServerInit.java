@@ -87,6 +87,8 @@ public class ServerInit {
             conn.setAutoCommit(false);
             Destroy.execute(true, true, true, conn);
             conn.commit();
+            // The ids of the next schema start over
+            dispatch.getMetadataCache().clear();
         } catch (SQLException ex) {
             if (conn != null)
                 conn.rollback();
@@ -12,21 +12,35 @@ import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.ftab.client.Client;
+import org.ftab.client.Message;
+import org.ftab.client.SubscriptionListener;
+import org.ftab.client.exceptions.QueueAEException;
+import org.ftab.client.exceptions.QueueInexistentException;
+import org.ftab.client.serverrpc.ResponseFuture;
 import org.ftab.communication.ProtocolMessage;
 import org.ftab.communication.exceptions.InvalidHeaderException;
 import org.ftab.communication.requests.ConnectionRequest;
 import org.ftab.communication.requests.GetQueuesRequest;
 import org.ftab.communication.requests.QueueModificationRequest;
+import org.ftab.communication.requests.RetrieveMessageRequest;
+import org.ftab.communication.requests.SendMessageBatchRequest;
 import org.ftab.communication.requests.SendMessageRequest;
+import org.ftab.communication.requests.SubscriptionRequest;
 import org.ftab.communication.responses.GetQueuesResponse;
 import org.ftab.communication.responses.RequestResponse;
 import org.ftab.communication.responses.RequestResponse.Status;
+import org.ftab.communication.responses.RetrieveMessageResponse;
+import org.ftab.communication.responses.RetrieveMessagesResponse;
+import org.ftab.pubenums.Order;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -320,6 +334,254 @@ public class ClientTests_AlreadyConnected {
 	
 	
 	
+	/**
+	 * Tests that asynchronous requests are written without waiting for the
+	 * previous responses, and that the responses complete the requests in order.
+	 * @throws IOException
+	 * @throws InvalidHeaderException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	@Test
+	public void testPipelinedRequests() throws IOException, InvalidHeaderException, InterruptedException, ExecutionException {
+		final String[] queueNames = { "queue 1", "queue 2", "queue 3" };
+		List<ResponseFuture<Void>> futures = new ArrayList<ResponseFuture<Void>>();
+		for (String queueName : queueNames) {
+			futures.add(client.CreateQueueAsync(queueName));
+		}
+		
+		// All the requests are on the wire before any response is sent
+		for (String queueName : queueNames) {
+			QueueModificationRequest request = (QueueModificationRequest) this.getMessage(channel);
+			assertEquals(queueName, request.getQueueName());
+			assertFalse(request.isDelete());
+		}
+		assertFalse(futures.get(0).isDone());
+		
+		this.sendMessage(new RequestResponse(Status.SUCCESS), channel);
+		this.sendMessage(new RequestResponse(Status.QUEUE_EXISTS), channel);
+		this.sendMessage(new RequestResponse(Status.SUCCESS), channel);
+		
+		futures.get(0).get();
+		try {
+			futures.get(1).get();
+			fail("The second queue should already exist.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof QueueAEException);
+		}
+		futures.get(2).get();
+		
+		// A failed request does not disturb the following ones
+		ResponseFuture<Iterable<String>> waiting = client.GetWaitingQueuesAsync();
+		assertTrue(this.getMessage(channel) instanceof GetQueuesRequest);
+		this.sendMessage(new GetQueuesResponse(Arrays.asList(queueNames)), channel);
+		int count = 0;
+		for (String queueName : waiting.get()) {
+			assertEquals(queueNames[count++], queueName);
+		}
+		assertEquals(queueNames.length, count);
+	}
+	
+	/**
+	 * Tests that a batch of messages is sent in a single request and that a
+	 * failure of the batch is reported for the whole batch.
+	 * @throws IOException
+	 * @throws InvalidHeaderException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	@Test
+	public void testSendMessages() throws IOException, InvalidHeaderException, InterruptedException, ExecutionException {
+		final List<Message> batch = Arrays.asList(
+				new Message(0, (byte) 3, "first", "bob", null, new String[] { "queue 1" }),
+				new Message(7, (byte) 9, "second", "bob", "alice", new String[] { "queue 1", "queue 2" }));
+		
+		ResponseFuture<Void> result = client.SendMessagesAsync(batch);
+		SendMessageBatchRequest request = (SendMessageBatchRequest) this.getMessage(channel);
+		assertEquals(batch.size(), request.size());
+		
+		int index = 0;
+		for (SendMessageRequest sent : request.getMessages()) {
+			Message expected = batch.get(index++);
+			assertEquals(expected.getContent(), sent.getMessage());
+			assertEquals(expected.getPriority(), sent.getPriority());
+			assertEquals(expected.getContext(), sent.getContext());
+			assertEquals(expected.getReceiver(), sent.getReceiver());
+		}
+		
+		this.sendMessage(new RequestResponse(Status.SUCCESS), channel);
+		result.get();
+		
+		result = client.SendMessagesAsync(batch);
+		assertTrue(this.getMessage(channel) instanceof SendMessageBatchRequest);
+		this.sendMessage(new RequestResponse(Status.QUEUE_NOT_EXISTS), channel);
+		try {
+			result.get();
+			fail("The batch should fail as a whole.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof QueueInexistentException);
+		}
+	}
+	
+	/**
+	 * Tests that several messages are retrieved with a single request, and that
+	 * a server answering with a single message is understood as well.
+	 * @throws IOException
+	 * @throws InvalidHeaderException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	@Test
+	public void testViewMessages() throws IOException, InvalidHeaderException, InterruptedException, ExecutionException {
+		final List<RetrieveMessageResponse> returned = Arrays.asList(
+				new RetrieveMessageResponse(1, "first", "alice", "bob", "queue 1", 9, 0),
+				new RetrieveMessageResponse(2, "second", "alice", null, "queue 1", 3, 0));
+		
+		Future<List<Message>> result = service.submit(new Callable<List<Message>>() {
+			@Override
+			public List<Message> call() throws Exception {
+				return client.ViewMessagesFromQueue("queue 1", true, Order.PRIORITY, 10);
+			}
+		});
+		RetrieveMessageRequest request = (RetrieveMessageRequest) this.getMessage(channel);
+		assertEquals("queue 1", request.getFilterValue());
+		assertTrue(request.isPopMessage());
+		assertEquals(10, request.getMaxMessages());
+		this.sendMessage(new RetrieveMessagesResponse(returned), channel);
+		
+		List<Message> messages = result.get();
+		assertEquals(returned.size(), messages.size());
+		for (int i = 0; i < returned.size(); i++) {
+			assertEquals(returned.get(i).getMessageId(), messages.get(i).getId());
+			assertEquals(returned.get(i).getMessageContent(), messages.get(i).getContent());
+		}
+		
+		result = service.submit(new Callable<List<Message>>() {
+			@Override
+			public List<Message> call() throws Exception {
+				return client.ViewMessagesFromSender("alice", false, Order.TIMESTAMP, 10);
+			}
+		});
+		this.getMessage(channel);
+		this.sendMessage(returned.get(0), channel);
+		assertEquals(1, result.get().size());
+		
+		result = service.submit(new Callable<List<Message>>() {
+			@Override
+			public List<Message> call() throws Exception {
+				return client.ViewMessagesFromSender("alice", false, Order.TIMESTAMP, 10);
+			}
+		});
+		this.getMessage(channel);
+		this.sendMessage(new RequestResponse(Status.NO_MESSAGE), channel);
+		assertTrue(result.get().isEmpty());
+	}
+	
+	/**
+	 * Tests that the client lets the server hold the retrieval of messages
+	 * when waiting for them.
+	 * @throws IOException
+	 * @throws InvalidHeaderException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	@Test
+	public void testWaitForMessages() throws IOException, InvalidHeaderException, InterruptedException, ExecutionException {
+		Future<List<Message>> result = service.submit(new Callable<List<Message>>() {
+			@Override
+			public List<Message> call() throws Exception {
+				return client.WaitForMessagesFromQueue("queue 1", true, Order.TIMESTAMP, 5, 3000);
+			}
+		});
+		RetrieveMessageRequest request = (RetrieveMessageRequest) this.getMessage(channel);
+		assertEquals("queue 1", request.getFilterValue());
+		assertEquals(5, request.getMaxMessages());
+		assertEquals(3000, request.getWaitTimeout());
+		this.sendMessage(new RequestResponse(Status.NO_MESSAGE), channel);
+		assertTrue(result.get().isEmpty());
+		
+		result = service.submit(new Callable<List<Message>>() {
+			@Override
+			public List<Message> call() throws Exception {
+				return client.WaitForMessagesFromSender("alice", false, Order.PRIORITY, 1, 500);
+			}
+		});
+		request = (RetrieveMessageRequest) this.getMessage(channel);
+		assertEquals("alice", request.getFilterValue());
+		assertEquals(1, request.getMaxMessages());
+		assertEquals(500, request.getWaitTimeout());
+		this.sendMessage(new RetrieveMessageResponse(1, "first", "alice", null, "queue 1", 9, 0), channel);
+		assertEquals(1, result.get().size());
+	}
+	
+	/**
+	 * Tests that pushed messages reach the listener of the subscription, that
+	 * their credits are granted back and that no credits are granted after
+	 * unsubscribing.
+	 * @throws IOException
+	 * @throws InvalidHeaderException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	@Test
+	public void testSubscriptions() throws IOException, InvalidHeaderException, InterruptedException, ExecutionException {
+		final LinkedBlockingQueue<Message> pushed = new LinkedBlockingQueue<Message>();
+		final SubscriptionListener listener = new SubscriptionListener() {
+			@Override
+			public void messagesPushed(String queueName, List<Message> messages) {
+				assertEquals("queue 1", queueName);
+				pushed.addAll(messages);
+			}
+		};
+		
+		Future<Boolean> result = service.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return client.Subscribe(listener, Order.TIMESTAMP, 5, "queue 1");
+			}
+		});
+		SubscriptionRequest request = (SubscriptionRequest) this.getMessage(channel);
+		assertTrue(request.isSubscribe());
+		assertEquals(Arrays.asList("queue 1"), request.getQueueNames());
+		assertEquals(5, request.getCredits());
+		
+		// Messages may be pushed before the subscription is acknowledged
+		this.sendMessage(new RetrieveMessagesResponse(Arrays.asList(
+				new RetrieveMessageResponse(1, "first", "alice", null, "queue 1", 9, 0)), true), channel);
+		SubscriptionRequest grant = (SubscriptionRequest) this.getMessage(channel);
+		assertTrue(grant.isSubscribe());
+		assertEquals(1, grant.getCredits());
+		this.sendMessage(new RequestResponse(Status.SUCCESS), channel);
+		this.sendMessage(new RequestResponse(Status.SUCCESS), channel);
+		assertTrue(result.get());
+		assertEquals(1, pushed.poll(5, TimeUnit.SECONDS).getId());
+		
+		result = service.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return client.Unsubscribe("queue 1");
+			}
+		});
+		request = (SubscriptionRequest) this.getMessage(channel);
+		assertFalse(request.isSubscribe());
+		this.sendMessage(new RetrieveMessagesResponse(Arrays.asList(
+				new RetrieveMessageResponse(2, "second", "alice", null, "queue 1", 9, 0)), true), channel);
+		this.sendMessage(new RequestResponse(Status.SUCCESS), channel);
+		assertTrue(result.get());
+		assertEquals(2, pushed.poll(5, TimeUnit.SECONDS).getId());
+		
+		// The next request must not be preceded by a grant
+		result = service.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return client.CreateQueue("queue 2");
+			}
+		});
+		assertTrue(this.getMessage(channel) instanceof QueueModificationRequest);
+		this.sendMessage(new RequestResponse(Status.SUCCESS), channel);
+		assertTrue(result.get());
+	}
+	
 	/**
 	 * Gets a message from a channel and parses it to a ProtocolMessage
 	 * @param channel The channel from which to retreive the message
@@ -0,0 +1,201 @@
+package org.ftab.test.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ftab.client.load.ArrivalDistribution;
+import org.ftab.client.load.LoadGenerator;
+import org.ftab.client.load.LoadGenerator.Operation;
+import org.ftab.client.load.TraceConfig;
+import org.ftab.communication.ProtocolMessage;
+import org.ftab.communication.requests.ConnectionRequest;
+import org.ftab.communication.requests.SendMessageRequest;
+import org.ftab.communication.responses.RequestResponse;
+import org.ftab.communication.responses.RequestResponse.Status;
+import org.ftab.server.LatencyHistogram;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the open-loop load generator against a server that stalls.
+ * @author Diego Ballesteros (diegob)
+ */
+public class LoadGeneratorTest {
+	/**
+	 * How long the server stalls, in milliseconds.
+	 */
+	private static final int STALL_MILLIS = 300;
+
+	/**
+	 * The ServerSocketChannel listening for the client.
+	 */
+	private ServerSocketChannel serverChannel;
+
+	/**
+	 * The number of messages sent by the client.
+	 */
+	private final AtomicInteger sent = new AtomicInteger();
+
+	/**
+	 * Creates the server channel before each test is run
+	 * @throws Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(null, 0);
+	}
+
+	/**
+	 * Closes the server channel on completion of a test.
+	 * @throws Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		serverChannel.close();
+	}
+
+	/**
+	 * Tests that the trace files of the Jython generator are read.
+	 * @throws IOException
+	 */
+	@Test
+	public void testTraceConfig() throws IOException {
+		TraceConfig config = TraceConfig.parse(new StringReader(
+				"[system]\nservera = localhost\nporta = 34582\n# comment\n\n"
+				+ "[trace]\nreadernumber = 25\ndistribution = UniformDistribution\n"));
+		assertEquals("localhost", config.get("system", "servera"));
+		assertEquals(34582, config.getInt("system", "porta"));
+		assertEquals(25, config.getInt("trace", "readernumber"));
+		assertEquals(0.5, config.getDouble("trace", "targetrate", 0.5), 0);
+		assertEquals(ArrivalDistribution.UNIFORM,
+				ArrivalDistribution.fromTraceName(config.get("trace", "distribution")));
+	}
+
+	/**
+	 * Tests that the distributions keep the requested mean gap.
+	 */
+	@Test
+	public void testDistributionMean() {
+		Random random = new Random(7);
+		for (ArrivalDistribution distribution : ArrivalDistribution.values()) {
+			long total = 0;
+			for (int i = 0; i < 100000; ++i) {
+				total += distribution.nextGapNanos(random, 0.01);
+			}
+			assertEquals(0.01, total / 100000 / 1e9, 0.0005);
+		}
+	}
+
+	/**
+	 * Tests that the requests keep arriving while the server stalls and that
+	 * the stall shows in the latencies.
+	 * @throws Exception
+	 */
+	@Test
+	public void testOpenLoopThroughStall() throws Exception {
+		int port = serverChannel.socket().getLocalPort();
+		TraceConfig config = TraceConfig.parse(new StringReader(
+				"[system]\nservera = localhost\nporta = " + port + "\nqueuebasename = queue\n"
+				+ "validqueues = 2\nnumberofservers = 1\n"
+				+ "[trace]\nrunningtime = 1\nreadernumber = 0\nsendernumber = 1\n"
+				+ "distribution = NoDistribution\ntargetrate = 50\nmessagesize = 10\n"));
+		Thread server = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		});
+		server.start();
+
+		LoadGenerator generator = new LoadGenerator(config);
+		generator.connect();
+		assertEquals(0, generator.run());
+		generator.disconnect();
+		server.join();
+
+		// The client sent at the target rate, the server stall didn't hold it back
+		assertTrue(sent.get() >= 48 && sent.get() <= 51);
+		LatencyHistogram latencies = generator.getCorrectedLatencies(Operation.SEND);
+		assertEquals(sent.get(), latencies.getCount());
+		assertEquals(0, generator.getFailures());
+		assertTrue(latencies.getMax() >= (STALL_MILLIS - 50) * 1000000L);
+		assertTrue(latencies.getPercentile(0.5) < STALL_MILLIS * 1000);
+	}
+
+	/**
+	 * Answers every request of the client with a success, stalling once
+	 * after the tenth message, until the client disconnects.
+	 */
+	private void serve() {
+		try {
+			SocketChannel channel = serverChannel.accept();
+			try {
+				while (true) {
+					ProtocolMessage request = getMessage(channel);
+					if (request == null) {
+						return;
+					}
+					if (request instanceof SendMessageRequest && sent.incrementAndGet() == 10) {
+						Thread.sleep(STALL_MILLIS);
+					}
+					channel.write(ProtocolMessage.toBytes(new RequestResponse(Status.SUCCESS)));
+					if (request instanceof ConnectionRequest && !((ConnectionRequest) request).isConnection()) {
+						return;
+					}
+				}
+			} finally {
+				channel.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets a message from a channel and parses it to a ProtocolMessage
+	 * @param channel The channel from which to retrieve the message
+	 * @return The message that was sent over the channel, or null if the
+	 * channel was closed
+	 * @throws Exception
+	 */
+	private ProtocolMessage getMessage(SocketChannel channel) throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(ProtocolMessage.HEADER_SIZE);
+		if (!readFully(channel, buffer)) {
+			return null;
+		}
+		int size = ProtocolMessage.getBodySize(buffer);
+
+		buffer = ByteBuffer.allocate(size);
+		if (!readFully(channel, buffer)) {
+			return null;
+		}
+		return ProtocolMessage.fromBytes(buffer);
+	}
+
+	/**
+	 * Fills a buffer from a channel and flips it.
+	 * @param channel The channel to read.
+	 * @param buffer The buffer to fill.
+	 * @return false if the channel was closed first.
+	 * @throws IOException
+	 */
+	private boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				return false;
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+}
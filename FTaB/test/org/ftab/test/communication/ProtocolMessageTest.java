@@ -1,6 +1,8 @@
 package org.ftab.test.communication;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.nio.ByteBuffer;
@@ -8,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.ftab.communication.Heartbeat;
 import org.ftab.communication.ProtocolMessage;
 import org.ftab.communication.ProtocolMessage.MessageType;
 import org.ftab.communication.exceptions.InvalidHeaderException;
@@ -15,7 +18,11 @@ import org.ftab.communication.requests.ConnectionRequest;
 import org.ftab.communication.requests.GetQueuesRequest;
 import org.ftab.communication.requests.QueueModificationRequest;
 import org.ftab.communication.requests.RetrieveMessageRequest;
+import org.ftab.communication.requests.SendMessageBatchRequest;
 import org.ftab.communication.requests.SendMessageRequest;
+import org.ftab.communication.requests.SubscriptionRequest;
+import org.ftab.communication.responses.RequestResponse;
+import org.ftab.communication.responses.RequestResponse.Status;
 import org.ftab.pubenums.Filter;
 import org.ftab.pubenums.Order;
 import org.junit.Test;
@@ -115,6 +122,62 @@ public class ProtocolMessageTest {
 		assertEquals(disRequest2.isConnection(), transRequest.isConnection());
 	}
 	
+	/**
+	 * Tests that connection requests carry the protocol version, and that the
+	 * requests of clients that predate it are treated as text-only clients.
+	 */
+	@Test
+	public void testConnectionRequestVersion() {
+		final ConnectionRequest request = new ConnectionRequest("jim", true);
+		ConnectionRequest transRequest = (ConnectionRequest) ProtocolMessage.fromBytes((ByteBuffer) 
+				ProtocolMessage.toBytes(request).position(ProtocolMessage.HEADER_SIZE));
+		
+		assertEquals("jim", transRequest.getUsername());
+		assertEquals(ProtocolMessage.PROTOCOL_VERSION, transRequest.getProtocolVersion());
+		
+		// Body as sent by a client without version negotiation
+		final ByteBuffer legacy = ByteBuffer.allocate(7);
+		legacy.put(ProtocolMessage.MessageType.CONNECTION_REQUEST.getByteValue());
+		legacy.put((byte) 1).putShort((short) 3).put(new byte[] { 'j', 'i', 'm' });
+		legacy.flip();
+		transRequest = (ConnectionRequest) ProtocolMessage.fromBytes(legacy);
+		
+		assertEquals("jim", transRequest.getUsername());
+		assertEquals(ProtocolMessage.TEXT_PROTOCOL_VERSION, transRequest.getProtocolVersion());
+	}
+	
+	/**
+	 * Tests that the heartbeat messages keep their kind through serialization.
+	 */
+	@Test
+	public void testHeartbeatToFromBytes() {
+		for (boolean ping : new boolean[] { true, false }) {
+			final ProtocolMessage transMessage = ProtocolMessage.fromBytes((ByteBuffer) 
+					ProtocolMessage.toBytes(new Heartbeat(ping)).position(ProtocolMessage.HEADER_SIZE));
+			
+			assertEquals(ping ? MessageType.PING : MessageType.PONG, transMessage.getMessageType());
+			assertEquals(ping, ((Heartbeat) transMessage).isPing());
+		}
+	}
+	
+	/**
+	 * Tests that the header announces the size of the body, for a body framed
+	 * in place and for a text encoded body that is copied.
+	 * @throws InvalidHeaderException If the header is malformed.
+	 */
+	@Test
+	public void testFrameHeader() throws InvalidHeaderException {
+		final ByteBuffer[] frames = {
+				ProtocolMessage.toBytes(new QueueModificationRequest("queue", true)),
+				ProtocolMessage.toBytes(new RequestResponse(Status.SUCCESS, "done")) };
+		for (ByteBuffer frame : frames) {
+			assertEquals(0, frame.position());
+			final ByteBuffer header = (ByteBuffer) frame.duplicate().limit(ProtocolMessage.HEADER_SIZE);
+			assertEquals(frame.limit() - ProtocolMessage.HEADER_SIZE, 
+					ProtocolMessage.getBodySize(header));
+		}
+	}
+	
 	/**
 	 * Tests whether Queue requests can be properly serialised and deserialised
 	 */
@@ -193,6 +256,24 @@ public class ProtocolMessageTest {
 					assertEquals(request.getFilterValue(), result.getFilterValue());
 					assertEquals(request.getFilterType(), result.getFilterType());
 					assertEquals(request.getOrderBy(), result.getOrderBy());
+					assertEquals(1, result.getMaxMessages());
+					
+					request = new RetrieveMessageRequest(name, f, o, true, 50);
+					result = (RetrieveMessageRequest) ProtocolMessage.fromBytes((ByteBuffer) 
+							ProtocolMessage.toBytes(request).position(ProtocolMessage.HEADER_SIZE));
+					
+					assertEquals(request.getFilterValue(), result.getFilterValue());
+					assertEquals(true, result.isPopMessage());
+					assertEquals(50, result.getMaxMessages());
+					assertEquals(0, result.getWaitTimeout());
+					
+					request = new RetrieveMessageRequest(name, f, o, true, 1, 2500);
+					result = (RetrieveMessageRequest) ProtocolMessage.fromBytes((ByteBuffer) 
+							ProtocolMessage.toBytes(request).position(ProtocolMessage.HEADER_SIZE));
+					
+					assertEquals(request.getFilterValue(), result.getFilterValue());
+					assertEquals(1, result.getMaxMessages());
+					assertEquals(2500, result.getWaitTimeout());
 				}
 			}
 		}		
@@ -273,6 +354,57 @@ public class ProtocolMessageTest {
 			
 		}		
 	}
+	
+	/**
+	 * Tests whether batches of send message requests can be properly serialised and deserialised
+	 */
+	@Test
+	public void testSendMessageBatchRequestToFromBytes() {
+		List<SendMessageRequest> batch = Arrays.asList(
+				new SendMessageRequest("A random array of characters...", (byte)5, 0,
+						Arrays.asList("queue 1", "queue 2")),
+				new SendMessageRequest("", (byte)10, 2, Arrays.asList("pipe queue 3"), "bob"));
+		
+		SendMessageBatchRequest result = (SendMessageBatchRequest) ProtocolMessage.fromBytes((ByteBuffer) 
+				ProtocolMessage.toBytes(new SendMessageBatchRequest(batch)).position(ProtocolMessage.HEADER_SIZE));
+		
+		assertEquals(batch.size(), result.size());
+		int index = 0;
+		for (SendMessageRequest request : result.getMessages()) {
+			SendMessageRequest expected = batch.get(index++);
+			assertEquals(expected.getMessage(), request.getMessage());
+			assertEquals(expected.getPriority(), request.getPriority());
+			assertEquals(expected.getContext(), request.getContext());
+			assertEquals(expected.getReceiver(), request.getReceiver());
+			assertEquals(expected.getQueueList(), request.getQueueList());
+		}
+		
+		result = (SendMessageBatchRequest) ProtocolMessage.fromBytes((ByteBuffer) 
+				ProtocolMessage.toBytes(new SendMessageBatchRequest(new ArrayList<SendMessageRequest>()))
+				.position(ProtocolMessage.HEADER_SIZE));
+		assertEquals(0, result.size());
+	}
+	
+	/**
+	 * Tests whether subscription requests can be properly serialised and deserialised
+	 */
+	@Test
+	public void testSubscriptionRequestToFromBytes() {
+		List<String> queues = Arrays.asList("queue 1", "queue 2");
+		for (Order o : Order.values()) {
+			SubscriptionRequest request = new SubscriptionRequest(queues, o, 25);
+			SubscriptionRequest result = (SubscriptionRequest) ProtocolMessage.fromBytes((ByteBuffer) 
+					ProtocolMessage.toBytes(request).position(ProtocolMessage.HEADER_SIZE));
+			
+			assertTrue(result.isSubscribe());
+			assertEquals(queues, result.getQueueNames());
+			assertEquals(o, result.getOrderBy());
+			assertEquals(25, result.getCredits());
+		}
+		
+		SubscriptionRequest result = (SubscriptionRequest) ProtocolMessage.fromBytes((ByteBuffer) 
+				ProtocolMessage.toBytes(new SubscriptionRequest(queues)).position(ProtocolMessage.HEADER_SIZE));
+		assertFalse(result.isSubscribe());
+		assertEquals(queues, result.getQueueNames());
+	}
 }
-
-
@@ -6,12 +6,17 @@
 package org.ftab.test.communication.responses;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
+import org.ftab.communication.ProtocolMessage;
 import org.ftab.communication.responses.GetQueuesResponse;
 import org.junit.Test;
 
@@ -53,4 +58,30 @@ public class GetQueuesResponseTest {
         assertEquals(size, uniqueQueues.size());
     }
 
+    /**
+     * Check that we can serialize and de-serialize a {@link GetQueuesResponse}
+     * object with the binary encoding, including an empty list.
+     */
+    @Test
+    public void testBinarySerializing() {
+        List<String> queues = new ArrayList<String>();
+        GetQueuesResponse echo = GetQueuesResponse
+                .fromBinaryBytes(new GetQueuesResponse(queues).toBinaryBytes());
+        assertFalse(echo.getQueues().iterator().hasNext());
+
+        queues.add("OneQueue");
+        queues.add("Tricky" + GetQueuesResponse.SEPARATOR + "Queue"
+                + GetQueuesResponse.ESCAPE_CHAR);
+        queues.add("");
+        ByteBuffer framed = ProtocolMessage.toBytes(new GetQueuesResponse(
+                queues), ProtocolMessage.BINARY_PROTOCOL_VERSION);
+        framed.position(ProtocolMessage.HEADER_SIZE);
+        echo = (GetQueuesResponse) ProtocolMessage.fromBytes(framed);
+        Iterator<String> it = echo.getQueues().iterator();
+        for (String queueName : queues) {
+            assertEquals(queueName, it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+
 }
@@ -42,6 +42,22 @@ public class RequestResponseTest {
         assertEquals(rr.getStatus(), echo.getStatus());
     }
 
+    /**
+     * Check that we can serialize and de-serialize a {@link RequestResponse}
+     * object with the binary encoding for every status.
+     */
+    @Test
+    public void testBinarySerializing() {
+        for (Status possibleStatus : Status.values()) {
+            RequestResponse rr = new RequestResponse(possibleStatus,
+                    "Tricky " + RequestResponse.SEPARATOR + " description.");
+            RequestResponse echo = RequestResponse.fromBinaryBytes(rr
+                    .toBinaryBytes());
+            assertEquals(rr.getDescription(), echo.getDescription());
+            assertEquals(rr.getStatus(), echo.getStatus());
+        }
+    }
+
     /**
      * Check that we can use all the class constructors and later retrieve the
      * arguments through the public getters.
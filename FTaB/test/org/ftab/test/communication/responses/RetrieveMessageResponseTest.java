@@ -8,8 +8,12 @@ package org.ftab.test.communication.responses;
 import static org.junit.Assert.assertEquals;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
+import org.ftab.communication.ProtocolMessage;
 import org.ftab.communication.responses.RetrieveMessageResponse;
+import org.ftab.communication.responses.RetrieveMessagesResponse;
 import org.ftab.database.Message;
 import org.junit.Test;
 
@@ -69,6 +73,97 @@ public class RetrieveMessageResponseTest {
         compareMessages(rmr, echo);
     }
 
+    /**
+     * Check that we can serialize and de-serialize a
+     * {@link RetrieveMessageResponse} object with the binary encoding, and
+     * that the framed message is decoded according to its encoding.
+     */
+    @Test
+    public void testBinarySerializing() {
+        StringBuilder longContent = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            longContent.append((char) ('a' + i % 26));
+        }
+        RetrieveMessageResponse[] responses = {
+                new RetrieveMessageResponse(Long.MAX_VALUE,
+                        "This is an easy message, Hi Mom!",
+                        "NationalBroadcaster", "ConcernedCitizen",
+                        "QueueTest", 10, Integer.MIN_VALUE),
+                new RetrieveMessageResponse(1, longContent.toString(),
+                        "NationalBroadcaster", null, "QueueTest", 1, 0),
+                new RetrieveMessageResponse(-1, "Tricky "
+                        + RetrieveMessageResponse.SEPARATOR + " \u00fcml\u00e4ut",
+                        "\u00c9mile", "", RetrieveMessageResponse.ESCAPE_CHAR,
+                        5, 7) };
+        for (RetrieveMessageResponse rmr : responses) {
+            RetrieveMessageResponse echo = RetrieveMessageResponse
+                    .fromBinaryBytes(rmr.toBinaryBytes());
+            compareMessages(rmr, echo);
+
+            ByteBuffer framed = ProtocolMessage.toBytes(rmr,
+                    ProtocolMessage.BINARY_PROTOCOL_VERSION);
+            framed.position(ProtocolMessage.HEADER_SIZE);
+            compareMessages(rmr,
+                    (RetrieveMessageResponse) ProtocolMessage.fromBytes(framed));
+        }
+
+        // Text-encoded frames are still understood
+        ByteBuffer framed = ProtocolMessage.toBytes(responses[0]);
+        framed.position(ProtocolMessage.HEADER_SIZE);
+        compareMessages(responses[0],
+                (RetrieveMessageResponse) ProtocolMessage.fromBytes(framed));
+    }
+
+    /**
+     * Check that we can serialize and de-serialize a
+     * {@link RetrieveMessagesResponse} object in both encodings.
+     */
+    @Test
+    public void testBatchSerializing() {
+        List<RetrieveMessageResponse> responses = Arrays.asList(
+                new RetrieveMessageResponse(1, "First "
+                        + RetrieveMessageResponse.SEPARATOR + " message",
+                        "NationalBroadcaster", null, "QueueTest", 10, 0),
+                new RetrieveMessageResponse(2, "Second message",
+                        "NationalBroadcaster", "ConcernedCitizen",
+                        "QueueTest", 3, 1));
+        RetrieveMessagesResponse batch = new RetrieveMessagesResponse(
+                responses);
+        for (byte version : new byte[] {
+                ProtocolMessage.TEXT_PROTOCOL_VERSION,
+                ProtocolMessage.BINARY_PROTOCOL_VERSION }) {
+            ByteBuffer framed = ProtocolMessage.toBytes(batch, version);
+            framed.position(ProtocolMessage.HEADER_SIZE);
+            RetrieveMessagesResponse echo = (RetrieveMessagesResponse) ProtocolMessage
+                    .fromBytes(framed);
+            assertEquals(echo.getMessages().size(), responses.size());
+            for (int i = 0; i < responses.size(); i++) {
+                compareMessages(responses.get(i), echo.getMessages().get(i));
+            }
+        }
+    }
+
+    /**
+     * Check that messages pushed for a subscription keep their type through
+     * serialization.
+     */
+    @Test
+    public void testPushedSerializing() {
+        List<RetrieveMessageResponse> responses = Arrays.asList(
+                new RetrieveMessageResponse(1, "Pushed message",
+                        "NationalBroadcaster", null, "QueueTest", 10, 0));
+        RetrieveMessagesResponse push = new RetrieveMessagesResponse(
+                responses, true);
+        ByteBuffer framed = ProtocolMessage.toBytes(push,
+                ProtocolMessage.BINARY_PROTOCOL_VERSION);
+        framed.position(ProtocolMessage.HEADER_SIZE);
+        RetrieveMessagesResponse echo = (RetrieveMessagesResponse) ProtocolMessage
+                .fromBytes(framed);
+        assertEquals(true, echo.isPushed());
+        assertEquals(1, echo.getMessages().size());
+        compareMessages(responses.get(0), echo.getMessages().get(0));
+    }
+
     /**
      * Check that we can build responses and retrieve the message information
      * from it.
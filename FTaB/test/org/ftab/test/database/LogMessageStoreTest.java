@@ -0,0 +1,449 @@
+/**
+ * LogMessageStoreTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.ftab.database.Client;
+import org.ftab.database.LogMessageStore;
+import org.ftab.database.Message;
+import org.ftab.database.MessageStore;
+import org.ftab.database.StoreTransaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the log message store.
+ */
+public class LogMessageStoreTest {
+
+    /**
+     * Store that counts the flushes and holds the first one once armed.
+     */
+    private static class GatedStore extends LogMessageStore {
+        /**
+         * Indicates if the flushes are counted and the first one held.
+         */
+        private volatile boolean armed;
+        /**
+         * Opened when the first flush starts.
+         */
+        private final CountDownLatch started = new CountDownLatch(1);
+        /**
+         * Opened to let the first flush finish.
+         */
+        private final CountDownLatch released = new CountDownLatch(1);
+        /**
+         * Number of flushes since the store was armed.
+         */
+        private int flushes;
+
+        /**
+         * Open the log with a flush on every commit.
+         *
+         * @param directory
+         *            directory of the log.
+         * @throws IOException
+         *             if the log can't be opened.
+         */
+        GatedStore(File directory) throws IOException {
+            super(directory, LogMessageStore.MIN_SEGMENT_SIZE, true, 0);
+        }
+
+        @Override
+        protected void force(MappedByteBuffer map) {
+            if (armed) {
+                synchronized (this) {
+                    flushes++;
+                }
+                started.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.force(map);
+        }
+
+        /**
+         * Get the number of flushes since the store was armed.
+         *
+         * @return the number of flushes.
+         */
+        synchronized int getFlushes() {
+            return flushes;
+        }
+    }
+
+    /**
+     * Directory of the log.
+     */
+    private File directory;
+
+    /**
+     * Store under test.
+     */
+    private LogMessageStore store;
+
+    /**
+     * Create an empty log in a temporary directory.
+     *
+     * @throws Exception
+     *             if the log can't be created.
+     */
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("ftab-log", "");
+        assertTrue(directory.delete());
+        store = open();
+        StoreTransaction tx = store.begin();
+        store.createClient("alice", true, tx);
+        store.createClient("bob", true, tx);
+        store.createQueue("q1", tx);
+        store.createQueue("q2", tx);
+        tx.commit();
+        tx.close();
+    }
+
+    /**
+     * Close the store and delete the log.
+     *
+     * @throws Exception
+     *             if the store can't be closed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    /**
+     * Open the log with small segments and manual compaction.
+     *
+     * @return the store.
+     * @throws IOException
+     *             if the log can't be opened.
+     */
+    private LogMessageStore open() throws IOException {
+        return new LogMessageStore(directory,
+                LogMessageStore.MIN_SEGMENT_SIZE, false, 0);
+    }
+
+    /**
+     * Close the store and open it again from its log.
+     *
+     * @throws Exception
+     *             if the log can't be replayed.
+     */
+    private void restart() throws Exception {
+        store.close();
+        store = open();
+    }
+
+    /**
+     * Send a message from alice and commit it.
+     *
+     * @param store
+     *            the store.
+     * @param receiver
+     *            username of the receiver, may be null.
+     * @param content
+     *            content of the message.
+     * @param queues
+     *            queues of the message.
+     * @throws Exception
+     *             if the message can't be created.
+     */
+    private static void send(MessageStore store, String receiver,
+            String content, String... queues) throws Exception {
+        StoreTransaction tx = store.begin();
+        int alice = store.fetchClient("alice", tx).getClientId();
+        store.createMessage(alice, receiver, Arrays.asList(queues), 0,
+                (short) 1, content, tx);
+        tx.commit();
+        tx.close();
+    }
+
+    /**
+     * Read the contents of the messages in a queue, as seen by bob.
+     *
+     * @param queue
+     *            name of the queue.
+     * @return the contents, newest first.
+     * @throws Exception
+     *             if the store fails.
+     */
+    private List<String> contents(String queue) throws Exception {
+        StoreTransaction tx = store.begin();
+        int bob = store.fetchClient("bob", tx).getClientId();
+        List<String> result = new ArrayList<String>();
+        for (Message msg : store.retrieveMessages(bob, queue, false, true,
+                Integer.MAX_VALUE, tx))
+            result.add(msg.getContent());
+        tx.close();
+        return result;
+    }
+
+    /**
+     * Pop the newest message from a queue as bob.
+     *
+     * @param queue
+     *            name of the queue.
+     * @return the popped message.
+     * @throws Exception
+     *             if the store fails.
+     */
+    private Message pop(String queue) throws Exception {
+        StoreTransaction tx = store.begin();
+        int bob = store.fetchClient("bob", tx).getClientId();
+        List<Message> popped = store.dequeueMessages(bob, queue, false, true,
+                1, tx);
+        tx.commit();
+        tx.close();
+        assertEquals(1, popped.size());
+        return popped.get(0);
+    }
+
+    /**
+     * Test that the clients, queues and messages committed are back after a
+     * restart, and the work rolled back is not.
+     *
+     * @throws Exception
+     *             if the store fails.
+     */
+    @Test
+    public void testRecovery() throws Exception {
+        send(store, "bob", "for bob", "q1", "q2");
+        send(store, null, "anyone", "q1");
+
+        StoreTransaction tx = store.begin();
+        store.createQueue("q3", tx);
+        store.changeClientStatus("bob", false, tx);
+        tx.commit();
+        store.createQueue("lost", tx);
+        store.createMessage(store.fetchClient("alice", tx).getClientId(),
+                null, Arrays.asList("q1"), 0, (short) 1, "lost", tx);
+        tx.rollback();
+        store.deleteQueue("q3", tx);
+        tx.commit();
+        tx.close();
+
+        restart();
+        assertEquals(Arrays.asList("anyone", "for bob"), contents("q1"));
+        assertEquals(Arrays.asList("for bob"), contents("q2"));
+        tx = store.begin();
+        Client bob = store.fetchClient("bob", tx);
+        assertNotNull(bob);
+        assertFalse(bob.isClientOnline());
+        assertNull(store.fetchClient("carol", tx));
+        assertTrue(store.retrieveMessages(bob.getClientId(), "q3", false,
+                true, 10, tx).isEmpty());
+        store.createQueue("q3", tx);
+        int carol = store.createClient("carol", true, tx);
+        tx.commit();
+        tx.close();
+        assertTrue(carol > bob.getClientId());
+
+        send(store, null, "after restart", "q1");
+        assertEquals(Arrays.asList("after restart", "anyone", "for bob"),
+                contents("q1"));
+    }
+
+    /**
+     * Test that the pops are kept in the log and a popped message is only
+     * removed from its queue.
+     *
+     * @throws Exception
+     *             if the store fails.
+     */
+    @Test
+    public void testTombstones() throws Exception {
+        send(store, null, "both", "q1", "q2");
+        send(store, null, "second", "q1");
+        assertEquals("second", pop("q1").getContent());
+        assertEquals("both", pop("q1").getContent());
+
+        restart();
+        assertTrue(contents("q1").isEmpty());
+        assertEquals(Arrays.asList("both"), contents("q2"));
+        assertEquals("both", pop("q2").getContent());
+
+        restart();
+        assertTrue(contents("q2").isEmpty());
+    }
+
+    /**
+     * Test that a frame torn by a crash is dropped with the frames after it.
+     *
+     * @throws Exception
+     *             if the store fails.
+     */
+    @Test
+    public void testTornWrite() throws Exception {
+        send(store, null, "kept", "q1");
+        send(store, null, "torn", "q1");
+        store.close();
+
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        File last = files[files.length - 1];
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        try {
+            // Corrupt the last byte of the body of the last message
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            int end = new String(bytes, "ISO-8859-1").lastIndexOf("torn") + 3;
+            raf.seek(end);
+            raf.write('x');
+        } finally {
+            raf.close();
+        }
+
+        store = open();
+        assertEquals(Arrays.asList("kept"), contents("q1"));
+    }
+
+    /**
+     * Test that compaction drops the segments of popped messages and keeps
+     * the live ones readable, also after a restart.
+     *
+     * @throws Exception
+     *             if the store fails.
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        char[] padding = new char[1024];
+        Arrays.fill(padding, 'x');
+        String body = new String(padding);
+
+        send(store, null, "survivor", "q2");
+        for (int i = 0; i < 200; i++)
+            send(store, null, body + i, "q1");
+        assertTrue(store.getSegmentCount() > 2);
+        for (int i = 199; i >= 0; i--)
+            assertEquals(body + i, pop("q1").getContent());
+
+        int before = store.getSegmentCount();
+        store.compact();
+        assertTrue(store.getSegmentCount() < before);
+        assertEquals(Arrays.asList("survivor"), contents("q2"));
+        assertTrue(contents("q1").isEmpty());
+
+        restart();
+        assertEquals(Arrays.asList("survivor"), contents("q2"));
+        assertTrue(contents("q1").isEmpty());
+        send(store, null, "new", "q1");
+        assertEquals(Arrays.asList("new"), contents("q1"));
+    }
+
+    /**
+     * Test that the transactions committed concurrently with a flush on every
+     * commit are all in the log.
+     *
+     * @throws Exception
+     *             if the store fails.
+     */
+    @Test(timeout = 30000)
+    public void testGroupCommit() throws Exception {
+        store.close();
+        store = new LogMessageStore(directory,
+                LogMessageStore.MIN_SEGMENT_SIZE, true, 0);
+        final int threads = 4;
+        final int perThread = 50;
+        final List<Exception> failures = new ArrayList<Exception>();
+        Thread[] senders = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final String prefix = "t" + i + "-";
+            senders[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++)
+                            send(store, null, prefix + j, "q1");
+                    } catch (Exception e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            senders[i].start();
+        }
+        for (Thread sender : senders)
+            sender.join();
+        assertTrue(failures.isEmpty());
+
+        restart();
+        assertEquals(threads * perThread, contents("q1").size());
+    }
+
+    /**
+     * Test that the commits arriving while a flush is running append their
+     * frames without waiting for it and share a single flush afterwards.
+     *
+     * @throws Exception
+     *             if the store fails.
+     */
+    @Test(timeout = 30000)
+    public void testCommitsShareFlush() throws Exception {
+        store.close();
+        final GatedStore gated = new GatedStore(directory);
+        store = gated;
+        gated.armed = true;
+        final List<Exception> failures = new ArrayList<Exception>();
+        Thread[] senders = new Thread[5];
+        for (int i = 0; i < senders.length; i++) {
+            final String content = "m" + i;
+            senders[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        send(gated, null, content, "q1");
+                    } catch (Exception e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+        }
+        senders[0].start();
+        gated.started.await();
+        for (int i = 1; i < senders.length; i++)
+            senders[i].start();
+        // The others wait for the running flush once their frames are in
+        for (int i = 1; i < senders.length; i++) {
+            while (senders[i].getState() != Thread.State.WAITING)
+                Thread.sleep(1);
+        }
+        gated.released.countDown();
+        for (Thread sender : senders)
+            sender.join();
+        assertTrue(failures.isEmpty());
+        assertEquals(2, gated.getFlushes());
+        gated.armed = false;
+
+        restart();
+        assertEquals(senders.length, contents("q1").size());
+    }
+}
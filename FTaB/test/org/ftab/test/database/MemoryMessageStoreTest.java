@@ -0,0 +1,299 @@
+/**
+ * MemoryMessageStoreTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.ftab.database.Client;
+import org.ftab.database.MemoryMessageStore;
+import org.ftab.database.Message;
+import org.ftab.database.StoreTransaction;
+import org.ftab.database.exceptions.InexistentClientException;
+import org.ftab.database.exceptions.InexistentQueueException;
+import org.ftab.database.exceptions.QueueAlreadyExistsException;
+import org.ftab.database.exceptions.QueueNotEmptyException;
+import org.ftab.database.message.CreateMessage;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the in-memory message store.
+ */
+public class MemoryMessageStoreTest {
+
+    /**
+     * Store under test.
+     */
+    private MemoryMessageStore store;
+
+    /**
+     * Id of the client that sends the messages.
+     */
+    private int alice;
+
+    /**
+     * Id of a client that receives messages.
+     */
+    private int bob;
+
+    /**
+     * Id of another client that receives messages.
+     */
+    private int carol;
+
+    /**
+     * Create a store with three clients and two queues.
+     *
+     * @throws Exception
+     *             if the store can't be populated.
+     */
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryMessageStore();
+        StoreTransaction tx = store.begin();
+        alice = store.createClient("alice", true, tx);
+        bob = store.createClient("bob", true, tx);
+        carol = store.createClient("carol", true, tx);
+        store.createQueue("q1", tx);
+        store.createQueue("q2", tx);
+        tx.commit();
+        tx.close();
+    }
+
+    /**
+     * Send a message and commit it.
+     *
+     * @param receiver
+     *            username of the receiver, may be null.
+     * @param priority
+     *            priority of the message.
+     * @param content
+     *            content of the message.
+     * @param queues
+     *            queues of the message.
+     * @throws Exception
+     *             if the message can't be created.
+     */
+    private void send(String receiver, int priority, String content,
+            String... queues) throws Exception {
+        StoreTransaction tx = store.begin();
+        store.createMessage(alice, receiver, Arrays.asList(queues), 0,
+                (short) priority, content, tx);
+        tx.commit();
+        tx.close();
+    }
+
+    /**
+     * Get the contents of a list of messages.
+     *
+     * @param msgs
+     *            the messages.
+     * @return their contents in the same order.
+     */
+    private static List<String> contents(List<Message> msgs) {
+        List<String> result = new ArrayList<String>();
+        for (Message msg : msgs)
+            result.add(msg.getContent());
+        return result;
+    }
+
+    /**
+     * Test that the messages are ordered by priority or by time, newest first
+     * as in the database.
+     *
+     * @throws Exception
+     *             if the store fails.
+     */
+    @Test
+    public void testOrdering() throws Exception {
+        send(null, 5, "low-old", "q1");
+        send(null, 9, "high", "q1");
+        send(null, 5, "low-new", "q1");
+
+        StoreTransaction tx = store.begin();
+        assertEquals(Arrays.asList("high", "low-new", "low-old"),
+                contents(store.retrieveMessages(bob, "q1", true, true, 10, tx)));
+        assertEquals(Arrays.asList("high", "low-new"),
+                contents(store.retrieveMessages(bob, "q1", false, true, 2, tx)));
+        assertEquals(Arrays.asList("high", "low-new", "low-old"),
+                contents(store.retrieveMessages(bob, "alice", true, false,
+                        10, tx)));
+        tx.close();
+    }
+
+    /**
+     * Test that a receiver only gets the messages addressed to it or to any
+     * client, and the queues where it has messages.
+     *
+     * @throws Exception
+     *             if the store fails.
+     */
+    @Test
+    public void testReceiverFilter() throws Exception {
+        send(null, 1, "anyone", "q1");
+        send("bob", 2, "for bob", "q1", "q2");
+        send("carol", 3, "for carol", "q2");
+
+        StoreTransaction tx = store.begin();
+        assertEquals(Arrays.asList("for bob", "anyone"),
+                contents(store.retrieveMessages(bob, "q1", true, true, 10, tx)));
+        assertEquals(Arrays.asList("anyone"),
+                contents(store.retrieveMessages(carol, "q1", true, true, 10,
+                        tx)));
+        List<String> queues = store.getQueuesWithMessages(bob, tx);
+        Collections.sort(queues);
+        assertEquals(Arrays.asList("q1", "q2"), queues);
+        assertEquals(Arrays.asList("q2"),
+                store.getQueuesWithMessages(carol, tx));
+        assertTrue(store.getQueuesWithMessages(alice, tx).isEmpty());
+        assertTrue(store.retrieveMessages(bob, "none", true, true, 10, tx)
+                .isEmpty());
+        tx.close();
+    }
+
+    /**
+     * Test that a pop removes the message from a single queue when it
+     * commits and leaves it when it rolls back.
+     *
+     * @throws Exception
+     *             if the store fails.
+     */
+    @Test
+    public void testDequeue() throws Exception {
+        send(null, 1, "both", "q1", "q2");
+
+        StoreTransaction first = store.begin();
+        List<Message> popped = store.dequeueMessages(bob, "q1", true, true,
+                10, first);
+        assertEquals(1, popped.size());
+        assertEquals("q1", popped.get(0).getQueueName());
+
+        // Claimed messages are skipped by the other pops
+        StoreTransaction second = store.begin();
+        assertTrue(store.dequeueMessages(carol, "q1", true, true, 10, second)
+                .isEmpty());
+        second.close();
+
+        first.rollback();
+        StoreTransaction third = store.begin();
+        assertEquals(1, store.dequeueMessages(carol, "q1", true, true, 10,
+                third).size());
+        third.commit();
+        third.close();
+        first.close();
+
+        StoreTransaction tx = store.begin();
+        assertTrue(store.retrieveMessages(bob, "q1", true, true, 10, tx)
+                .isEmpty());
+        assertEquals(Arrays.asList("both"),
+                contents(store.retrieveMessages(bob, "q2", true, true, 10, tx)));
+        tx.close();
+    }
+
+    /**
+     * Test that the messages are visible only once committed and that a
+     * batch with an unknown receiver creates nothing.
+     *
+     * @throws Exception
+     *             if the store fails.
+     */
+    @Test
+    public void testVisibility() throws Exception {
+        StoreTransaction writer = store.begin();
+        store.createMessage(alice, null, Arrays.asList("q1"), 0, (short) 1,
+                "pending", writer);
+        StoreTransaction reader = store.begin();
+        assertTrue(store.retrieveMessages(bob, "q1", true, true, 10, reader)
+                .isEmpty());
+        writer.rollback();
+        writer.close();
+        assertTrue(store.retrieveMessages(bob, "q1", true, true, 10, reader)
+                .isEmpty());
+
+        List<CreateMessage.BatchEntry> batch = new ArrayList<CreateMessage.BatchEntry>();
+        batch.add(new CreateMessage.BatchEntry(null, Arrays.asList("q1"), 0,
+                (short) 1, "one"));
+        batch.add(new CreateMessage.BatchEntry("dave", Arrays.asList("q1"),
+                0, (short) 1, "two"));
+        try {
+            store.createMessages(alice, batch, writer);
+            fail("The receiver doesn't exist.");
+        } catch (InexistentClientException e) {
+            writer.rollback();
+        }
+        assertTrue(store.retrieveMessages(bob, "q1", true, true, 10, reader)
+                .isEmpty());
+        reader.close();
+    }
+
+    /**
+     * Test the creation and deletion of queues and the status of clients.
+     *
+     * @throws Exception
+     *             if the store fails.
+     */
+    @Test
+    public void testQueuesAndClients() throws Exception {
+        StoreTransaction tx = store.begin();
+        try {
+            store.createQueue("q1", tx);
+            fail("The queue exists already.");
+        } catch (QueueAlreadyExistsException e) {
+        }
+        try {
+            store.deleteQueue("none", tx);
+            fail("The queue doesn't exist.");
+        } catch (InexistentQueueException e) {
+        }
+        tx.close();
+
+        send(null, 1, "content", "q1");
+        tx = store.begin();
+        try {
+            store.deleteQueue("q1", tx);
+            fail("The queue is not empty.");
+        } catch (QueueNotEmptyException e) {
+        }
+        store.deleteQueue("q2", tx);
+        tx.rollback();
+        store.dequeueMessages(bob, "q1", true, true, 1, tx);
+        store.deleteQueue("q1", tx);
+        store.deleteQueue("q2", tx);
+        tx.commit();
+        tx.close();
+        try {
+            send(null, 1, "content", "q2");
+            fail("The queue was deleted.");
+        } catch (InexistentQueueException e) {
+        }
+
+        tx = store.begin();
+        store.changeClientStatus("bob", false, tx);
+        tx.rollback();
+        assertTrue(store.fetchClient("bob", tx).isClientOnline());
+        store.changeClientStatus("bob", false, tx);
+        tx.commit();
+        Client client = store.fetchClient("bob", tx);
+        assertFalse(client.isClientOnline());
+        assertEquals(bob, client.getClientId());
+        assertNull(store.fetchClient("dave", tx));
+
+        store.changeClientsStatus(Arrays.asList(alice, carol, -5), false, tx);
+        tx.commit();
+        assertFalse(store.fetchClient("alice", tx).isClientOnline());
+        assertFalse(store.fetchClient("carol", tx).isClientOnline());
+        tx.close();
+    }
+}
@@ -13,16 +13,20 @@ import static org.junit.Assert.fail;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.ftab.database.Message;
+import org.ftab.database.MetadataCache;
 import org.ftab.database.client.CreateClient;
 import org.ftab.database.exceptions.InexistentClientException;
 import org.ftab.database.exceptions.InexistentQueueException;
 import org.ftab.database.message.CreateMessage;
 import org.ftab.database.message.DeleteMessage;
+import org.ftab.database.message.DequeueMessage;
 import org.ftab.database.message.GetAllMessages;
 import org.ftab.database.message.RetrieveMessage;
 import org.ftab.database.queue.CreateQueue;
+import org.ftab.database.queue.DeleteQueue;
 import org.ftab.quality.server.ServerInit;
 import org.ftab.server.DBConnectionDispatcher;
 import org.junit.After;
@@ -335,4 +339,207 @@ public class MessageTest {
                 conn.close();
         }
     }
+
+    /**
+     * Tests that popping a message returns the top message and removes it only
+     * from the queue it was popped from.
+     * 
+     * @throws SQLException
+     *             if the queries can't be executed.
+     */
+    @Test
+    public void testDequeueMessages() throws SQLException {
+        Connection conn = null;
+        try {
+            stuffDatabase(2, 2);
+            conn = source.retrieveDatabaseConnection();
+            conn.setAutoCommit(false);
+
+            // Access control applies to pops as well.
+            CreateMessage.execute(1, "Client#2", "Queue#1", (short) 0,
+                    (short) 5, "Not for you", conn);
+            Message result = DequeueMessage.execute(1, "Queue#1", true, true,
+                    conn);
+            assertNull(result);
+            result = DequeueMessage.execute(2, "Queue#1", true, true, conn);
+            assertEquals(result.getContent(), "Not for you");
+            assertEquals(GetAllMessages.execute(conn).size(), 0);
+
+            // A message in two queues survives until popped from both.
+            ArrayList<String> queues = new ArrayList<String>();
+            queues.add("Queue#1");
+            queues.add("Queue#2");
+            CreateMessage.execute(1, queues, (short) 0, (short) 1, "Shared",
+                    conn);
+            result = DequeueMessage.execute(2, "Queue#1", false, true, conn);
+            assertEquals(result.getContent(), "Shared");
+            assertEquals(result.getQueueName(), "Queue#1");
+            ArrayList<Message> remaining = GetAllMessages.execute(conn);
+            assertEquals(remaining.size(), 1);
+            assertEquals(remaining.get(0).getQueueId(), 2);
+            result = DequeueMessage.execute(2, "Client#1", true, false, conn);
+            assertEquals(result.getContent(), "Shared");
+            assertEquals(GetAllMessages.execute(conn).size(), 0);
+            assertNull(DequeueMessage.execute(2, "Queue#2", true, true, conn));
+            conn.commit();
+        } catch (Exception ex) {
+            if (conn != null)
+                conn.rollback();
+            fail("Got an exception while testing message dequeue.");
+        } finally {
+            if (conn != null)
+                conn.close();
+        }
+    }
+
+    /**
+     * Tests that a batch of messages is created in order and that a batch
+     * with an inexistent queue creates none of its messages.
+     * 
+     * @throws SQLException
+     *             if the queries can't be executed.
+     */
+    @Test
+    public void testCreateBatch() throws SQLException {
+        Connection conn = null;
+        try {
+            stuffDatabase(2, 2);
+            conn = source.retrieveDatabaseConnection();
+            conn.setAutoCommit(false);
+            ArrayList<CreateMessage.BatchEntry> batch = new ArrayList<CreateMessage.BatchEntry>();
+            batch.add(new CreateMessage.BatchEntry(null,
+                    Arrays.asList("Queue#1", "Queue#2"), 0, (short) 3,
+                    "Batch msg 1"));
+            batch.add(new CreateMessage.BatchEntry("Client#2",
+                    Arrays.asList("Queue#2"), 1, (short) 7, "Batch msg 2"));
+            CreateMessage.executeBatch(1, batch, conn);
+
+            ArrayList<Message> allMessages = GetAllMessages.execute(conn);
+            assertEquals(allMessages.size(), 3);
+            assertEquals(allMessages.get(0).getContent(), "Batch msg 1");
+            assertEquals(allMessages.get(1).getContent(), "Batch msg 1");
+            assertEquals(allMessages.get(2).getContent(), "Batch msg 2");
+            assertEquals(allMessages.get(2).getReceiver(), "Client#2");
+            conn.commit();
+
+            batch.add(new CreateMessage.BatchEntry(null,
+                    Arrays.asList("Queue#-1"), 0, (short) 1, "FAIL"));
+            try {
+                CreateMessage.executeBatch(1, batch, conn);
+                fail("Creating a batch with inexistent queue didn't result in an exception");
+            } catch (InexistentQueueException iqex) {
+                // Success
+                conn.rollback();
+            }
+            assertEquals(GetAllMessages.execute(conn).size(), 3);
+            conn.commit();
+        } catch (Exception ex) {
+            if (conn != null)
+                conn.rollback();
+            fail("Got an exception while testing batch creation.");
+        } finally {
+            if (conn != null)
+                conn.close();
+        }
+    }
+
+    /**
+     * Tests that up to a given number of messages are peeked and popped in
+     * order, and that a message popped from all its queues at once is deleted.
+     * 
+     * @throws SQLException
+     *             if the queries can't be executed.
+     */
+    @Test
+    public void testRetrieveAndDequeueSeveral() throws SQLException {
+        Connection conn = null;
+        try {
+            stuffDatabase(2, 2);
+            conn = source.retrieveDatabaseConnection();
+            conn.setAutoCommit(false);
+            for (short prio = 1; prio <= 5; prio++) {
+                CreateMessage.execute(1, "Queue#1", (short) 0, prio,
+                        "Msg " + prio, conn);
+            }
+            ArrayList<String> queues = new ArrayList<String>();
+            queues.add("Queue#1");
+            queues.add("Queue#2");
+            CreateMessage.execute(2, queues, (short) 0, (short) 1, "Shared",
+                    conn);
+
+            ArrayList<Message> result = RetrieveMessage.execute(2, "Queue#1",
+                    true, true, 3, conn);
+            assertEquals(result.size(), 3);
+            assertEquals(result.get(0).getContent(), "Msg 5");
+            assertEquals(result.get(2).getContent(), "Msg 3");
+
+            result = DequeueMessage.execute(2, "Queue#1", true, true, 4, conn);
+            assertEquals(result.size(), 4);
+            assertEquals(result.get(0).getContent(), "Msg 5");
+            assertEquals(result.get(3).getContent(), "Msg 2");
+            assertEquals(GetAllMessages.execute(conn).size(), 3);
+
+            // Both copies of the shared message are popped by sender.
+            result = DequeueMessage.execute(1, "Client#2", true, false, 10,
+                    conn);
+            assertEquals(result.size(), 2);
+            assertEquals(result.get(0).getContent(), "Shared");
+            assertEquals(result.get(1).getContent(), "Shared");
+            ArrayList<Message> remaining = GetAllMessages.execute(conn);
+            assertEquals(remaining.size(), 1);
+            assertEquals(remaining.get(0).getContent(), "Msg 1");
+            conn.commit();
+        } catch (Exception ex) {
+            if (conn != null)
+                conn.rollback();
+            fail("Got an exception while testing retrieval of several messages.");
+        } finally {
+            if (conn != null)
+                conn.close();
+        }
+    }
+
+    /**
+     * Tests that a queue deleted and created again through another cache,
+     * like another server sharing the database would, is found by its new id
+     * once the announcement of the change invalidates the old one.
+     * 
+     * @throws SQLException
+     *             if the queries can't be executed.
+     */
+    @Test
+    public void testQueueRecreatedElsewhere() throws SQLException {
+        Connection conn = null;
+        try {
+            stuffDatabase(1, 2);
+            MetadataCache local = new MetadataCache();
+            MetadataCache other = new MetadataCache();
+            conn = source.retrieveDatabaseConnection();
+            conn.setAutoCommit(false);
+            assertEquals(RetrieveMessage.execute(2, "Queue#1", true, true, 10,
+                    local, conn).size(), 0);
+
+            DeleteQueue.execute("Queue#1", other, conn);
+            CreateQueue.execute("Queue#1", other, conn);
+            CreateMessage.execute(1, "Queue#1", (short) 0, (short) 1,
+                    "Recreated", conn);
+            // What the notification listener does on the announcement
+            local.invalidateQueue("Queue#1");
+
+            ArrayList<Message> result = RetrieveMessage.execute(2, "Queue#1",
+                    true, true, 10, local, conn);
+            assertEquals(result.size(), 1);
+            assertEquals(result.get(0).getContent(), "Recreated");
+            assertEquals(DequeueMessage.execute(2, "Queue#1", true, true, 10,
+                    local, conn).size(), 1);
+            conn.commit();
+        } catch (Exception ex) {
+            if (conn != null)
+                conn.rollback();
+            fail("Got an exception while testing a recreated queue.");
+        } finally {
+            if (conn != null)
+                conn.close();
+        }
+    }
 }
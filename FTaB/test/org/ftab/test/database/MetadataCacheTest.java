@@ -0,0 +1,210 @@
+/**
+ * MetadataCacheTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.ftab.database.MetadataCache;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the metadata cache, with a fake connection that answers the
+ * lookups of queue ids so no database is needed.
+ */
+public class MetadataCacheTest {
+
+    /**
+     * Queue ids in the fake database by name.
+     */
+    private HashMap<String, Long> queues;
+
+    /**
+     * Number of queries executed by the fake connection.
+     */
+    private int queries;
+
+    /**
+     * Fake connection that looks up the names of the array parameter.
+     */
+    private Connection connection;
+
+    /**
+     * Create the fake database with three queues.
+     */
+    @Before
+    public void setUp() {
+        queues = new HashMap<String, Long>();
+        queues.put("A", 1L);
+        queues.put("B", 2L);
+        queues.put("C", 3L);
+        queries = 0;
+        connection = (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("createArrayOf"))
+                            return fakeArray((Object[]) args[1]);
+                        if (name.equals("prepareStatement"))
+                            return fakeStatement();
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Create a fake SQL array.
+     *
+     * @param elements
+     *            elements of the array.
+     * @return the array.
+     */
+    private Array fakeArray(final Object[] elements) {
+        return (Array) Proxy.newProxyInstance(Array.class.getClassLoader(),
+                new Class<?>[] { Array.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getArray"))
+                            return elements;
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Create a fake statement that returns the name and id of the queues in
+     * its array parameter.
+     *
+     * @return the statement.
+     */
+    private PreparedStatement fakeStatement() {
+        final Object[][] parameter = new Object[1][];
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Exception {
+                        String name = method.getName();
+                        if (name.equals("setArray")) {
+                            parameter[0] = (Object[]) ((Array) args[1])
+                                    .getArray();
+                        } else if (name.equals("executeQuery")) {
+                            ++queries;
+                            ArrayList<Object[]> rows = new ArrayList<Object[]>();
+                            for (Object queue : parameter[0]) {
+                                if (queues.containsKey(queue))
+                                    rows.add(new Object[] { queue,
+                                            queues.get(queue) });
+                            }
+                            return fakeResult(rows.iterator());
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Create a fake result with (name, id) rows.
+     *
+     * @param rows
+     *            rows of the result.
+     * @return the result.
+     */
+    private ResultSet fakeResult(final Iterator<Object[]> rows) {
+        final Object[][] current = new Object[1][];
+        return (ResultSet) Proxy.newProxyInstance(
+                ResultSet.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("next")) {
+                            current[0] = rows.hasNext() ? rows.next() : null;
+                            return current[0] != null;
+                        } else if (name.equals("getString")) {
+                            return current[0][(Integer) args[0] - 1];
+                        } else if (name.equals("getLong")) {
+                            return current[0][(Integer) args[0] - 1];
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Test that lookups hit the database only for the missing names, and that
+     * inexistent names are not cached.
+     *
+     * @throws Exception
+     *             if the lookup fails.
+     */
+    @Test
+    public void testLookups() throws Exception {
+        MetadataCache cache = new MetadataCache();
+        assertEquals(1, cache.getQueueId("A", connection));
+        assertEquals(1, queries);
+        assertEquals(1, cache.getQueueId("A", connection));
+        assertEquals(1, queries);
+
+        Map<String, Long> ids = cache.getQueueIds(
+                Arrays.asList("A", "B", "D"), connection);
+        assertEquals(2, queries);
+        assertEquals(2, ids.size());
+        assertEquals(Long.valueOf(2), ids.get("B"));
+        assertFalse(ids.containsKey("D"));
+        assertEquals(-1, cache.getQueueId("D", connection));
+        assertEquals(3, queries);
+
+        assertEquals("B", cache.getQueueNames(Arrays.asList(2L), connection)
+                .get(2L));
+        assertEquals(3, queries);
+        assertEquals(3, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+    /**
+     * Test that an invalidated queue is looked up again with its new id.
+     *
+     * @throws Exception
+     *             if the lookup fails.
+     */
+    @Test
+    public void testInvalidation() throws Exception {
+        MetadataCache cache = new MetadataCache();
+        assertEquals(3, cache.getQueueId("C", connection));
+        queues.put("C", 7L);
+        assertEquals(3, cache.getQueueId("C", connection));
+
+        cache.invalidateQueue("C");
+        assertEquals(7, cache.getQueueId("C", connection));
+        assertEquals("C", cache.getQueueNames(Arrays.asList(7L), connection)
+                .get(7L));
+        assertFalse(cache.getQueueNames(Arrays.asList(3L), connection)
+                .containsKey(3L));
+        assertEquals(3, queries);
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * AdmissionQueueTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.SocketChannel;
+
+import org.ftab.server.AdmissionQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the waiting room of the connections.
+ */
+public class AdmissionQueueTest {
+
+    /**
+     * Unconnected channels used as waiting connections.
+     */
+    private SocketChannel[] channels;
+
+    /**
+     * Open the channels.
+     *
+     * @throws Exception
+     *             if a channel can't be opened.
+     */
+    @Before
+    public void setUp() throws Exception {
+        channels = new SocketChannel[3];
+        for (int i = 0; i < channels.length; i++)
+            channels[i] = SocketChannel.open();
+    }
+
+    /**
+     * Close the channels.
+     *
+     * @throws Exception
+     *             if a channel can't be closed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        for (SocketChannel channel : channels)
+            channel.close();
+    }
+
+    /**
+     * Test that the connections are admitted in arrival order and the ones
+     * that don't fit are refused.
+     */
+    @Test
+    public void testOrderAndCapacity() {
+        AdmissionQueue queue = new AdmissionQueue(2, 1000);
+        assertTrue(queue.offer(channels[0], null, 0));
+        assertTrue(queue.offer(channels[1], null, 10));
+        assertFalse(queue.offer(channels[2], null, 20));
+        assertEquals(2, queue.size());
+
+        assertSame(channels[0], queue.poll().getChannel());
+        assertTrue(queue.offer(channels[2], null, 30));
+        assertSame(channels[1], queue.poll().getChannel());
+        assertSame(channels[2], queue.poll().getChannel());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+
+        AdmissionQueue closed = new AdmissionQueue(0, 1000);
+        assertFalse(closed.offer(channels[0], null, 0));
+    }
+
+    /**
+     * Test that the connections are taken out when their wait expires, and
+     * the time to the next expiration.
+     */
+    @Test
+    public void testExpiration() {
+        AdmissionQueue queue = new AdmissionQueue(10, 100);
+        assertEquals(0, queue.timeToNextExpiration(0));
+        queue.offer(channels[0], null, 0);
+        queue.offer(channels[1], null, 50);
+
+        assertEquals(60, queue.timeToNextExpiration(40));
+        assertNull(queue.pollExpired(99));
+        assertSame(channels[0], queue.pollExpired(100).getChannel());
+        assertNull(queue.pollExpired(100));
+        assertEquals(1, queue.timeToNextExpiration(200));
+        assertSame(channels[1], queue.pollExpired(200).getChannel());
+        assertTrue(queue.isEmpty());
+        assertEquals(100, queue.getRetryAfter());
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * AsyncLoggingTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.ftab.logging.AsyncHandler;
+import org.ftab.logging.SystemEvent;
+import org.ftab.logging.server.ServerLogRecord;
+import org.junit.Test;
+
+/**
+ * Unit tests for the asynchronous log handler and the lazy formatting of the
+ * server records.
+ */
+public class AsyncLoggingTest {
+
+    /**
+     * Handler that keeps the messages it receives and counts the flushes,
+     * optionally blocking until released.
+     */
+    private static class CollectingHandler extends Handler {
+        private final List<String> messages = Collections
+                .synchronizedList(new ArrayList<String>());
+        private final CountDownLatch release;
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private volatile int flushes = 0;
+        private volatile boolean closed = false;
+
+        public CollectingHandler(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            messages.add(record.getMessage());
+        }
+
+        @Override
+        public void flush() {
+            ++flushes;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * Test that the records are written in order and everything buffered is
+     * written on close.
+     */
+    @Test
+    public void testOrderAndClose() {
+        CollectingHandler target = new CollectingHandler(new CountDownLatch(0));
+        AsyncHandler handler = new AsyncHandler("test-writer", 1024, target);
+        for (int i = 0; i < 100; ++i)
+            handler.publish(new LogRecord(Level.INFO, Integer.toString(i)));
+        handler.close();
+
+        assertTrue(target.closed);
+        assertEquals(100, target.messages.size());
+        for (int i = 0; i < 100; ++i)
+            assertEquals(Integer.toString(i), target.messages.get(i));
+        assertTrue(target.flushes >= 1);
+        assertEquals(0, handler.getDroppedRecords());
+    }
+
+    /**
+     * Test that records below WARNING are dropped and reported when the buffer
+     * is full, while warnings are kept.
+     *
+     * @throws Exception
+     *             if the test is interrupted.
+     */
+    @Test
+    public void testDropWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CollectingHandler target = new CollectingHandler(release);
+        AsyncHandler handler = new AsyncHandler("test-writer", 4, target);
+
+        // The writer blocks on the first record, the rest fill the buffer
+        handler.publish(new LogRecord(Level.INFO, "first"));
+        target.entered.await();
+        for (int i = 0; i < 10; ++i)
+            handler.publish(new LogRecord(Level.INFO, "info"));
+        assertEquals(6, handler.getDroppedRecords());
+
+        release.countDown();
+        handler.publish(new LogRecord(Level.WARNING, "warning"));
+        handler.close();
+
+        assertTrue(target.messages.contains("warning"));
+        assertTrue(target.messages.contains(
+                "Dropped 6 log records because the log buffer was full."));
+        assertEquals(7, target.messages.size());
+    }
+
+    /**
+     * Test that records filtered out by the level of the targets don't take
+     * space in the buffer.
+     */
+    @Test
+    public void testUnwantedRecordsSkipped() {
+        CollectingHandler target = new CollectingHandler(new CountDownLatch(0));
+        target.setLevel(Level.WARNING);
+        AsyncHandler handler = new AsyncHandler("test-writer", 1, target);
+        for (int i = 0; i < 10; ++i)
+            handler.publish(new LogRecord(Level.INFO, "info"));
+        handler.close();
+
+        assertEquals(0, target.messages.size());
+        assertEquals(0, handler.getDroppedRecords());
+    }
+
+    /**
+     * Test that the arguments of a server record are formatted when the
+     * message is requested.
+     */
+    @Test
+    public void testLazyArguments() {
+        final StringBuilder calls = new StringBuilder();
+        Object argument = new Object() {
+            @Override
+            public String toString() {
+                calls.append("x");
+                return "lazy";
+            }
+        };
+        ServerLogRecord record = new ServerLogRecord(Level.INFO, "unit",
+                SystemEvent.SYSTEM_GENERIC, "%s and %d").withArguments(
+                argument, 5);
+        assertEquals(0, calls.length());
+        assertTrue(record.getMessage().endsWith("unit | lazy and 5"));
+        record.getMessage();
+        assertEquals(1, calls.length());
+    }
+}
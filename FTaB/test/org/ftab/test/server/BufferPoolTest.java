@@ -0,0 +1,73 @@
+/**
+ * BufferPoolTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.ftab.server.BufferPool;
+import org.junit.Test;
+
+/**
+ * Unit tests for the pool of direct buffers of the workers.
+ */
+public class BufferPoolTest {
+
+    /**
+     * Test that the buffers are rounded up to their size class and reused
+     * once released.
+     */
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_POOLED_BYTES);
+        ByteBuffer small = pool.acquire(10);
+        assertTrue(small.isDirect());
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, small.capacity());
+        assertEquals(0, small.position());
+        assertEquals(10, small.limit());
+
+        ByteBuffer medium = pool.acquire(1025);
+        assertEquals(2048, medium.capacity());
+        assertEquals(2, pool.getAllocations());
+
+        small.put((byte) 1);
+        pool.release(small);
+        pool.release(medium);
+        assertEquals(BufferPool.MIN_BUFFER_SIZE + 2048, pool.getPooledBytes());
+
+        ByteBuffer reused = pool.acquire(BufferPool.MIN_BUFFER_SIZE);
+        assertSame(small, reused);
+        assertEquals(0, reused.position());
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, reused.limit());
+        assertSame(medium, pool.acquire(2048));
+        assertEquals(2, pool.getAllocations());
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    /**
+     * Test that the oversized and foreign buffers are not pooled, and that
+     * the idle buffers are bounded.
+     */
+    @Test
+    public void testLimits() {
+        BufferPool pool = new BufferPool(BufferPool.MIN_BUFFER_SIZE);
+        ByteBuffer large = pool.acquire(BufferPool.MAX_BUFFER_SIZE + 1);
+        assertFalse(large.isDirect());
+        pool.release(large);
+        pool.release(ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE));
+        assertEquals(0, pool.getPooledBytes());
+
+        ByteBuffer first = pool.acquire(1);
+        ByteBuffer second = pool.acquire(1);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.getPooledBytes());
+    }
+}
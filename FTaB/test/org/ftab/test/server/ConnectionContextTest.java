@@ -0,0 +1,105 @@
+/**
+ * ConnectionContextTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.ftab.server.ClientConnection;
+import org.ftab.server.ConnectionContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the connection context, over a loopback connection.
+ */
+public class ConnectionContextTest {
+
+    /**
+     * Listening socket.
+     */
+    private ServerSocketChannel ssc;
+
+    /**
+     * Client end of the connection.
+     */
+    private SocketChannel clientSocket;
+
+    /**
+     * Server end of the connection.
+     */
+    private SocketChannel acceptedSocket;
+
+    /**
+     * Open a loopback connection.
+     *
+     * @throws IOException
+     *             if the sockets can't be opened.
+     */
+    @Before
+    public void setUp() throws IOException {
+        ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        clientSocket = SocketChannel.open(new InetSocketAddress("127.0.0.1",
+                ssc.socket().getLocalPort()));
+        acceptedSocket = ssc.accept();
+    }
+
+    /**
+     * Close the sockets.
+     *
+     * @throws IOException
+     *             if the sockets can't be closed.
+     */
+    @After
+    public void tearDown() throws IOException {
+        acceptedSocket.close();
+        clientSocket.close();
+        ssc.close();
+    }
+
+    /**
+     * Test that the address is numeric and the ids are unique.
+     */
+    @Test
+    public void testAddressAndId() {
+        ConnectionContext first = new ConnectionContext(acceptedSocket);
+        ConnectionContext second = new ConnectionContext(acceptedSocket);
+        assertEquals("[127.0.0.1:" + clientSocket.socket().getLocalPort()
+                + "]", first.getAddress());
+        assertTrue(second.getId() != first.getId());
+        assertTrue(first.toString().contains(first.getAddress()));
+    }
+
+    /**
+     * Test that a connection created without context creates one on the first
+     * read and counts the bytes read.
+     *
+     * @throws Exception
+     *             if the read fails.
+     */
+    @Test
+    public void testReadCounters() throws Exception {
+        ClientConnection cc = new ClientConnection(null);
+        clientSocket.write(ByteBuffer.wrap(new byte[] { 0, 0 }));
+        acceptedSocket.configureBlocking(true);
+        assertFalse(cc.processRead(acceptedSocket));
+
+        ConnectionContext context = cc.getContext();
+        assertNotNull(context);
+        assertEquals(2, context.getBytesRead());
+        assertEquals(0, context.getRequests());
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * ConnectionPoolTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.ftab.server.DBConnectionDispatcher;
+import org.ftab.server.LatencyHistogram;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the waiting, eviction and statistics of the connection pool,
+ * with fake connections so no database is needed.
+ */
+public class ConnectionPoolTest {
+
+    /**
+     * Pool that opens fake connections.
+     */
+    private static class FakePool extends DBConnectionDispatcher {
+        /**
+         * Number of physical connections opened.
+         */
+        private volatile int opened = 0;
+
+        @Override
+        protected Connection openPhysicalConnection() {
+            ++opened;
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class },
+                    new InvocationHandler() {
+                        private boolean closed = false;
+
+                        @Override
+                        public Object invoke(Object proxy, Method method,
+                                Object[] args) {
+                            String name = method.getName();
+                            if (name.equals("close"))
+                                closed = true;
+                            else if (name.equals("isClosed"))
+                                return closed;
+                            else if (name.equals("getAutoCommit"))
+                                return false;
+                            return null;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Object under test.
+     */
+    private FakePool pool;
+
+    /**
+     * Create a pool of a single connection.
+     */
+    @Before
+    public void setUp() {
+        pool = new FakePool();
+        pool.configureDatabaseConnectionPool("user", "password", "localhost",
+                "test", 1);
+    }
+
+    /**
+     * Close the pool after the tests.
+     */
+    @After
+    public void tearDown() {
+        pool.closePool();
+    }
+
+    /**
+     * Test that a retrieval fails after the acquire timeout when all the
+     * connections are in use, and that the timeout is counted.
+     *
+     * @throws Exception
+     *             if the pool fails.
+     */
+    @Test
+    public void testAcquireTimeout() throws Exception {
+        pool.configurePoolTimeouts(50, 0, 0, 0);
+        Connection held = pool.retrieveDatabaseConnection();
+        long start = System.nanoTime();
+        try {
+            pool.retrieveDatabaseConnection();
+            fail("The retrieval should have timed out.");
+        } catch (SQLException e) {
+            assertTrue(System.nanoTime() - start >= 50000000L);
+        }
+        assertEquals(1, pool.getAcquireTimeouts());
+        assertEquals(0, pool.getWaitingThreads());
+        assertEquals(1, pool.getConnectionsInUse());
+
+        held.close();
+        assertEquals(0, pool.getConnectionsInUse());
+        pool.retrieveDatabaseConnection().close();
+        assertEquals(2, pool.getAcquireLatency().getCount());
+        assertEquals(1, pool.opened);
+    }
+
+    /**
+     * Test that released connections are handed to the waiting threads in
+     * their arrival order.
+     *
+     * @throws Exception
+     *             if the pool fails.
+     */
+    @Test
+    public void testFairHandoff() throws Exception {
+        pool.configurePoolTimeouts(0, 0, 0, 0);
+        final List<Integer> order = Collections
+                .synchronizedList(new LinkedList<Integer>());
+        Connection held = pool.retrieveDatabaseConnection();
+
+        LinkedList<Thread> threads = new LinkedList<Thread>();
+        for (int i = 0; i < 3; ++i) {
+            final int id = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection conn = pool.retrieveDatabaseConnection();
+                        order.add(id);
+                        conn.close();
+                    } catch (SQLException e) {
+                        order.add(-1);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+            while (pool.getWaitingThreads() < i + 1)
+                Thread.sleep(1);
+        }
+
+        held.close();
+        for (Thread thread : threads)
+            thread.join(5000);
+        assertEquals(3, order.size());
+        for (int i = 0; i < 3; ++i)
+            assertEquals(Integer.valueOf(i), order.get(i));
+        assertEquals(1, pool.opened);
+    }
+
+    /**
+     * Test that the maintenance closes the connections idle for too long.
+     *
+     * @throws Exception
+     *             if the pool fails.
+     */
+    @Test
+    public void testIdleEviction() throws Exception {
+        pool.configurePoolTimeouts(0, 10, 0, 0);
+        pool.retrieveDatabaseConnection().close();
+        assertEquals(1, pool.getIdleConnections());
+        Thread.sleep(30);
+        pool.maintain();
+        assertEquals(0, pool.getIdleConnections());
+        assertEquals(0, pool.getOpenConnections());
+
+        pool.retrieveDatabaseConnection().close();
+        assertEquals(2, pool.opened);
+    }
+
+    /**
+     * Test that a connection held longer than the leak threshold is reported
+     * once.
+     *
+     * @throws Exception
+     *             if the pool fails.
+     */
+    @Test
+    public void testLeakDetection() throws Exception {
+        pool.configurePoolTimeouts(0, 0, 0, 10);
+        Connection held = pool.retrieveDatabaseConnection();
+        Thread.sleep(30);
+        pool.maintain();
+        pool.maintain();
+        assertEquals(1, pool.getLeakedConnections());
+        held.close();
+    }
+
+    /**
+     * Test that the leak report carries the stack of the retrieval when the
+     * leak traces are enabled.
+     *
+     * @throws Exception
+     *             if the pool fails.
+     */
+    @Test
+    public void testLeakTraces() throws Exception {
+        final List<LogRecord> records = new LinkedList<LogRecord>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                synchronized (records) {
+                    records.add(record);
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(DBConnectionDispatcher.class
+                .getName());
+        logger.addHandler(handler);
+        try {
+            pool.configurePoolTimeouts(0, 0, 0, 10);
+            pool.setLeakTraces(true);
+            Connection held = pool.retrieveDatabaseConnection();
+            Thread.sleep(30);
+            pool.maintain();
+            held.close();
+        } finally {
+            logger.removeHandler(handler);
+        }
+
+        Throwable trace = null;
+        synchronized (records) {
+            for (LogRecord record : records) {
+                if (record.getThrown() != null)
+                    trace = record.getThrown();
+            }
+        }
+        assertTrue(trace != null);
+        boolean found = false;
+        for (StackTraceElement frame : trace.getStackTrace())
+            found |= frame.getMethodName().equals("testLeakTraces");
+        assertTrue(found);
+    }
+
+    /**
+     * Test the buckets and percentiles of the latency histogram.
+     */
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.99));
+        for (int i = 0; i < 99; ++i)
+            histogram.record(3000);
+        histogram.record(1000000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(99, histogram.getBucketCount(2));
+        assertEquals(4, histogram.getPercentile(0.5));
+        assertEquals(4, histogram.getPercentile(0.99));
+        assertEquals(1024, histogram.getPercentile(1.0));
+        assertEquals(1000000, histogram.getMax());
+    }
+}
@@ -0,0 +1,351 @@
+/**
+ * DatabaseStageDispatchTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.ftab.communication.ProtocolMessage;
+import org.ftab.communication.ProtocolMessage.MessageType;
+import org.ftab.communication.requests.ConnectionRequest;
+import org.ftab.communication.requests.GetQueuesRequest;
+import org.ftab.communication.requests.QueueModificationRequest;
+import org.ftab.communication.requests.SendMessageRequest;
+import org.ftab.communication.requests.SubscriptionRequest;
+import org.ftab.communication.responses.RequestResponse;
+import org.ftab.communication.responses.RequestResponse.Status;
+import org.ftab.database.MemoryMessageStore;
+import org.ftab.database.StoreTransaction;
+import org.ftab.pubenums.Order;
+import org.ftab.server.DatabaseStage;
+import org.ftab.server.MessageNotifier;
+import org.ftab.server.MessagingWorker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the hand-off of the requests of a client to the database
+ * stage: one request in the stage at a time, responses in request order, the
+ * answer to the requests that the stage rejects and the retry of the rejected
+ * subscription fetches and offline marks.
+ */
+public class DatabaseStageDispatchTest {
+
+    /**
+     * Stage that keeps the submitted tasks for the test to run them, and
+     * rejects the submission with the given index.
+     */
+    private static class StubStage extends DatabaseStage {
+        /**
+         * Submitted tasks that were not run yet.
+         */
+        private final LinkedBlockingQueue<Runnable> tasks;
+        /**
+         * Index of the submission to reject, -1 for none.
+         */
+        private final int rejected;
+        /**
+         * Number of submissions so far.
+         */
+        private int submissions;
+
+        /**
+         * Create the stage.
+         *
+         * @param nRejected
+         *            index of the submission to reject, -1 for none.
+         */
+        StubStage(int nRejected) {
+            super(1, 1, "test");
+            tasks = new LinkedBlockingQueue<Runnable>();
+            rejected = nRejected;
+            submissions = 0;
+        }
+
+        @Override
+        public synchronized void submit(Runnable task) {
+            if (submissions++ == rejected)
+                throw new RejectedExecutionException();
+            tasks.add(task);
+        }
+
+        /**
+         * Run the next submitted task, checking that it is the only one.
+         *
+         * @throws InterruptedException
+         *             if interrupted while waiting for the task.
+         */
+        void runNext() throws InterruptedException {
+            Runnable task = tasks.poll(5, TimeUnit.SECONDS);
+            assertNotNull(task);
+            assertTrue(tasks.isEmpty());
+            task.run();
+        }
+    }
+
+    /**
+     * Listening socket of the test.
+     */
+    private ServerSocketChannel listener;
+
+    /**
+     * Client side of the connection.
+     */
+    private SocketChannel client;
+
+    /**
+     * Server side of the connection, registered in the worker.
+     */
+    private SocketChannel accepted;
+
+    /**
+     * Worker under test.
+     */
+    private MessagingWorker worker;
+
+    /**
+     * Thread running the worker.
+     */
+    private Thread workerThread;
+
+    /**
+     * Store of the worker under test.
+     */
+    private MemoryMessageStore store;
+
+    /**
+     * Open the loopback connection.
+     *
+     * @throws Exception
+     *             if the connection can't be made.
+     */
+    @Before
+    public void setUp() throws Exception {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("127.0.0.1", 0));
+        client = SocketChannel.open(listener.getLocalAddress());
+        accepted = listener.accept();
+        accepted.configureBlocking(false);
+    }
+
+    /**
+     * Stop the worker and close the sockets.
+     *
+     * @throws Exception
+     *             if the sockets can't be closed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        if (worker != null) {
+            worker.stopRunning();
+            workerThread.join();
+        }
+        client.close();
+        listener.close();
+    }
+
+    /**
+     * Start a worker with the given stage and the test connection.
+     *
+     * @param stage
+     *            stage of the worker.
+     * @param notifier
+     *            notifier of the worker, or null for none.
+     * @param idleTimeout
+     *            idle and ping timeouts of the worker, 0 to never reap.
+     * @throws Exception
+     *             if the selector can't be opened.
+     */
+    private void startWorker(DatabaseStage stage, MessageNotifier notifier,
+            long idleTimeout) throws Exception {
+        store = new MemoryMessageStore();
+        worker = new MessagingWorker(1, store, stage,
+                ProtocolMessage.PROTOCOL_VERSION, notifier, null, null, "test");
+        worker.configureReaping(idleTimeout, idleTimeout);
+        worker.registerChannel(accepted);
+        workerThread = new Thread(worker);
+        workerThread.start();
+    }
+
+    /**
+     * Send the given requests in a single write.
+     *
+     * @param requests
+     *            requests to send.
+     * @throws Exception
+     *             if the socket can't be written.
+     */
+    private void send(ProtocolMessage... requests) throws Exception {
+        ByteBuffer[] frames = new ByteBuffer[requests.length];
+        for (int i = 0; i < requests.length; i++)
+            frames[i] = ProtocolMessage.toBytes(requests[i]);
+        while (frames[frames.length - 1].hasRemaining())
+            client.write(frames);
+    }
+
+    /**
+     * Read the next response from the client side.
+     *
+     * @return the decoded response.
+     * @throws Exception
+     *             if the socket can't be read or the header is invalid.
+     */
+    private ProtocolMessage receive() throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(ProtocolMessage.HEADER_SIZE);
+        while (header.hasRemaining())
+            assertTrue(client.read(header) >= 0);
+        header.flip();
+        ByteBuffer body = ByteBuffer.allocate(ProtocolMessage
+                .getBodySize(header));
+        while (body.hasRemaining())
+            assertTrue(client.read(body) >= 0);
+        body.flip();
+        return ProtocolMessage.fromBytes(body);
+    }
+
+    /**
+     * Read the next response and check that it is a request response with
+     * the given status.
+     *
+     * @param status
+     *            expected status.
+     * @return the response.
+     * @throws Exception
+     *             if the response can't be read.
+     */
+    private RequestResponse receive(Status status) throws Exception {
+        ProtocolMessage response = receive();
+        assertEquals(MessageType.REQUEST_RESPONSE, response.getMessageType());
+        assertEquals(status, ((RequestResponse) response).getStatus());
+        return (RequestResponse) response;
+    }
+
+    /**
+     * Test that pipelined requests enter the stage one at a time and are
+     * answered in order once their completions reach the worker.
+     *
+     * @throws Exception
+     *             if the connection fails.
+     */
+    @Test(timeout = 10000)
+    public void testResponsesInOrder() throws Exception {
+        StubStage stage = new StubStage(-1);
+        startWorker(stage, null, 0);
+        send(new ConnectionRequest("stage", true),
+                new QueueModificationRequest("first", false),
+                new QueueModificationRequest("second", false),
+                new GetQueuesRequest());
+
+        for (int i = 0; i < 3; i++) {
+            stage.runNext();
+            receive(Status.SUCCESS);
+        }
+        // The queues are empty, so the last request answers with no queue.
+        stage.runNext();
+        receive(Status.NO_QUEUE);
+    }
+
+    /**
+     * Test that a request rejected by the stage is answered with an error and
+     * the next pending request is still carried out.
+     *
+     * @throws Exception
+     *             if the connection fails.
+     */
+    @Test(timeout = 10000)
+    public void testRejectedRequest() throws Exception {
+        StubStage stage = new StubStage(1);
+        startWorker(stage, null, 0);
+        send(new ConnectionRequest("stage", true),
+                new QueueModificationRequest("first", false),
+                new QueueModificationRequest("second", false));
+
+        stage.runNext();
+        receive(Status.SUCCESS);
+        assertEquals("The server is overloaded.", receive(Status.EXCEPTION)
+                .getDescription());
+        stage.runNext();
+        receive(Status.SUCCESS);
+    }
+
+    /**
+     * Test that a subscription fetch rejected by the stage is submitted again
+     * on the timer, so the messages already in the queue are pushed without
+     * waiting for another message or grant.
+     *
+     * @throws Exception
+     *             if the connection fails.
+     */
+    @Test(timeout = 10000)
+    public void testRejectedFetchRetried() throws Exception {
+        // The fetch submitted by the subscription is the fifth submission
+        StubStage stage = new StubStage(4);
+        MessageNotifier notifier = new MessageNotifier("test");
+        try {
+            startWorker(stage, notifier, 0);
+            send(new ConnectionRequest("stage", true),
+                    new QueueModificationRequest("first", false),
+                    new SendMessageRequest("pending", (byte) 1, 0,
+                            Arrays.asList("first")),
+                    new SubscriptionRequest(Arrays.asList("first"),
+                            Order.TIMESTAMP, 1));
+
+            for (int i = 0; i < 4; i++) {
+                stage.runNext();
+                receive(Status.SUCCESS);
+            }
+            stage.runNext();
+            assertEquals(MessageType.PUSHED_MESSAGES, receive()
+                    .getMessageType());
+        } finally {
+            notifier.shutdown();
+        }
+    }
+
+    /**
+     * Test that the offline mark of a reaped client rejected by the stage is
+     * submitted again with the next check of the idle clients instead of
+     * being done by the worker.
+     *
+     * @throws Exception
+     *             if the connection fails.
+     */
+    @Test(timeout = 10000)
+    public void testRejectedOfflineMarkRetried() throws Exception {
+        // The offline mark is the second submission
+        StubStage stage = new StubStage(1);
+        startWorker(stage, null, 100);
+        send(new ConnectionRequest("stage", true));
+        stage.runNext();
+        receive(Status.SUCCESS);
+
+        // The silent client is pinged and reaped
+        assertEquals(MessageType.PING, receive().getMessageType());
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        while (client.read(buffer) >= 0)
+            buffer.clear();
+        StoreTransaction tx = store.begin();
+        assertTrue(store.fetchClient("stage", tx).isClientOnline());
+        tx.close();
+
+        stage.runNext();
+        tx = store.begin();
+        assertFalse(store.fetchClient("stage", tx).isClientOnline());
+        tx.close();
+    }
+}
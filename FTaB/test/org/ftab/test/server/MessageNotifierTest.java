@@ -0,0 +1,120 @@
+/**
+ * MessageNotifierTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ftab.server.MessageNotifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the registry of waiting retrieve requests.
+ */
+public class MessageNotifierTest {
+
+    /**
+     * Object under test.
+     */
+    private MessageNotifier notifier;
+
+    /**
+     * Waiter that counts how many times it was signalled.
+     */
+    private static class CountingWaiter implements Runnable {
+        /**
+         * Number of signals received.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void run() {
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Create the notifier.
+     */
+    @Before
+    public void setUp() {
+        notifier = new MessageNotifier("test");
+    }
+
+    /**
+     * Stop the timer of the notifier.
+     */
+    @After
+    public void tearDown() {
+        notifier.shutdown();
+    }
+
+    /**
+     * Test that a new message signals the waiters of its queues and sender
+     * only once.
+     */
+    @Test
+    public void testMessageCreated() {
+        CountingWaiter queueWaiter = new CountingWaiter();
+        CountingWaiter senderWaiter = new CountingWaiter();
+        CountingWaiter otherWaiter = new CountingWaiter();
+        notifier.register(MessageNotifier.queueKey("queue 1"), queueWaiter);
+        notifier.register(MessageNotifier.senderKey("alice"), senderWaiter);
+        notifier.register(MessageNotifier.queueKey("queue 2"), otherWaiter);
+        assertEquals(3, notifier.getWaiterCount());
+
+        notifier.messageCreated(Arrays.asList("queue 1", "queue 3"), "alice");
+        notifier.messageCreated(Arrays.asList("queue 1"), "alice");
+        assertEquals(1, queueWaiter.count.get());
+        assertEquals(1, senderWaiter.count.get());
+        assertEquals(0, otherWaiter.count.get());
+        assertEquals(1, notifier.getWaiterCount());
+    }
+
+    /**
+     * Test that unregistered waiters are not signalled and that every waiter
+     * can be signalled at once.
+     */
+    @Test
+    public void testUnregisterAndSignalAll() {
+        CountingWaiter first = new CountingWaiter();
+        CountingWaiter second = new CountingWaiter();
+        notifier.register(MessageNotifier.queueKey("queue 1"), first);
+        notifier.register(MessageNotifier.senderKey("bob"), second);
+        notifier.unregister(MessageNotifier.queueKey("queue 1"), first);
+        assertEquals(1, notifier.getWaiterCount());
+
+        notifier.signal(MessageNotifier.queueKey("queue 1"));
+        notifier.signalAll();
+        assertEquals(0, first.count.get());
+        assertEquals(1, second.count.get());
+        assertEquals(0, notifier.getWaiterCount());
+    }
+
+    /**
+     * Test that a scheduled task runs after its delay.
+     * 
+     * @throws InterruptedException
+     *             if interrupted while waiting for the task.
+     */
+    @Test
+    public void testSchedule() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        notifier.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 20);
+        assertEquals(true, latch.await(5, TimeUnit.SECONDS));
+    }
+}
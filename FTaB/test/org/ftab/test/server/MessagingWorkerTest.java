@@ -0,0 +1,366 @@
+/**
+ * MessagingWorkerTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ftab.communication.Heartbeat;
+import org.ftab.communication.ProtocolMessage;
+import org.ftab.communication.ProtocolMessage.MessageType;
+import org.ftab.communication.requests.ConnectionRequest;
+import org.ftab.communication.requests.RetrieveMessageRequest;
+import org.ftab.communication.responses.RequestResponse;
+import org.ftab.communication.responses.RequestResponse.Status;
+import org.ftab.database.MemoryMessageStore;
+import org.ftab.pubenums.Filter;
+import org.ftab.pubenums.Order;
+import org.ftab.server.MessagingWorker;
+import org.junit.Test;
+
+/**
+ * Unit tests for the load counters of the workers, the reaping of idle
+ * connections, the retirement of workers, the writing of responses and the
+ * handling of malformed requests.
+ */
+public class MessagingWorkerTest {
+
+    /**
+     * Test that the worker counts its connections and the free slots of the
+     * server as channels are registered.
+     *
+     * @throws Exception
+     *             if a channel can't be opened.
+     */
+    @Test
+    public void testConnectionCounters() throws Exception {
+        AtomicInteger freeSlots = new AtomicInteger();
+        MessagingWorker worker = new MessagingWorker(2,
+                new MemoryMessageStore(), null,
+                ProtocolMessage.PROTOCOL_VERSION, null, null, freeSlots,
+                "test");
+        assertEquals(2, freeSlots.get());
+        assertEquals(0, worker.getConnectionCount());
+        assertEquals(0.0, worker.getRequestRate(), 0.0);
+
+        SocketChannel first = SocketChannel.open();
+        first.configureBlocking(false);
+        worker.registerChannel(first);
+        assertEquals(1, worker.getConnectionCount());
+        assertEquals(1, worker.remainingCapacity());
+        assertFalse(worker.isFull());
+
+        // A closed channel is not counted
+        SocketChannel closed = SocketChannel.open();
+        closed.configureBlocking(false);
+        closed.close();
+        worker.registerChannel(closed);
+        assertEquals(1, worker.getConnectionCount());
+        assertEquals(1, freeSlots.get());
+
+        SocketChannel second = SocketChannel.open();
+        second.configureBlocking(false);
+        worker.registerChannel(second);
+        assertTrue(worker.isFull());
+        assertEquals(0, freeSlots.get());
+
+        worker.increaseCapacity(1);
+        assertFalse(worker.isFull());
+        assertEquals(1, freeSlots.get());
+
+        first.close();
+        second.close();
+    }
+
+    /**
+     * Test that a connection without any activity is closed once the idle and
+     * ping timeouts elapse, freeing its slot.
+     *
+     * @throws Exception
+     *             if the loopback connection can't be made.
+     */
+    @Test(timeout = 10000)
+    public void testIdleReaping() throws Exception {
+        AtomicInteger freeSlots = new AtomicInteger();
+        MessagingWorker worker = new MessagingWorker(1,
+                new MemoryMessageStore(), null,
+                ProtocolMessage.PROTOCOL_VERSION, null, null, freeSlots,
+                "test");
+        worker.configureReaping(100, 100);
+
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel accepted = listener.accept();
+        accepted.configureBlocking(false);
+        worker.registerChannel(accepted);
+        assertEquals(0, freeSlots.get());
+
+        Thread thread = new Thread(worker);
+        thread.start();
+        try {
+            // The server closes the connection of the silent client
+            ByteBuffer buffer = ByteBuffer.allocate(64);
+            while (client.read(buffer) >= 0)
+                buffer.clear();
+            while (worker.getConnectionCount() > 0)
+                Thread.sleep(10);
+            assertEquals(1, freeSlots.get());
+        } finally {
+            worker.stopRunning();
+            thread.join();
+            client.close();
+            listener.close();
+        }
+    }
+
+    /**
+     * Test that a retiring worker moves its idle connections to its heir
+     * and stops, leaving the connections open and the free slots unchanged.
+     *
+     * @throws Exception
+     *             if the loopback connection can't be made.
+     */
+    @Test(timeout = 10000)
+    public void testRetirement() throws Exception {
+        AtomicInteger freeSlots = new AtomicInteger();
+        MessagingWorker retiring = new MessagingWorker(2,
+                new MemoryMessageStore(), null,
+                ProtocolMessage.PROTOCOL_VERSION, null, null, freeSlots,
+                "test");
+        MessagingWorker heir = new MessagingWorker(2,
+                new MemoryMessageStore(), null,
+                ProtocolMessage.PROTOCOL_VERSION, null, null, freeSlots,
+                "test");
+
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel accepted = listener.accept();
+        accepted.configureBlocking(false);
+        retiring.registerChannel(accepted);
+        assertEquals(3, freeSlots.get());
+
+        Thread retiringThread = new Thread(retiring);
+        Thread heirThread = new Thread(heir);
+        retiringThread.start();
+        heirThread.start();
+        try {
+            retiring.setCapacity(0);
+            assertTrue(retiring.isFull());
+            retiring.retire(Arrays.asList(heir));
+            // The worker may move the idle connection before the check
+            assertTrue(retiring.isRetiring() || retiring.isRetired());
+            retiringThread.join();
+            assertTrue(retiring.isRetired());
+            assertFalse(retiring.isRetiring());
+
+            assertEquals(0, retiring.getConnectionCount());
+            assertEquals(1, heir.getConnectionCount());
+            assertEquals(1, freeSlots.get());
+            assertTrue(accepted.isOpen());
+        } finally {
+            heir.stopRunning();
+            heirThread.join();
+            client.close();
+            listener.close();
+        }
+    }
+
+    /**
+     * Test that pipelined requests are all answered, in order, by a running
+     * worker.
+     *
+     * @throws Exception
+     *             if the loopback connection can't be made.
+     */
+    @Test(timeout = 10000)
+    public void testPipelinedResponses() throws Exception {
+        MessagingWorker worker = new MessagingWorker(1,
+                new MemoryMessageStore(), null,
+                ProtocolMessage.PROTOCOL_VERSION, null, null, null, "test");
+
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel accepted = listener.accept();
+        accepted.configureBlocking(false);
+        worker.registerChannel(accepted);
+
+        Thread thread = new Thread(worker);
+        thread.start();
+        try {
+            int pings = 3;
+            ByteBuffer ping = ProtocolMessage.toBytes(new Heartbeat(true));
+            ByteBuffer requests = ByteBuffer.allocate(ping.remaining() * pings);
+            for (int i = 0; i < pings; i++)
+                requests.put(ping.duplicate());
+            requests.flip();
+            while (requests.hasRemaining())
+                client.write(requests);
+
+            ByteBuffer responses = ByteBuffer.allocate(ping.remaining() * pings);
+            while (responses.hasRemaining())
+                assertTrue(client.read(responses) >= 0);
+            responses.flip();
+            for (int i = 0; i < pings; i++) {
+                responses.position(i * ping.remaining()
+                        + ProtocolMessage.HEADER_SIZE);
+                assertEquals(MessageType.PONG, ProtocolMessage.fromBytes(
+                        responses).getMessageType());
+            }
+        } finally {
+            worker.stopRunning();
+            thread.join();
+            client.close();
+            listener.close();
+        }
+    }
+
+    /**
+     * Read the next response from the client side of a loopback connection.
+     *
+     * @param client
+     *            client side of the connection.
+     * @return the decoded response.
+     * @throws Exception
+     *             if the socket can't be read or the header is invalid.
+     */
+    private static ProtocolMessage receive(SocketChannel client)
+            throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(ProtocolMessage.HEADER_SIZE);
+        while (header.hasRemaining())
+            assertTrue(client.read(header) >= 0);
+        header.flip();
+        ByteBuffer body = ByteBuffer.allocate(ProtocolMessage
+                .getBodySize(header));
+        while (body.hasRemaining())
+            assertTrue(client.read(body) >= 0);
+        body.flip();
+        return ProtocolMessage.fromBytes(body);
+    }
+
+    /**
+     * Test that a retrieval with a limit and a wait timeout out of range is
+     * answered with an error and that the connection keeps being served.
+     *
+     * @throws Exception
+     *             if the loopback connection can't be made.
+     */
+    @Test(timeout = 10000)
+    public void testInvalidRetrieveLimits() throws Exception {
+        MessagingWorker worker = new MessagingWorker(1,
+                new MemoryMessageStore(), null,
+                ProtocolMessage.PROTOCOL_VERSION, null, null, null, "test");
+
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel accepted = listener.accept();
+        accepted.configureBlocking(false);
+        worker.registerChannel(accepted);
+
+        Thread thread = new Thread(worker);
+        thread.start();
+        try {
+            // The constructor refuses the values, so they are patched into
+            // the encoded request where the limit and the timeout go last
+            ByteBuffer retrieve = ProtocolMessage.toBytes(
+                    new RetrieveMessageRequest("queue", Filter.QUEUE,
+                            Order.TIMESTAMP, true, 2, 1000));
+            retrieve.putShort(retrieve.limit() - 6, (short) 0);
+            retrieve.putInt(retrieve.limit() - 4, -1);
+            ByteBuffer[] requests = new ByteBuffer[] {
+                    ProtocolMessage.toBytes(new ConnectionRequest("limits",
+                            true)), retrieve,
+                    ProtocolMessage.toBytes(new Heartbeat(true)) };
+            while (requests[requests.length - 1].hasRemaining())
+                client.write(requests);
+
+            assertEquals(Status.SUCCESS,
+                    ((RequestResponse) receive(client)).getStatus());
+            assertEquals(Status.EXCEPTION,
+                    ((RequestResponse) receive(client)).getStatus());
+            assertEquals(MessageType.PONG, receive(client).getMessageType());
+            assertTrue(thread.isAlive());
+        } finally {
+            worker.stopRunning();
+            thread.join();
+            client.close();
+            listener.close();
+        }
+    }
+
+    /**
+     * Test that a client advertising heartbeats is pinged when idle even if
+     * its responses are text encoded, and that a legacy client that can't be
+     * pinged is not reaped.
+     *
+     * @throws Exception
+     *             if the loopback connections can't be made.
+     */
+    @Test(timeout = 10000)
+    public void testHeartbeatNegotiation() throws Exception {
+        MessagingWorker worker = new MessagingWorker(2,
+                new MemoryMessageStore(), null,
+                ProtocolMessage.TEXT_PROTOCOL_VERSION, null, null, null,
+                "test");
+        worker.configureReaping(100, 100);
+
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel current = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel accepted = listener.accept();
+        accepted.configureBlocking(false);
+        worker.registerChannel(accepted);
+        SocketChannel legacy = SocketChannel.open(listener.getLocalAddress());
+        accepted = listener.accept();
+        accepted.configureBlocking(false);
+        worker.registerChannel(accepted);
+
+        Thread thread = new Thread(worker);
+        thread.start();
+        try {
+            ByteBuffer connect = ProtocolMessage.toBytes(new ConnectionRequest(
+                    "current", true));
+            while (connect.hasRemaining())
+                current.write(connect);
+            connect = ProtocolMessage.toBytes(new ConnectionRequest("legacy",
+                    true, ProtocolMessage.TEXT_PROTOCOL_VERSION));
+            while (connect.hasRemaining())
+                legacy.write(connect);
+            assertEquals(Status.SUCCESS,
+                    ((RequestResponse) receive(current)).getStatus());
+            assertEquals(Status.SUCCESS,
+                    ((RequestResponse) receive(legacy)).getStatus());
+
+            assertEquals(MessageType.PING, receive(current).getMessageType());
+            // Several idle and ping timeouts pass without the legacy client
+            // being closed, while the silent current client is reaped
+            while (worker.getConnectionCount() > 1)
+                Thread.sleep(10);
+            Thread.sleep(500);
+            assertEquals(1, worker.getConnectionCount());
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            legacy.configureBlocking(false);
+            assertEquals(0, legacy.read(buffer));
+        } finally {
+            worker.stopRunning();
+            thread.join();
+            current.close();
+            legacy.close();
+            listener.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * MetricsExportTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.ftab.communication.responses.RequestResponse.Status;
+import org.ftab.logging.SystemEvent;
+import org.ftab.server.MetricsHttpServer;
+import org.ftab.server.ServerManager;
+import org.ftab.server.ServerStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the export of the server statistics, on a server that is not
+ * running so no database is needed.
+ */
+public class MetricsExportTest {
+
+    /**
+     * Server whose statistics are exported.
+     */
+    private ServerManager server;
+
+    /**
+     * Create a server with some recorded latencies.
+     */
+    @Before
+    public void setUp() {
+        server = new ServerManager(2, 10, 0);
+        server.getRequestMetrics().record(SystemEvent.SEND_MESSAGE,
+                Status.SUCCESS, 3000000);
+        server.getRequestMetrics().record(SystemEvent.RETRIEVE_MESSAGE,
+                Status.NO_MESSAGE, 1000000);
+    }
+
+    /**
+     * Stop the server.
+     */
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    /**
+     * Test that the metrics page is served in the Prometheus text format.
+     *
+     * @throws Exception
+     *             if the page can't be retrieved.
+     */
+    @Test
+    public void testHttpEndpoint() throws Exception {
+        MetricsHttpServer http = new MetricsHttpServer(new ServerStats(server),
+                0);
+        http.start();
+        try {
+            URL url = new URL("http://127.0.0.1:" + http.getPort()
+                    + MetricsHttpServer.PATH);
+            HttpURLConnection connection = (HttpURLConnection) url
+                    .openConnection();
+            assertEquals(200, connection.getResponseCode());
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) > 0)
+                body.write(chunk, 0, read);
+            in.close();
+            String page = body.toString("UTF-8");
+
+            assertTrue(page.contains("ftab_workers 0\n"));
+            assertTrue(page.contains("# TYPE ftab_request_seconds histogram\n"));
+            assertTrue(page.contains("ftab_request_seconds_count{"
+                    + "event=\"SEND_MESSAGE\",status=\"SUCCESS\"} 1\n"));
+            assertTrue(page.contains("ftab_request_seconds_bucket{"
+                    + "event=\"RETRIEVE_MESSAGE\",status=\"NO_MESSAGE\","
+                    + "le=\"+Inf\"} 1\n"));
+            assertTrue(page.contains("ftab_db_pool_acquire_seconds_count 0\n"));
+        } finally {
+            http.stop();
+        }
+    }
+
+    /**
+     * Test that the statistics are registered in JMX.
+     *
+     * @throws Exception
+     *             if the attributes can't be read.
+     */
+    @Test
+    public void testJmx() throws Exception {
+        server.configureMetrics(0, true);
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.ftab:type=Server,name="
+                + ObjectName.quote(server.getServerName()));
+        assertEquals(2L, mbeans.getAttribute(name, "RequestCount"));
+        assertEquals(0, mbeans.getAttribute(name, "WorkerCount"));
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * RequestMetricsTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.ftab.communication.responses.RequestResponse.Status;
+import org.ftab.logging.SystemEvent;
+import org.ftab.server.LatencyHistogram;
+import org.ftab.server.RequestMetrics;
+import org.junit.Test;
+
+/**
+ * Unit tests for the request latency registry and the precision of its
+ * histograms.
+ */
+public class RequestMetricsTest {
+
+    /**
+     * Test that the sub-buckets bound the error of the percentiles.
+     */
+    @Test
+    public void testPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram(3);
+        for (int i = 0; i < 99; ++i)
+            histogram.record(3000);
+        histogram.record(1000000);
+        assertEquals(99, histogram.getBucketCount(2));
+        assertEquals(3, histogram.getPercentile(0.5));
+        assertEquals(1024, histogram.getPercentile(1.0));
+
+        histogram = new LatencyHistogram(3);
+        for (long micros = 1; micros <= 100000; ++micros)
+            histogram.record(micros * 1000);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue(p99 >= 99000 && p99 <= 99000 * 1.125);
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue(p50 >= 50000 && p50 <= 50000 * 1.125);
+    }
+
+    /**
+     * Test that concurrent recordings are not lost.
+     *
+     * @throws Exception
+     *             if the test is interrupted.
+     */
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram(3);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; ++i)
+                        histogram.record(i * 1000L);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(40000, histogram.getCount());
+        long total = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; ++i)
+            total += histogram.getBucketCount(i);
+        assertEquals(40000, total);
+        assertEquals(9999000, histogram.getMax());
+    }
+
+    /**
+     * Test that the latencies are kept apart by request kind and status.
+     */
+    @Test
+    public void testRegistry() {
+        RequestMetrics metrics = new RequestMetrics();
+        metrics.record(SystemEvent.RETRIEVE_MESSAGE, Status.SUCCESS, 5000);
+        metrics.record(SystemEvent.RETRIEVE_MESSAGE, Status.SUCCESS, 7000);
+        metrics.record(SystemEvent.RETRIEVE_MESSAGE, Status.NO_MESSAGE, 2000);
+
+        assertEquals(2, metrics.getHistogram(SystemEvent.RETRIEVE_MESSAGE,
+                Status.SUCCESS).getCount());
+        assertEquals(1, metrics.getHistogram(SystemEvent.RETRIEVE_MESSAGE,
+                Status.NO_MESSAGE).getCount());
+        assertNull(metrics.getHistogram(SystemEvent.SEND_MESSAGE,
+                Status.SUCCESS));
+        assertTrue(metrics.toString().contains("RETRIEVE_MESSAGE/NO_MESSAGE"));
+    }
+}
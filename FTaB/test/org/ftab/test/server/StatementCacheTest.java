@@ -0,0 +1,157 @@
+/**
+ * StatementCacheTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.HashSet;
+
+import org.ftab.server.StatementCache;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the prepared statement cache, with fake connections and
+ * statements so no database is needed.
+ */
+public class StatementCacheTest {
+
+    /**
+     * Statements closed by the cache.
+     */
+    private HashSet<PreparedStatement> closedStatements;
+
+    /**
+     * Number of statements prepared by the fake connection.
+     */
+    private int prepared;
+
+    /**
+     * Fake connection that prepares fake statements.
+     */
+    private Connection connection;
+
+    /**
+     * Create the fake connection.
+     */
+    @Before
+    public void setUp() {
+        closedStatements = new HashSet<PreparedStatement>();
+        prepared = 0;
+        connection = (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("prepareStatement")) {
+                            ++prepared;
+                            return fakeStatement();
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Create a fake statement that records when it is closed.
+     * 
+     * @return the statement.
+     */
+    private PreparedStatement fakeStatement() {
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("close"))
+                            closedStatements.add((PreparedStatement) proxy);
+                        else if (name.equals("isClosed"))
+                            return closedStatements.contains(proxy);
+                        else if (name.equals("equals"))
+                            return proxy == args[0];
+                        else if (name.equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Test that a released statement is reused for the same SQL, and that
+     * uses of the same SQL at once get different statements.
+     * 
+     * @throws Exception
+     *             if the cache fails.
+     */
+    @Test
+    public void testReuse() throws Exception {
+        StatementCache cache = new StatementCache(connection, 4, 0);
+        PreparedStatement first = cache.acquire("SELECT 1");
+        PreparedStatement second = cache.acquire("SELECT 1");
+        assertNotSame(first, second);
+        cache.release("SELECT 1", first);
+        assertSame(first, cache.acquire("SELECT 1"));
+        assertEquals(2, prepared);
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    /**
+     * Test that the least recently used statement is closed when the cache is
+     * full.
+     * 
+     * @throws Exception
+     *             if the cache fails.
+     */
+    @Test
+    public void testEviction() throws Exception {
+        StatementCache cache = new StatementCache(connection, 2, 0);
+        PreparedStatement a = cache.acquire("A");
+        PreparedStatement b = cache.acquire("B");
+        PreparedStatement c = cache.acquire("C");
+        cache.release("A", a);
+        cache.release("B", b);
+        assertSame(a, cache.acquire("A"));
+        cache.release("A", a);
+        cache.release("C", c);
+        assertEquals(2, cache.size());
+        assertTrue(closedStatements.contains(b));
+        assertFalse(closedStatements.contains(a));
+
+        cache.close();
+        assertEquals(0, cache.size());
+        assertTrue(closedStatements.contains(a));
+        assertTrue(closedStatements.contains(c));
+    }
+
+    /**
+     * Test that a cache without capacity closes the released statements.
+     * 
+     * @throws Exception
+     *             if the cache fails.
+     */
+    @Test
+    public void testDisabled() throws Exception {
+        StatementCache cache = new StatementCache(connection, 0, 0);
+        PreparedStatement stmt = cache.acquire("A");
+        cache.release("A", stmt);
+        assertTrue(closedStatements.contains(stmt));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * TimingWheelTest.java
+ * Created: Oct 17, 2026
+ * Author: Diego Ballesteros (diegob)
+ */
+package org.ftab.test.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ftab.server.TimingWheel;
+import org.junit.Test;
+
+/**
+ * Unit tests for the wheel of the idle connections.
+ */
+public class TimingWheelTest {
+
+    /**
+     * Test that the timers expire once their deadline is reached, and not
+     * when only their tick is.
+     */
+    @Test
+    public void testExpiration() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 0);
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 28);
+        wheel.schedule("c", 40);
+        wheel.schedule("late", -5);
+        assertEquals(4, wheel.size());
+
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(5, expired);
+        assertEquals(Arrays.asList("late"), expired);
+
+        expired.clear();
+        wheel.advance(26, expired);
+        assertEquals(Arrays.asList("a"), expired);
+
+        expired.clear();
+        wheel.advance(39, expired);
+        assertEquals(Arrays.asList("b"), expired);
+
+        expired.clear();
+        wheel.advance(45, expired);
+        assertEquals(Arrays.asList("c"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * Test that the timers further than a rotation stay in the wheel until a
+     * later rotation, and that a long pause visits every slot.
+     */
+    @Test
+    public void testRotations() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 4, 0);
+        wheel.schedule("near", 15);
+        wheel.schedule("far", 55);
+
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(20, expired);
+        assertEquals(Arrays.asList("near"), expired);
+        assertEquals(1, wheel.size());
+
+        expired.clear();
+        wheel.advance(1000, expired);
+        assertEquals(Arrays.asList("far"), expired);
+
+        wheel.schedule("after", 1015);
+        expired.clear();
+        wheel.advance(1010, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(1020, expired);
+        assertEquals(Arrays.asList("after"), expired);
+    }
+}
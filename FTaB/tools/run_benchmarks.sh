@@ -0,0 +1,37 @@
+#!/bin/bash
+# Builds and runs the JMH benchmarks in bench/ with the gc profiler, which
+# reports the bytes allocated per operation next to the timings.
+#
+# Usage: tools/run_benchmarks.sh [output file] [JMH options]
+# JMH_CLASSPATH must point to the JMH jars (jmh-core, jmh-generator-annprocess
+# and their dependencies jopt-simple and commons-math3), e.g.
+#   JMH_CLASSPATH=$(echo ~/jmh/*.jar | tr ' ' ':') tools/run_benchmarks.sh
+# The extra options are passed to JMH, e.g. -p messageSize=2000 or a regular
+# expression selecting the benchmarks.
+
+if [ -z "$JMH_CLASSPATH" ]
+then
+    echo "Set JMH_CLASSPATH to the JMH jars."
+    exit 1
+fi
+
+cd "$(dirname "$0")/.."
+OUTPUT=${1:-results/benchmarks_$(date +%Y%m%d_%H%M%S).txt}
+shift
+BUILD=$(mktemp -d)
+CLASSPATH=$BUILD:$JMH_CLASSPATH:lib/postgresql-9.2-1003.jdbc4.jar
+
+javac -encoding UTF-8 -nowarn -cp "$CLASSPATH" -d $BUILD \
+    $(find src bench -name '*.java')
+if [ $? -ne 0 ]
+then
+    echo "The benchmarks failed to compile."
+    rm -rf $BUILD
+    exit 1
+fi
+
+java -cp "$CLASSPATH" org.openjdk.jmh.Main -prof gc -o "$OUTPUT" "$@"
+STATUS=$?
+rm -rf $BUILD
+echo "Results written to $OUTPUT"
+exit $STATUS
@@ -0,0 +1,15 @@
+#!/bin/bash
+# Runs the open-loop load generator on a trace file and stores the latency
+# report next to the client logs.
+#
+# Usage: tools/run_load_generator.sh trace.ini [report file]
+
+if [ $# -lt 1 ]
+then
+    echo "Usage: $0 trace.ini [report file]"
+    exit 1
+fi
+
+REPORT=${2:-load_$(date +%Y%m%d_%H%M%S).txt}
+java -cp FTaB-client.jar org.ftab.client.load.LoadGenerator "$1" | tee "$REPORT"
+exit ${PIPESTATUS[0]}